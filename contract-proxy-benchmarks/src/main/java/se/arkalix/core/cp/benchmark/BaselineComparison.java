@@ -0,0 +1,144 @@
+package se.arkalix.core.cp.benchmark;
+
+import se.arkalix.core.cp.util.JsonParser;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares JMH results written in the JSON format with a baseline written in
+ * the same format, and exits with status 1 if any benchmark has regressed.
+ * <p>
+ * A benchmark is regarded as having regressed if its average time per
+ * operation, or the number of bytes it allocates per operation, has grown by
+ * more than the given threshold. Time differences are only counted if they
+ * are larger than the combined error margins of the two results.
+ * Benchmarks must have been run in {@code avgt} mode, and allocation rates
+ * are only compared if both runs used the {@code gc} profiler.
+ * <p>
+ * Results are only comparable if produced on the same machine, which is
+ * why the baseline should be produced by running the benchmarks on the
+ * commit being compared with, on the machine running the comparison.
+ * <p>
+ * Usage: {@code BaselineComparison <baseline.json> <results.json>
+ * [threshold-percent]}
+ */
+public final class BaselineComparison {
+    private static final double DEFAULT_THRESHOLD_PERCENT = 10.0;
+    private static final String ALLOCATION_METRIC = "\u00b7gc.alloc.rate.norm";
+
+    private BaselineComparison() {}
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: BaselineComparison <baseline.json> <results.json> [threshold-percent]");
+            System.exit(2);
+        }
+        final var baseline = read(Path.of(args[0]));
+        final var results = read(Path.of(args[1]));
+        final var threshold = (args.length == 3 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD_PERCENT) / 100.0;
+
+        var regressionCount = 0;
+        for (final var entry : results.entrySet()) {
+            final var name = entry.getKey();
+            final var current = entry.getValue();
+            final var previous = baseline.get(name);
+            if (previous == null) {
+                System.out.printf("NEW        %s: %.3f %s%n", name, current.score, current.unit);
+                continue;
+            }
+
+            final var change = current.score / previous.score - 1.0;
+            final var isSlower = change > threshold &&
+                current.score - previous.score > current.error + previous.error;
+            final var allocationChange = current.allocation >= 0 && previous.allocation >= 0
+                ? (current.allocation + 1.0) / (previous.allocation + 1.0) - 1.0
+                : 0.0;
+            final var isAllocatingMore = allocationChange > threshold;
+
+            final String verdict;
+            if (isSlower || isAllocatingMore) {
+                verdict = "REGRESSED ";
+                regressionCount += 1;
+            }
+            else if (change < -threshold && previous.score - current.score > current.error + previous.error) {
+                verdict = "IMPROVED  ";
+            }
+            else {
+                verdict = "UNCHANGED ";
+            }
+            System.out.printf("%s %s: %.3f -> %.3f %s (%+.1f%%)", verdict, name, previous.score, current.score,
+                current.unit, change * 100.0);
+            if (current.allocation >= 0 && previous.allocation >= 0) {
+                System.out.printf(", %.0f -> %.0f B/op (%+.1f%%)", previous.allocation, current.allocation,
+                    allocationChange * 100.0);
+            }
+            System.out.println();
+        }
+        for (final var name : baseline.keySet()) {
+            if (!results.containsKey(name)) {
+                System.out.printf("MISSING    %s%n", name);
+            }
+        }
+
+        System.out.printf("%d of %d benchmarks regressed by more than %.1f%%%n",
+            regressionCount, results.size(), threshold * 100.0);
+        if (regressionCount > 0) {
+            System.exit(1);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Result> read(final Path path) throws IOException {
+        final var runs = (List<Object>) JsonParser.parse(Files.readAllBytes(path));
+        final var nameToResult = new TreeMap<String, Result>();
+        for (final var run0 : runs) {
+            final var run = (Map<String, Object>) run0;
+            final var name = new StringBuilder((String) run.get("benchmark"));
+            final var params = (Map<String, Object>) run.get("params");
+            if (params != null) {
+                for (final var param : new TreeMap<>(params).entrySet()) {
+                    name.append(':').append(param.getKey()).append('=').append(param.getValue());
+                }
+            }
+            final var primaryMetric = (Map<String, Object>) run.get("primaryMetric");
+            final var secondaryMetrics = (Map<String, Object>) run.get("secondaryMetrics");
+            final var allocationMetric = secondaryMetrics != null
+                ? (Map<String, Object>) secondaryMetrics.get(ALLOCATION_METRIC)
+                : null;
+            nameToResult.put(name.toString(), new Result(
+                numberOf(primaryMetric.get("score")),
+                numberOf(primaryMetric.get("scoreError")),
+                (String) primaryMetric.get("scoreUnit"),
+                allocationMetric != null ? numberOf(allocationMetric.get("score")) : -1.0));
+        }
+        return nameToResult;
+    }
+
+    // Errors are reported as "NaN" when there are too few iterations to
+    // calculate them.
+    private static double numberOf(final Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return 0.0;
+    }
+
+    private static class Result {
+        private final double score;
+        private final double error;
+        private final String unit;
+        private final double allocation;
+
+        private Result(final double score, final double error, final String unit, final double allocation) {
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+            this.allocation = allocation;
+        }
+    }
+}
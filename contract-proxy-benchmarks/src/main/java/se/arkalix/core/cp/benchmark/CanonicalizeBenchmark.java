@@ -0,0 +1,50 @@
+package se.arkalix.core.cp.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.arkalix.core.cp.contract.SignedContractOfferDto;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of writing offers as canonical JSON, which is done
+ * every time an offer is signed, verified or hashed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CanonicalizeBenchmark {
+    @Param({"1", "8", "64"})
+    public int contracts;
+
+    private SignedContractOfferDto offer;
+
+    @Setup
+    public void setup() {
+        final var aliases = Fixtures.ecAliases();
+        offer = Fixtures.offerOf(1, Fixtures.ownedParty(aliases.get(0)), Fixtures.counterParty(aliases.get(1)),
+            contracts);
+    }
+
+    @Benchmark
+    public byte[] canonicalize() {
+        return offer.canonicalize();
+    }
+
+    @Benchmark
+    public byte[] canonicalizeWithoutSignatureSum() {
+        return offer.canonicalizeWithoutSignatureSum();
+    }
+}
@@ -0,0 +1,120 @@
+package se.arkalix.core.cp.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.arkalix.core.cp.bank.DefinitionCborWriter;
+import se.arkalix.core.cp.bank.DefinitionMessageWriter;
+import se.arkalix.core.cp.util.CborWriter;
+import se.arkalix.core.cp.util.HttpCompression;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of compressing and decompressing a response listing
+ * {@code offers} signed offers, as written by the {@code /offers} endpoint of
+ * the contract sharing service, with each supported content encoding.
+ * <p>
+ * The size of each compressed body is reported as the {@code bytes}
+ * secondary result of {@link #compress(Size)}. The {@code identity} encoding
+ * leaves bodies as they are, which makes its results those of writing
+ * uncompressed bodies. Compression saves latency on links where sending
+ * the bytes it removes takes longer than compressing and decompressing.
+ * <p>
+ * Consecutive offers differ only by their offerors, receivers and
+ * signatures, which makes the bodies somewhat more compressible than
+ * those of real negotiations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+    @Param({"json", "cbor"})
+    public String format;
+
+    @Param({"identity", "gzip", "deflate"})
+    public String encoding;
+
+    @Param({"1", "100"})
+    public int offers;
+
+    private byte[] body;
+    private byte[] compressedBody;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Size {
+        public long bytes;
+    }
+
+    @Setup
+    public void setup() {
+        final var aliases = Fixtures.ecAliases();
+        final var party1 = Fixtures.ownedParty(aliases.get(0));
+        final var party2 = Fixtures.ownedParty(aliases.get(1));
+
+        switch (format) {
+        case "json": {
+            final var builder = new StringBuilder().append('[');
+            for (var i = 0; i < offers; ++i) {
+                if (i != 0) {
+                    builder.append(',');
+                }
+                DefinitionMessageWriter.writeOffer(builder, i % 2 == 0
+                    ? Fixtures.offerOf(1, party1, party2, 1)
+                    : Fixtures.offerOf(1, party2, party1, 1));
+            }
+            body = builder.append(']').toString().getBytes(StandardCharsets.UTF_8);
+            break;
+        }
+
+        case "cbor": {
+            final var writer = new CborWriter().writeArrayHeader(offers);
+            for (var i = 0; i < offers; ++i) {
+                DefinitionCborWriter.writeOffer(writer, i % 2 == 0
+                    ? Fixtures.offerOf(1, party1, party2, 1)
+                    : Fixtures.offerOf(1, party2, party1, 1));
+            }
+            body = writer.toByteArray();
+            break;
+        }
+
+        default:
+            throw new IllegalStateException("Unknown format \"" + format + "\"");
+        }
+        compressedBody = compress(body);
+    }
+
+    @Benchmark
+    public byte[] compress(final Size size) {
+        final var compressed = compress(body);
+        size.bytes = compressed.length;
+        return compressed;
+    }
+
+    @Benchmark
+    public byte[] decompress() {
+        return encoding.equals("identity")
+            ? compressedBody.clone()
+            : HttpCompression.decompress(compressedBody, encoding);
+    }
+
+    private byte[] compress(final byte[] data) {
+        return encoding.equals("identity")
+            ? data.clone()
+            : HttpCompression.compress(data, encoding);
+    }
+}
@@ -0,0 +1,139 @@
+package se.arkalix.core.cp.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.arkalix.core.cp.bank.Definition;
+import se.arkalix.core.cp.bank.DefinitionBank;
+import se.arkalix.core.cp.bank.DefinitionEntry;
+import se.arkalix.core.cp.contract.SignedContractOfferDto;
+import se.arkalix.core.cp.security.Hash;
+
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of adding definitions to, and getting definitions from,
+ * a definition bank with a heap store. Definitions are looked up either by
+ * their primary hashes, by hashes calculated with another accepted
+ * algorithm, or by hashes of definitions not in the bank.
+ * <p>
+ * Definitions are added with new negotiation identifiers, as a bank rejects
+ * definitions it already holds. The cost of creating those definitions is
+ * measured by {@link #createOffer(Empty)}, which should be subtracted from
+ * that of {@link #add(Empty)}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class DefinitionBankBenchmark {
+    @State(Scope.Thread)
+    public static class Empty {
+        private SignedContractOfferDto offer;
+        private DefinitionBank bank;
+        private long negotiationId;
+
+        @Setup
+        public void setup() {
+            final var aliases = Fixtures.ecAliases();
+            offer = Fixtures.offerOf(0, Fixtures.ownedParty(aliases.get(0)), Fixtures.counterParty(aliases.get(1)),
+                1);
+        }
+
+        // Banks are never emptied, which is why they are replaced before
+        // every iteration.
+        @Setup(Level.Iteration)
+        public void setupIteration() {
+            bank = new DefinitionBank(Fixtures.HASH_ALGORITHMS);
+            negotiationId = 0;
+        }
+
+        SignedContractOfferDto nextOffer() {
+            return Fixtures.offerOf(offer, ++negotiationId);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Populated {
+        @Param({"1000", "100000"})
+        public int size;
+
+        private DefinitionBank bank;
+        private Hash[] primaryHashes;
+        private Hash[] otherHashes;
+        private Hash[] unknownHashes;
+
+        @Setup
+        public void setup() {
+            final var aliases = Fixtures.ecAliases();
+            final var offer = Fixtures.offerOf(0, Fixtures.ownedParty(aliases.get(0)),
+                Fixtures.counterParty(aliases.get(1)), 1);
+
+            bank = new DefinitionBank(Fixtures.HASH_ALGORITHMS);
+            final var otherHashAlgorithm = Fixtures.HASH_ALGORITHMS.stream()
+                .filter(algorithm -> !algorithm.equals(bank.primaryHashAlgorithm()))
+                .findFirst()
+                .orElseThrow();
+            primaryHashes = new Hash[size];
+            otherHashes = new Hash[size];
+            unknownHashes = new Hash[size];
+            // The first lookup of an other hash makes the bank index the
+            // definitions added here in the background, which is done
+            // during warm-up.
+            for (var i = 0; i < size; ++i) {
+                final var definition = Fixtures.offerOf(offer, i + 1);
+                bank.add(definition);
+                primaryHashes[i] = definition.hashUsing(bank.primaryHashAlgorithm());
+                otherHashes[i] = definition.hashUsing(otherHashAlgorithm);
+                unknownHashes[i] = Fixtures.offerOf(offer, -(i + 1)).hashUsing(bank.primaryHashAlgorithm());
+            }
+        }
+
+        private static int nextIndex(final Hash[] hashes) {
+            return ThreadLocalRandom.current().nextInt(hashes.length);
+        }
+    }
+
+    @Benchmark
+    public SignedContractOfferDto createOffer(final Empty state) {
+        return state.nextOffer();
+    }
+
+    @Benchmark
+    public DefinitionBank add(final Empty state) {
+        state.bank.add(state.nextOffer());
+        return state.bank;
+    }
+
+    @Benchmark
+    public Optional<Definition> getByPrimaryHash(final Populated state) {
+        return state.bank.get(state.primaryHashes[Populated.nextIndex(state.primaryHashes)]);
+    }
+
+    @Benchmark
+    public Optional<Definition> getByOtherHash(final Populated state) {
+        return state.bank.get(state.otherHashes[Populated.nextIndex(state.otherHashes)]);
+    }
+
+    @Benchmark
+    public Optional<Definition> getByUnknownHash(final Populated state) {
+        return state.bank.get(state.unknownHashes[Populated.nextIndex(state.unknownHashes)]);
+    }
+
+    @Benchmark
+    public Optional<DefinitionEntry> getEntryByPrimaryHash(final Populated state) {
+        return state.bank.getEntry(state.primaryHashes[Populated.nextIndex(state.primaryHashes)]);
+    }
+}
@@ -0,0 +1,109 @@
+package se.arkalix.core.cp.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.arkalix.core.cp.bank.DefinitionBank;
+import se.arkalix.core.cp.bank.DefinitionEntry;
+import se.arkalix.core.cp.contract.SignedContractOfferBuilder;
+import se.arkalix.core.cp.security.Hash;
+import se.arkalix.core.cp.security.HashAlgorithm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of the lookups made by trusted {@code /definitions}
+ * queries, in which lists of negotiation identifiers and hashes are given.
+ * The bank holds {@link #NEGOTIATIONS} negotiations of {@link
+ * #OFFERS_PER_NEGOTIATION} offers each.
+ * <p>
+ * Hashes are those of random definitions in the bank, calculated with a
+ * non-primary hash algorithm, which means that most of them are filtered out
+ * when few identifiers are given. If no hashes are given, all definitions of
+ * the identified negotiations are returned.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class DefinitionQueryBenchmark {
+    private static final int NEGOTIATIONS = 10_000;
+    private static final int OFFERS_PER_NEGOTIATION = 4;
+
+    @Param({"10", "1000"})
+    public int idCount;
+
+    @Param({"0", "10", "1000"})
+    public int hashCount;
+
+    private DefinitionBank bank;
+    private List<Hash> allHashes;
+    private List<Long> ids;
+    private List<Hash> hashes;
+
+    @Setup
+    public void setup() {
+        final var aliases = Fixtures.ecAliases();
+        final var offer = Fixtures.offerOf(0, Fixtures.ownedParty(aliases.get(0)),
+            Fixtures.counterParty(aliases.get(1)), 1);
+        final var primaryHashAlgorithm = HashAlgorithm.SHA_256;
+        bank = new DefinitionBank.Builder()
+            .acceptedHashAlgorithms(Fixtures.HASH_ALGORITHMS)
+            .primaryHashAlgorithm(primaryHashAlgorithm)
+            .build();
+
+        allHashes = new ArrayList<>(NEGOTIATIONS * OFFERS_PER_NEGOTIATION);
+        for (var i = 0; i < NEGOTIATIONS; ++i) {
+            for (var j = 0; j < OFFERS_PER_NEGOTIATION; ++j) {
+                final var definition = new SignedContractOfferBuilder()
+                    .negotiationId(i)
+                    .offerorFingerprint(offer.offerorFingerprint())
+                    .receiverFingerprint(offer.receiverFingerprint())
+                    .validAfter(offer.validAfter())
+                    .validUntil(offer.validUntil().plusMillis(j))
+                    .contracts(offer.contractsAsDtos())
+                    .signature(offer.signature())
+                    .build();
+                bank.add(definition);
+                allHashes.add(definition.hashUsing(HashAlgorithm.SHA_512));
+            }
+        }
+
+        // Secondary hashes are indexed in the background after the first
+        // lookup that uses them. Looking up a hash not in the bank waits for
+        // the indexing to complete before measuring.
+        bank.get(new Hash(HashAlgorithm.SHA_512, new byte[64]));
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        final var random = new Random();
+        ids = new ArrayList<>(idCount);
+        for (var i = 0; i < idCount; ++i) {
+            ids.add((long) random.nextInt(NEGOTIATIONS));
+        }
+        hashes = new ArrayList<>(hashCount);
+        for (var i = 0; i < hashCount; ++i) {
+            hashes.add(allHashes.get(random.nextInt(allHashes.size())));
+        }
+    }
+
+    @Benchmark
+    public List<DefinitionEntry> get() {
+        return bank.get(ids, hashes);
+    }
+}
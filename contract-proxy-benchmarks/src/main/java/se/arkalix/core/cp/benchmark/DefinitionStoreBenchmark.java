@@ -0,0 +1,167 @@
+package se.arkalix.core.cp.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import se.arkalix.core.cp.bank.Definition;
+import se.arkalix.core.cp.bank.DefinitionBank;
+import se.arkalix.core.cp.bank.DefinitionLog;
+import se.arkalix.core.cp.bank.DefinitionStore;
+import se.arkalix.core.cp.bank.HeapDefinitionStore;
+import se.arkalix.core.cp.bank.LsmDefinitionStore;
+import se.arkalix.core.cp.bank.OffHeapDefinitionStore;
+import se.arkalix.core.cp.bank.OffHeapHashIndex;
+import se.arkalix.core.cp.contract.SignedContractOfferDto;
+import se.arkalix.core.cp.security.Hash;
+import se.arkalix.core.cp.security.HashAlgorithm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Measures the cost of adding definitions to, and getting definitions from,
+ * a definition bank with each kind of definition store, while four threads
+ * do so at the same time. The {@code mixed} group has one thread adding
+ * definitions while three threads get definitions by their primary hashes,
+ * which makes the LSM store flush and merge its tables while being read.
+ * <p>
+ * Banks are never emptied, which is why they are replaced before every
+ * iteration, and why iterations are kept short.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Threads(4)
+@State(Scope.Benchmark)
+public class DefinitionStoreBenchmark {
+    private static final int SIZE = 100_000;
+
+    @Param({"heap", "off-heap", "lsm"})
+    public String store;
+
+    private final AtomicLong nextNegotiationId = new AtomicLong();
+
+    private SignedContractOfferDto offer;
+    private Hash[] hashes;
+    private Path directory;
+    private DefinitionLog log;
+    private OffHeapHashIndex secondaryIndex;
+    private DefinitionStore store0;
+    private DefinitionBank bank;
+
+    @Setup
+    public void setup() {
+        final var aliases = Fixtures.ecAliases();
+        offer = Fixtures.offerOf(0, Fixtures.ownedParty(aliases.get(0)), Fixtures.counterParty(aliases.get(1)), 1);
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() throws IOException {
+        final var primaryHashAlgorithm = HashAlgorithm.preferredOf(Fixtures.HASH_ALGORITHMS);
+        final var builder = new DefinitionBank.Builder()
+            .acceptedHashAlgorithms(Fixtures.HASH_ALGORITHMS)
+            .primaryHashAlgorithm(primaryHashAlgorithm);
+
+        directory = Files.createTempDirectory("definition-store-benchmark");
+        switch (store) {
+        case "heap":
+            store0 = new HeapDefinitionStore();
+            break;
+
+        case "off-heap":
+            log = DefinitionLog.open(directory.resolve("log"));
+            store0 = new OffHeapDefinitionStore(log, OffHeapHashIndex.create(directory.resolve("index"), SIZE),
+                Set.of(primaryHashAlgorithm));
+            secondaryIndex = OffHeapHashIndex.create(directory.resolve("secondary-index"), 0);
+            builder.log(log).secondaryIndex(secondaryIndex);
+            break;
+
+        case "lsm":
+            store0 = LsmDefinitionStore.open(directory.resolve("lsm"), Set.of(primaryHashAlgorithm));
+            break;
+
+        default:
+            throw new IllegalStateException("Unknown store \"" + store + "\"");
+        }
+        bank = builder.store(store0).build();
+
+        hashes = new Hash[SIZE];
+        for (var i = 0; i < SIZE; ++i) {
+            final var definition = Fixtures.offerOf(offer, i);
+            bank.add(definition);
+            hashes[i] = definition.hashUsing(primaryHashAlgorithm);
+        }
+        nextNegotiationId.set(SIZE);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() throws IOException {
+        store0.close();
+        if (log != null) {
+            secondaryIndex.close();
+            log.close();
+            log = null;
+        }
+        try (final var paths = Files.walk(directory)) {
+            for (final var path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public DefinitionBank add() {
+        return addNext();
+    }
+
+    @Benchmark
+    public Optional<Definition> get() {
+        return getRandom();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public DefinitionBank mixedAdd() {
+        return addNext();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public Optional<Definition> mixedGet() {
+        return getRandom();
+    }
+
+    private DefinitionBank addNext() {
+        bank.add(Fixtures.offerOf(offer, nextNegotiationId.getAndIncrement()));
+        return bank;
+    }
+
+    private Optional<Definition> getRandom() {
+        return bank.get(hashes[ThreadLocalRandom.current().nextInt(SIZE)]);
+    }
+}
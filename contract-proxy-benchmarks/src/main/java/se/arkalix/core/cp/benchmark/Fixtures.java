@@ -0,0 +1,212 @@
+package se.arkalix.core.cp.benchmark;
+
+import se.arkalix.core.cp.contract.ContractBase64Builder;
+import se.arkalix.core.cp.contract.ContractBase64Dto;
+import se.arkalix.core.cp.contract.OwnedParty;
+import se.arkalix.core.cp.contract.Party;
+import se.arkalix.core.cp.contract.SignedContractOfferBuilder;
+import se.arkalix.core.cp.contract.SignedContractOfferDto;
+import se.arkalix.core.cp.contract.Template;
+import se.arkalix.core.cp.security.HashAlgorithm;
+import se.arkalix.core.cp.security.HashBase64;
+import se.arkalix.core.cp.security.SignatureBase64;
+import se.arkalix.core.cp.security.SignatureScheme;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Parties, templates and definitions shared by benchmarks.
+ * <p>
+ * The parties are read from the {@code parties.p12} resource, which holds 16
+ * parties with EC keys on the secp256r1 curve, named {@code ec-00} to {@code
+ * ec-15}, as well as 4 parties with 2048-bit RSA keys, named {@code rsa-0} to
+ * {@code rsa-3}. Their certificates are self-signed and valid until 2125. The
+ * password of the key store and of every key is {@code 123456}.
+ */
+public final class Fixtures {
+    private Fixtures() {}
+
+    public static final Set<HashAlgorithm> HASH_ALGORITHMS = Set.of(
+        HashAlgorithm.SHA_256,
+        HashAlgorithm.SHA_384,
+        HashAlgorithm.SHA_512);
+
+    public static final Template PURCHASE = new Template("simple-purchase.txt", "" +
+        "Hereby {Buyer} accepts to take {Quantity}\n" +
+        "units of {ArticleNumber} from {Seller} in\n" +
+        "exchange for {Price} {Currency}. The units\n" +
+        "are to be paid for and delivered no later\n" +
+        "than {PaymentDate}. [...]", HASH_ALGORITHMS);
+
+    public static final Map<String, String> PURCHASE_ARGUMENTS = Map.of(
+        "Buyer", "Initiator System",
+        "Seller", "Reactor System",
+        "ArticleNumber", "XYZ-123",
+        "Quantity", "200",
+        "Price", "1290",
+        "Currency", "EUR",
+        "PaymentDate", "2020-06-01T12:00:00Z");
+
+    private static final char[] PASSWORD = "123456".toCharArray();
+    private static final KeyStore KEY_STORE = readKeyStore();
+
+    /**
+     * @return Aliases of all parties with EC keys.
+     */
+    public static List<String> ecAliases() {
+        return aliasesStartingWith("ec-");
+    }
+
+    /**
+     * @return Aliases of all parties with RSA keys.
+     */
+    public static List<String> rsaAliases() {
+        return aliasesStartingWith("rsa-");
+    }
+
+    /**
+     * @param alias Alias of party, such as {@code ec-00} or {@code rsa-0}.
+     * @return Party with its private key.
+     */
+    public static OwnedParty ownedParty(final String alias) {
+        try {
+            final var privateKey = (PrivateKey) KEY_STORE.getKey(alias, PASSWORD);
+            if (privateKey == null) {
+                throw new IllegalArgumentException("No party \"" + alias + "\"");
+            }
+            return new OwnedParty(KEY_STORE.getCertificate(alias), privateKey, HASH_ALGORITHMS);
+        }
+        catch (final GeneralSecurityException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    /**
+     * @param alias Alias of party, such as {@code ec-00} or {@code rsa-0}.
+     * @return Party without its private key.
+     */
+    public static Party counterParty(final String alias) {
+        try {
+            final var certificate = KEY_STORE.getCertificate(alias);
+            if (certificate == null) {
+                throw new IllegalArgumentException("No party \"" + alias + "\"");
+            }
+            return new Party(certificate, HASH_ALGORITHMS);
+        }
+        catch (final GeneralSecurityException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    /**
+     * Creates offer from {@code offeror} to {@code receiver} containing
+     * {@code contractCount} purchase contracts. The offer is signed only if
+     * {@code offeror} is an {@link OwnedParty}, and otherwise carries an
+     * empty signature.
+     *
+     * @param negotiationId Negotiation identifier.
+     * @param offeror       Offering party.
+     * @param receiver      Receiving party.
+     * @param contractCount Number of contracts in offer.
+     * @return New offer.
+     */
+    public static SignedContractOfferDto offerOf(
+        final long negotiationId,
+        final Party offeror,
+        final Party receiver,
+        final int contractCount)
+    {
+        Objects.requireNonNull(offeror, "Expected offeror");
+        Objects.requireNonNull(receiver, "Expected receiver");
+
+        final var contract = contractOf(PURCHASE, PURCHASE_ARGUMENTS);
+        final var now = Instant.now();
+        final var scheme = offeror instanceof OwnedParty
+            ? ((OwnedParty) offeror).signatureScheme()
+            : SignatureScheme.ECDSA_SECP256R1_SHA256;
+        final var offer = new SignedContractOfferBuilder()
+            .negotiationId(negotiationId)
+            .offerorFingerprint(HashBase64.from(offeror.preferredFingerprint()))
+            .receiverFingerprint(HashBase64.from(receiver.preferredFingerprint()))
+            .validAfter(now)
+            .validUntil(now.plus(Duration.ofHours(1)))
+            .contracts(Collections.nCopies(contractCount, contract))
+            .signature(SignatureBase64.emptyFrom(now, scheme))
+            .build();
+
+        return offeror instanceof OwnedParty
+            ? offer.sign((OwnedParty) offeror)
+            : offer;
+    }
+
+    /**
+     * Creates a copy of {@code offer} with another negotiation identifier.
+     * The signature of the copy is that of {@code offer}, which makes the
+     * copy cheap to create but impossible to verify.
+     *
+     * @param offer         Offer to copy.
+     * @param negotiationId Negotiation identifier of copy.
+     * @return New offer.
+     */
+    public static SignedContractOfferDto offerOf(final SignedContractOfferDto offer, final long negotiationId) {
+        return new SignedContractOfferBuilder()
+            .negotiationId(negotiationId)
+            .offerorFingerprint(offer.offerorFingerprint())
+            .receiverFingerprint(offer.receiverFingerprint())
+            .validAfter(offer.validAfter())
+            .validUntil(offer.validUntil())
+            .contracts(offer.contractsAsDtos())
+            .signature(offer.signature())
+            .build();
+    }
+
+    public static ContractBase64Dto contractOf(final Template template, final Map<String, String> arguments) {
+        return new ContractBase64Builder()
+            .templateHash(HashBase64.from(template.preferredHash()))
+            .arguments(arguments)
+            .build();
+    }
+
+    private static List<String> aliasesStartingWith(final String prefix) {
+        try {
+            final var aliases = new ArrayList<String>();
+            final var enumeration = KEY_STORE.aliases();
+            while (enumeration.hasMoreElements()) {
+                final var alias = enumeration.nextElement();
+                if (alias.startsWith(prefix)) {
+                    aliases.add(alias);
+                }
+            }
+            Collections.sort(aliases);
+            return aliases;
+        }
+        catch (final GeneralSecurityException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    private static KeyStore readKeyStore() {
+        try (final var inputStream = Fixtures.class.getResourceAsStream("/parties.p12")) {
+            if (inputStream == null) {
+                throw new IllegalStateException("No parties.p12 resource");
+            }
+            final var keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(inputStream, PASSWORD);
+            return keyStore;
+        }
+        catch (final GeneralSecurityException | IOException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package se.arkalix.core.cp.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.arkalix.core.cp.contract.SignedContractOfferDto;
+import se.arkalix.core.cp.security.Hash;
+import se.arkalix.core.cp.security.HashAlgorithm;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of hashing raw data, as well as that of hashing offers,
+ * which includes writing them as canonical JSON.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HashBenchmark {
+    @Param({"sha-256", "sha-384", "sha-512"})
+    public String algorithm;
+
+    @Param({"64", "1024", "16384"})
+    public int size;
+
+    private HashAlgorithm hashAlgorithm;
+    private byte[] data;
+    private SignedContractOfferDto offer;
+
+    @Setup
+    public void setup() {
+        hashAlgorithm = HashAlgorithm.valueOf(algorithm);
+        data = new byte[size];
+        new Random(size).nextBytes(data);
+
+        final var aliases = Fixtures.ecAliases();
+        offer = Fixtures.offerOf(1, Fixtures.ownedParty(aliases.get(0)), Fixtures.counterParty(aliases.get(1)), 1);
+    }
+
+    @Benchmark
+    public Hash hash() {
+        return hashAlgorithm.hash(data);
+    }
+
+    @Benchmark
+    public Hash hashOfferUsingOne() {
+        return offer.hashUsing(hashAlgorithm);
+    }
+
+    @Benchmark
+    public List<Hash> hashOfferUsingAll() {
+        return offer.hashUsing(Fixtures.HASH_ALGORITHMS);
+    }
+}
@@ -0,0 +1,118 @@
+package se.arkalix.core.cp.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import se.arkalix.core.cp.contract.ContractNegotiation;
+import se.arkalix.core.cp.contract.ContractNegotiations;
+import se.arkalix.core.cp.contract.OwnedParty;
+import se.arkalix.core.cp.contract.Party;
+import se.arkalix.core.cp.contract.Templates;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the cost of creating and looking up negotiations while four
+ * threads do so at the same time. Each thread uses one out of {@code pairs}
+ * pairs of parties, which means that all threads contend for the same pair
+ * if {@code pairs} is 1.
+ * <p>
+ * Negotiations are never removed, which is why they are replaced before
+ * every iteration, and why iterations are kept short.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Threads(4)
+@State(Scope.Benchmark)
+public class NegotiationsBenchmark {
+    private static final int NEGOTIATIONS_PER_PAIR = 4096;
+
+    @Param({"1", "4"})
+    public int pairs;
+
+    private final AtomicInteger threadCount = new AtomicInteger(0);
+
+    private OwnedParty ownedParty;
+    private Party[] counterParties;
+    private long[][] ids;
+    private ContractNegotiations negotiations;
+
+    @Setup
+    public void setup() {
+        final var aliases = Fixtures.ecAliases();
+        ownedParty = Fixtures.ownedParty(aliases.get(0));
+        counterParties = new Party[pairs];
+        for (var i = 0; i < pairs; ++i) {
+            counterParties[i] = Fixtures.counterParty(aliases.get(i + 1));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        negotiations = new ContractNegotiations(new Templates(List.of(Fixtures.PURCHASE)), Fixtures.HASH_ALGORITHMS);
+        ids = new long[pairs][NEGOTIATIONS_PER_PAIR];
+        for (var i = 0; i < pairs; ++i) {
+            for (var j = 0; j < NEGOTIATIONS_PER_PAIR; ++j) {
+                ids[i][j] = negotiations.createFor(ownedParty, counterParties[i]).id();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private int pair;
+
+        @Setup
+        public void setup(final NegotiationsBenchmark benchmark) {
+            pair = benchmark.threadCount.getAndIncrement() % benchmark.pairs;
+        }
+    }
+
+    @Benchmark
+    public ContractNegotiation createFor(final ThreadState state) {
+        return negotiations.createFor(ownedParty, counterParties[state.pair]);
+    }
+
+    @Benchmark
+    public Optional<ContractNegotiation> getBy(final ThreadState state) {
+        return getByRandomId(state);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public ContractNegotiation mixedCreateFor(final ThreadState state) {
+        return negotiations.createFor(ownedParty, counterParties[state.pair]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public Optional<ContractNegotiation> mixedGetBy(final ThreadState state) {
+        return getByRandomId(state);
+    }
+
+    private Optional<ContractNegotiation> getByRandomId(final ThreadState state) {
+        final var id = ids[state.pair][ThreadLocalRandom.current().nextInt(NEGOTIATIONS_PER_PAIR)];
+        return negotiations.getBy(ownedParty, counterParties[state.pair], id);
+    }
+}
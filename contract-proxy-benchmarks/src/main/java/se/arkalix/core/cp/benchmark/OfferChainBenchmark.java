@@ -0,0 +1,100 @@
+package se.arkalix.core.cp.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.arkalix.core.cp.bank.DefinitionBank;
+import se.arkalix.core.cp.bank.DefinitionEntry;
+import se.arkalix.core.cp.contract.SignedContractOfferBuilder;
+import se.arkalix.core.cp.contract.SignedContractOfferDto;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of building and reading a negotiation consisting of a
+ * chain of {@code length} counter-offers in a definition bank with a heap
+ * store.
+ * <p>
+ * {@link #build()} adds every offer of a chain to a new bank, which means
+ * that its score is the cost of a whole chain. Dividing it by {@code length}
+ * gives the average cost of appending one offer, which should stay the same
+ * for every {@code length} if appending does not copy the offers already in
+ * the chain.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class OfferChainBenchmark {
+    private static final long NEGOTIATION_ID = 1;
+
+    @Param({"1000", "10000"})
+    public int length;
+
+    private SignedContractOfferDto[] offers;
+    private DefinitionBank bank;
+
+    @Setup
+    public void setup() {
+        final var aliases = Fixtures.ecAliases();
+        final var party1 = Fixtures.ownedParty(aliases.get(0));
+        final var party2 = Fixtures.ownedParty(aliases.get(1));
+        final var offer1 = Fixtures.offerOf(NEGOTIATION_ID, party1, party2, 1);
+        final var offer2 = Fixtures.offerOf(NEGOTIATION_ID, party2, party1, 1);
+
+        offers = new SignedContractOfferDto[length];
+        for (var i = 0; i < length; ++i) {
+            offers[i] = counterOfferOf(i % 2 == 0 ? offer1 : offer2, i);
+        }
+        bank = build();
+    }
+
+    // Every offer of the chain must be unique, as a bank rejects
+    // definitions it already holds. Offers are made unique by expiring one
+    // millisecond apart.
+    private static SignedContractOfferDto counterOfferOf(final SignedContractOfferDto offer, final int index) {
+        return new SignedContractOfferBuilder()
+            .negotiationId(offer.negotiationId())
+            .offerorFingerprint(offer.offerorFingerprint())
+            .receiverFingerprint(offer.receiverFingerprint())
+            .validAfter(offer.validAfter())
+            .validUntil(offer.validUntil().plusMillis(index))
+            .contracts(offer.contractsAsDtos())
+            .signature(offer.signature())
+            .build();
+    }
+
+    @Benchmark
+    public DefinitionBank build() {
+        final var bank = new DefinitionBank(Fixtures.HASH_ALGORITHMS);
+        for (final var offer : offers) {
+            bank.add(offer);
+        }
+        return bank;
+    }
+
+    @Benchmark
+    public Collection<DefinitionEntry> get() {
+        return bank.get(NEGOTIATION_ID);
+    }
+
+    @Benchmark
+    public long getAndIterate() {
+        var sum = 0L;
+        for (final var entry : bank.get(NEGOTIATION_ID)) {
+            sum += entry.hashes().size();
+        }
+        return sum;
+    }
+}
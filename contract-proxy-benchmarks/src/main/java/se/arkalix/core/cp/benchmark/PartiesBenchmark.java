@@ -0,0 +1,106 @@
+package se.arkalix.core.cp.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import se.arkalix.core.cp.contract.OwnedParty;
+import se.arkalix.core.cp.contract.Parties;
+import se.arkalix.core.cp.contract.Party;
+import se.arkalix.core.cp.security.Hash;
+
+import java.util.ArrayList;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of looking up parties by common name and fingerprint,
+ * which is done at least once for every message received or sent. One of
+ * the parties is owned, while the rest are counter-parties. Fingerprints
+ * are either calculated with the preferred hash algorithm of the parties,
+ * or with another algorithm, which are only indexed when first looked up.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class PartiesBenchmark {
+    @Param({"2", "20"})
+    public int count;
+
+    private Parties parties;
+    private OwnedParty ownedParty;
+    private Party counterParty;
+    private Hash otherFingerprint;
+    private Hash unknownFingerprint;
+
+    @Setup
+    public void setup() {
+        final var aliases = new ArrayList<String>();
+        aliases.addAll(Fixtures.ecAliases());
+        aliases.addAll(Fixtures.rsaAliases());
+        if (count < 2 || count > aliases.size()) {
+            throw new IllegalArgumentException("Expected 2 <= count <= " + aliases.size());
+        }
+
+        final var list = new ArrayList<Party>(count);
+        ownedParty = Fixtures.ownedParty(aliases.get(0));
+        list.add(ownedParty);
+        for (var i = 1; i < count; ++i) {
+            list.add(Fixtures.counterParty(aliases.get(i)));
+        }
+        parties = new Parties(list);
+
+        // Looked up last, which is the worst case if parties were ever
+        // searched for linearly.
+        counterParty = list.get(count - 1);
+        final var preferredAlgorithm = counterParty.preferredFingerprint().algorithm();
+        otherFingerprint = Fixtures.HASH_ALGORITHMS.stream()
+            .filter(algorithm -> !algorithm.equals(preferredAlgorithm))
+            .findFirst()
+            .flatMap(counterParty::fingerprintUsing)
+            .orElseThrow();
+        unknownFingerprint = preferredAlgorithm.hash(new byte[]{1, 2, 3});
+    }
+
+    @Benchmark
+    public Optional<Party> getCounterPartyByCommonName() {
+        return parties.getCounterPartyByCommonName(counterParty.commonName());
+    }
+
+    @Benchmark
+    public Optional<OwnedParty> getOwnedPartyByCommonName() {
+        return parties.getOwnedPartyByCommonName(ownedParty.commonName());
+    }
+
+    @Benchmark
+    public Optional<Party> getCounterPartyByPreferredFingerprint() {
+        return parties.getCounterPartyByFingerprint(counterParty.preferredFingerprint());
+    }
+
+    @Benchmark
+    public Optional<Party> getCounterPartyByOtherFingerprint() {
+        return parties.getCounterPartyByFingerprint(otherFingerprint);
+    }
+
+    @Benchmark
+    public Optional<OwnedParty> getOwnedPartyByPreferredFingerprint() {
+        return parties.getOwnedPartyByFingerprint(ownedParty.preferredFingerprint());
+    }
+
+    @Benchmark
+    public Optional<Party> getAnyByUnknownFingerprint() {
+        return parties.getAnyByFingerprint(unknownFingerprint);
+    }
+}
@@ -0,0 +1,97 @@
+package se.arkalix.core.cp.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.arkalix.core.cp.security.Signature;
+import se.arkalix.core.cp.security.SignatureScheme;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of signing and verifying the canonical form of an offer
+ * with every supported signature scheme. EC keys use the curve named by
+ * their scheme, or secp256r1 if the scheme names none, while RSA keys are
+ * 2048 bits long.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SignatureBenchmark {
+    private static final String PARTY = "benchmark.arkalix.se";
+
+    @Param({
+        "ecdsa_sha1",
+        "ecdsa_secp256r1_sha256",
+        "ecdsa_secp384r1_sha384",
+        "ecdsa_secp521r1_sha512",
+        "rsa_pkcs1_sha1",
+        "rsa_pkcs1_sha256",
+        "rsa_pkcs1_sha384",
+        "rsa_pkcs1_sha512"})
+    public String scheme;
+
+    private SignatureScheme signatureScheme;
+    private KeyPair keyPair;
+    private Instant timestamp;
+    private byte[] data;
+    private Signature signature;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        signatureScheme = SignatureScheme.valueOf(scheme);
+        keyPair = keyPairFor(signatureScheme);
+        timestamp = Instant.now();
+
+        final var aliases = Fixtures.ecAliases();
+        data = Fixtures.offerOf(1, Fixtures.counterParty(aliases.get(0)), Fixtures.counterParty(aliases.get(1)), 1)
+            .canonicalizeWithoutSignatureSum();
+        signature = signatureScheme.sign(PARTY, keyPair.getPrivate(), timestamp, data);
+        if (!signature.verify(PARTY, keyPair.getPublic(), data)) {
+            throw new IllegalStateException("Failed to verify signature created with " + scheme);
+        }
+    }
+
+    @Benchmark
+    public Signature sign() {
+        return signatureScheme.sign(PARTY, keyPair.getPrivate(), timestamp, data);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return signature.verify(PARTY, keyPair.getPublic(), data);
+    }
+
+    private static KeyPair keyPairFor(final SignatureScheme scheme) throws GeneralSecurityException {
+        final var generator = KeyPairGenerator.getInstance(scheme.keyAlgorithmName());
+        if (scheme.keyAlgorithmName().equals("RSA")) {
+            generator.initialize(2048);
+        }
+        else if (scheme == SignatureScheme.ECDSA_SECP384R1_SHA384) {
+            generator.initialize(new ECGenParameterSpec("secp384r1"));
+        }
+        else if (scheme == SignatureScheme.ECDSA_SECP521R1_SHA512) {
+            generator.initialize(new ECGenParameterSpec("secp521r1"));
+        }
+        else {
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+        }
+        return generator.generateKeyPair();
+    }
+}
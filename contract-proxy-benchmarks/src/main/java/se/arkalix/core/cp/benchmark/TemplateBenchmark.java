@@ -0,0 +1,48 @@
+package se.arkalix.core.cp.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.arkalix.core.cp.contract.Contract;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of validating contract arguments against, and rendering
+ * contracts from, the purchase template of the example cloud.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TemplateBenchmark {
+    private Contract contract;
+    private Map<String, String> arguments;
+
+    @Setup
+    public void setup() {
+        arguments = Fixtures.PURCHASE_ARGUMENTS;
+        contract = new Contract(Fixtures.PURCHASE.preferredHash(), arguments);
+    }
+
+    @Benchmark
+    public String render() {
+        return Fixtures.PURCHASE.render(contract);
+    }
+
+    @Benchmark
+    public Map<String, String> validate() {
+        Fixtures.PURCHASE.validate(arguments);
+        return arguments;
+    }
+}
@@ -0,0 +1,78 @@
+package se.arkalix.core.cp.load;
+
+import java.util.Objects;
+
+/**
+ * The kinds of negotiations a {@link LoadGenerator} can carry out between
+ * two parties, here called the offeror and the receiver.
+ */
+public enum FlowType {
+    /**
+     * The offeror makes an offer, which the receiver accepts.
+     */
+    ACCEPT("accept", Response.ACCEPT, null),
+
+    /**
+     * The offeror makes an offer, which the receiver rejects.
+     */
+    REJECT("reject", Response.REJECT, null),
+
+    /**
+     * The offeror makes an offer, to which the receiver responds with a
+     * counter-offer, which the offeror accepts.
+     */
+    COUNTER_ACCEPT("counter-accept", Response.COUNTER_OFFER, Response.ACCEPT),
+
+    /**
+     * The offeror makes an offer, to which the receiver responds with a
+     * counter-offer, which the offeror rejects.
+     */
+    COUNTER_REJECT("counter-reject", Response.COUNTER_OFFER, Response.REJECT);
+
+    private final String text;
+    private final Response receiverResponse;
+    private final Response offerorResponse;
+
+    FlowType(final String text, final Response receiverResponse, final Response offerorResponse) {
+        this.text = text;
+        this.receiverResponse = receiverResponse;
+        this.offerorResponse = offerorResponse;
+    }
+
+    /**
+     * @return How the receiver responds to the first offer.
+     */
+    Response receiverResponse() {
+        return receiverResponse;
+    }
+
+    /**
+     * @return How the offeror responds to the counter-offer of the receiver,
+     * or {@code null} if the receiver never makes one.
+     */
+    Response offerorResponse() {
+        return offerorResponse;
+    }
+
+    public static FlowType valueOfText(final String text) {
+        Objects.requireNonNull(text, "Expected text");
+        for (final var type : values()) {
+            if (type.text.equalsIgnoreCase(text)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown flow type \"" + text + "\"; " +
+            "expected one of accept, reject, counter-accept or counter-reject");
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    enum Response {
+        ACCEPT,
+        COUNTER_OFFER,
+        REJECT,
+    }
+}
@@ -0,0 +1,696 @@
+package se.arkalix.core.cp.load;
+
+import se.arkalix.core.cp.bank.Definition;
+import se.arkalix.core.cp.benchmark.Fixtures;
+import se.arkalix.core.cp.contract.ContractBase64;
+import se.arkalix.core.cp.contract.ContractProxy;
+import se.arkalix.core.cp.contract.OwnedParty;
+import se.arkalix.core.cp.contract.Party;
+import se.arkalix.core.cp.contract.SignedContractOffer;
+import se.arkalix.core.cp.metrics.Histogram;
+import se.arkalix.core.plugin.cp.ContractNegotiationStatus;
+import se.arkalix.core.plugin.cp.TrustedContractAcceptanceBuilder;
+import se.arkalix.core.plugin.cp.TrustedContractBuilder;
+import se.arkalix.core.plugin.cp.TrustedContractCounterOfferBuilder;
+import se.arkalix.core.plugin.cp.TrustedContractDto;
+import se.arkalix.core.plugin.cp.TrustedContractOffer;
+import se.arkalix.core.plugin.cp.TrustedContractOfferBuilder;
+import se.arkalix.core.plugin.cp.TrustedContractRejectionBuilder;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Carries out negotiations between contract proxies in the same process,
+ * connected via {@link LoopbackContractRelay LoopbackContractRelays}, and
+ * reports the throughput, latency and allocation rate of each kind of
+ * negotiation.
+ * <p>
+ * Every proxy owns one party, and knows the parties of all other proxies as
+ * counter-parties. Each negotiation, or flow, is carried out between the
+ * parties of two randomly chosen proxies, and is of a {@link FlowType}
+ * chosen randomly according to the configured mix. The trusted systems that
+ * would normally react to offers are played by the load generator itself,
+ * which responds to the event handler notifications of the proxies as soon
+ * as they are received. A flow is complete when the acceptance or rejection
+ * that concludes it has been applied by the proxy of the party that made the
+ * concluded offer.
+ * <p>
+ * A given number of flows are first carried out to warm up the JVM, after
+ * which the measured flows are carried out. At most a given number of flows
+ * are in progress at any one time. The allocation of a flow is the number
+ * of bytes allocated by the threads of the load generator while preparing,
+ * delivering and applying its messages, which includes signing, verifying,
+ * canonicalizing, hashing and storing them. Work done on other threads, such
+ * as those of the outboxes, event publishers and work queues of the proxies,
+ * cannot be attributed to individual flows, and is only included in the
+ * allocation per flow of all threads, which is reported for all flow types
+ * together.
+ * <p>
+ * Usage: {@code LoadGenerator [--name=value ...]}, where the names are
+ * {@code proxies}, {@code keys} ({@code ec}, {@code rsa} or {@code mixed}),
+ * {@code mix} (such as {@code accept:4,reject:1,counter-accept:2}), {@code
+ * flows}, {@code warm-up-flows}, {@code concurrency}, {@code workers} and
+ * {@code timeout} (such as {@code PT5M}).
+ */
+public class LoadGenerator {
+    public static final int DEFAULT_CONCURRENCY = 1000;
+    public static final int DEFAULT_FLOW_COUNT = 10_000;
+    public static final int DEFAULT_PROXY_COUNT = 2;
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(5);
+    public static final int DEFAULT_WARM_UP_FLOW_COUNT = 1000;
+
+    private static final String ARTICLE_NUMBER_PREFIX = "LOAD-";
+    private static final Duration OFFER_VALIDITY = Duration.ofHours(1);
+
+    private static final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final int concurrency;
+    private final int flowCount;
+    private final KeyType keyType;
+    private final List<FlowType> mix;
+    private final int proxyCount;
+    private final Duration timeout;
+    private final int warmUpFlowCount;
+    private final int workerCount;
+
+    private final Map<Long, Flow> idToFlow = new ConcurrentHashMap<>();
+    private final Map<Long, Flow> negotiationIdToFlow = new ConcurrentHashMap<>();
+    private final AtomicReference<Throwable> firstFault = new AtomicReference<>();
+    private final AtomicBoolean isRunning = new AtomicBoolean(false);
+    private final Semaphore permits;
+
+    private ContractProxy[] proxies;
+    private String[] names;
+    private ExecutorService executor;
+    private long nextFlowId = 0;
+
+    private LoadGenerator(final Builder builder) {
+        concurrency = builder.concurrency > 0
+            ? builder.concurrency
+            : DEFAULT_CONCURRENCY;
+        flowCount = builder.flowCount > 0
+            ? builder.flowCount
+            : DEFAULT_FLOW_COUNT;
+        keyType = Objects.requireNonNullElse(builder.keyType, KeyType.EC);
+        proxyCount = builder.proxyCount > 0
+            ? builder.proxyCount
+            : DEFAULT_PROXY_COUNT;
+        if (proxyCount < 2) {
+            throw new IllegalArgumentException("Expected proxyCount >= 2");
+        }
+        timeout = Objects.requireNonNullElse(builder.timeout, DEFAULT_TIMEOUT);
+        warmUpFlowCount = builder.warmUpFlowCount >= 0
+            ? builder.warmUpFlowCount
+            : DEFAULT_WARM_UP_FLOW_COUNT;
+        workerCount = builder.workerCount > 0
+            ? builder.workerCount
+            : Runtime.getRuntime().availableProcessors();
+
+        // Each flow type occurs as many times as its weight, which means
+        // that picking a random element picks a type according to the mix.
+        final var weights = builder.mix != null && !builder.mix.isEmpty()
+            ? builder.mix
+            : Map.of(FlowType.ACCEPT, 1, FlowType.REJECT, 1, FlowType.COUNTER_ACCEPT, 1, FlowType.COUNTER_REJECT, 1);
+        final var mix = new ArrayList<FlowType>();
+        for (final var entry : new EnumMap<>(weights).entrySet()) {
+            if (entry.getValue() < 0) {
+                throw new IllegalArgumentException("Expected mix weights >= 0");
+            }
+            for (var i = 0; i < entry.getValue(); ++i) {
+                mix.add(entry.getKey());
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("Expected at least one mix weight > 0");
+        }
+        this.mix = List.copyOf(mix);
+
+        permits = new Semaphore(concurrency);
+    }
+
+    public static void main(final String[] args) throws InterruptedException {
+        final var builder = new Builder();
+        for (final var arg : args) {
+            final var separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator == -1) {
+                System.err.println("Expected argument of the form --name=value, got \"" + arg + "\"");
+                System.exit(2);
+            }
+            final var name = arg.substring(2, separator);
+            final var value = arg.substring(separator + 1);
+            try {
+                switch (name) {
+                case "concurrency":
+                    builder.concurrency(Integer.parseInt(value));
+                    break;
+                case "flows":
+                    builder.flowCount(Integer.parseInt(value));
+                    break;
+                case "keys":
+                    builder.keyType(KeyType.valueOf(value.toUpperCase()));
+                    break;
+                case "mix":
+                    builder.mix(mixOf(value));
+                    break;
+                case "proxies":
+                    builder.proxyCount(Integer.parseInt(value));
+                    break;
+                case "timeout":
+                    builder.timeout(Duration.parse(value));
+                    break;
+                case "warm-up-flows":
+                    builder.warmUpFlowCount(Integer.parseInt(value));
+                    break;
+                case "workers":
+                    builder.workerCount(Integer.parseInt(value));
+                    break;
+                default:
+                    System.err.println("Unknown argument \"" + name + "\"");
+                    System.exit(2);
+                }
+            }
+            catch (final RuntimeException exception) {
+                System.err.println("Invalid value of argument \"" + name + "\": " + exception.getMessage());
+                System.exit(2);
+            }
+        }
+        final var report = builder.build().run();
+        System.out.print(report.writeText(new StringBuilder()));
+        if (report.hasFailures()) {
+            System.exit(1);
+        }
+    }
+
+    private static Map<FlowType, Integer> mixOf(final String string) {
+        final var mix = new EnumMap<FlowType, Integer>(FlowType.class);
+        for (final var part : string.split(",")) {
+            final var separator = part.indexOf(':');
+            if (separator == -1) {
+                mix.merge(FlowType.valueOfText(part.trim()), 1, Integer::sum);
+            }
+            else {
+                mix.merge(FlowType.valueOfText(part.substring(0, separator).trim()),
+                    Integer.parseInt(part.substring(separator + 1).trim()), Integer::sum);
+            }
+        }
+        return mix;
+    }
+
+    /**
+     * Sets up the proxies, carries out all warm-up and measured flows, and
+     * then shuts down the threads used to relay messages. May only be called
+     * once.
+     *
+     * @return Report of measured flows, or of the warm-up flows if not all
+     * of them completed in time.
+     * @throws InterruptedException If interrupted while waiting for flows to
+     *                              complete.
+     */
+    public LoadReport run() throws InterruptedException {
+        if (!isRunning.compareAndSet(false, true)) {
+            throw new IllegalStateException("Already run");
+        }
+        final var workerIndex = new AtomicInteger(0);
+        executor = Executors.newFixedThreadPool(workerCount, runnable -> {
+            final var thread = new Thread(runnable, "load-worker-" + workerIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            setUpProxies();
+            final var deadline = System.nanoTime() + timeout.toNanos();
+            final var warmUp = runPhase(warmUpFlowCount, new EnumMap<>(FlowType.class), deadline);
+            if (warmUp.incompleteCount() > 0) {
+                return warmUp;
+            }
+            return runPhase(flowCount, new EnumMap<>(FlowType.class), deadline);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void setUpProxies() {
+        final var aliases = keyType.aliases();
+        if (proxyCount > aliases.size()) {
+            throw new IllegalArgumentException("At most " + aliases.size() +
+                " proxies can be created with " + keyType + " keys");
+        }
+
+        final var network = new LoopbackContractRelay.Network(executor) {
+            @Override
+            protected void apply(final ContractProxy proxy, final Definition definition) {
+                final var flow = definition instanceof SignedContractOffer
+                    ? flowOf((SignedContractOffer) definition)
+                    : negotiationIdToFlow.get(definition.negotiationId());
+                if (flow == null) {
+                    super.apply(proxy, definition);
+                    return;
+                }
+                measure(flow, () -> super.apply(proxy, definition));
+            }
+        };
+
+        final var ownedParties = new OwnedParty[proxyCount];
+        names = new String[proxyCount];
+        for (var i = 0; i < proxyCount; ++i) {
+            ownedParties[i] = Fixtures.ownedParty(aliases.get(i));
+            names[i] = ownedParties[i].commonName();
+        }
+        proxies = new ContractProxy[proxyCount];
+        for (var i = 0; i < proxyCount; ++i) {
+            final var counterParties = new ArrayList<Party>(proxyCount - 1);
+            for (var j = 0; j < proxyCount; ++j) {
+                if (j != i) {
+                    counterParties.add(Fixtures.counterParty(aliases.get(j)));
+                }
+            }
+            final var index = i;
+            proxies[i] = new ContractProxy.Builder()
+                .acceptedHashAlgorithms(Fixtures.HASH_ALGORITHMS)
+                .ownedParties(ownedParties[i])
+                .counterParties(counterParties)
+                .templates(Fixtures.PURCHASE)
+                .relay(new LoopbackContractRelay(network, (negotiationId, offer, status) ->
+                    onEvent(index, negotiationId, offer, status)))
+                .build();
+            network.add(proxies[i]);
+        }
+    }
+
+    private LoadReport runPhase(final int count, final Map<FlowType, FlowStats> typeToStats, final long deadline)
+        throws InterruptedException
+    {
+        for (final var type : mix) {
+            typeToStats.computeIfAbsent(type, ignored -> new FlowStats());
+        }
+        final var allocatedBefore = allocatedBytesOfAllThreads();
+        final var start = System.nanoTime();
+
+        var started = 0;
+        final var random = ThreadLocalRandom.current();
+        while (started < count) {
+            if (!permits.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                break;
+            }
+            final var type = mix.get(random.nextInt(mix.size()));
+            final var offeror = random.nextInt(proxyCount);
+            final var receiver = (offeror + 1 + random.nextInt(proxyCount - 1)) % proxyCount;
+            final var flow = new Flow(nextFlowId++, type, offeror, receiver, typeToStats.get(type));
+            idToFlow.put(flow.id, flow);
+            submit(flow, () -> start(flow));
+            started += 1;
+        }
+
+        // All permits are available again once every flow is complete.
+        final var isComplete = permits.tryAcquire(concurrency,
+            Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        final var elapsed = Duration.ofNanos(System.nanoTime() - start);
+        final var allocated = allocatedBytesOfAllThreads() - allocatedBefore;
+        final var incomplete = isComplete ? 0 : idToFlow.size() + (count - started);
+        if (isComplete) {
+            permits.release(concurrency);
+        }
+
+        final var rows = new ArrayList<LoadReport.Row>(typeToStats.size());
+        for (final var entry : typeToStats.entrySet()) {
+            final var stats = entry.getValue();
+            rows.add(new LoadReport.Row(entry.getKey(), stats.completed.sum(), stats.failed.sum(),
+                stats.latency, stats.allocatedBytes.sum()));
+        }
+        return new LoadReport(keyType.toString(), proxyCount, concurrency, elapsed, rows, incomplete, allocated,
+            firstFault.get());
+    }
+
+    private void start(final Flow flow) {
+        final var now = Instant.now();
+        final var message = proxies[flow.offeror].update(new TrustedContractOfferBuilder()
+            .offerorName(names[flow.offeror])
+            .receiverName(names[flow.receiver])
+            .validAfter(now)
+            .validUntil(now.plus(OFFER_VALIDITY))
+            .offeredAt(now)
+            .contracts(List.of(contractOf(flow)))
+            .build());
+        register(flow, message.negotiationId());
+    }
+
+    private void onEvent(
+        final int index,
+        final long negotiationId,
+        final TrustedContractOffer offer,
+        final ContractNegotiationStatus status)
+    {
+        final var flow = flowOf(offer);
+        if (flow == null) {
+            return;
+        }
+        // Proxies notify the event handler both when their own parties and
+        // when their counter-parties update negotiations, while only the
+        // latter require a response.
+        final var isOwnOffer = offer.offerorName().equals(names[index]);
+        switch (status) {
+        case OFFERING:
+            if (!isOwnOffer) {
+                register(flow, negotiationId);
+                submit(flow, () -> respond(flow, index, negotiationId, offer));
+            }
+            break;
+        case ACCEPTED:
+        case REJECTED:
+            if (isOwnOffer) {
+                complete(flow, null);
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void respond(final Flow flow, final int index, final long negotiationId, final TrustedContractOffer offer) {
+        final var response = index == flow.receiver
+            ? flow.type.receiverResponse()
+            : flow.type.offerorResponse();
+        if (response == null) {
+            throw new IllegalStateException("Unexpected counter-offer in " + flow.type + " flow");
+        }
+        final var proxy = proxies[index];
+        final var now = Instant.now();
+        switch (response) {
+        case ACCEPT:
+            proxy.update(new TrustedContractAcceptanceBuilder()
+                .negotiationId(negotiationId)
+                .offerorName(offer.offerorName())
+                .acceptorName(names[index])
+                .acceptedAt(now)
+                .build());
+            break;
+        case COUNTER_OFFER:
+            proxy.update(new TrustedContractCounterOfferBuilder()
+                .negotiationId(negotiationId)
+                .offerorName(names[index])
+                .receiverName(offer.offerorName())
+                .validAfter(now)
+                .validUntil(now.plus(OFFER_VALIDITY))
+                .offeredAt(now)
+                .contracts(List.of(contractOf(flow)))
+                .build());
+            break;
+        case REJECT:
+            proxy.update(new TrustedContractRejectionBuilder()
+                .negotiationId(negotiationId)
+                .offerorName(offer.offerorName())
+                .rejectorName(names[index])
+                .rejectedAt(now)
+                .build());
+            break;
+        }
+    }
+
+    private void register(final Flow flow, final long negotiationId) {
+        flow.negotiationId = negotiationId;
+        negotiationIdToFlow.putIfAbsent(negotiationId, flow);
+    }
+
+    private void submit(final Flow flow, final Runnable runnable) {
+        executor.execute(() -> {
+            try {
+                measure(flow, runnable);
+            }
+            catch (final Throwable ignored) {
+                // Already recorded as the fault of the flow.
+            }
+        });
+    }
+
+    // Allocations are attributed to flows by measuring the bytes allocated
+    // by the current thread while working on their behalf. Allocations made
+    // by threads of the proxies are only counted in the report's total.
+    private void measure(final Flow flow, final Runnable runnable) {
+        final var threadId = Thread.currentThread().getId();
+        final var allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        try {
+            runnable.run();
+        }
+        catch (final Throwable throwable) {
+            complete(flow, throwable);
+            throw throwable;
+        }
+        finally {
+            flow.stats.allocatedBytes.add(threads.getThreadAllocatedBytes(threadId) - allocatedBefore);
+        }
+    }
+
+    private void complete(final Flow flow, final Throwable fault) {
+        if (!flow.isDone.compareAndSet(false, true)) {
+            return;
+        }
+        if (fault == null) {
+            flow.stats.latency.recordSince(flow.startedAt);
+            flow.stats.completed.increment();
+        }
+        else {
+            firstFault.compareAndSet(null, fault);
+            flow.stats.failed.increment();
+        }
+        idToFlow.remove(flow.id);
+        negotiationIdToFlow.remove(flow.negotiationId, flow);
+        permits.release();
+    }
+
+    private Flow flowOf(final TrustedContractOffer offer) {
+        final var contracts = offer.contracts();
+        return contracts.isEmpty()
+            ? null
+            : flowOf(contracts.get(0).arguments().get("ArticleNumber"));
+    }
+
+    private Flow flowOf(final SignedContractOffer offer) {
+        final List<? extends ContractBase64> contracts = offer.contracts();
+        return contracts.isEmpty()
+            ? null
+            : flowOf(contracts.get(0).arguments().get("ArticleNumber"));
+    }
+
+    private Flow flowOf(final String articleNumber) {
+        if (articleNumber == null || !articleNumber.startsWith(ARTICLE_NUMBER_PREFIX)) {
+            return null;
+        }
+        try {
+            return idToFlow.get(Long.parseLong(articleNumber.substring(ARTICLE_NUMBER_PREFIX.length())));
+        }
+        catch (final NumberFormatException exception) {
+            return null;
+        }
+    }
+
+    // The flow identifier is given as article number, which is how event
+    // handler notifications and delivered messages are tied to their flows.
+    private static TrustedContractDto contractOf(final Flow flow) {
+        final var arguments = new HashMap<>(Fixtures.PURCHASE_ARGUMENTS);
+        arguments.put("ArticleNumber", ARTICLE_NUMBER_PREFIX + flow.id);
+        return new TrustedContractBuilder()
+            .templateName(Fixtures.PURCHASE.name())
+            .arguments(arguments)
+            .build();
+    }
+
+    private static long allocatedBytesOfAllThreads() {
+        var sum = 0L;
+        for (final var allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (allocated > 0) {
+                sum += allocated;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * The kinds of keys held by the parties of the proxies.
+     */
+    public enum KeyType {
+        /**
+         * Every party has an EC key on the secp256r1 curve.
+         */
+        EC,
+
+        /**
+         * Every party has a 2048-bit RSA key.
+         */
+        RSA,
+
+        /**
+         * Every other party has an EC key, and every other an RSA key.
+         */
+        MIXED;
+
+        private List<String> aliases() {
+            switch (this) {
+            case EC: return Fixtures.ecAliases();
+            case RSA: return Fixtures.rsaAliases();
+            default:
+                final var ec = Fixtures.ecAliases();
+                final var rsa = Fixtures.rsaAliases();
+                final var aliases = new ArrayList<String>(ec.size() + rsa.size());
+                for (var i = 0; i < Math.max(ec.size(), rsa.size()); ++i) {
+                    if (i < ec.size()) {
+                        aliases.add(ec.get(i));
+                    }
+                    if (i < rsa.size()) {
+                        aliases.add(rsa.get(i));
+                    }
+                }
+                return aliases;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static class Flow {
+        private final long id;
+        private final FlowType type;
+        private final int offeror;
+        private final int receiver;
+        private final FlowStats stats;
+        private final long startedAt = System.nanoTime();
+        private final AtomicBoolean isDone = new AtomicBoolean(false);
+        private volatile long negotiationId;
+
+        private Flow(final long id, final FlowType type, final int offeror, final int receiver, final FlowStats stats) {
+            this.id = id;
+            this.type = type;
+            this.offeror = offeror;
+            this.receiver = receiver;
+            this.stats = stats;
+        }
+    }
+
+    private static class FlowStats {
+        private final Histogram latency = new Histogram();
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder allocatedBytes = new LongAdder();
+    }
+
+    public static class Builder {
+        private int concurrency;
+        private int flowCount;
+        private KeyType keyType;
+        private Map<FlowType, Integer> mix;
+        private int proxyCount;
+        private Duration timeout;
+        private int warmUpFlowCount = -1;
+        private int workerCount;
+
+        /**
+         * @param concurrency Maximum number of flows in progress at any one
+         *                    time. Defaults to {@link #DEFAULT_CONCURRENCY}.
+         * @return This builder.
+         */
+        public Builder concurrency(final int concurrency) {
+            this.concurrency = concurrency;
+            return this;
+        }
+
+        /**
+         * @param flowCount Number of measured flows. Defaults to {@link
+         *                  #DEFAULT_FLOW_COUNT}.
+         * @return This builder.
+         */
+        public Builder flowCount(final int flowCount) {
+            this.flowCount = flowCount;
+            return this;
+        }
+
+        /**
+         * @param keyType Kind of keys held by parties. Defaults to {@link
+         *                KeyType#EC}.
+         * @return This builder.
+         */
+        public Builder keyType(final KeyType keyType) {
+            this.keyType = keyType;
+            return this;
+        }
+
+        /**
+         * @param mix Relative weight of each flow type. Defaults to all flow
+         *            types being equally common.
+         * @return This builder.
+         */
+        public Builder mix(final Map<FlowType, Integer> mix) {
+            this.mix = mix;
+            return this;
+        }
+
+        /**
+         * @param proxyCount Number of proxies, which must be at least 2 and
+         *                   at most the number of parties available with
+         *                   the chosen key type. Defaults to {@link
+         *                   #DEFAULT_PROXY_COUNT}.
+         * @return This builder.
+         */
+        public Builder proxyCount(final int proxyCount) {
+            this.proxyCount = proxyCount;
+            return this;
+        }
+
+        /**
+         * @param timeout Time after which flows still in progress are
+         *                abandoned. Defaults to {@link #DEFAULT_TIMEOUT}.
+         * @return This builder.
+         */
+        public Builder timeout(final Duration timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
+        /**
+         * @param warmUpFlowCount Number of flows carried out before measuring.
+         *                        Defaults to {@link
+         *                        #DEFAULT_WARM_UP_FLOW_COUNT}.
+         * @return This builder.
+         */
+        public Builder warmUpFlowCount(final int warmUpFlowCount) {
+            this.warmUpFlowCount = warmUpFlowCount;
+            return this;
+        }
+
+        /**
+         * @param workerCount Number of threads preparing, delivering and
+         *                    applying messages. Defaults to the number of
+         *                    available processors.
+         * @return This builder.
+         */
+        public Builder workerCount(final int workerCount) {
+            this.workerCount = workerCount;
+            return this;
+        }
+
+        public LoadGenerator build() {
+            return new LoadGenerator(this);
+        }
+    }
+}
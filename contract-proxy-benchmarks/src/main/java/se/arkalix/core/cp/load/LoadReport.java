@@ -0,0 +1,225 @@
+package se.arkalix.core.cp.load;
+
+import se.arkalix.core.cp.metrics.Histogram;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * The outcome of the measured flows carried out by a {@link LoadGenerator}.
+ */
+public class LoadReport {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1.0};
+    private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p99.9", "max"};
+
+    private final String keyType;
+    private final int proxyCount;
+    private final int concurrency;
+    private final Duration elapsed;
+    private final List<Row> rows;
+    private final long incompleteCount;
+    private final long allocatedBytes;
+    private final Throwable firstFault;
+
+    LoadReport(
+        final String keyType,
+        final int proxyCount,
+        final int concurrency,
+        final Duration elapsed,
+        final List<Row> rows,
+        final long incompleteCount,
+        final long allocatedBytes,
+        final Throwable firstFault)
+    {
+        this.keyType = Objects.requireNonNull(keyType, "Expected keyType");
+        this.proxyCount = proxyCount;
+        this.concurrency = concurrency;
+        this.elapsed = Objects.requireNonNull(elapsed, "Expected elapsed");
+        this.rows = List.copyOf(rows);
+        this.incompleteCount = incompleteCount;
+        this.allocatedBytes = allocatedBytes;
+        this.firstFault = firstFault;
+    }
+
+    /**
+     * @return Time from when the first measured flow was started until the
+     * last one completed, or the generator gave up waiting.
+     */
+    public Duration elapsed() {
+        return elapsed;
+    }
+
+    /**
+     * @return Outcome of each flow type.
+     */
+    public List<Row> rows() {
+        return rows;
+    }
+
+    /**
+     * @return Number of flows that were neither completed nor failed before
+     * the generator gave up waiting.
+     */
+    public long incompleteCount() {
+        return incompleteCount;
+    }
+
+    /**
+     * @return Number of bytes allocated by all threads of the JVM while the
+     * measured flows were carried out, including the threads of the proxies,
+     * such as those of their outboxes, event publishers and work queues.
+     */
+    public long allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return First exception causing a flow to fail, if any.
+     */
+    public Optional<Throwable> firstFault() {
+        return Optional.ofNullable(firstFault);
+    }
+
+    /**
+     * @return {@code true} only if any flow failed or did not complete.
+     */
+    public boolean hasFailures() {
+        return incompleteCount > 0 || rows.stream().anyMatch(row -> row.failedCount > 0);
+    }
+
+    /**
+     * Writes this report as a human-readable table to {@code builder}.
+     *
+     * @param builder String builder to write to.
+     * @return {@code builder}.
+     */
+    public StringBuilder writeText(final StringBuilder builder) {
+        final var seconds = elapsed.toNanos() / 1e9;
+
+        builder.append(String.format(Locale.ROOT, "%d proxies, %s keys, concurrency %d, %.3f s%n",
+            proxyCount, keyType, concurrency, seconds));
+        builder.append(String.format(Locale.ROOT, "%-16s %9s %7s %9s", "flow", "completed", "failed", "flows/s"));
+        for (final var name : QUANTILE_NAMES) {
+            builder.append(String.format(Locale.ROOT, " %9s", name + " ms"));
+        }
+        builder.append(String.format(Locale.ROOT, " %12s%n", "gen KiB/flow"));
+
+        var completedCount = 0L;
+        var failedCount = 0L;
+        var flowAllocatedBytes = 0L;
+        for (final var row : rows) {
+            writeRow(builder, row.type.toString(), row.completedCount, row.failedCount, row.latency,
+                row.allocatedBytes, seconds);
+            completedCount += row.completedCount;
+            failedCount += row.failedCount;
+            flowAllocatedBytes += row.allocatedBytes;
+        }
+        builder.append(String.format(Locale.ROOT, "%-16s %9d %7d %9.1f", "total", completedCount, failedCount,
+            completedCount / seconds));
+        builder.append(String.format(Locale.ROOT, " %9s", "").repeat(QUANTILES.length));
+        builder.append(String.format(Locale.ROOT, " %12.1f%n",
+            kibPerFlow(flowAllocatedBytes, completedCount + failedCount)));
+
+        builder.append(String.format(Locale.ROOT, "" +
+                "allocation rate %.1f MB/s, %.1f KiB/flow on all threads, %d flows incomplete%n",
+            allocatedBytes / 1e6 / seconds, kibPerFlow(allocatedBytes, completedCount + failedCount),
+            incompleteCount));
+        if (firstFault != null) {
+            final var writer = new StringWriter();
+            firstFault.printStackTrace(new PrintWriter(writer));
+            builder.append("first fault: ").append(writer);
+        }
+        return builder;
+    }
+
+    private static void writeRow(
+        final StringBuilder builder,
+        final String name,
+        final long completedCount,
+        final long failedCount,
+        final Histogram latency,
+        final long allocatedBytes,
+        final double seconds)
+    {
+        builder.append(String.format(Locale.ROOT, "%-16s %9d %7d %9.1f", name, completedCount, failedCount,
+            completedCount / seconds));
+        for (final var quantile : QUANTILES) {
+            builder.append(latency.count() > 0
+                ? String.format(Locale.ROOT, " %9.2f", latency.valueAtQuantile(quantile) / 1e6)
+                : String.format(Locale.ROOT, " %9s", "-"));
+        }
+        builder.append(String.format(Locale.ROOT, " %12.1f%n",
+            kibPerFlow(allocatedBytes, completedCount + failedCount)));
+    }
+
+    private static double kibPerFlow(final long allocatedBytes, final long flowCount) {
+        return flowCount > 0
+            ? allocatedBytes / 1024.0 / flowCount
+            : 0.0;
+    }
+
+    @Override
+    public String toString() {
+        return writeText(new StringBuilder()).toString();
+    }
+
+    /**
+     * The outcome of the measured flows of one {@link FlowType}.
+     */
+    public static class Row {
+        private final FlowType type;
+        private final long completedCount;
+        private final long failedCount;
+        private final Histogram latency;
+        private final long allocatedBytes;
+
+        Row(
+            final FlowType type,
+            final long completedCount,
+            final long failedCount,
+            final Histogram latency,
+            final long allocatedBytes)
+        {
+            this.type = Objects.requireNonNull(type, "Expected type");
+            this.completedCount = completedCount;
+            this.failedCount = failedCount;
+            this.latency = Objects.requireNonNull(latency, "Expected latency");
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public FlowType type() {
+            return type;
+        }
+
+        public long completedCount() {
+            return completedCount;
+        }
+
+        public long failedCount() {
+            return failedCount;
+        }
+
+        /**
+         * @return Histogram of the times from when flows were started until
+         * they completed.
+         */
+        public Histogram latency() {
+            return latency;
+        }
+
+        /**
+         * @return Number of bytes allocated by the threads of the load
+         * generator while preparing, delivering and applying the messages of
+         * the flows of this type. Work that the proxies hand over to their
+         * own threads is not included.
+         */
+        public long allocatedBytes() {
+            return allocatedBytes;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package se.arkalix.core.cp.load;
+
+import se.arkalix.core.cp.bank.Definition;
+import se.arkalix.core.cp.contract.ContractProxy;
+import se.arkalix.core.cp.contract.ContractRelay;
+import se.arkalix.core.cp.contract.Party;
+import se.arkalix.core.cp.contract.SignedContractAcceptanceDto;
+import se.arkalix.core.cp.contract.SignedContractOfferDto;
+import se.arkalix.core.cp.contract.SignedContractRejectionDto;
+import se.arkalix.core.cp.security.Hash;
+import se.arkalix.core.plugin.cp.ContractNegotiationStatus;
+import se.arkalix.core.plugin.cp.TrustedContractOffer;
+import se.arkalix.util.Result;
+import se.arkalix.util.concurrent.Future;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A {@link ContractRelay} that delivers messages directly to other contract
+ * proxies in the same process, rather than via HTTP.
+ * <p>
+ * Every contract proxy is given its own relay, all of which share the same
+ * {@link Network}. Messages sent to counter-parties are applied to the
+ * proxies owning those counter-parties by the executor of the network, which
+ * means that sending never blocks. The returned futures complete when the
+ * receiving proxy has applied the message, and fail if it rejects it, just
+ * like they would if the message had been sent via HTTP. Event handler
+ * notifications are passed to the handler of the sending relay.
+ */
+public class LoopbackContractRelay implements ContractRelay {
+    private final Network network;
+    private final EventHandler eventHandler;
+
+    /**
+     * @param network      Network of proxies to relay messages between.
+     * @param eventHandler Function receiving the event handler notifications
+     *                     of the proxy using this relay.
+     */
+    public LoopbackContractRelay(final Network network, final EventHandler eventHandler) {
+        this.network = Objects.requireNonNull(network, "Expected network");
+        this.eventHandler = Objects.requireNonNull(eventHandler, "Expected eventHandler");
+    }
+
+    @Override
+    public Future<List<Definition>> getFromCounterParty(final Collection<Hash> hashes) {
+        return network.execute(() -> {
+            final var definitions = new ArrayList<Definition>(hashes.size());
+            for (final var hash : hashes) {
+                for (final var proxy : network.proxies()) {
+                    final var definition = proxy.bank().get(hash);
+                    if (definition.isPresent()) {
+                        definitions.add(definition.get());
+                        break;
+                    }
+                }
+            }
+            return definitions;
+        });
+    }
+
+    @Override
+    public Future<?> sendToEventHandler(
+        final long negotiationId,
+        final TrustedContractOffer offer,
+        final ContractNegotiationStatus status)
+    {
+        eventHandler.onEvent(negotiationId, offer, status);
+        return Future.done();
+    }
+
+    @Override
+    public Future<?> sendToCounterParty(final SignedContractAcceptanceDto acceptance, final Party counterParty) {
+        return network.deliver(acceptance, counterParty);
+    }
+
+    @Override
+    public Future<?> sendToCounterParty(final SignedContractOfferDto offer, final Party counterParty) {
+        return network.deliver(offer, counterParty);
+    }
+
+    @Override
+    public Future<?> sendToCounterParty(final SignedContractRejectionDto rejection, final Party counterParty) {
+        return network.deliver(rejection, counterParty);
+    }
+
+    /**
+     * Receives the event handler notifications of a contract proxy.
+     */
+    @FunctionalInterface
+    public interface EventHandler {
+        void onEvent(long negotiationId, TrustedContractOffer offer, ContractNegotiationStatus status);
+    }
+
+    /**
+     * The contract proxies messages can be relayed between, as well as the
+     * executor relaying them.
+     */
+    public static class Network {
+        private final Map<String, ContractProxy> partyNameToProxy = new ConcurrentHashMap<>();
+        private final Executor executor;
+
+        public Network(final Executor executor) {
+            this.executor = Objects.requireNonNull(executor, "Expected executor");
+        }
+
+        /**
+         * Makes messages sent to the owned parties of {@code proxy} be
+         * delivered to it.
+         *
+         * @param proxy Proxy to add.
+         */
+        public void add(final ContractProxy proxy) {
+            for (final var party : proxy.parties().getAllOwnedParties()) {
+                partyNameToProxy.put(party.commonName(), proxy);
+            }
+        }
+
+        public Collection<ContractProxy> proxies() {
+            return partyNameToProxy.values();
+        }
+
+        /**
+         * Applies {@code definition} to {@code proxy}. Called by the
+         * executor of this network for every message delivered. May be
+         * overridden to observe deliveries.
+         *
+         * @param proxy      Proxy owning the receiving party.
+         * @param definition Signed acceptance, offer or rejection.
+         */
+        protected void apply(final ContractProxy proxy, final Definition definition) {
+            if (definition instanceof SignedContractAcceptanceDto) {
+                proxy.update((SignedContractAcceptanceDto) definition);
+            }
+            else if (definition instanceof SignedContractOfferDto) {
+                proxy.update((SignedContractOfferDto) definition);
+            }
+            else if (definition instanceof SignedContractRejectionDto) {
+                proxy.update((SignedContractRejectionDto) definition);
+            }
+            else {
+                throw new IllegalArgumentException("Cannot deliver " + definition);
+            }
+        }
+
+        private Future<?> deliver(final Definition definition, final Party counterParty) {
+            final var proxy = partyNameToProxy.get(counterParty.commonName());
+            if (proxy == null) {
+                throw new IllegalStateException("No proxy owns \"" + counterParty.commonName() + "\"");
+            }
+            return execute(() -> {
+                apply(proxy, definition);
+                return null;
+            });
+        }
+
+        private <T> Future<T> execute(final Supplier<T> supplier) {
+            final var task = new Task<>(supplier);
+            executor.execute(task::run);
+            return task;
+        }
+    }
+
+    private static class Task<T> implements Future<T> {
+        private final Supplier<T> supplier;
+        private final List<Consumer<Result<T>>> consumers = new ArrayList<>(1);
+        private Result<T> result = null;
+
+        private Task(final Supplier<T> supplier) {
+            this.supplier = supplier;
+        }
+
+        void run() {
+            Result<T> result;
+            try {
+                result = Result.success(supplier.get());
+            }
+            catch (final Throwable throwable) {
+                result = Result.failure(throwable);
+            }
+            final List<Consumer<Result<T>>> consumers;
+            synchronized (this) {
+                this.result = result;
+                consumers = new ArrayList<>(this.consumers);
+                this.consumers.clear();
+            }
+            for (final var consumer : consumers) {
+                consumer.accept(result);
+            }
+        }
+
+        @Override
+        public void onResult(final Consumer<Result<T>> consumer) {
+            final Result<T> result;
+            synchronized (this) {
+                if (this.result == null) {
+                    consumers.add(consumer);
+                    return;
+                }
+                result = this.result;
+            }
+            consumer.accept(result);
+        }
+
+        @Override
+        public void cancel(final boolean mayInterruptIfRunning) {
+            // Messages already handed to the executor are always delivered.
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package se.arkalix.core.cp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.arkalix.ArSystem;
+import se.arkalix.core.plugin.eh.HttpJsonEventPublishService;
+import se.arkalix.util.Result;
+import se.arkalix.util.annotation.ThreadSafe;
+import se.arkalix.util.concurrent.Future;
+import se.arkalix.util.concurrent.Futures;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static se.arkalix.core.plugin.cp.ContractNegotiationConstants.TOPIC_UPDATE;
+
+/**
+ * Publishes contract negotiation updates to the event handler in batches.
+ * <p>
+ * Published updates are queued until either a batch size worth of updates
+ * have been queued, or until a flush interval has passed since the first of
+ * them was queued. If a negotiation is updated again while a previous update
+ * of it is still queued, the previous update is replaced, which means that
+ * only the most recent status of each negotiation is published. At most one
+ * batch is being sent to the event handler at any given time. Updates of
+ * negotiations not already queued are dropped if the queue is full.
+ * <p>
+ * The futures returned when publishing are completed only after the event
+ * handler has responded to the batched update, or after it was determined
+ * that the update could not be sent. Callers whose updates were replaced
+ * are handed the same future as the replacing update, as it is the update
+ * that will eventually be sent in their stead.
+ */
+public class CoalescingEventPublisher {
+    private static final Logger logger = LoggerFactory.getLogger(CoalescingEventPublisher.class);
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    public static final Duration DEFAULT_FLUSH_INTERVAL = Duration.ofMillis(50);
+
+    private final ArSystem system;
+    private final int queueCapacity;
+    private final int batchSize;
+    private final long flushIntervalInNanos;
+    private final ScheduledExecutorService executor;
+
+    private final LinkedHashMap<Long, Update> negotiationIdToUpdate = new LinkedHashMap<>();
+    private boolean isFlushScheduled = false;
+    private boolean isFlushing = false;
+    private HttpJsonEventPublishService service = null;
+
+    private final AtomicLong coalescedCount = new AtomicLong(0);
+    private final AtomicLong droppedCount = new AtomicLong(0);
+    private final AtomicLong failedCount = new AtomicLong(0);
+    private final AtomicLong publishedCount = new AtomicLong(0);
+
+    private CoalescingEventPublisher(final Builder builder) {
+        system = Objects.requireNonNull(builder.system, "Expected system");
+        queueCapacity = builder.queueCapacity > 0
+            ? builder.queueCapacity
+            : DEFAULT_QUEUE_CAPACITY;
+        batchSize = builder.batchSize > 0
+            ? Math.min(builder.batchSize, queueCapacity)
+            : Math.min(DEFAULT_BATCH_SIZE, queueCapacity);
+        final var flushInterval = builder.flushInterval != null
+            ? builder.flushInterval
+            : DEFAULT_FLUSH_INTERVAL;
+        if (flushInterval.isNegative() || flushInterval.isZero()) {
+            throw new IllegalArgumentException("Expected flushInterval > 0");
+        }
+        flushIntervalInNanos = flushInterval.toNanos();
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final var thread = new Thread(runnable, "contract-negotiation-event-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues update of negotiation for publishing, replacing any queued
+     * update of the same negotiation.
+     *
+     * @param negotiationId Identifier of updated negotiation.
+     * @param metadata      Event metadata describing the update.
+     * @return Future completed successfully when the update, or an update
+     * replacing it, has been sent to the event handler, or with a fault if
+     * the queue is full or the update could not be sent.
+     */
+    @ThreadSafe
+    public Future<?> publish(final long negotiationId, final Map<String, String> metadata) {
+        Objects.requireNonNull(metadata, "Expected metadata");
+
+        synchronized (negotiationIdToUpdate) {
+            final var queued = negotiationIdToUpdate.get(negotiationId);
+            if (queued != null) {
+                queued.metadata = metadata;
+                coalescedCount.incrementAndGet();
+                return queued.delivery;
+            }
+            if (negotiationIdToUpdate.size() >= queueCapacity) {
+                droppedCount.incrementAndGet();
+                return Future.failure(new IllegalStateException("Event " +
+                    "queue full; dropped update of negotiation " + negotiationId));
+            }
+            final var update = new Update(metadata);
+            negotiationIdToUpdate.put(negotiationId, update);
+            if (isFlushing) {
+                return update.delivery;
+            }
+            if (negotiationIdToUpdate.size() >= batchSize) {
+                executor.execute(this::flush);
+            }
+            else if (!isFlushScheduled) {
+                isFlushScheduled = true;
+                executor.schedule(this::flush, flushIntervalInNanos, TimeUnit.NANOSECONDS);
+            }
+            return update.delivery;
+        }
+    }
+
+    private void flush() {
+        final var batch = new ArrayList<Map.Entry<Long, Update>>(batchSize);
+        synchronized (negotiationIdToUpdate) {
+            isFlushScheduled = false;
+            if (isFlushing) {
+                return;
+            }
+            final var iterator = negotiationIdToUpdate.entrySet().iterator();
+            while (iterator.hasNext() && batch.size() < batchSize) {
+                final var entry = iterator.next();
+                batch.add(Map.entry(entry.getKey(), entry.getValue()));
+                iterator.remove();
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            isFlushing = true;
+        }
+
+        serviceOrResolve()
+            .flatMap(service -> Futures.serialize(batch.stream()
+                .map(entry -> service.publish(TOPIC_UPDATE, system, entry.getValue().metadata,
+                    Long.toString(entry.getKey()))
+                    .ifSuccess(ignored -> {
+                        publishedCount.incrementAndGet();
+                        entry.getValue().delivery.complete(Result.success(null));
+                    })
+                    .mapCatch(fault -> {
+                        failedCount.incrementAndGet();
+                        logger.warn("Failed to send update of negotiation " +
+                            entry.getKey() + " to event handler", fault);
+                        synchronized (negotiationIdToUpdate) {
+                            this.service = null;
+                        }
+                        entry.getValue().delivery.complete(Result.failure(fault));
+                        return null;
+                    }))))
+            .onResult(result -> {
+                if (!result.isSuccess()) {
+                    failedCount.addAndGet(batch.size());
+                    logger.warn("Failed to resolve event handler; dropped " +
+                        batch.size() + " negotiation updates", result.fault());
+                    for (final var entry : batch) {
+                        entry.getValue().delivery.complete(Result.failure(result.fault()));
+                    }
+                }
+                synchronized (negotiationIdToUpdate) {
+                    isFlushing = false;
+                    final var size = negotiationIdToUpdate.size();
+                    if (size >= batchSize) {
+                        executor.execute(this::flush);
+                    }
+                    else if (size > 0 && !isFlushScheduled) {
+                        isFlushScheduled = true;
+                        executor.schedule(this::flush, flushIntervalInNanos, TimeUnit.NANOSECONDS);
+                    }
+                }
+            });
+    }
+
+    private Future<HttpJsonEventPublishService> serviceOrResolve() {
+        synchronized (negotiationIdToUpdate) {
+            if (service != null) {
+                return Future.success(service);
+            }
+        }
+        return system.consume()
+            .oneUsing(HttpJsonEventPublishService.factory())
+            .ifSuccess(service -> {
+                synchronized (negotiationIdToUpdate) {
+                    this.service = service;
+                }
+            });
+    }
+
+    /**
+     * @return Number of negotiation updates currently queued.
+     */
+    @ThreadSafe
+    public int queueDepth() {
+        synchronized (negotiationIdToUpdate) {
+            return negotiationIdToUpdate.size();
+        }
+    }
+
+    /**
+     * @return Number of negotiation updates that replaced queued updates.
+     */
+    @ThreadSafe
+    public long coalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * @return Number of negotiation updates dropped due to the queue being
+     * full.
+     */
+    @ThreadSafe
+    public long droppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return Number of negotiation updates that could not be sent to the
+     * event handler.
+     */
+    @ThreadSafe
+    public long failedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return Number of negotiation updates sent to the event handler.
+     */
+    @ThreadSafe
+    public long publishedCount() {
+        return publishedCount.get();
+    }
+
+    // The metadata of a queued update is replaced, under the lock of the
+    // queue, if the same negotiation is updated again before it is sent.
+    private static class Update {
+        private final Delivery delivery = new Delivery();
+        private Map<String, String> metadata;
+
+        private Update(final Map<String, String> metadata) {
+            this.metadata = metadata;
+        }
+    }
+
+    private static class Delivery implements Future<Object> {
+        private final List<Consumer<Result<Object>>> consumers = new ArrayList<>(1);
+        private Result<Object> result = null;
+
+        void complete(final Result<Object> result) {
+            final List<Consumer<Result<Object>>> consumers;
+            synchronized (this) {
+                if (this.result != null) {
+                    return;
+                }
+                this.result = result;
+                consumers = new ArrayList<>(this.consumers);
+                this.consumers.clear();
+            }
+            for (final var consumer : consumers) {
+                consumer.accept(result);
+            }
+        }
+
+        @Override
+        public void onResult(final Consumer<Result<Object>> consumer) {
+            final Result<Object> result;
+            synchronized (this) {
+                if (this.result == null) {
+                    consumers.add(consumer);
+                    return;
+                }
+                result = this.result;
+            }
+            consumer.accept(result);
+        }
+
+        @Override
+        public void cancel(final boolean mayInterruptIfRunning) {
+            // Queued updates are always sent, as they may have been
+            // replaced by updates published by other callers.
+        }
+    }
+
+    public static class Builder {
+        private ArSystem system;
+        private int queueCapacity;
+        private int batchSize;
+        private Duration flushInterval;
+
+        public Builder system(final ArSystem system) {
+            this.system = system;
+            return this;
+        }
+
+        public Builder queueCapacity(final int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        public Builder batchSize(final int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public Builder flushInterval(final Duration flushInterval) {
+            this.flushInterval = flushInterval;
+            return this;
+        }
+
+        public CoalescingEventPublisher build() {
+            return new CoalescingEventPublisher(this);
+        }
+    }
+}
@@ -2,24 +2,41 @@ package se.arkalix.core.cp;
 
 import se.arkalix.ArService;
 import se.arkalix.ArSystem;
-import se.arkalix.core.cp.bank.DefinitionMessage;
+import se.arkalix.core.cp.bank.DefinitionCborWriter;
+import se.arkalix.core.cp.bank.DefinitionCursor;
+import se.arkalix.core.cp.bank.DefinitionMessageReader;
+import se.arkalix.core.cp.bank.DefinitionMessageWriter;
+import se.arkalix.core.cp.bank.DefinitionPages;
+import se.arkalix.core.cp.bank.DefinitionQuery;
+import se.arkalix.core.cp.bank.DefinitionQueryDto;
 import se.arkalix.core.cp.contract.ContractProxy;
 import se.arkalix.core.cp.contract.SignedContractAcceptanceDto;
 import se.arkalix.core.cp.contract.SignedContractOfferDto;
 import se.arkalix.core.cp.contract.SignedContractRejectionDto;
 import se.arkalix.core.cp.security.Hash;
+import se.arkalix.core.cp.security.HashBase64;
+import se.arkalix.core.cp.trace.NegotiationTimelines;
+import se.arkalix.core.cp.trace.PendingSpans;
+import se.arkalix.core.cp.util.EntityTags;
+import se.arkalix.core.cp.util.HttpAdmissionControl;
+import se.arkalix.core.cp.util.HttpCompression;
+import se.arkalix.core.cp.util.HttpMediaTypes;
 import se.arkalix.core.cp.util.HttpServices;
+import se.arkalix.core.cp.util.PriorityWorkQueue.Priority;
 import se.arkalix.core.cp.util.UnsatisfiableRequestException;
 import se.arkalix.descriptor.EncodingDescriptor;
+import se.arkalix.net.http.service.HttpServiceRequest;
+import se.arkalix.net.http.service.HttpServiceResponse;
 
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.stream.Collectors;
 
+import static se.arkalix.core.cp.util.HttpServices.metered;
 import static se.arkalix.descriptor.EncodingDescriptor.JSON;
+import static se.arkalix.net.http.HttpStatus.NOT_MODIFIED;
 import static se.arkalix.net.http.HttpStatus.NO_CONTENT;
-import static se.arkalix.net.http.HttpStatus.OK;
 import static se.arkalix.security.access.AccessPolicy.token;
 import static se.arkalix.security.access.AccessPolicy.unrestricted;
 import static se.arkalix.util.concurrent.Future.done;
@@ -28,40 +45,95 @@ public class HttpJsonContractNegotiationProvider {
     private HttpJsonContractNegotiationProvider() {}
 
     public static ArService createFor(final ArSystem system, final ContractProxy proxy) {
+        return createFor(system, proxy, new HttpCompression(HttpCompression.DEFAULT_THRESHOLD));
+    }
+
+    public static ArService createFor(
+        final ArSystem system,
+        final ContractProxy proxy,
+        final HttpCompression compression)
+    {
+        return createFor(system, proxy, compression, HttpAdmissionControl.DISABLED);
+    }
+
+    // Every request is subjected to admission control before its body is
+    // read, as reading bodies and verifying their signatures is what makes
+    // requests expensive. Signatures are verified in order of priority, as
+    // acceptances and rejections close negotiations, counter-offers continue
+    // them, and new offers only open more of them.
+    public static ArService createFor(
+        final ArSystem system,
+        final ContractProxy proxy,
+        final HttpCompression compression,
+        final HttpAdmissionControl admissionControl)
+    {
+        final var serviceName = "contract-negotiation";
         return HttpServices.newWithUnsatisfiableRequestCatcher()
-            .name("contract-negotiation")
+            .name(serviceName)
             .basePath("/contract-negotiation")
             .encodings(JSON)
             .accessPolicy(system.isSecure() ? token() : unrestricted())
 
             // This is only advertising one party. TODO: Figure out way to advertise all owned parties.
-            .metadata(Map.of("party", proxy.parties().getAllOwnedParties().get(0).commonName()))
-
-            .post("/acceptances", (request, response) ->
-                request
-                    .bodyAs(SignedContractAcceptanceDto.class)
-                    .ifSuccess(acceptance -> {
-                        proxy.update(acceptance);
-                        response.status(NO_CONTENT);
-                    }))
-
-            .post("/offers", (request, response) ->
-                request
-                    .bodyAs(SignedContractOfferDto.class)
-                    .ifSuccess(offer -> {
-                        proxy.update(offer);
-                        response.status(NO_CONTENT);
-                    }))
-
-            .post("/rejections", (request, response) ->
-                request
-                    .bodyAs(SignedContractRejectionDto.class)
-                    .ifSuccess(rejection -> {
-                        proxy.update(rejection);
-                        response.status(NO_CONTENT);
-                    }))
-
-            .get("/definitions", (request, response) -> {
+            .metadata(Map.of(
+                "party", proxy.parties().getAllOwnedParties().get(0).commonName(),
+                HttpCompression.METADATA_CONTENT_ENCODINGS, HttpCompression.SUPPORTED_ENCODINGS,
+                HttpMediaTypes.METADATA_MEDIA_TYPES, HttpMediaTypes.SUPPORTED_MEDIA_TYPES))
+
+            .post("/acceptances", metered(serviceName, "POST /acceptances", (request, response) -> {
+                admissionControl.admitOrThrow(request);
+                final var start = System.nanoTime();
+                return HttpCompression
+                    .bodyAs(request, SignedContractAcceptanceDto.class, DefinitionMessageReader::readAcceptance)
+                    .flatMap(acceptance -> {
+                        final var spans = pendingSpansOf(request, proxy, start);
+                        final var queuedAt = System.nanoTime();
+                        return admissionControl.execute(Priority.HIGH, () -> {
+                            spans.record("queue", queuedAt);
+                            proxy.update(acceptance, spans);
+                            return acceptance;
+                        });
+                    })
+                    .ifSuccess(ignored -> response.status(NO_CONTENT));
+            }))
+
+            .post("/offers", metered(serviceName, "POST /offers", (request, response) -> {
+                admissionControl.admitOrThrow(request);
+                final var start = System.nanoTime();
+                return HttpCompression
+                    .bodyAs(request, SignedContractOfferDto.class, DefinitionMessageReader::readOffer)
+                    .flatMap(offer -> {
+                        final var spans = pendingSpansOf(request, proxy, start);
+                        final var queuedAt = System.nanoTime();
+                        return admissionControl.execute(priorityOf(offer, proxy), () -> {
+                            spans.record("queue", queuedAt);
+                            proxy.update(offer, spans);
+                            return offer;
+                        });
+                    })
+                    .ifSuccess(ignored -> response.status(NO_CONTENT));
+            }))
+
+            .post("/rejections", metered(serviceName, "POST /rejections", (request, response) -> {
+                admissionControl.admitOrThrow(request);
+                final var start = System.nanoTime();
+                return HttpCompression
+                    .bodyAs(request, SignedContractRejectionDto.class, DefinitionMessageReader::readRejection)
+                    .flatMap(rejection -> {
+                        final var spans = pendingSpansOf(request, proxy, start);
+                        final var queuedAt = System.nanoTime();
+                        return admissionControl.execute(Priority.HIGH, () -> {
+                            spans.record("queue", queuedAt);
+                            proxy.update(rejection, spans);
+                            return rejection;
+                        });
+                    })
+                    .ifSuccess(ignored -> response.status(NO_CONTENT));
+            }))
+
+            .get("/definitions", metered(serviceName, "GET /definitions", (request, response) -> {
+                admissionControl.admitOrThrow(request);
+
                 final var hashParameters = request.queryParameters()
                     .get("hash");
 
@@ -73,20 +145,124 @@ public class HttpJsonContractNegotiationProvider {
                         "<hash-algorithm>:<base64-checksum> pairs");
                 }
 
-                final var definitions = hashParameters.stream()
+                final var hashes = hashParameters.stream()
                     .flatMap(value -> Arrays.stream(value.split(","))
                         .map(String::trim))
                     .map(Hash::valueOf)
-                    .map(hash -> proxy.bank().get(hash))
-                    .filter(Optional::isPresent)
-                    .map(Optional::get)
-                    .map(DefinitionMessage::from)
                     .collect(Collectors.toUnmodifiableList());
 
-                response.status(OK)
-                    .body(definitions);
+                // Definitions never change, which means that a response
+                // containing all requested definitions never changes either.
+                final var tag = EntityTags.of(hashes, HttpMediaTypes.isCborPreferredBy(request)
+                    ? HttpMediaTypes.APPLICATION_CBOR
+                    : HttpMediaTypes.APPLICATION_JSON);
+                if (EntityTags.isMatchedBy(request, tag)) {
+                    response.status(NOT_MODIFIED)
+                        .header("etag", tag)
+                        .header("cache-control", EntityTags.CACHE_CONTROL_IMMUTABLE);
+                    return done();
+                }
+                final var count = respondWithDefinitions(request, response, proxy, compression, hashes,
+                    DefinitionCursor.FIRST, Integer.MAX_VALUE);
+                if (count == hashes.size()) {
+                    response.header("etag", tag)
+                        .header("cache-control", EntityTags.CACHE_CONTROL_IMMUTABLE);
+                }
+                else {
+                    response.header("cache-control", EntityTags.CACHE_CONTROL_NO_CACHE);
+                }
 
                 return done();
-            });
+            }))
+
+            .post("/definitions", metered(serviceName, "POST /definitions", (request, response) -> {
+                admissionControl.admitOrThrow(request);
+                return HttpCompression
+                    .bodyAs(request, DefinitionQueryDto.class, DefinitionMessageReader::readQuery)
+                    .ifSuccess(query -> {
+                        if (query.ids().map(ids -> !ids.isEmpty()).orElse(false)) {
+                            throw new UnsatisfiableRequestException("IDS_NOT_SUPPORTED", "" +
+                                "Definitions may only be looked up by hash " +
+                                "via this service");
+                        }
+                        final var hashes = query.hashes().orElse(List.of());
+                        if (hashes.isEmpty()) {
+                            throw new UnsatisfiableRequestException("NO_HASHES", "" +
+                                "The \"hashes\" list of the query must contain " +
+                                "at least one hash");
+                        }
+                        if (hashes.size() > DefinitionQuery.MAX_SIZE) {
+                            throw new UnsatisfiableRequestException("TOO_MANY_HASHES", "" +
+                                "At most " + DefinitionQuery.MAX_SIZE + " hashes " +
+                                "may be looked up in a single query");
+                        }
+                        final DefinitionCursor cursor;
+                        try {
+                            cursor = query.cursor()
+                                .map(DefinitionCursor::valueOf)
+                                .orElse(DefinitionCursor.FIRST);
+                        }
+                        catch (final IllegalArgumentException exception) {
+                            throw new UnsatisfiableRequestException("BAD_CURSOR", exception.getMessage());
+                        }
+                        final var limit = Math.min(query.limit().orElse(DefinitionQuery.MAX_PAGE_SIZE),
+                            DefinitionQuery.MAX_PAGE_SIZE);
+                        respondWithDefinitions(request, response, proxy, compression, hashes.stream()
+                            .map(HashBase64::toHash)
+                            .collect(Collectors.toUnmodifiableList()), cursor, limit);
+                    });
+            }));
+    }
+
+    // Counter-parties send the trace identifiers of their negotiations along
+    // with their messages, which are adopted by negotiations not already
+    // being traced once the signatures of the messages have been verified.
+    private static PendingSpans pendingSpansOf(
+        final HttpServiceRequest request,
+        final ContractProxy proxy,
+        final long start)
+    {
+        final var spans = proxy.timelines()
+            .pending(request.header(NegotiationTimelines.TRACE_ID_HEADER).orElse(null));
+        spans.record("decode", start);
+        return spans;
+    }
+
+    private static Priority priorityOf(final SignedContractOfferDto offer, final ContractProxy proxy) {
+        return proxy.isCounterOffer(offer) ? Priority.NORMAL : Priority.LOW;
+    }
+
+    // At most limit definitions are written, starting at the given cursor.
+    private static int respondWithDefinitions(
+        final HttpServiceRequest request,
+        final HttpServiceResponse response,
+        final ContractProxy proxy,
+        final HttpCompression compression,
+        final List<Hash> hashes,
+        final DefinitionCursor cursor,
+        final int limit)
+    {
+        final var bank = proxy.bank();
+        final DefinitionCursor next;
+        final int count;
+        if (HttpMediaTypes.isCborPreferredBy(request)) {
+            final var writer = new DefinitionCborWriter();
+            next = DefinitionPages.visit(bank, List.of(), hashes, cursor, limit,
+                (entry, hashes0) -> writer.write(entry.definition(), hashes0));
+            compression.respond(request, response, writer.toByteArray(), HttpMediaTypes.APPLICATION_CBOR);
+            count = writer.count();
+        }
+        else {
+            final var cache = proxy.definitionJsonCache();
+            final var writer = new DefinitionMessageWriter();
+            next = DefinitionPages.visit(bank, List.of(), hashes, cursor, limit,
+                (entry, hashes0) -> writer.write(cache.get(entry), hashes0));
+            compression.respond(request, response, writer.toByteArray());
+            count = writer.count();
+        }
+        if (next != null) {
+            response.header(DefinitionQuery.NEXT_CURSOR_HEADER, next.toString());
+        }
+        return count;
     }
 }
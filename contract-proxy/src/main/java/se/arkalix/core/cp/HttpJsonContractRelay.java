@@ -1,53 +1,239 @@
 package se.arkalix.core.cp;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import se.arkalix.ArSystem;
 import se.arkalix.core.cp.bank.Definition;
+import se.arkalix.core.cp.bank.DefinitionCborWriter;
+import se.arkalix.core.cp.bank.DefinitionCursor;
 import se.arkalix.core.cp.bank.DefinitionMessageDto;
+import se.arkalix.core.cp.bank.DefinitionMessageReader;
+import se.arkalix.core.cp.bank.DefinitionMessageWriter;
+import se.arkalix.core.cp.bank.DefinitionQuery;
 import se.arkalix.core.cp.contract.*;
+import se.arkalix.core.cp.metrics.Metrics;
 import se.arkalix.core.cp.security.Hash;
+import se.arkalix.core.cp.security.HashBase64;
+import se.arkalix.core.cp.trace.NegotiationTimelines;
+import se.arkalix.core.cp.util.CborWriter;
+import se.arkalix.core.cp.util.HttpCompression;
+import se.arkalix.core.cp.util.HttpMediaTypes;
 import se.arkalix.core.plugin.cp.ContractNegotiationStatus;
 import se.arkalix.core.plugin.cp.TrustedContract;
 import se.arkalix.core.plugin.cp.TrustedContractOffer;
-import se.arkalix.core.plugin.eh.HttpJsonEventPublishService;
 import se.arkalix.internal.core.plugin.HttpJsonServices;
 import se.arkalix.internal.core.plugin.Paths;
 import se.arkalix.net.http.consumer.HttpConsumer;
 import se.arkalix.net.http.consumer.HttpConsumerRequest;
+import se.arkalix.net.http.consumer.HttpConsumerResponse;
+import se.arkalix.util.annotation.ThreadSafe;
 import se.arkalix.util.concurrent.Future;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
-import static se.arkalix.core.plugin.cp.ContractNegotiationConstants.TOPIC_UPDATE;
 import static se.arkalix.descriptor.EncodingDescriptor.JSON;
 import static se.arkalix.net.http.HttpMethod.GET;
 import static se.arkalix.net.http.HttpMethod.POST;
+import static se.arkalix.net.http.HttpStatus.METHOD_NOT_ALLOWED;
+import static se.arkalix.net.http.HttpStatus.NOT_FOUND;
+import static se.arkalix.net.http.HttpStatus.REQUEST_TIMEOUT;
+import static se.arkalix.net.http.HttpStatus.TOO_MANY_REQUESTS;
 
+/**
+ * Relays contract negotiation messages to counter-parties and event handlers
+ * via HTTP/JSON.
+ * <p>
+ * The contract negotiation services of counter-parties are resolved once
+ * and then cached per counter-party. Cached services are used until their
+ * time-to-live expires, after which they are still used while being
+ * resolved anew in the background. A cached service is forgotten if
+ * sending a message to it fails, or if it responds that the requested
+ * resource does not exist, in which case it is resolved again the next time
+ * it is used. Other client errors, such as those caused by the service
+ * being overloaded or not supporting a particular method, say nothing about
+ * whether the service has moved and never cause it to be forgotten.
+ * <p>
+ * Negotiation updates are sent to the event handler via a {@link
+ * CoalescingEventPublisher}.
+ * <p>
+ * Messages sent to counter-parties carry the trace identifiers of their
+ * negotiations in {@code trace-id} headers, unless tracing is disabled. If a
+ * counter-party responds to a message with a client error other than 408
+ * Request Timeout or 429 Too Many Requests, sending the message fails with
+ * a {@link MessageRefusedException}.
+ */
 public class HttpJsonContractRelay implements ContractRelay {
+    private static final Logger logger = LoggerFactory.getLogger(HttpJsonContractRelay.class);
+
+    /**
+     * Default time-to-live of cached counter-party services.
+     */
+    public static final Duration DEFAULT_ENDPOINT_TIME_TO_LIVE = Duration.ofMinutes(5);
+
+    // Key of the endpoint used when no particular counter-party is targeted.
+    private static final String ANY_PARTY = "";
+
     private final ArSystem system;
+    private final long endpointTimeToLiveInNanos;
+    private final CoalescingEventPublisher eventPublisher;
+    private final HttpCompression compression;
+    private final NegotiationTimelines timelines;
+    private final Map<String, Endpoint> partyToEndpoint = new ConcurrentHashMap<>();
 
     public HttpJsonContractRelay(final ArSystem system) {
+        this(system, DEFAULT_ENDPOINT_TIME_TO_LIVE);
+    }
+
+    public HttpJsonContractRelay(final ArSystem system, final Duration endpointTimeToLive) {
+        this(system, endpointTimeToLive, new CoalescingEventPublisher.Builder()
+            .system(system)
+            .build());
+    }
+
+    public HttpJsonContractRelay(
+        final ArSystem system,
+        final Duration endpointTimeToLive,
+        final CoalescingEventPublisher eventPublisher)
+    {
+        this(system, endpointTimeToLive, eventPublisher, new HttpCompression(HttpCompression.DEFAULT_THRESHOLD));
+    }
+
+    public HttpJsonContractRelay(
+        final ArSystem system,
+        final Duration endpointTimeToLive,
+        final CoalescingEventPublisher eventPublisher,
+        final HttpCompression compression)
+    {
+        this(system, endpointTimeToLive, eventPublisher, compression, NegotiationTimelines.DISABLED);
+    }
+
+    /**
+     * Creates new relay.
+     *
+     * @param system             System used to resolve and consume services.
+     * @param endpointTimeToLive Time-to-live of cached counter-party services.
+     * @param eventPublisher     Publisher of negotiation updates.
+     * @param compression        Compression of request bodies.
+     * @param timelines          Timelines in which the time spent sending
+     *                           messages to counter-parties is recorded, and
+     *                           whose trace identifiers are sent along with
+     *                           those messages.
+     */
+    public HttpJsonContractRelay(
+        final ArSystem system,
+        final Duration endpointTimeToLive,
+        final CoalescingEventPublisher eventPublisher,
+        final HttpCompression compression,
+        final NegotiationTimelines timelines)
+    {
         this.system = Objects.requireNonNull(system, "Expected system");
+        this.eventPublisher = Objects.requireNonNull(eventPublisher, "Expected eventPublisher");
+        this.compression = Objects.requireNonNull(compression, "Expected compression");
+        this.timelines = Objects.requireNonNull(timelines, "Expected timelines");
+        Objects.requireNonNull(endpointTimeToLive, "Expected endpointTimeToLive");
+        if (endpointTimeToLive.isNegative() || endpointTimeToLive.isZero()) {
+            throw new IllegalArgumentException("Expected endpointTimeToLive > 0");
+        }
+        endpointTimeToLiveInNanos = endpointTimeToLive.toNanos();
+    }
+
+    /**
+     * Resolves and caches the contract negotiation services of all given
+     * counter-parties, as well as the service used when no particular
+     * counter-party is targeted. Failures to resolve services are logged and
+     * otherwise ignored, as any services not cached are resolved when first
+     * used.
+     *
+     * @param counterParties Counter-parties to resolve services of.
+     */
+    @ThreadSafe
+    public void warmUp(final Collection<Party> counterParties) {
+        Objects.requireNonNull(counterParties, "Expected counterParties");
+
+        resolve(ANY_PARTY)
+            .onFailure(fault -> logger.debug("Failed to resolve any " +
+                "counter-party contract negotiation service", fault));
+
+        for (final var counterParty : counterParties) {
+            resolve(counterParty.commonName())
+                .onFailure(fault -> logger.warn("Failed to resolve contract " +
+                    "negotiation service of counter-party \"" +
+                    counterParty.commonName() + "\"", fault));
+        }
     }
 
     @Override
     public Future<List<Definition>> getFromCounterParty(final Collection<Hash> hashes) {
-        return system.consume()
-            .name("contract-negotiation")
-            .encodings(JSON)
-            .oneUsing(HttpConsumer.factory())
-            .flatMap(consumer -> consumer.send(new HttpConsumerRequest()
-                .method(GET)
-                .uri(Paths.combine(consumer.service().uri(), "definitions"))
-                .queryParameter("hash", hashes.stream()
-                    .map(Hash::toString)
-                    .collect(Collectors.joining(",")))))
-            .flatMap(response -> response.bodyAsListIfSuccess(DefinitionMessageDto.class)
-                .map(messages -> messages.stream()
-                    .map(Definition::from)
-                    .filter(Optional::isPresent)
-                    .map(Optional::get)
-                    .collect(Collectors.toUnmodifiableList())));
+        return getFromCounterParty(hashes, null, new ArrayList<>());
+    }
+
+    // Definitions are returned in pages, which are requested one at a time
+    // for as long as counter-parties return cursors of further pages. Pages
+    // without definitions end the lookup, as they would otherwise allow
+    // counter-parties to keep it going indefinitely.
+    private Future<List<Definition>> getFromCounterParty(
+        final Collection<Hash> hashes,
+        final DefinitionCursor cursor,
+        final List<Definition> definitions)
+    {
+        final var cursor0 = cursor != null ? cursor.toString() : null;
+        final var query = new StringBuilder("{\"hashes\":[");
+        var i = 0;
+        for (final var hash : hashes) {
+            if (i++ != 0) {
+                query.append(',');
+            }
+            HashBase64.from(hash).writeCanonicalJson(query);
+        }
+        query.append(']');
+        if (cursor0 != null) {
+            query.append(",\"cursor\":\"").append(cursor0).append('"');
+        }
+        query.append('}');
+
+        return send(ANY_PARTY, false, consumer -> withBody(new HttpConsumerRequest()
+            .method(POST)
+            .uri(Paths.combine(consumer.service().uri(), "definitions")),
+            query, writer -> DefinitionCborWriter.writeQuery(writer, hashes, cursor0), consumer))
+            .flatMap(response -> {
+                // Counter-parties not yet providing batch lookups are asked
+                // using the query string instead.
+                final var status = response.status();
+                if (cursor == null && (status == NOT_FOUND || status == METHOD_NOT_ALLOWED)) {
+                    return send(ANY_PARTY, consumer -> new HttpConsumerRequest()
+                        .method(GET)
+                        .uri(Paths.combine(consumer.service().uri(), "definitions"))
+                        .header("accept", acceptOf(consumer))
+                        .header("accept-encoding", "gzip, deflate")
+                        .queryParameter("hash", hashes.stream()
+                            .map(Hash::toString)
+                            .collect(Collectors.joining(","))));
+                }
+                return Future.success(response);
+            })
+            .flatMap(response -> {
+                final var next = response.status().isSuccess()
+                    ? response.header(DefinitionQuery.NEXT_CURSOR_HEADER).map(DefinitionCursor::valueOf).orElse(null)
+                    : null;
+                return HttpCompression.bodyAsListIfSuccess(response, DefinitionMessageDto.class,
+                    DefinitionMessageReader::readList)
+                    .flatMap(messages -> {
+                        for (final var message : messages) {
+                            Definition.from(message).ifPresent(definitions::add);
+                        }
+                        if (next == null || messages.isEmpty()) {
+                            return Future.success(Collections.unmodifiableList(definitions));
+                        }
+                        return getFromCounterParty(hashes, next, definitions);
+                    });
+            });
     }
 
     @Override
@@ -61,59 +247,172 @@ public class HttpJsonContractRelay implements ContractRelay {
             "receiver", offer.receiverName(),
             "templates", offer.contracts().stream().map(TrustedContract::templateName).collect(Collectors.joining(",")),
             "status", status.toString());
-        return system.consume()
-            .oneUsing(HttpJsonEventPublishService.factory())
-            .flatMap(service -> service.publish(TOPIC_UPDATE, system, metadata, Long.toString(negotiationId)));
+        return eventPublisher.publish(negotiationId, metadata);
     }
 
     @Override
     public Future<?> sendToCounterParty(final SignedContractAcceptanceDto acceptance, final Party counterParty) {
-        return system.consume()
-            .name("contract-negotiation")
-            .encodings(JSON)
-
-            // One party per system and use of unreliable identifier. Certificate registry instead of SR?
-            .metadata(Map.of("party", counterParty.commonName()))
-
-            .oneUsing(HttpConsumer.factory())
-            .flatMap(consumer -> consumer.send(new HttpConsumerRequest()
+        final var start = System.nanoTime();
+        return send(counterParty.commonName(), consumer -> withBody(withTraceIdOf(acceptance.negotiationId(),
+            new HttpConsumerRequest()
                 .method(POST)
-                .uri(Paths.combine(consumer.service().uri(), "acceptances"))
-                .body(acceptance)))
-            .flatMap(HttpJsonServices::unwrap);
+                .uri(Paths.combine(consumer.service().uri(), "acceptances"))),
+            acceptance.writeCanonicalJson(new StringBuilder(), true),
+            writer -> DefinitionCborWriter.writeAcceptance(writer, acceptance), consumer))
+            .flatMap(HttpJsonContractRelay::unwrapOrRefuse)
+            .always(ignored -> timelines.record(acceptance.negotiationId(), "relay", start));
     }
 
     @Override
     public Future<?> sendToCounterParty(final SignedContractOfferDto offer, final Party counterParty) {
-        return system.consume()
-            .name("contract-negotiation")
-            .encodings(JSON)
-
-            // One party per system and use of unreliable identifier. Certificate registry instead of SR?
-            .metadata(Map.of("party", counterParty.commonName()))
-
-            .oneUsing(HttpConsumer.factory())
-            .flatMap(consumer -> consumer.send(new HttpConsumerRequest()
+        final var start = System.nanoTime();
+        return send(counterParty.commonName(), consumer -> withBody(withTraceIdOf(offer.negotiationId(),
+            new HttpConsumerRequest()
                 .method(POST)
-                .uri(Paths.combine(consumer.service().uri(), "offers"))
-                .body(offer)))
-            .flatMap(HttpJsonServices::unwrap);
+                .uri(Paths.combine(consumer.service().uri(), "offers"))),
+            writeOffer(offer), writer -> DefinitionCborWriter.writeOffer(writer, offer), consumer))
+            .flatMap(HttpJsonContractRelay::unwrapOrRefuse)
+            .always(ignored -> timelines.record(offer.negotiationId(), "relay", start));
     }
 
     @Override
     public Future<?> sendToCounterParty(final SignedContractRejectionDto rejection, final Party counterParty) {
-        return system.consume()
+        final var start = System.nanoTime();
+        return send(counterParty.commonName(), consumer -> withBody(withTraceIdOf(rejection.negotiationId(),
+            new HttpConsumerRequest()
+                .method(POST)
+                .uri(Paths.combine(consumer.service().uri(), "rejections"))),
+            rejection.writeCanonicalJson(new StringBuilder(), true),
+            writer -> DefinitionCborWriter.writeRejection(writer, rejection), consumer))
+            .flatMap(HttpJsonContractRelay::unwrapOrRefuse)
+            .always(ignored -> timelines.record(rejection.negotiationId(), "relay", start));
+    }
+
+    // Client errors other than timeouts and rate limiting mean that the
+    // counter-party will refuse the same message no matter how many times it
+    // is sent, which is why such errors are reported as refusals.
+    private static Future<?> unwrapOrRefuse(final HttpConsumerResponse response) {
+        final var status = response.status();
+        if (!status.isClientError() || status == REQUEST_TIMEOUT || status == TOO_MANY_REQUESTS) {
+            return HttpJsonServices.unwrap(response);
+        }
+        return HttpJsonServices.unwrap(response)
+            .mapFault(fault -> new MessageRefusedException("Counter-party " +
+                "refused message with status " + status.code() + ": " +
+                fault.getMessage(), fault));
+    }
+
+    private HttpConsumerRequest withTraceIdOf(final long negotiationId, final HttpConsumerRequest request) {
+        final var traceId = timelines.traceIdOf(negotiationId);
+        return traceId != null
+            ? request.header(NegotiationTimelines.TRACE_ID_HEADER, traceId)
+            : request;
+    }
+
+    private static StringBuilder writeOffer(final SignedContractOfferDto offer) {
+        final var builder = new StringBuilder();
+        DefinitionMessageWriter.writeOffer(builder, offer);
+        return builder;
+    }
+
+    // Request bodies are only compressed or encoded as CBOR if the receiving
+    // service advertises that it accepts such bodies. Either way, signatures
+    // remain calculated over canonical JSON.
+    private HttpConsumerRequest withBody(
+        final HttpConsumerRequest request,
+        final StringBuilder json,
+        final Consumer<CborWriter> cbor,
+        final HttpConsumer consumer)
+    {
+        final var metadata = consumer.service().metadata();
+        final var isCompressionAccepted = HttpCompression.isAcceptedBy(metadata);
+        if (!HttpMediaTypes.isCborAcceptedBy(metadata)) {
+            return compression.body(request, json.toString().getBytes(StandardCharsets.UTF_8), isCompressionAccepted);
+        }
+        final var writer = new CborWriter();
+        cbor.accept(writer);
+        return compression.body(request.header("accept", HttpMediaTypes.ACCEPT_CBOR), writer.toByteArray(),
+            HttpMediaTypes.APPLICATION_CBOR, isCompressionAccepted);
+    }
+
+    private static String acceptOf(final HttpConsumer consumer) {
+        return HttpMediaTypes.isCborAcceptedBy(consumer.service().metadata())
+            ? HttpMediaTypes.ACCEPT_CBOR
+            : HttpMediaTypes.APPLICATION_JSON;
+    }
+
+    private Future<HttpConsumerResponse> send(
+        final String party,
+        final Function<HttpConsumer, HttpConsumerRequest> requestFactory)
+    {
+        return send(party, true, requestFactory);
+    }
+
+    // Requests whose resources are allowed not to exist, such as those
+    // falling back to other resources if not found, never cause the services
+    // they are sent to to be forgotten unless sending them fails outright.
+    private Future<HttpConsumerResponse> send(
+        final String party,
+        final boolean isForgottenIfNotFound,
+        final Function<HttpConsumer, HttpConsumerRequest> requestFactory)
+    {
+        final var latency = Metrics.REGISTRY.histogram("kalix_cp_relay_request_seconds",
+            "Time spent sending requests to counter-parties, including resolving their services",
+            "party", party.equals(ANY_PARTY) ? "*" : party);
+        final var start = System.nanoTime();
+        return endpointOf(party)
+            .flatMap(endpoint -> endpoint.consumer.send(requestFactory.apply(endpoint.consumer))
+                .ifSuccess(response -> {
+                    if (isForgottenIfNotFound && response.status() == NOT_FOUND) {
+                        partyToEndpoint.remove(party, endpoint);
+                    }
+                })
+                .ifFailure(Throwable.class, fault -> partyToEndpoint.remove(party, endpoint)))
+            .always(ignored -> latency.recordSince(start));
+    }
+
+    private Future<Endpoint> endpointOf(final String party) {
+        final var endpoint = partyToEndpoint.get(party);
+        if (endpoint == null) {
+            return resolve(party);
+        }
+        if (endpoint.expiresAt - System.nanoTime() < 0 && endpoint.isRefreshing.compareAndSet(false, true)) {
+            resolve(party)
+                .onFailure(fault -> {
+                    endpoint.isRefreshing.set(false);
+                    logger.debug("Failed to refresh contract negotiation " +
+                        "service of counter-party \"" + party + "\"", fault);
+                });
+        }
+        return Future.success(endpoint);
+    }
+
+    private Future<Endpoint> resolve(final String party) {
+        var query = system.consume()
             .name("contract-negotiation")
-            .encodings(JSON)
+            .encodings(JSON);
 
-            // One party per system and use of unreliable identifier. Certificate registry instead of SR?
-            .metadata(Map.of("party", counterParty.commonName()))
+        // One party per system and use of unreliable identifier. Certificate registry instead of SR?
+        if (!party.equals(ANY_PARTY)) {
+            query = query.metadata(Map.of("party", party));
+        }
 
-            .oneUsing(HttpConsumer.factory())
-            .flatMap(consumer -> consumer.send(new HttpConsumerRequest()
-                .method(POST)
-                .uri(Paths.combine(consumer.service().uri(), "rejections"))
-                .body(rejection)))
-            .flatMap(HttpJsonServices::unwrap);
+        return query.oneUsing(HttpConsumer.factory())
+            .map(consumer -> {
+                final var endpoint = new Endpoint(consumer, System.nanoTime() + endpointTimeToLiveInNanos);
+                partyToEndpoint.put(party, endpoint);
+                return endpoint;
+            });
+    }
+
+    private static class Endpoint {
+        private final HttpConsumer consumer;
+        private final long expiresAt;
+        private final AtomicBoolean isRefreshing = new AtomicBoolean(false);
+
+        private Endpoint(final HttpConsumer consumer, final long expiresAt) {
+            this.consumer = consumer;
+            this.expiresAt = expiresAt;
+        }
     }
 }
@@ -2,12 +2,20 @@ package se.arkalix.core.cp;
 
 import se.arkalix.ArService;
 import se.arkalix.ArSystem;
+import se.arkalix.core.cp.bank.DefinitionCborWriter;
+import se.arkalix.core.cp.bank.DefinitionMessageWriter;
 import se.arkalix.core.cp.contract.ContractNegotiation;
 import se.arkalix.core.cp.contract.ContractProxy;
 import se.arkalix.core.cp.contract.Party;
 import se.arkalix.core.cp.contract.PartyBase64;
+import se.arkalix.core.cp.contract.SignedContractAcceptanceDto;
+import se.arkalix.core.cp.contract.SignedContractOfferDto;
+import se.arkalix.core.cp.contract.SignedContractRejectionDto;
 import se.arkalix.core.cp.security.Hash;
 import se.arkalix.core.cp.security.HashAlgorithm;
+import se.arkalix.core.cp.util.CborWriter;
+import se.arkalix.core.cp.util.HttpCompression;
+import se.arkalix.core.cp.util.HttpMediaTypes;
 import se.arkalix.core.cp.util.HttpServices;
 import se.arkalix.core.cp.util.NegotiationQueryParameters;
 import se.arkalix.core.cp.util.UnsatisfiableRequestException;
@@ -19,8 +27,10 @@ import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
 import java.util.stream.Collectors;
 
+import static se.arkalix.core.cp.util.HttpServices.metered;
 import static se.arkalix.net.http.HttpStatus.NOT_FOUND;
 import static se.arkalix.net.http.HttpStatus.OK;
 import static se.arkalix.security.access.AccessPolicy.token;
@@ -35,70 +45,100 @@ public class HttpJsonContractSharingProvider {
     private HttpJsonContractSharingProvider() {}
 
     public static ArService createFor(final ArSystem system, final ContractProxy proxy) {
+        return createFor(system, proxy, new HttpCompression(HttpCompression.DEFAULT_THRESHOLD));
+    }
+
+    public static ArService createFor(
+        final ArSystem system,
+        final ContractProxy proxy,
+        final HttpCompression compression)
+    {
+        final var serviceName = "contract-sharing";
         return HttpServices.newWithUnsatisfiableRequestCatcher()
-            .name("contract-sharing")
+            .name(serviceName)
             .basePath("/contract-sharing")
             .encodings(EncodingDescriptor.JSON)
             .accessPolicy(system.isSecure() ? token() : unrestricted())
 
-            .get("/acceptances", (request, response) -> {
+            .get("/acceptances", metered(serviceName, "GET /acceptances", (request, response) -> {
                 final var query = NegotiationQueryParameters.readOrThrow(request);
 
                 final var body = new ArrayList<DtoWritable>(1);
                 proxy.getNegotiationByNamesAndId(query.name1(), query.name2(), query.id())
-                    .flatMap(ContractNegotiation::acceptance)
+                    .flatMap(ContractNegotiation::acceptanceHash)
+                    .flatMap(proxy.bank()::get)
+                    .map(SignedContractAcceptanceDto.class::cast)
                     .ifPresent(body::add);
 
                 response.status(OK).body(body);
 
                 return done();
-            })
+            }))
 
-            .get("/rejections", (request, response) -> {
+            .get("/rejections", metered(serviceName, "GET /rejections", (request, response) -> {
                 final var query = NegotiationQueryParameters.readOrThrow(request);
 
                 final var body = new ArrayList<DtoWritable>(1);
                 proxy.getNegotiationByNamesAndId(query.name1(), query.name2(), query.id())
-                    .flatMap(ContractNegotiation::rejection)
+                    .flatMap(ContractNegotiation::rejectionHash)
+                    .flatMap(proxy.bank()::get)
+                    .map(SignedContractRejectionDto.class::cast)
                     .ifPresent(body::add);
 
                 response.status(OK).body(body);
 
                 return done();
-            })
+            }))
 
-            .get("/offers", (request, response) -> {
+            .get("/offers", metered(serviceName, "GET /offers", (request, response) -> {
                 final var query = NegotiationQueryParameters.readOrThrow(request);
+                final var offers = proxy.getNegotiationByNamesAndId(query.name1(), query.name2(), query.id())
+                    .map(negotiation -> offersOf(proxy, negotiation))
+                    .orElse(List.of());
+
+                if (HttpMediaTypes.isCborPreferredBy(request)) {
+                    final var writer = new CborWriter().writeArrayHeader(offers.size());
+                    for (final var offer : offers) {
+                        DefinitionCborWriter.writeOffer(writer, offer);
+                    }
+                    compression.respond(request, response, writer.toByteArray(), HttpMediaTypes.APPLICATION_CBOR);
+                    return done();
+                }
 
-                final var body = new ArrayList<DtoWritable>();
-                proxy.getNegotiationByNamesAndId(query.name1(), query.name2(), query.id())
-                    .map(ContractNegotiation::offers)
-                    .ifPresent(body::addAll);
+                final var builder = new StringBuilder().append('[');
+                var i = 0;
+                for (final var offer : offers) {
+                    if (i++ != 0) {
+                        builder.append(',');
+                    }
+                    DefinitionMessageWriter.writeOffer(builder, offer);
+                }
+                builder.append(']');
 
-                response.status(OK).body(body);
+                compression.respond(request, response, builder.toString().getBytes(StandardCharsets.UTF_8));
 
                 return done();
-            })
+            }))
 
-            .get("/owned-parties", (request, response) -> {
+            .get("/owned-parties", metered(serviceName, "GET /owned-parties", (request, response) -> {
                 response.status(OK).body(proxy.parties()
                     .getAllOwnedParties()
                     .stream()
                     .map(PartyBase64::from)
                     .collect(Collectors.toUnmodifiableList()));
                 return done();
-            })
+            }))
 
-            .get("/parties", (request, response) -> {
+            .get("/parties", metered(serviceName, "GET /parties", (request, response) -> {
                 response.status(OK).body(proxy.parties()
                     .getAllParties()
                     .stream()
                     .map(PartyBase64::from)
                     .collect(Collectors.toUnmodifiableList()));
                 return done();
-            })
+            }))
 
-            .get("/parties/#hashOrName", (request, response) -> {
+            .get("/parties/#hashOrName", metered(serviceName, "GET /parties/#hashOrName", (request, response) -> {
                 final var rawHashOrName = request.pathParameter(0);
                 final var parts = rawHashOrName.split(":", 2);
 
@@ -142,6 +182,21 @@ public class HttpJsonContractSharingProvider {
 
                 response.status(OK).body(PartyBase64.from(party));
                 return done();
-            });
+            }));
+    }
+
+    // Negotiations only keep the hashes of their offers, which is why the
+    // offers themselves are looked up in the definition bank. Offers no
+    // longer in the bank are left out.
+    private static List<SignedContractOfferDto> offersOf(
+        final ContractProxy proxy,
+        final ContractNegotiation negotiation)
+    {
+        final var bank = proxy.bank();
+        return negotiation.offerHashes()
+            .stream()
+            .flatMap(hash -> bank.get(hash).stream())
+            .map(SignedContractOfferDto.class::cast)
+            .collect(Collectors.toList());
     }
 }
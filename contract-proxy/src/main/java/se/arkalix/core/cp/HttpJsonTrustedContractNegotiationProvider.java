@@ -2,25 +2,40 @@ package se.arkalix.core.cp;
 
 import se.arkalix.ArService;
 import se.arkalix.ArSystem;
-import se.arkalix.core.cp.bank.DefinitionEntry;
-import se.arkalix.core.cp.bank.DefinitionMessage;
+import se.arkalix.core.cp.bank.DefinitionCborWriter;
+import se.arkalix.core.cp.bank.DefinitionCursor;
+import se.arkalix.core.cp.bank.DefinitionMessageReader;
+import se.arkalix.core.cp.bank.DefinitionMessageWriter;
+import se.arkalix.core.cp.bank.DefinitionPages;
+import se.arkalix.core.cp.bank.DefinitionQuery;
+import se.arkalix.core.cp.bank.DefinitionQueryDto;
+import se.arkalix.core.cp.contract.ContractOutbox;
 import se.arkalix.core.cp.contract.ContractProxy;
 import se.arkalix.core.cp.security.Hash;
+import se.arkalix.core.cp.security.HashBase64;
+import se.arkalix.core.cp.util.EntityTags;
+import se.arkalix.core.cp.util.HttpAdmissionControl;
+import se.arkalix.core.cp.util.HttpCompression;
+import se.arkalix.core.cp.util.HttpMediaTypes;
 import se.arkalix.core.cp.util.HttpServices;
+import se.arkalix.core.cp.util.PriorityWorkQueue.Priority;
 import se.arkalix.core.cp.util.UnsatisfiableRequestException;
+import se.arkalix.core.plugin.ErrorResponseBuilder;
 import se.arkalix.core.plugin.cp.TrustedContractAcceptanceDto;
 import se.arkalix.core.plugin.cp.TrustedContractCounterOfferDto;
 import se.arkalix.core.plugin.cp.TrustedContractOfferDto;
 import se.arkalix.core.plugin.cp.TrustedContractRejectionDto;
 import se.arkalix.descriptor.EncodingDescriptor;
+import se.arkalix.net.http.service.HttpServiceRequest;
+import se.arkalix.net.http.service.HttpServiceResponse;
 
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Map;
-import java.util.Optional;
+import java.util.*;
 import java.util.stream.Collectors;
 
-import static se.arkalix.net.http.HttpStatus.NO_CONTENT;
+import static se.arkalix.core.cp.util.HttpServices.metered;
+import static se.arkalix.net.http.HttpStatus.ACCEPTED;
+import static se.arkalix.net.http.HttpStatus.NOT_FOUND;
+import static se.arkalix.net.http.HttpStatus.NOT_MODIFIED;
 import static se.arkalix.net.http.HttpStatus.OK;
 import static se.arkalix.security.access.AccessPolicy.token;
 import static se.arkalix.security.access.AccessPolicy.unrestricted;
@@ -30,39 +45,91 @@ public class HttpJsonTrustedContractNegotiationProvider {
     private HttpJsonTrustedContractNegotiationProvider() {}
 
     public static ArService createFor(final ArSystem system, final ContractProxy proxy) {
+        return createFor(system, proxy, new HttpCompression(HttpCompression.DEFAULT_THRESHOLD));
+    }
+
+    public static ArService createFor(
+        final ArSystem system,
+        final ContractProxy proxy,
+        final HttpCompression compression)
+    {
+        return createFor(system, proxy, compression, HttpAdmissionControl.DISABLED);
+    }
+
+    // Messages are signed in order of priority, as acceptances and
+    // rejections close negotiations, counter-offers continue them, and new
+    // offers only open more of them.
+    public static ArService createFor(
+        final ArSystem system,
+        final ContractProxy proxy,
+        final HttpCompression compression,
+        final HttpAdmissionControl admissionControl)
+    {
+        final var serviceName = "trusted-contract-negotiation";
         return HttpServices.newWithUnsatisfiableRequestCatcher()
-            .name("trusted-contract-negotiation")
+            .name(serviceName)
             .basePath("/trusted-contract-negotiation")
             .encodings(EncodingDescriptor.JSON)
             .accessPolicy(system.isSecure() ? token() : unrestricted())
 
-            .post("/acceptances", (request, response) ->
+            .post("/acceptances", metered(serviceName, "POST /acceptances", (request, response) ->
                 request
                     .bodyAs(TrustedContractAcceptanceDto.class)
-                    .flatMap(proxy::update)
-                    .ifSuccess(ignored -> response.status(NO_CONTENT)))
+                    .flatMap(acceptance -> admissionControl.execute(Priority.HIGH, () -> proxy.update(acceptance)))
+                    .ifSuccess(message -> respondWith(response, message))))
 
-            .post("/offers", (request, response) ->
+            .post("/offers", metered(serviceName, "POST /offers", (request, response) ->
                 request
                     .bodyAs(TrustedContractOfferDto.class)
-                    .flatMap(proxy::update)
-                    .ifSuccess(negotiationId -> response
-                        .status(NO_CONTENT)
-                        .header("location", "/trusted-contract-negotiation/offers/" + negotiationId)))
+                    .flatMap(offer -> admissionControl.execute(Priority.LOW, () -> proxy.update(offer)))
+                    .ifSuccess(message -> respondWith(response, message)
+                        .header("location", "/trusted-contract-negotiation/offers/" + message.negotiationId()))))
 
-            .post("/counter-offers", (request, response) ->
+            .post("/counter-offers", metered(serviceName, "POST /counter-offers", (request, response) ->
                 request
                     .bodyAs(TrustedContractCounterOfferDto.class)
-                    .flatMap(proxy::update)
-                    .ifSuccess(ignored -> response.status(NO_CONTENT)))
+                    .flatMap(offer -> admissionControl.execute(Priority.NORMAL, () -> proxy.update(offer)))
+                    .ifSuccess(message -> respondWith(response, message))))
 
-            .post("/rejections", (request, response) ->
+            .post("/rejections", metered(serviceName, "POST /rejections", (request, response) ->
                 request
                     .bodyAs(TrustedContractRejectionDto.class)
-                    .flatMap(proxy::update)
-                    .ifSuccess(ignored -> response.status(NO_CONTENT)))
+                    .flatMap(rejection -> admissionControl.execute(Priority.HIGH, () -> proxy.update(rejection)))
+                    .ifSuccess(message -> respondWith(response, message))))
+
+            .get("/outbox", metered(serviceName, "GET /outbox", (request, response) -> {
+                final long id;
+                try {
+                    id = request.queryParameter("id")
+                        .map(Long::parseLong)
+                        .orElseThrow(() -> new UnsatisfiableRequestException(
+                            "NO_ID", "Expected query parameter \"id\""));
+                }
+                catch (final NumberFormatException exception) {
+                    throw new UnsatisfiableRequestException(
+                        "BAD_ID", "Expected query parameter \"id\" to be a 64-bit integer", exception);
+                }
 
-            .get("/definitions", (request, response) -> {
+                final var message = proxy.outbox().get(id);
+                if (message.isPresent()) {
+                    response
+                        .status(OK)
+                        .body(message.get().toTrusted());
+                }
+                else {
+                    response
+                        .status(NOT_FOUND)
+                        .body(new ErrorResponseBuilder()
+                            .code(NOT_FOUND.code())
+                            .message("No outbox message with id " + id + " " +
+                                "is pending or was recently delivered")
+                            .type("NOT_FOUND")
+                            .build());
+                }
+                return done();
+            }))
+
+            .get("/definitions", metered(serviceName, "GET /definitions", (request, response) -> {
                 final var queryParameters = request.queryParameters();
 
                 final var ids = Optional.ofNullable(queryParameters.get("id"))
@@ -81,33 +148,7 @@ public class HttpJsonTrustedContractNegotiationProvider {
                         .collect(Collectors.toUnmodifiableList()))
                     .orElse(Collections.emptyList());
 
-                if (!ids.isEmpty()) {
-                    response.status(OK)
-                        .body(ids.stream()
-                            .flatMap(id -> proxy.bank().get(id).stream())
-                            .filter(entry -> {
-                                if (hashes.isEmpty()) {
-                                    return true;
-                                }
-                                for (final var hash : hashes) {
-                                    if (entry.hashes().contains(hash)) {
-                                        return true;
-                                    }
-                                }
-                                return false;
-                            })
-                            .map(DefinitionEntry::toMessage)
-                            .collect(Collectors.toUnmodifiableList()));
-                }
-                else if (!hashes.isEmpty()) {
-                    response.status(OK)
-                        .body(hashes.stream()
-                            .map(hash -> Map.entry(hash, proxy.bank().get(hash)))
-                            .filter(entry -> entry.getValue().isPresent())
-                            .map(entry -> DefinitionMessage.from(entry.getValue().get(), entry.getKey()))
-                            .collect(Collectors.toUnmodifiableList()));
-                }
-                else {
+                if (ids.isEmpty() && hashes.isEmpty()) {
                     throw new UnsatisfiableRequestException("NO_ID_OR_HASH", "" +
                         "At least one query parameter named \"id\" or " +
                         "\"hash\" must be specified in the request, each of " +
@@ -115,7 +156,121 @@ public class HttpJsonTrustedContractNegotiationProvider {
                         "separated list of negotiation identifiers or" +
                         "<hash-algorithm>:<base64-sum> pairs");
                 }
+
+                // Only responses to lookups by hash are immutable, as more
+                // definitions may be added to identified negotiations.
+                if (!ids.isEmpty()) {
+                    respondWithDefinitions(request, response, proxy, compression, ids, hashes,
+                        DefinitionCursor.FIRST, Integer.MAX_VALUE);
+                    response.header("cache-control", EntityTags.CACHE_CONTROL_NO_CACHE);
+                    return done();
+                }
+                final var tag = EntityTags.of(hashes, HttpMediaTypes.isCborPreferredBy(request)
+                    ? HttpMediaTypes.APPLICATION_CBOR
+                    : HttpMediaTypes.APPLICATION_JSON);
+                if (EntityTags.isMatchedBy(request, tag)) {
+                    response.status(NOT_MODIFIED)
+                        .header("etag", tag)
+                        .header("cache-control", EntityTags.CACHE_CONTROL_IMMUTABLE);
+                    return done();
+                }
+                final var count = respondWithDefinitions(request, response, proxy, compression, ids, hashes,
+                    DefinitionCursor.FIRST, Integer.MAX_VALUE);
+                if (count == hashes.size()) {
+                    response.header("etag", tag)
+                        .header("cache-control", EntityTags.CACHE_CONTROL_IMMUTABLE);
+                }
+                else {
+                    response.header("cache-control", EntityTags.CACHE_CONTROL_NO_CACHE);
+                }
                 return done();
-            });
+            }))
+
+            .post("/definitions", metered(serviceName, "POST /definitions", (request, response) ->
+                HttpCompression
+                    .bodyAs(request, DefinitionQueryDto.class, DefinitionMessageReader::readQuery)
+                    .ifSuccess(query -> {
+                        final var ids = query.ids().orElse(List.of());
+                        final var hashes = query.hashes()
+                            .map(hashes0 -> hashes0.stream()
+                                .map(HashBase64::toHash)
+                                .collect(Collectors.toUnmodifiableList()))
+                            .orElse(List.of());
+                        if (ids.isEmpty() && hashes.isEmpty()) {
+                            throw new UnsatisfiableRequestException("NO_ID_OR_HASH", "" +
+                                "The \"ids\" or \"hashes\" list of the query " +
+                                "must contain at least one negotiation " +
+                                "identifier or hash");
+                        }
+                        if (query.size() > DefinitionQuery.MAX_SIZE) {
+                            throw new UnsatisfiableRequestException("QUERY_TOO_LARGE", "" +
+                                "At most " + DefinitionQuery.MAX_SIZE + " " +
+                                "negotiation identifiers and hashes may be " +
+                                "looked up in a single query");
+                        }
+                        final DefinitionCursor cursor;
+                        try {
+                            cursor = query.cursor()
+                                .map(DefinitionCursor::valueOf)
+                                .orElse(DefinitionCursor.FIRST);
+                        }
+                        catch (final IllegalArgumentException exception) {
+                            throw new UnsatisfiableRequestException("BAD_CURSOR", exception.getMessage());
+                        }
+                        final var limit = Math.min(query.limit().orElse(DefinitionQuery.MAX_PAGE_SIZE),
+                            DefinitionQuery.MAX_PAGE_SIZE);
+                        respondWithDefinitions(request, response, proxy, compression, ids, hashes, cursor, limit);
+                    })));
+    }
+
+    // If identifiers are given, the definitions of the identified
+    // negotiations are written, optionally filtered by the given hashes.
+    // Otherwise, the definitions with the given hashes are written. At most
+    // limit definitions are written, starting at the given cursor.
+    private static int respondWithDefinitions(
+        final HttpServiceRequest request,
+        final HttpServiceResponse response,
+        final ContractProxy proxy,
+        final HttpCompression compression,
+        final List<Long> ids,
+        final List<Hash> hashes,
+        final DefinitionCursor cursor,
+        final int limit)
+    {
+        final var bank = proxy.bank();
+        final DefinitionCursor next;
+        final int count;
+        if (HttpMediaTypes.isCborPreferredBy(request)) {
+            final var writer = new DefinitionCborWriter();
+            next = DefinitionPages.visit(bank, ids, hashes, cursor, limit,
+                (entry, hashes0) -> writer.write(entry.definition(), hashes0));
+            compression.respond(request, response, writer.toByteArray(), HttpMediaTypes.APPLICATION_CBOR);
+            count = writer.count();
+        }
+        else {
+            final var cache = proxy.definitionJsonCache();
+            final var writer = new DefinitionMessageWriter();
+            next = DefinitionPages.visit(bank, ids, hashes, cursor, limit,
+                (entry, hashes0) -> writer.write(cache.get(entry), hashes0));
+            compression.respond(request, response, writer.toByteArray());
+            count = writer.count();
+        }
+        if (next != null) {
+            response.header(DefinitionQuery.NEXT_CURSOR_HEADER, next.toString());
+        }
+        return count;
+    }
+
+    // Signed messages are delivered to counter-parties asynchronously, which
+    // is why ACCEPTED is returned rather than NO_CONTENT. The location of the
+    // outbox message lets trusted clients follow its delivery.
+    private static HttpServiceResponse respondWith(
+        final HttpServiceResponse response,
+        final ContractOutbox.Message message)
+    {
+        return response
+            .status(ACCEPTED)
+            .header("content-location", "/trusted-contract-negotiation/outbox?id=" + message.id())
+            .body(message.toTrusted());
     }
 }
@@ -3,12 +3,14 @@ package se.arkalix.core.cp;
 import se.arkalix.ArService;
 import se.arkalix.ArSystem;
 import se.arkalix.core.cp.contract.ContractProxy;
+import se.arkalix.core.cp.util.HttpMediaTypes;
 import se.arkalix.core.cp.util.HttpServices;
 import se.arkalix.core.cp.util.UnsatisfiableRequestException;
 import se.arkalix.core.plugin.ErrorResponseBuilder;
 import se.arkalix.core.plugin.cp.TrustedContractNegotiationBuilder;
 import se.arkalix.descriptor.EncodingDescriptor;
 
+import static se.arkalix.core.cp.util.HttpServices.metered;
 import static se.arkalix.net.http.HttpStatus.NOT_FOUND;
 import static se.arkalix.net.http.HttpStatus.OK;
 import static se.arkalix.security.access.AccessPolicy.token;
@@ -19,13 +21,14 @@ public class HttpJsonTrustedContractObservationProvider {
     private HttpJsonTrustedContractObservationProvider() {}
 
     public static ArService createFor(final ArSystem system, final ContractProxy proxy) {
+        final var serviceName = "trusted-contract-observation";
         return HttpServices.newWithUnsatisfiableRequestCatcher()
-            .name("trusted-contract-observation")
+            .name(serviceName)
             .basePath("/trusted-contract-observation")
             .encodings(EncodingDescriptor.JSON)
             .accessPolicy(system.isSecure() ? token() : unrestricted())
 
-            .get("/negotiations", (request, response) -> {
+            .get("/negotiations", metered(serviceName, "GET /negotiations", (request, response) -> {
                 final var name1 = request.queryParameter("name1")
                     .orElseThrow(() -> new UnsatisfiableRequestException(
                         "NO_NAME1", "Expected query parameter \"name1\""));
@@ -75,6 +78,42 @@ public class HttpJsonTrustedContractObservationProvider {
                 }
 
                 return done();
-            });
+            }))
+
+            .get("/timelines", metered(serviceName, "GET /timelines", (request, response) -> {
+                final long id;
+                try {
+                    id = request.queryParameter("id")
+                        .map(Long::parseLong)
+                        .orElseThrow(() -> new UnsatisfiableRequestException(
+                            "NO_ID", "Expected query parameter \"id\""));
+                }
+                catch (final NumberFormatException exception) {
+                    throw new UnsatisfiableRequestException(
+                        "BAD_ID", "Expected query parameter \"id\" to be unsigned 63-bit integer", exception);
+                }
+
+                final var timeline = proxy.timelines().get(id);
+                if (timeline.isPresent()) {
+                    response
+                        .status(OK)
+                        .header("content-type", HttpMediaTypes.APPLICATION_JSON)
+                        .body(timeline.get().writeJson(new StringBuilder()).toString());
+                }
+                else {
+                    response
+                        .status(NOT_FOUND)
+                        .body(new ErrorResponseBuilder()
+                            .code(NOT_FOUND.code())
+                            .message("No timeline of negotiation " + id +
+                                " is available; either the negotiation " +
+                                "has not been updated recently or tracing " +
+                                "is disabled")
+                            .type("NOT_FOUND")
+                            .build());
+                }
+
+                return done();
+            }));
     }
 }
@@ -13,6 +13,7 @@ import se.arkalix.descriptor.EncodingDescriptor;
 
 import java.util.stream.Collectors;
 
+import static se.arkalix.core.cp.util.HttpServices.metered;
 import static se.arkalix.net.http.HttpStatus.NOT_FOUND;
 import static se.arkalix.net.http.HttpStatus.OK;
 import static se.arkalix.security.access.AccessPolicy.*;
@@ -26,13 +27,14 @@ public final class HttpJsonTrustedContractSharingProvider {
     private HttpJsonTrustedContractSharingProvider() {}
 
     public static ArService createFor(final ArSystem system, final ContractProxy proxy) {
+        final var serviceName = "trusted-contract-sharing";
         return HttpServices.newWithUnsatisfiableRequestCatcher()
-            .name("trusted-contract-sharing")
+            .name(serviceName)
             .basePath("/trusted-contract-sharing")
             .encodings(EncodingDescriptor.JSON)
             .accessPolicy(system.isSecure() ? token() : unrestricted())
 
-            .get("/contracts", (request, response) -> {
+            .get("/contracts", metered(serviceName, "GET /contracts", (request, response) -> {
                 final var query = NegotiationQueryParameters.readOrThrow(request);
                 final var name1 = query.name1();
                 final var name2 = query.name2();
@@ -68,9 +70,9 @@ public final class HttpJsonTrustedContractSharingProvider {
                                 " refers to unknown template")))
                         .collect(Collectors.toUnmodifiableList()));
                 return done();
-            })
+            }))
 
-            .get("/templates", (request, response) -> {
+            .get("/templates", metered(serviceName, "GET /templates", (request, response) -> {
                 response
                     .status(OK)
                     .body(proxy.templates().getAsList()
@@ -78,9 +80,9 @@ public final class HttpJsonTrustedContractSharingProvider {
                         .map(TrustedTemplate::from)
                         .collect(Collectors.toUnmodifiableList()));
                 return done();
-            })
+            }))
 
-            .get("/templates/#name", (request, response) -> {
+            .get("/templates/#name", metered(serviceName, "GET /templates/#name", (request, response) -> {
                 final var optionalTemplate = proxy.templates().getByName(request.pathParameter(0));
                 if (optionalTemplate.isPresent()) {
                     final var template = optionalTemplate.get();
@@ -92,6 +94,6 @@ public final class HttpJsonTrustedContractSharingProvider {
                     response.status(NOT_FOUND);
                 }
                 return done();
-            });
+            }));
     }
 }
@@ -0,0 +1,50 @@
+package se.arkalix.core.cp;
+
+import se.arkalix.ArService;
+import se.arkalix.ArSystem;
+import se.arkalix.core.cp.metrics.MetricsRegistry;
+import se.arkalix.core.cp.util.HttpCompression;
+import se.arkalix.core.cp.util.HttpServices;
+
+import java.nio.charset.StandardCharsets;
+
+import static se.arkalix.descriptor.EncodingDescriptor.JSON;
+import static se.arkalix.security.access.AccessPolicy.cloud;
+import static se.arkalix.security.access.AccessPolicy.unrestricted;
+import static se.arkalix.util.concurrent.Future.done;
+
+/**
+ * Exposes the metrics of the contract proxy in the Prometheus text
+ * exposition format.
+ * <p>
+ * If running in secure mode, any system of the local cloud may read the
+ * metrics, which means that scrapers must be given certificates of that
+ * cloud.
+ */
+public class HttpMetricsProvider {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private HttpMetricsProvider() {}
+
+    public static ArService createFor(
+        final ArSystem system,
+        final MetricsRegistry registry,
+        final HttpCompression compression)
+    {
+        return HttpServices.newWithUnsatisfiableRequestCatcher()
+            .name("metrics")
+            .basePath("/metrics")
+
+            // Services must declare a DTO encoding, even though metrics are
+            // written as plain text.
+            .encodings(JSON)
+            .accessPolicy(system.isSecure() ? cloud() : unrestricted())
+
+            .get("/prometheus", (request, response) -> {
+                final var text = registry.writePrometheus(new StringBuilder());
+                compression.respond(request, response, text.toString().getBytes(StandardCharsets.UTF_8),
+                    CONTENT_TYPE);
+                return done();
+            });
+    }
+}
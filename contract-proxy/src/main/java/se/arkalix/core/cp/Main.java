@@ -5,13 +5,28 @@ import org.slf4j.LoggerFactory;
 import se.arkalix.ArServiceDescriptionCache;
 import se.arkalix.ArServiceHandle;
 import se.arkalix.ArSystem;
+import se.arkalix.core.cp.bank.DefinitionArchive;
+import se.arkalix.core.cp.bank.DefinitionBank;
+import se.arkalix.core.cp.bank.DefinitionLog;
+import se.arkalix.core.cp.bank.DefinitionRetention;
+import se.arkalix.core.cp.bank.DefinitionRetentionPolicy;
+import se.arkalix.core.cp.bank.DefinitionStore;
+import se.arkalix.core.cp.bank.LsmDefinitionStore;
+import se.arkalix.core.cp.bank.OffHeapDefinitionStore;
+import se.arkalix.core.cp.bank.OffHeapHashIndex;
+import se.arkalix.core.cp.contract.ContractOutbox;
 import se.arkalix.core.cp.contract.ContractProxy;
 import se.arkalix.core.cp.contract.OwnedParty;
 import se.arkalix.core.cp.contract.Party;
 import se.arkalix.core.cp.contract.Template;
+import se.arkalix.core.cp.metrics.Metrics;
 import se.arkalix.core.cp.security.HashAlgorithm;
+import se.arkalix.core.cp.trace.NegotiationTimelines;
+import se.arkalix.core.cp.util.HttpAdmissionControl;
+import se.arkalix.core.cp.util.HttpCompression;
 import se.arkalix.core.cp.util.Properties;
 import se.arkalix.core.plugin.HttpJsonCloudPlugin;
+import se.arkalix.core.plugin.cp.ContractNegotiationStatus;
 import se.arkalix.core.plugin.or.OrchestrationOption;
 import se.arkalix.core.plugin.or.OrchestrationPattern;
 import se.arkalix.core.plugin.or.OrchestrationStrategy;
@@ -27,10 +42,15 @@ import java.nio.file.Path;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -64,13 +84,16 @@ public class Main {
             final var system = createSystem(properties);
 
             logger.info("Loading contract proxy data model");
-            final var proxy = createContractProxy(system, properties);
+            final var compression = createCompression(properties);
+            final var proxy = createContractProxy(system, properties, compression);
+            final var admissionControl = createAdmissionControl(system, properties);
 
-            system.provide(HttpJsonContractNegotiationProvider.createFor(system, proxy))
+            system.provide(HttpJsonContractNegotiationProvider.createFor(system, proxy, compression, admissionControl))
                 .ifSuccess(logIsProvidingService())
                 .onFailure(Main::panic);
 
-            system.provide(HttpJsonTrustedContractNegotiationProvider.createFor(system, proxy))
+            system.provide(HttpJsonTrustedContractNegotiationProvider.createFor(system, proxy, compression,
+                admissionControl))
                 .ifSuccess(logIsProvidingService())
                 .onFailure(Main::panic);
 
@@ -78,6 +101,13 @@ public class Main {
                 .ifSuccess(logIsProvidingService())
                 .onFailure(Main::panic);
 
+            registerMetricsOf(proxy, admissionControl);
+            if (properties.getBoolean("kalix.core.cp.metrics.enabled").orElse(true)) {
+                system.provide(HttpMetricsProvider.createFor(system, Metrics.REGISTRY, compression))
+                    .ifSuccess(logIsProvidingService())
+                    .onFailure(Main::panic);
+            }
+
             logger.info("About to provide services via: {}", system.socketAddress());
         }
         catch (final Throwable throwable) {
@@ -94,7 +124,86 @@ public class Main {
         System.exit(1);
     }
 
-    private static ContractProxy createContractProxy(final ArSystem system, final Properties properties)
+    private static void registerMetricsOf(final ContractProxy proxy, final HttpAdmissionControl admissionControl) {
+        final var registry = Metrics.REGISTRY;
+
+        for (final var status : ContractNegotiationStatus.values()) {
+            registry.gauge("kalix_cp_negotiations", "Known negotiations",
+                () -> proxy.countNegotiationsBy(status), "status", status.name().toLowerCase());
+        }
+
+        final var bank = proxy.bank();
+        registry.gauge("kalix_cp_bank_definitions", "Definitions in the definition bank, excluding those archived",
+            bank::size);
+        registry.gauge("kalix_cp_bank_bytes", "Size of the definitions in the definition bank, as canonical JSON",
+            bank::sizeInBytes);
+
+        final var cache = proxy.definitionJsonCache();
+        registry.gauge("kalix_cp_definition_json_cache_bytes", "Bytes of JSON in the definition cache", cache::size);
+        registry.counter("kalix_cp_definition_json_cache_hits_total", "Definitions served from the definition cache",
+            cache::hitCount);
+        registry.counter("kalix_cp_definition_json_cache_misses_total", "Definitions not found in the definition cache",
+            cache::missCount);
+
+        registry.gauge("kalix_cp_outbox_pending", "Messages waiting to be delivered to counter-parties",
+            proxy.outbox()::pendingCount);
+
+        final var workQueue = admissionControl.workQueue();
+        if (workQueue != null) {
+            registry.gauge("kalix_cp_work_queue_tasks", "Signing and verification tasks waiting to be executed",
+                workQueue::size);
+            registry.gauge("kalix_cp_work_queue_latency_nanoseconds", "Estimated work queue latency",
+                () -> workQueue.latency().toNanos());
+            registry.counter("kalix_cp_work_queue_shed_total", "Tasks refused due to the proxy being overloaded",
+                workQueue::shedCount);
+        }
+    }
+
+    private static void registerMetricsOf(final CoalescingEventPublisher eventPublisher) {
+        final var registry = Metrics.REGISTRY;
+        registry.gauge("kalix_cp_event_publisher_queued", "Negotiation updates waiting to be sent to the event handler",
+            eventPublisher::queueDepth);
+        registry.counter("kalix_cp_event_publisher_updates_total", "Negotiation updates by outcome",
+            eventPublisher::publishedCount, "outcome", "published");
+        registry.counter("kalix_cp_event_publisher_updates_total", "Negotiation updates by outcome",
+            eventPublisher::coalescedCount, "outcome", "coalesced");
+        registry.counter("kalix_cp_event_publisher_updates_total", "Negotiation updates by outcome",
+            eventPublisher::droppedCount, "outcome", "dropped");
+        registry.counter("kalix_cp_event_publisher_updates_total", "Negotiation updates by outcome",
+            eventPublisher::failedCount, "outcome", "failed");
+    }
+
+    private static HttpCompression createCompression(final Properties properties) {
+        final var isEnabled = properties.getBoolean("kalix.core.cp.compression.enabled")
+            .orElse(true);
+        return isEnabled
+            ? new HttpCompression(properties.getInteger("kalix.core.cp.compression.threshold").orElse(0))
+            : HttpCompression.DISABLED;
+    }
+
+    private static HttpAdmissionControl createAdmissionControl(final ArSystem system, final Properties properties) {
+        final var isEnabled = properties.getBoolean("kalix.core.cp.admission.enabled")
+            .orElse(true);
+        if (!isEnabled) {
+            return HttpAdmissionControl.DISABLED;
+        }
+        return new HttpAdmissionControl.Builder()
+            .rate(properties.getString("kalix.core.cp.admission.rate")
+                .map(Double::parseDouble)
+                .orElse(0.0))
+            .burst(properties.getInteger("kalix.core.cp.admission.burst").orElse(0))
+            .maxSenders(properties.getInteger("kalix.core.cp.admission.max-senders").orElse(0))
+            .queueCapacity(properties.getInteger("kalix.core.cp.admission.queue-capacity").orElse(0))
+            .latencyBudget(properties.getDuration("kalix.core.cp.admission.latency-budget").orElse(null))
+            .workerCount(properties.getInteger("kalix.core.cp.admission.workers").orElse(0))
+            .isSecure(system.isSecure())
+            .build();
+    }
+
+    private static ContractProxy createContractProxy(
+        final ArSystem system,
+        final Properties properties,
+        final HttpCompression compression)
         throws GeneralSecurityException, IOException
     {
         final var acceptedHashAlgorithms = properties.getString("kalix.core.cp.accepted-hash-algorithms")
@@ -104,6 +213,14 @@ public class Main {
                 .filter(HashAlgorithm::isCollisionSafe))
             .collect(Collectors.toUnmodifiableSet());
 
+        final var primaryHashAlgorithm = properties.getString("kalix.core.cp.primary-hash-algorithm")
+            .map(algorithm -> HashAlgorithm.valueOf(algorithm.trim()))
+            .orElseGet(() -> HashAlgorithm.preferredOf(acceptedHashAlgorithms));
+        if (!acceptedHashAlgorithms.contains(primaryHashAlgorithm)) {
+            throw new IllegalArgumentException("kalix.core.cp.primary-hash-algorithm " +
+                "must be one of kalix.core.cp.accepted-hash-algorithms");
+        }
+
         final Set<Party> counterParties;
         {
             final var keyStorePath = properties.getPathOrThrow("kalix.core.cp.counter-parties.keystore-path");
@@ -116,7 +233,7 @@ public class Main {
 
             counterParties = new HashSet<>();
             for (final var alias : Collections.list(keyStore.aliases())) {
-                counterParties.add(new Party(keyStore.getCertificate(alias), acceptedHashAlgorithms));
+                counterParties.add(new Party(keyStore.getCertificate(alias), primaryHashAlgorithm, acceptedHashAlgorithms));
             }
         }
 
@@ -175,6 +292,7 @@ public class Main {
             ownedParties = Set.of(new OwnedParty(
                 privateKeyEntry.getCertificate(),
                 privateKeyEntry.getPrivateKey(),
+                primaryHashAlgorithm,
                 acceptedHashAlgorithms));
         }
 
@@ -187,17 +305,265 @@ public class Main {
                 final var path = Path.of(part.trim());
                 final var name = path.getFileName().toString();
                 final var text = Files.readString(path, StandardCharsets.UTF_8);
-                templates.add(new Template(name, text, acceptedHashAlgorithms));
+                templates.add(new Template(name, text, primaryHashAlgorithm, acceptedHashAlgorithms));
             }
         }
 
-        return new ContractProxy.Builder()
+        DefinitionLog definitionLog = null;
+        DefinitionStore definitionStore = null;
+        OffHeapHashIndex definitionSecondaryIndex = null;
+        final var definitionSnapshotPath = properties.getPath("kalix.core.cp.bank.snapshot-path");
+        {
+            final var logPath = properties.getPath("kalix.core.cp.bank.log-path");
+            if (logPath.isPresent()) {
+                final var segmentSize = properties.getInteger("kalix.core.cp.bank.log-segment-size")
+                    .orElse(DefinitionLog.DEFAULT_SEGMENT_SIZE);
+                definitionLog = DefinitionLog.open(logPath.get(), segmentSize);
+            }
+
+            final var engine = properties.getString("kalix.core.cp.bank.engine").orElse("memory");
+            switch (engine.trim().toLowerCase()) {
+            case "memory":
+                break;
+
+            case "off-heap":
+                if (logPath.isEmpty()) {
+                    throw new IllegalArgumentException("The " +
+                        "\"kalix.core.cp.bank.engine\" property may only be " +
+                        "\"off-heap\" if \"kalix.core.cp.bank.log-path\" " +
+                        "is specified");
+                }
+                final var expectedSize = properties.getInteger("kalix.core.cp.bank.index-expected-size")
+                    .orElse(0);
+                definitionStore = new OffHeapDefinitionStore(definitionLog,
+                    OffHeapHashIndex.create(logPath.get(), expectedSize), Set.of(primaryHashAlgorithm));
+                if (acceptedHashAlgorithms.size() > 1) {
+                    definitionSecondaryIndex = OffHeapHashIndex.create(logPath.get().resolve("secondary-index"), 0);
+                }
+                break;
+
+            case "lsm":
+                if (logPath.isPresent() || definitionSnapshotPath.isPresent()) {
+                    throw new IllegalArgumentException("The " +
+                        "\"kalix.core.cp.bank.engine\" property may not be " +
+                        "\"lsm\" if \"kalix.core.cp.bank.log-path\" or " +
+                        "\"kalix.core.cp.bank.snapshot-path\" is specified");
+                }
+                final var lsmPath = properties.getPathOrThrow("kalix.core.cp.bank.lsm-path");
+                final var memtableSize = properties.getInteger("kalix.core.cp.bank.lsm-memtable-size")
+                    .orElse(LsmDefinitionStore.DEFAULT_MEMTABLE_SIZE);
+                definitionStore = LsmDefinitionStore.open(lsmPath, Set.of(primaryHashAlgorithm), memtableSize);
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unsupported " +
+                    "\"kalix.core.cp.bank.engine\" property value \"" +
+                    engine + "\"; expected \"memory\", \"off-heap\" or \"lsm\"");
+            }
+        }
+
+        DefinitionRetentionPolicy definitionRetentionPolicy = null;
+        DefinitionArchive definitionArchive = null;
+        {
+            final var builder = new DefinitionRetentionPolicy.Builder();
+            for (final var status : ContractNegotiationStatus.values()) {
+                final var key = "kalix.core.cp.bank.retention." + status.name().toLowerCase();
+                final var retention = properties.getString(key);
+                if (retention.isEmpty()) {
+                    continue;
+                }
+                final DefinitionRetention retention0;
+                try {
+                    retention0 = DefinitionRetention.valueOf(retention.get().trim().toUpperCase());
+                }
+                catch (final IllegalArgumentException exception) {
+                    throw new IllegalArgumentException("The \"" + key +
+                        "\" property must be \"hot\", \"cold\" or \"drop\"");
+                }
+                builder.retention(status, retention0);
+            }
+            builder.gracePeriod(properties.getDuration("kalix.core.cp.bank.retention.grace-period")
+                .orElse(Duration.ofDays(1)));
+            final var policy = builder.build();
+            if (!policy.isAllHot()) {
+                definitionRetentionPolicy = policy;
+            }
+            if (policy.isAnyCold()) {
+                final var archivePath = properties.getPathOrThrow("kalix.core.cp.bank.archive-path");
+                definitionArchive = DefinitionArchive.open(archivePath);
+            }
+        }
+
+        final var eventPublisher = new CoalescingEventPublisher.Builder()
+            .system(system)
+            .queueCapacity(properties.getInteger("kalix.core.cp.event-publisher.queue-capacity")
+                .orElse(CoalescingEventPublisher.DEFAULT_QUEUE_CAPACITY))
+            .batchSize(properties.getInteger("kalix.core.cp.event-publisher.batch-size")
+                .orElse(CoalescingEventPublisher.DEFAULT_BATCH_SIZE))
+            .flushInterval(properties.getDuration("kalix.core.cp.event-publisher.flush-interval")
+                .orElse(CoalescingEventPublisher.DEFAULT_FLUSH_INTERVAL))
+            .build();
+        registerMetricsOf(eventPublisher);
+
+        final var timelines = new NegotiationTimelines(
+            properties.getInteger("kalix.core.cp.tracing.capacity")
+                .orElse(NegotiationTimelines.DEFAULT_CAPACITY),
+            properties.getInteger("kalix.core.cp.tracing.spans-per-negotiation")
+                .orElse(NegotiationTimelines.DEFAULT_SPANS_PER_TIMELINE));
+
+        final var relay = new HttpJsonContractRelay(system, properties
+            .getDuration("kalix.core.cp.relay.endpoint-time-to-live")
+            .orElse(HttpJsonContractRelay.DEFAULT_ENDPOINT_TIME_TO_LIVE), eventPublisher, compression, timelines);
+
+        final var outbox = new ContractOutbox.Builder()
+            .directory(properties.getPath("kalix.core.cp.outbox.path").orElse(null))
+            .relay(relay)
+            .retryBaseDelay(properties.getDuration("kalix.core.cp.outbox.retry-base-delay")
+                .orElse(ContractOutbox.DEFAULT_RETRY_BASE_DELAY))
+            .retryMaxDelay(properties.getDuration("kalix.core.cp.outbox.retry-max-delay")
+                .orElse(ContractOutbox.DEFAULT_RETRY_MAX_DELAY))
+            .retryLimit(properties.getInteger("kalix.core.cp.outbox.retry-limit")
+                .orElse(ContractOutbox.DEFAULT_RETRY_LIMIT))
+            .build();
+
+        final var proxy = new ContractProxy.Builder()
             .acceptedHashAlgorithms(acceptedHashAlgorithms)
+            .primaryHashAlgorithm(primaryHashAlgorithm)
+            .referenceCountLimit(properties.getInteger("kalix.core.cp.references.count-limit").orElse(0))
+            .referenceDepthLimit(properties.getInteger("kalix.core.cp.references.depth-limit").orElse(0))
             .counterParties(counterParties)
+            .definitionArchive(definitionArchive)
+            .definitionJsonCacheCapacity(properties.getInteger("kalix.core.cp.definitions.json-cache-capacity").orElse(0))
+            .definitionLog(definitionLog)
+            .definitionRetentionPolicy(definitionRetentionPolicy)
+            .definitionSecondaryIndex(definitionSecondaryIndex)
+            .definitionSnapshotPath(definitionSnapshotPath.orElse(null))
+            .definitionStore(definitionStore)
+            .maxOpenNegotiationsPerCounterParty(properties
+                .getInteger("kalix.core.cp.admission.max-open-negotiations").orElse(0))
+            .outbox(outbox)
             .ownedParties(ownedParties)
             .templates(templates)
-            .relay(new HttpJsonContractRelay(system))
+            .timelines(timelines)
+            .relay(relay)
             .build();
+
+        relay.warmUp(counterParties);
+
+        ScheduledExecutorService compactor = null;
+        if (definitionRetentionPolicy != null) {
+            final var interval = properties.getDuration("kalix.core.cp.bank.retention.interval")
+                .orElse(Duration.ofHours(1));
+            compactor = scheduleCompactionOf(proxy, interval);
+        }
+
+        ScheduledExecutorService snapshotter = null;
+        if (definitionSnapshotPath.isPresent()) {
+            final var interval = properties.getDuration("kalix.core.cp.bank.snapshot-interval")
+                .orElse(Duration.ofMinutes(15));
+            snapshotter = scheduleSnapshotsOf(proxy.bank(), interval);
+        }
+
+        // Bank resources are released by a single shutdown hook, as the JVM runs
+        // hooks concurrently. The compactor is stopped before the final snapshot
+        // is written, and the log is closed last, as the store, the secondary
+        // index and the snapshot may all refer to it.
+        final var compactor0 = compactor;
+        final var snapshotter0 = snapshotter;
+        final var definitionStore0 = definitionStore;
+        final var definitionSecondaryIndex0 = definitionSecondaryIndex;
+        final var definitionArchive0 = definitionArchive;
+        final var definitionLog0 = definitionLog;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (compactor0 != null) {
+                awaitTerminationOf(compactor0);
+            }
+            if (snapshotter0 != null) {
+                awaitTerminationOf(snapshotter0);
+                writeSnapshotOf(proxy.bank());
+            }
+            if (definitionStore0 != null) {
+                closeOrLog("definition store", definitionStore0::close);
+            }
+            if (definitionSecondaryIndex0 != null) {
+                closeOrLog("definition secondary index", definitionSecondaryIndex0::close);
+            }
+            if (definitionArchive0 != null) {
+                closeOrLog("definition archive", definitionArchive0::close);
+            }
+            if (definitionLog0 != null) {
+                closeOrLog("definition log", definitionLog0::close);
+            }
+        }, "contract-proxy-shutdown"));
+
+        return proxy;
+    }
+
+    private static void awaitTerminationOf(final ScheduledExecutorService executor) {
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.warn("Gave up waiting for {} to terminate", executor);
+            }
+        }
+        catch (final InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeOrLog(final String name, final Runnable close) {
+        try {
+            close.run();
+        }
+        catch (final Throwable throwable) {
+            logger.error("Failed to close " + name, throwable);
+        }
+    }
+
+    private static ScheduledExecutorService scheduleSnapshotsOf(final DefinitionBank bank, final Duration interval) {
+        final var executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final var thread = new Thread(runnable, "definition-bank-snapshotter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> writeSnapshotOf(bank),
+            interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        return executor;
+    }
+
+    private static void writeSnapshotOf(final DefinitionBank bank) {
+        try {
+            final var start = System.nanoTime();
+            final var count = bank.writeSnapshot();
+            logger.info("Wrote snapshot of {} definition(s) in {} ms", count,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        catch (final Throwable throwable) {
+            logger.error("Failed to write definition bank snapshot", throwable);
+        }
+    }
+
+    private static ScheduledExecutorService scheduleCompactionOf(final ContractProxy proxy, final Duration interval) {
+        final var executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final var thread = new Thread(runnable, "definition-bank-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                final var start = System.nanoTime();
+                final var count = proxy.compactDefinitions(Instant.now());
+                if (count > 0) {
+                    logger.info("Archived or dropped the definitions of {} " +
+                            "concluded negotiation(s) in {} ms", count,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+            }
+            catch (final Throwable throwable) {
+                logger.error("Failed to compact definition bank", throwable);
+            }
+        }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        return executor;
     }
 
     private static ArSystem createSystem(final Properties properties)
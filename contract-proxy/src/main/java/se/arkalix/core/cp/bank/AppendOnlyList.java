@@ -0,0 +1,94 @@
+package se.arkalix.core.cp.bank;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * List that can only be appended to, stored as a sequence of chunks that
+ * double in size.
+ * <p>
+ * As elements are never moved or replaced, appending never copies existing
+ * elements and {@link #snapshot() snapshots} can be taken without copying
+ * anything. Appending is not thread-safe, but reading and taking snapshots
+ * concurrently with a single appending thread is.
+ *
+ * @param <E> Type of elements.
+ */
+final class AppendOnlyList<E> {
+    static final int FIRST_CHUNK_SHIFT = 3;
+
+    private final Object[][] chunks = new Object[32 - FIRST_CHUNK_SHIFT][];
+    private volatile int size = 0;
+
+    void append(final E element) {
+        final var index = size;
+        final var chunk = chunkIndexOf(index);
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new Object[1 << (chunk + FIRST_CHUNK_SHIFT)];
+        }
+        chunks[chunk][offsetOf(index, chunk)] = element;
+        size = index + 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    E get(final int index) {
+        final var chunk = chunkIndexOf(index);
+        return (E) chunks[chunk][offsetOf(index, chunk)];
+    }
+
+    /**
+     * @return Immutable view of the elements in this list at the time of the
+     * call.
+     */
+    List<E> snapshot() {
+        return new Snapshot(size);
+    }
+
+    /**
+     * @param fromIndex Index of first element to include.
+     * @return New list containing all elements of this list from {@code
+     * fromIndex}.
+     */
+    AppendOnlyList<E> copyFrom(final int fromIndex) {
+        final var copy = new AppendOnlyList<E>();
+        final var size = this.size;
+        for (var i = fromIndex; i < size; ++i) {
+            copy.append(get(i));
+        }
+        return copy;
+    }
+
+    static int chunkIndexOf(final int index) {
+        return 31 - Integer.numberOfLeadingZeros(index + (1 << FIRST_CHUNK_SHIFT)) - FIRST_CHUNK_SHIFT;
+    }
+
+    static int offsetOf(final int index, final int chunkIndex) {
+        return index + (1 << FIRST_CHUNK_SHIFT) - (1 << (chunkIndex + FIRST_CHUNK_SHIFT));
+    }
+
+    private final class Snapshot extends AbstractList<E> implements RandomAccess {
+        private final int size;
+
+        private Snapshot(final int size) {
+            this.size = size;
+        }
+
+        @Override
+        public E get(final int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+            }
+            return AppendOnlyList.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
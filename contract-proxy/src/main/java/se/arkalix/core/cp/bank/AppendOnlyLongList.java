@@ -0,0 +1,44 @@
+package se.arkalix.core.cp.bank;
+
+import static se.arkalix.core.cp.bank.AppendOnlyList.FIRST_CHUNK_SHIFT;
+import static se.arkalix.core.cp.bank.AppendOnlyList.chunkIndexOf;
+import static se.arkalix.core.cp.bank.AppendOnlyList.offsetOf;
+
+/**
+ * An {@link AppendOnlyList} of primitive {@code long} values.
+ * <p>
+ * Values at indexes below a previously observed {@link #size()} never change,
+ * which means that any such size can be used as a snapshot of the list.
+ */
+final class AppendOnlyLongList {
+    private final long[][] chunks = new long[32 - FIRST_CHUNK_SHIFT][];
+    private volatile int size = 0;
+
+    void append(final long value) {
+        final var index = size;
+        final var chunk = chunkIndexOf(index);
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new long[1 << (chunk + FIRST_CHUNK_SHIFT)];
+        }
+        chunks[chunk][offsetOf(index, chunk)] = value;
+        size = index + 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long get(final int index) {
+        final var chunk = chunkIndexOf(index);
+        return chunks[chunk][offsetOf(index, chunk)];
+    }
+
+    AppendOnlyLongList copyFrom(final int fromIndex) {
+        final var copy = new AppendOnlyLongList();
+        final var size = this.size;
+        for (var i = fromIndex; i < size; ++i) {
+            copy.append(get(i));
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,478 @@
+package se.arkalix.core.cp.bank;
+
+import se.arkalix.core.cp.security.Hash;
+import se.arkalix.core.cp.security.HashAlgorithm;
+import se.arkalix.util.annotation.ThreadSafe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Compressed cold storage for the definitions of concluded negotiations.
+ * <p>
+ * The definitions of each archived negotiation are written as one block to
+ * an append-only segment file. Each block has the form {@code [int
+ * length][int crc32][long negotiationId][int hashCount][hashes...][int
+ * inflatedLength][deflated definition entries...]}. As the hashes are stored
+ * uncompressed, the in-memory index of the archive can be rebuilt without
+ * decompressing any definitions. Recently read blocks are cached in
+ * decompressed form, making repeated lookups of the definitions of the same
+ * negotiation cheap.
+ */
+public class DefinitionArchive implements Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int BLOCK_HEADER_SIZE = 8;
+    private static final int CACHE_SIZE = 64;
+    private static final Pattern SEGMENT_NAME_PATTERN = Pattern.compile("^archive-([0-9a-f]{8})\\.cpa$");
+
+    private final Path directory;
+    private final int segmentSize;
+    private final List<FileChannel> segments;
+    private final Map<Hash, Long> hashToBlock = new ConcurrentHashMap<>();
+    private final LongKeyedMap<long[]> negotiationIdToBlocks = new LongKeyedMap<>();
+    private final Map<Long, List<DefinitionEntry>> blockCache = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Long, List<DefinitionEntry>> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private FileChannel activeSegment;
+    private long activeSegmentEnd;
+    private boolean isClosed = false;
+
+    private DefinitionArchive(final Path directory, final int segmentSize, final List<FileChannel> segments) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.segments = segments;
+    }
+
+    public static DefinitionArchive open(final Path directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public static DefinitionArchive open(final Path directory, final int segmentSize) throws IOException {
+        Objects.requireNonNull(directory, "Expected directory");
+        if (segmentSize <= BLOCK_HEADER_SIZE) {
+            throw new IllegalArgumentException("Expected segmentSize > " + BLOCK_HEADER_SIZE);
+        }
+
+        Files.createDirectories(directory);
+
+        final List<Path> paths;
+        try (final var stream = Files.list(directory)) {
+            paths = stream
+                .filter(path -> SEGMENT_NAME_PATTERN.matcher(path.getFileName().toString()).matches())
+                .sorted()
+                .collect(Collectors.toList());
+        }
+
+        final var archive = new DefinitionArchive(directory, segmentSize, new ArrayList<>(paths.size() + 1));
+        try {
+            for (final var path : paths) {
+                final var matcher = SEGMENT_NAME_PATTERN.matcher(path.getFileName().toString());
+                if (!matcher.matches()) {
+                    continue;
+                }
+                final var index = Integer.parseInt(matcher.group(1), 16);
+                if (index != archive.segments.size()) {
+                    throw new IOException("Definition archive segment " + path +
+                        " out of sequence; expected segment with index " +
+                        archive.segments.size());
+                }
+                final var channel = FileChannel.open(path, READ, WRITE);
+                archive.segments.add(channel);
+                archive.activeSegment = channel;
+                archive.activeSegmentEnd = archive.indexSegment(index, channel);
+
+                // Anything after the last intact block of the last segment
+                // is the remains of an interrupted append.
+                if (index == paths.size() - 1 && archive.activeSegmentEnd < channel.size()) {
+                    channel.truncate(archive.activeSegmentEnd);
+                    channel.force(true);
+                }
+            }
+            if (archive.segments.isEmpty()) {
+                archive.roll();
+            }
+        }
+        catch (final IOException | RuntimeException exception) {
+            archive.close();
+            throw exception;
+        }
+        return archive;
+    }
+
+    private long indexSegment(final int index, final FileChannel channel) throws IOException {
+        final var size = channel.size();
+        final var header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        var position = 0L;
+        while (position + BLOCK_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            final var length = header.getInt(0);
+            if (length <= 0 || length > size - position - BLOCK_HEADER_SIZE) {
+                break;
+            }
+            final var body = ByteBuffer.allocate(length);
+            readFully(channel, body, position + BLOCK_HEADER_SIZE);
+            final var crc = new CRC32();
+            crc.update(body.array());
+            if ((int) crc.getValue() != header.getInt(4)) {
+                break;
+            }
+            body.flip();
+            final var negotiationId = body.getLong();
+            final var hashCount = body.getInt();
+            final var hashes = new ArrayList<Hash>(hashCount);
+            for (var i = 0; i < hashCount; ++i) {
+                hashes.add(readHash(body));
+            }
+            index(((long) index << 32) | position, negotiationId, hashes);
+            position += BLOCK_HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private void index(final long address, final long negotiationId, final List<Hash> hashes) {
+        for (final var hash : hashes) {
+            hashToBlock.put(hash, address);
+        }
+        negotiationIdToBlocks.compute(negotiationId, (id, blocks) -> {
+            if (blocks == null) {
+                return new long[]{address};
+            }
+            final var blocks0 = Arrays.copyOf(blocks, blocks.length + 1);
+            blocks0[blocks.length] = address;
+            return blocks0;
+        });
+    }
+
+    private void roll() throws IOException {
+        final var path = directory.resolve(String.format("archive-%08x.cpa", segments.size()));
+        activeSegment = FileChannel.open(path, CREATE_NEW, READ, WRITE);
+        activeSegmentEnd = 0;
+        segments.add(activeSegment);
+    }
+
+    /**
+     * Writes given entries, which must all belong to the negotiation
+     * identified by {@code negotiationId}, to this archive as a single
+     * compressed block, and then waits until the block has been forced to
+     * disk.
+     *
+     * @param negotiationId Identifier of negotiation to archive.
+     * @param entries       Definition entries of negotiation.
+     */
+    @ThreadSafe
+    public void append(final long negotiationId, final List<DefinitionEntry> entries) {
+        Objects.requireNonNull(entries, "Expected entries");
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        final byte[] block;
+        try {
+            block = encodeBlock(negotiationId, entries);
+        }
+        catch (final IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+
+        final long address;
+        synchronized (this) {
+            if (isClosed) {
+                throw new IllegalStateException("Definition archive closed");
+            }
+            try {
+                if (activeSegmentEnd > 0 && activeSegmentEnd + block.length > segmentSize) {
+                    activeSegment.force(true);
+                    roll();
+                }
+                final var buffer = ByteBuffer.wrap(block);
+                var position = activeSegmentEnd;
+                while (buffer.hasRemaining()) {
+                    position += activeSegment.write(buffer, position);
+                }
+                activeSegment.force(false);
+                address = ((long) (segments.size() - 1) << 32) | activeSegmentEnd;
+                activeSegmentEnd = position;
+            }
+            catch (final IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+        }
+        index(address, negotiationId, entries.stream()
+            .flatMap(entry -> entry.hashes().stream())
+            .collect(Collectors.toList()));
+    }
+
+    private static byte[] encodeBlock(final long negotiationId, final List<DefinitionEntry> entries)
+        throws IOException
+    {
+        final var inflated = new ByteArrayOutputStream(entries.size() * 768);
+        try (final var output = new DataOutputStream(inflated)) {
+            for (final var entry : entries) {
+                final var encoded = DefinitionCodec.encode(entry);
+                output.writeInt(encoded.length);
+                output.write(encoded);
+            }
+        }
+        final var deflated = deflate(inflated.toByteArray());
+
+        final var buffer = new ByteArrayOutputStream(deflated.length + 256);
+        try (final var output = new DataOutputStream(buffer)) {
+            output.writeInt(0); // Length, set below.
+            output.writeInt(0); // CRC32, set below.
+            output.writeLong(negotiationId);
+            final var hashCount = entries.stream().mapToInt(entry -> entry.hashes().size()).sum();
+            output.writeInt(hashCount);
+            for (final var entry : entries) {
+                for (final var hash : entry.hashes()) {
+                    output.writeByte(HashAlgorithm.ALL.indexOf(hash.algorithm()));
+                    output.writeByte(hash.sum().length);
+                    output.write(hash.sum());
+                }
+            }
+            output.writeInt(inflated.size());
+            output.write(deflated);
+        }
+        final var block = ByteBuffer.wrap(buffer.toByteArray());
+        final var crc = new CRC32();
+        crc.update(block.array(), BLOCK_HEADER_SIZE, block.capacity() - BLOCK_HEADER_SIZE);
+        block.putInt(0, block.capacity() - BLOCK_HEADER_SIZE);
+        block.putInt(4, (int) crc.getValue());
+        return block.array();
+    }
+
+    private static byte[] deflate(final byte[] bytes) {
+        final var deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            final var output = new ByteArrayOutputStream(bytes.length / 2 + 64);
+            final var buffer = new byte[8192];
+            while (!deflater.finished()) {
+                output.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return output.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    @ThreadSafe
+    public boolean contains(final Hash hash) {
+        Objects.requireNonNull(hash, "Expected hash");
+        return hashToBlock.containsKey(hash);
+    }
+
+    @ThreadSafe
+    public boolean contains(final long negotiationId) {
+        return negotiationIdToBlocks.containsKey(negotiationId);
+    }
+
+    /**
+     * Reads all entries in this archive and provides them to {@code
+     * consumer}, negotiation by negotiation.
+     *
+     * @param consumer Function receiving each archived entry.
+     * @return Number of archived entries.
+     */
+    public long forEach(final Consumer<DefinitionEntry> consumer) {
+        Objects.requireNonNull(consumer, "Expected consumer");
+
+        final var count = new long[1];
+        negotiationIdToBlocks.forEach((negotiationId, blocks) -> {
+            for (final var entry : get(negotiationId)) {
+                consumer.accept(entry);
+                count[0] += 1;
+            }
+        });
+        return count[0];
+    }
+
+    void forEachHash(final Consumer<Hash> consumer) {
+        hashToBlock.keySet().forEach(consumer);
+    }
+
+    @ThreadSafe
+    public Optional<Definition> get(final Hash hash) {
+        Objects.requireNonNull(hash, "Expected hash");
+
+        final var address = hashToBlock.get(hash);
+        if (address == null) {
+            return Optional.empty();
+        }
+        for (final var entry : readBlock(address)) {
+            if (entry.hashes().contains(hash)) {
+                return Optional.of(entry.definition());
+            }
+        }
+        return Optional.empty();
+    }
+
+    @ThreadSafe
+    public List<DefinitionEntry> get(final long negotiationId) {
+        final var addresses = negotiationIdToBlocks.get(negotiationId);
+        if (addresses == null) {
+            return Collections.emptyList();
+        }
+        if (addresses.length == 1) {
+            return readBlock(addresses[0]);
+        }
+        final var entries = new ArrayList<DefinitionEntry>();
+        for (final var address : addresses) {
+            entries.addAll(readBlock(address));
+        }
+        return Collections.unmodifiableList(entries);
+    }
+
+    private List<DefinitionEntry> readBlock(final long address) {
+        synchronized (blockCache) {
+            final var entries = blockCache.get(address);
+            if (entries != null) {
+                return entries;
+            }
+        }
+
+        final FileChannel segment;
+        synchronized (this) {
+            segment = segments.get((int) (address >>> 32));
+        }
+        final var position = address & 0xFFFFFFFFL;
+        final List<DefinitionEntry> entries;
+        try {
+            final var header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+            readFully(segment, header, position);
+            final var body = ByteBuffer.allocate(header.getInt(0));
+            readFully(segment, body, position + BLOCK_HEADER_SIZE);
+            final var crc = new CRC32();
+            crc.update(body.array());
+            if ((int) crc.getValue() != header.getInt(4)) {
+                throw new IllegalStateException("Definition archive block at " +
+                    address + " is corrupt");
+            }
+            body.flip();
+            entries = decodeBlock(body);
+        }
+        catch (final IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+
+        synchronized (blockCache) {
+            blockCache.put(address, entries);
+        }
+        return entries;
+    }
+
+    private static List<DefinitionEntry> decodeBlock(final ByteBuffer body) {
+        try {
+            body.getLong(); // Negotiation ID.
+            final var hashCount = body.getInt();
+            for (var i = 0; i < hashCount; ++i) {
+                readHash(body);
+            }
+            final var inflatedLength = body.getInt();
+            final var inflated = ByteBuffer.wrap(inflate(body, inflatedLength));
+            final var entries = new ArrayList<DefinitionEntry>();
+            while (inflated.hasRemaining()) {
+                final var length = inflated.getInt();
+                final var entry = inflated.slice();
+                entry.limit(length);
+                entries.add(DefinitionCodec.decodeEntry(entry));
+                inflated.position(inflated.position() + length);
+            }
+            return Collections.unmodifiableList(entries);
+        }
+        catch (final BufferUnderflowException | IllegalArgumentException exception) {
+            throw new IllegalStateException("Definition archive block truncated", exception);
+        }
+    }
+
+    private static byte[] inflate(final ByteBuffer input, final int inflatedLength) {
+        final var inflater = new Inflater();
+        try {
+            inflater.setInput(input.array(), input.position(), input.remaining());
+            final var output = new byte[inflatedLength];
+            var offset = 0;
+            while (offset < inflatedLength && !inflater.finished()) {
+                final var n = inflater.inflate(output, offset, inflatedLength - offset);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                offset += n;
+            }
+            if (offset != inflatedLength) {
+                throw new IllegalStateException("Definition archive block truncated");
+            }
+            return output;
+        }
+        catch (final DataFormatException exception) {
+            throw new IllegalStateException("Definition archive block is corrupt", exception);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    private static Hash readHash(final ByteBuffer buffer) {
+        final var algorithm = HashAlgorithm.ALL.get(buffer.get());
+        final var sum = new byte[buffer.get() & 0xFF];
+        buffer.get(sum);
+        return new Hash(algorithm, sum);
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, long position)
+        throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            final var n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of definition archive segment");
+            }
+            position += n;
+        }
+    }
+
+    @Override
+    public void close() {
+        final List<FileChannel> segments;
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            segments = List.copyOf(this.segments);
+        }
+        for (final var segment : segments) {
+            try {
+                segment.close();
+            }
+            catch (final IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+        }
+    }
+}
@@ -1,73 +1,994 @@
 package se.arkalix.core.cp.bank;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.arkalix.core.cp.contract.SignedContractAcceptance;
+import se.arkalix.core.cp.contract.SignedContractOffer;
+import se.arkalix.core.cp.contract.SignedContractRejection;
+import se.arkalix.core.cp.jfr.DefinitionAddEvent;
+import se.arkalix.core.cp.jfr.DefinitionGetEvent;
 import se.arkalix.core.cp.security.Hash;
 import se.arkalix.core.cp.security.HashAlgorithm;
+import se.arkalix.core.plugin.cp.ContractNegotiationStatus;
 import se.arkalix.util.annotation.ThreadSafe;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
+import static se.arkalix.core.plugin.cp.ContractNegotiationStatus.*;
+
+/**
+ * Stores definitions, which are offers, acceptances and rejections, such
+ * that they can be looked up by their hashes or by the identifiers of the
+ * negotiations they are part of.
+ * <p>
+ * Definitions are only hashed with the primary hash algorithm of the bank
+ * when added. The first lookup of a hash calculated with any other accepted
+ * algorithm causes definitions added from then on to be hashed with that
+ * algorithm too, while a background thread hashes the definitions already
+ * in the bank. Until that thread is done, lookups using that algorithm may
+ * miss definitions added before the first such lookup.
+ * <p>
+ * The definitions of the bank are kept by a {@link DefinitionStore}, which
+ * is a {@link HeapDefinitionStore} unless another store is specified.
+ * <p>
+ * If the bank is given a {@link DefinitionLog}, every added definition is
+ * appended to it before being made available. If using an {@link
+ * OffHeapDefinitionStore}, the bank keeps no definitions on the heap.
+ * Lookups are then served by reading the definitions back from the log, and
+ * hashes calculated with other algorithms than the primary are mapped to log
+ * addresses by an {@link OffHeapHashIndex} given to the bank.
+ * <p>
+ * If the bank is given a {@link DefinitionRetentionPolicy}, {@link
+ * #compact(Instant)} archives or drops the definitions of concluded
+ * negotiations as specified by that policy. Archived definitions remain
+ * available via the lookup methods of the bank. Segments of the definition
+ * log of the bank, if any, are reclaimed once all of their definitions have
+ * been archived or dropped, unless the bank takes snapshots of a store that
+ * does not record log addresses.
+ * <p>
+ * Lookups by hash are first made against a Bloom filter, which means that
+ * most lookups of hashes not in the bank never reach its store.
+ */
 public class DefinitionBank {
-    private final Map<Hash, Definition> hashToDefinition = new ConcurrentHashMap<>();
-    private final Map<Long, List<DefinitionEntry>> negotiationIdToDefinitions = new ConcurrentHashMap<>();
+    private static final Logger logger = LoggerFactory.getLogger(DefinitionBank.class);
+
+    private static final long FILTER_INITIAL_CAPACITY = 1 << 16;
+    private static final double FILTER_FALSE_POSITIVE_RATE = 0.01;
+
+    private final HashBloomFilter filter = new HashBloomFilter(FILTER_INITIAL_CAPACITY, FILTER_FALSE_POSITIVE_RATE);
+
+    private final DefinitionStore store;
+    private final LongKeyedMap<Conclusion> negotiationIdToConclusion;
     private final Set<HashAlgorithm> acceptedHashAlgorithms;
+    private final HashAlgorithm primaryHashAlgorithm;
+    private final Set<HashAlgorithm> primaryHashAlgorithms;
+    private final Set<HashAlgorithm> secondaryHashAlgorithms = ConcurrentHashMap.newKeySet();
+    // Counted down when the definitions already in the bank when indexing
+    // of a secondary hash algorithm started have been indexed.
+    private final Map<HashAlgorithm, CountDownLatch> secondaryHashAlgorithmToIndexing = new ConcurrentHashMap<>();
+    private final Map<Hash, Hash> secondaryHashToPrimaryHash = new ConcurrentHashMap<>();
+    private final OffHeapHashIndex secondaryHashToAddress;
+    private final DefinitionLog log;
+    private final DefinitionArchive archive;
+    private final DefinitionRetentionPolicy retentionPolicy;
+    private final Path snapshotPath;
+    // Primary hashes of definitions being logged and added to this bank.
+    private final Set<Hash> hashesBeingAdded = ConcurrentHashMap.newKeySet();
+    // Held for reading by definitions being logged and added to this bank.
+    private final ReentrantReadWriteLock logLock = new ReentrantReadWriteLock();
+
+    // Log segments mapped to the number of definitions in them that have
+    // not been archived or dropped, and the log addresses of definitions
+    // not yet compacted. Only tracked if definitions are logged and may be
+    // archived or dropped.
+    private final Map<Integer, AtomicLong> segmentToLiveCount;
+    private final LongKeyedMap<AppendOnlyLongList> negotiationIdToAddresses;
+
+    // Definitions in the store, excluding those archived or dropped.
+    private final AtomicLong size = new AtomicLong(0);
+    private final AtomicLong sizeInBytes = new AtomicLong(0);
 
     public DefinitionBank(final Set<HashAlgorithm> acceptedHashAlgorithms) {
-        this.acceptedHashAlgorithms = Objects.requireNonNull(acceptedHashAlgorithms);
+        this(new Builder().acceptedHashAlgorithms(acceptedHashAlgorithms));
+    }
+
+    private DefinitionBank(final Builder builder) {
+        acceptedHashAlgorithms = Objects.requireNonNull(builder.acceptedHashAlgorithms,
+            "Expected acceptedHashAlgorithms");
+        primaryHashAlgorithm = builder.primaryHashAlgorithm != null
+            ? builder.primaryHashAlgorithm
+            : HashAlgorithm.preferredOf(acceptedHashAlgorithms);
+        if (!acceptedHashAlgorithms.contains(primaryHashAlgorithm)) {
+            throw new IllegalArgumentException("The primary hash algorithm " +
+                "must be one of the accepted hash algorithms");
+        }
+        primaryHashAlgorithms = Set.of(primaryHashAlgorithm);
+        log = builder.log;
+        archive = builder.archive;
+        snapshotPath = builder.snapshotPath;
+        store = builder.store != null
+            ? builder.store
+            : new HeapDefinitionStore();
+        if (store instanceof OffHeapDefinitionStore && log == null) {
+            throw new IllegalArgumentException("An off-heap definition " +
+                "store requires a definition log to store definitions in");
+        }
+        secondaryHashToAddress = builder.secondaryIndex;
+        if (store instanceof OffHeapDefinitionStore && secondaryHashToAddress == null &&
+            acceptedHashAlgorithms.size() > 1)
+        {
+            throw new IllegalArgumentException("An off-heap definition " +
+                "store requires a secondary index if more than one hash " +
+                "algorithm is accepted");
+        }
+        if (secondaryHashToAddress != null && !(store instanceof OffHeapDefinitionStore)) {
+            throw new IllegalArgumentException("A secondary index may only " +
+                "be used with an off-heap definition store");
+        }
+        if (store.isPersistent() && (log != null || snapshotPath != null)) {
+            throw new IllegalArgumentException("A persistent definition " +
+                "store cannot be used with a definition log or snapshot");
+        }
+        if (builder.retentionPolicy != null && !builder.retentionPolicy.isAllHot()) {
+            if (builder.retentionPolicy.isAnyCold() && archive == null) {
+                throw new IllegalArgumentException("A retention policy " +
+                    "with COLD retentions requires a definition archive");
+            }
+            retentionPolicy = builder.retentionPolicy;
+            negotiationIdToConclusion = new LongKeyedMap<>();
+            // Snapshots only record log addresses if taken of off-heap
+            // stores, which means that definitions restored from other
+            // snapshots could not be tracked.
+            final var isTracked = log != null && (snapshotPath == null || store instanceof OffHeapDefinitionStore);
+            segmentToLiveCount = isTracked ? new ConcurrentHashMap<>() : null;
+            negotiationIdToAddresses = isTracked ? new LongKeyedMap<>() : null;
+        }
+        else {
+            retentionPolicy = null;
+            negotiationIdToConclusion = null;
+            segmentToLiveCount = null;
+            negotiationIdToAddresses = null;
+        }
+        if (archive != null) {
+            archive.forEachHash(filter::add);
+        }
     }
 
     @ThreadSafe
     public void add(final Definition definition) {
         Objects.requireNonNull(definition, "Expected definition");
 
-        final var hashes = definition.hashUsing(acceptedHashAlgorithms);
+        final var event = new DefinitionAddEvent();
+        event.begin();
+        final var canonical = definition.canonicalize();
+        final var hash = primaryHashAlgorithm.hash(canonical);
+        final var entry = new DefinitionEntry(List.of(hash), definition);
 
-        int i0 = 0, i1 = hashes.size();
-        while (i0 < i1) {
-            final var hash = hashes.get(i0);
-            final var previous = hashToDefinition.putIfAbsent(hash, definition);
-            if (previous != null) {
-                while (--i0 > 0) {
-                    hashToDefinition.remove(hashes.get(i0));
+        // Checked before logging, as colliding definitions would otherwise be
+        // logged before being rejected. The hash is reserved until the
+        // definition is in the store, as concurrent adds of the same
+        // definition would otherwise all pass the check and be logged.
+        if (!hashesBeingAdded.add(hash)) {
+            throw collisionOf(hash, definition);
+        }
+        final long address;
+        try {
+            if (contains(hash)) {
+                throw collisionOf(hash, definition);
+            }
+            filter.add(hash);
+            final var isLocked = log != null && (snapshotPath != null || segmentToLiveCount != null);
+            if (isLocked) {
+                logLock.readLock().lock();
+            }
+            try {
+                address = log != null
+                    ? log.append(DefinitionCodec.encode(entry))
+                    : DefinitionStore.NO_ADDRESS;
+                store.add(entry, address);
+                track(definition.negotiationId(), address);
+            }
+            finally {
+                if (isLocked) {
+                    logLock.readLock().unlock();
                 }
-                throw new IllegalStateException("Hash collision detected " +
-                    "for " + hash + "; cannot save " + definition + " in " +
-                    "definition bank");
             }
-            i0++;
         }
+        finally {
+            hashesBeingAdded.remove(hash);
+        }
+        size.incrementAndGet();
+        sizeInBytes.addAndGet(canonical.length);
+        conclude(definition);
+        for (final var algorithm : secondaryHashAlgorithms) {
+            putSecondary(algorithm.hash(canonical), hash, address);
+        }
+        event.commit(definition.negotiationId(), typeOf(definition), canonical.length);
+    }
+
+    private static IllegalStateException collisionOf(final Hash hash, final Definition definition) {
+        return new IllegalStateException("Hash collision detected for " +
+            hash + "; cannot save " + definition + " in definition bank");
+    }
+
+    private static String typeOf(final Definition definition) {
+        if (definition instanceof SignedContractOffer) {
+            return "offer";
+        }
+        if (definition instanceof SignedContractAcceptance) {
+            return "acceptance";
+        }
+        if (definition instanceof SignedContractRejection) {
+            return "rejection";
+        }
+        return definition.getClass().getSimpleName();
+    }
+
+    private void track(final long negotiationId, final long address) {
+        if (segmentToLiveCount == null || address == DefinitionStore.NO_ADDRESS) {
+            return;
+        }
+        segmentToLiveCount.computeIfAbsent(DefinitionLog.segmentIndexOf(address), ignored -> new AtomicLong())
+            .incrementAndGet();
+        negotiationIdToAddresses.compute(negotiationId, (id, addresses) -> {
+            if (addresses == null) {
+                addresses = new AppendOnlyLongList();
+            }
+            addresses.append(address);
+            return addresses;
+        });
+    }
 
-        negotiationIdToDefinitions.compute(definition.negotiationId(), (id, definitions) -> {
-            if (definitions == null) {
-                definitions = new CopyOnWriteArrayList<>();
+    // Only the first count addresses are untracked, as more definitions may
+    // have been added to the negotiation since it was compacted.
+    private void untrack(final long negotiationId, final int count) {
+        if (segmentToLiveCount == null) {
+            return;
+        }
+        negotiationIdToAddresses.compute(negotiationId, (id, addresses) -> {
+            if (addresses == null) {
+                return null;
             }
-            definitions.add(new DefinitionEntry(hashes, definition));
-            return definitions;
+            final var size = Math.min(count, addresses.size());
+            for (var i = 0; i < size; ++i) {
+                final var liveCount = segmentToLiveCount.get(DefinitionLog.segmentIndexOf(addresses.get(i)));
+                if (liveCount != null) {
+                    liveCount.decrementAndGet();
+                }
+            }
+            return addresses.size() > count
+                ? addresses.copyFrom(count)
+                : null;
         });
     }
 
+    // Segments without live definitions are only reclaimed while no
+    // definitions are between being logged and being tracked, as their
+    // segments could otherwise be mistaken for having no live definitions.
+    private int reclaimLogSegments() {
+        if (segmentToLiveCount == null) {
+            return 0;
+        }
+        var count = 0;
+        logLock.writeLock().lock();
+        try {
+            final var end = DefinitionLog.segmentIndexOf(log.end());
+            for (var segmentIndex = 0; segmentIndex < end; ++segmentIndex) {
+                final var liveCount = segmentToLiveCount.get(segmentIndex);
+                if ((liveCount == null || liveCount.get() <= 0) && log.reclaim(segmentIndex)) {
+                    segmentToLiveCount.remove(segmentIndex);
+                    count += 1;
+                }
+            }
+        }
+        finally {
+            logLock.writeLock().unlock();
+        }
+        return count;
+    }
+
+    private void conclude(final Definition definition) {
+        if (negotiationIdToConclusion != null) {
+            negotiationIdToConclusion.put(definition.negotiationId(), Conclusion.of(definition));
+        }
+    }
+
+    /**
+     * Reads all definitions in the store, snapshot and log of this bank, if
+     * any, into this bank, and provides them to {@code consumer}. Must be
+     * called once before this bank is used.
+     * <p>
+     * If a snapshot exists, its definitions are restored first, after which
+     * only the log records appended after the snapshot was taken are
+     * replayed. Log records are decoded in parallel, after which they are
+     * added to this bank and provided to {@code consumer} in the order they
+     * were originally added. Definitions that have been archived are provided
+     * to {@code consumer} without being added to this bank a second time.
+     *
+     * @param consumer Function receiving each recovered definition.
+     * @return Number of recovered definitions.
+     */
+    public long recover(final Consumer<Definition> consumer) {
+        Objects.requireNonNull(consumer, "Expected consumer");
+
+        final var snapshot = readSnapshot();
+        final var isArchiveDelivered = log == null || snapshot.isPresent();
+
+        var count = 0L;
+        if (archive != null && isArchiveDelivered) {
+            count += archive.forEach(entry -> consumer.accept(entry.definition()));
+        }
+        if (store.isPersistent()) {
+            final var count0 = new long[1];
+            store.scan((address, entry) -> {
+                for (final var hash : entry.hashes()) {
+                    filter.add(hash);
+                }
+                count(entry);
+                conclude(entry.definition());
+                consumer.accept(entry.definition());
+                count0[0] += 1;
+            });
+            count += count0[0];
+        }
+        if (snapshot.isPresent()) {
+            for (final var record : snapshot.get().records()) {
+                // Records in reclaimed log segments were archived or
+                // dropped after the snapshot was written.
+                if (log != null && record.address() != DefinitionSnapshot.NO_LOG_ADDRESS &&
+                    !log.isReadable(record.address()))
+                {
+                    continue;
+                }
+                final var entry = record.entry().rehashedUsing(primaryHashAlgorithms);
+                restore(entry, record.address());
+                consumer.accept(entry.definition());
+                count += 1;
+            }
+        }
+        if (log == null) {
+            return count;
+        }
+
+        final var fromAddress = snapshot
+            .map(DefinitionSnapshot::logAddress)
+            .filter(address -> address != DefinitionSnapshot.NO_LOG_ADDRESS)
+            .orElse(0L);
+
+        return count + log.replay(fromAddress, record -> Map.entry(record.address(),
+            DefinitionCodec.decodeEntry(record.payload()).rehashedUsing(primaryHashAlgorithms)),
+            addressAndEntry -> {
+                final var address = addressAndEntry.getKey();
+                final var entry = addressAndEntry.getValue();
+                final var hash = entry.hashes().get(0);
+                if (archive != null && archive.contains(hash)) {
+                    if (!isArchiveDelivered) {
+                        consumer.accept(entry.definition());
+                    }
+                    return;
+                }
+                // Definitions added while a snapshot was being written may be
+                // both in the snapshot and after its log address. Concurrent
+                // additions of the same definition may also cause it to be
+                // logged more than once.
+                if (store.contains(hash)) {
+                    return;
+                }
+                restore(entry, address);
+                consumer.accept(entry.definition());
+            });
+    }
+
+    private Optional<DefinitionSnapshot> readSnapshot() {
+        if (snapshotPath == null) {
+            return Optional.empty();
+        }
+        final Optional<DefinitionSnapshot> snapshot;
+        try {
+            snapshot = DefinitionSnapshot.read(snapshotPath);
+        }
+        catch (final IOException exception) {
+            if (log == null) {
+                throw new UncheckedIOException(exception);
+            }
+            logger.warn("Failed to read definition snapshot; replaying " +
+                "complete definition log instead", exception);
+            return Optional.empty();
+        }
+        if (snapshot.isPresent() && store instanceof OffHeapDefinitionStore) {
+            for (final var record : snapshot.get().records()) {
+                if (record.address() == DefinitionSnapshot.NO_LOG_ADDRESS) {
+                    logger.warn("Definition snapshot lacks definition log " +
+                        "addresses required by off-heap store; replaying " +
+                        "complete definition log instead");
+                    return Optional.empty();
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private void restore(final DefinitionEntry entry, final long address) {
+        for (final var hash : entry.hashes()) {
+            filter.add(hash);
+        }
+        store.add(entry, address);
+        track(entry.definition().negotiationId(), address);
+        count(entry);
+        conclude(entry.definition());
+    }
+
+    private void count(final DefinitionEntry entry) {
+        size.incrementAndGet();
+        sizeInBytes.addAndGet(entry.definition().canonicalize().length);
+    }
+
+    /**
+     * @return Number of definitions in this bank, excluding those archived.
+     */
+    @ThreadSafe
+    public long size() {
+        return size.get();
+    }
+
+    /**
+     * @return Total size of the definitions in this bank, excluding those
+     * archived, when represented as canonical JSON.
+     */
+    @ThreadSafe
+    public long sizeInBytes() {
+        return sizeInBytes.get();
+    }
+
+    /**
+     * Writes all definitions in this bank, except for those archived, to the
+     * snapshot file of this bank.
+     *
+     * @return Number of written definitions.
+     * @throws IllegalStateException If this bank has no snapshot file.
+     * @throws UncheckedIOException  If writing the snapshot fails.
+     */
+    @ThreadSafe
+    public synchronized long writeSnapshot() {
+        if (snapshotPath == null) {
+            throw new IllegalStateException("No definition snapshot path specified");
+        }
+
+        // No definitions may be between being logged and being added to
+        // this bank when the log address of the snapshot is determined, as
+        // they would then neither be in the snapshot nor replayed from the
+        // log after it.
+        final long logAddress;
+        if (log != null) {
+            logLock.writeLock().lock();
+            try {
+                logAddress = log.end();
+            }
+            finally {
+                logLock.writeLock().unlock();
+            }
+        }
+        else {
+            logAddress = DefinitionSnapshot.NO_LOG_ADDRESS;
+        }
+
+        try (final var writer = DefinitionSnapshot.writer(snapshotPath, logAddress)) {
+            try {
+                store.scan((address, entry) -> {
+                    try {
+                        writer.write(address, entry);
+                    }
+                    catch (final IOException exception) {
+                        throw new UncheckedIOException(exception);
+                    }
+                });
+            }
+            catch (final UncheckedIOException exception) {
+                throw exception.getCause();
+            }
+            writer.commit();
+            return writer.recordCount();
+        }
+        catch (final IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    /**
+     * Applies the retention policy of this bank, if any, to all negotiations
+     * concluded at least one grace period before {@code now}, and then
+     * reclaims any log segments left without definitions.
+     *
+     * @param now Current time.
+     * @return Number of negotiations whose definitions were archived or
+     * dropped.
+     */
+    @ThreadSafe
+    public int compact(final Instant now) {
+        return compact(now, negotiationId -> {});
+    }
+
+    /**
+     * Applies the retention policy of this bank, if any, to all negotiations
+     * concluded at least one grace period before {@code now}, and then
+     * reclaims any log segments left without definitions.
+     *
+     * @param now       Current time.
+     * @param onDropped Called with the identifier of each negotiation whose
+     *                  definitions were dropped.
+     * @return Number of negotiations whose definitions were archived or
+     * dropped.
+     */
+    @ThreadSafe
+    public int compact(final Instant now, final LongConsumer onDropped) {
+        Objects.requireNonNull(now, "Expected now");
+        Objects.requireNonNull(onDropped, "Expected onDropped");
+
+        if (retentionPolicy == null) {
+            return 0;
+        }
+        final var threshold = now.minus(retentionPolicy.gracePeriod());
+        final var count = new int[1];
+        negotiationIdToConclusion.forEach((negotiationId, conclusion) -> {
+            if (conclusion.instant.isAfter(threshold)) {
+                return;
+            }
+            final var retention = retentionPolicy.retentionOf(conclusion.statusAt(now));
+            if (retention == DefinitionRetention.HOT) {
+                return;
+            }
+            // Only the entries read here are evicted, as more entries may be
+            // added to the same negotiation while it is being compacted.
+            final var entries = store.get(negotiationId);
+            if (!entries.isEmpty()) {
+                if (retention == DefinitionRetention.COLD) {
+                    archive.append(negotiationId, entries);
+                }
+                // Archived definitions have no log addresses, which is why
+                // their secondary hashes are moved to the heap.
+                final var isArchived = retention == DefinitionRetention.COLD;
+                if (!secondaryHashAlgorithms.isEmpty() && (!isArchived || secondaryHashToAddress != null)) {
+                    for (final var entry : entries) {
+                        for (final var algorithm : secondaryHashAlgorithms) {
+                            final var secondaryHash = entry.definition().hashUsing(algorithm);
+                            removeSecondary(secondaryHash);
+                            if (isArchived) {
+                                putSecondary(secondaryHash, primaryHashOf(entry), DefinitionStore.NO_ADDRESS);
+                            }
+                        }
+                    }
+                }
+                store.evict(negotiationId, entries.size());
+                untrack(negotiationId, entries.size());
+                size.addAndGet(-entries.size());
+                for (final var entry : entries) {
+                    sizeInBytes.addAndGet(-entry.definition().canonicalize().length);
+                }
+            }
+            negotiationIdToConclusion.remove(negotiationId, conclusion);
+            if (retention == DefinitionRetention.DROP) {
+                onDropped.accept(negotiationId);
+            }
+            count[0] += 1;
+        });
+        final var reclaimedCount = reclaimLogSegments();
+        if (reclaimedCount > 0) {
+            logger.info("Reclaimed {} definition log segments", reclaimedCount);
+        }
+        return count[0];
+    }
+
     @ThreadSafe
     public boolean contains(final Hash hash) {
         Objects.requireNonNull(hash, "Expected hash");
 
-        return hashToDefinition.containsKey(hash);
+        final var primaryHash = primaryHashOf(hash).orElse(null);
+        if (primaryHash == null || !filter.mightContain(primaryHash)) {
+            return false;
+        }
+        return store.contains(primaryHash) || (archive != null && archive.contains(primaryHash));
     }
 
     @ThreadSafe
     public Optional<Definition> get(final Hash hash) {
         Objects.requireNonNull(hash, "Expected hash");
 
-        return Optional.ofNullable(hashToDefinition.get(hash));
+        final var event = new DefinitionGetEvent();
+        event.begin();
+        final var primaryHash = primaryHashOf(hash).orElse(null);
+        final var definition = primaryHash != null && filter.mightContain(primaryHash)
+            ? getByPrimaryHash(primaryHash)
+            : Optional.<Definition>empty();
+        event.commit(hash.algorithm().toString(), definition.isPresent());
+        return definition;
+    }
+
+    /**
+     * Gets entry of definition with given hash, which means that the
+     * definition is returned together with its primary hash.
+     *
+     * @param hash Hash of definition, calculated with any accepted hash
+     *             algorithm.
+     * @return Entry of definition, if in this bank.
+     */
+    @ThreadSafe
+    public Optional<DefinitionEntry> getEntry(final Hash hash) {
+        Objects.requireNonNull(hash, "Expected hash");
+
+        final var event = new DefinitionGetEvent();
+        event.begin();
+        final var primaryHash = primaryHashOf(hash).orElse(null);
+        final var entry = primaryHash != null && filter.mightContain(primaryHash)
+            ? getByPrimaryHash(primaryHash).map(definition -> new DefinitionEntry(List.of(primaryHash), definition))
+            : Optional.<DefinitionEntry>empty();
+        event.commit(hash.algorithm().toString(), entry.isPresent());
+        return entry;
+    }
+
+    /**
+     * Gets entry of definition with given hash, but only if it belongs to
+     * the identified negotiation. Unlike {@link #get(long)}, the other
+     * definitions of the negotiation are never visited.
+     *
+     * @param negotiationId Negotiation identifier.
+     * @param hash          Hash of definition, calculated with any accepted
+     *                      hash algorithm.
+     * @return Entry of definition, if in this bank and part of identified
+     * negotiation.
+     */
+    @ThreadSafe
+    public Optional<DefinitionEntry> get(final long negotiationId, final Hash hash) {
+        return getEntry(hash)
+            .filter(entry -> entry.definition().negotiationId() == negotiationId);
+    }
+
+    /**
+     * Gets the entries of the identified negotiations, in the order the
+     * identifiers are given, optionally only those having any of the given
+     * hashes. Each hash is looked up directly, which means that the
+     * negotiations are only visited if no hashes are given.
+     *
+     * @param negotiationIds Negotiation identifiers.
+     * @param hashes         Hashes of definitions, calculated with any
+     *                       accepted hash algorithms, or an empty list.
+     * @return Entries of identified negotiations.
+     */
+    @ThreadSafe
+    public List<DefinitionEntry> get(final List<Long> negotiationIds, final List<Hash> hashes) {
+        Objects.requireNonNull(negotiationIds, "Expected negotiationIds");
+        Objects.requireNonNull(hashes, "Expected hashes");
+
+        final var result = new ArrayList<DefinitionEntry>();
+        if (hashes.isEmpty()) {
+            for (final var negotiationId : new LinkedHashSet<>(negotiationIds)) {
+                result.addAll(get(negotiationId));
+            }
+            return result;
+        }
+        // Matching entries are grouped by negotiation, in the order the
+        // identifiers were given. Entries found by more than one hash are
+        // only included once.
+        final var idToEntries = new LinkedHashMap<Long, List<DefinitionEntry>>();
+        for (final var negotiationId : negotiationIds) {
+            idToEntries.putIfAbsent(negotiationId, new ArrayList<>(0));
+        }
+        final var primaryHashes = new HashSet<Hash>();
+        for (final var hash : hashes) {
+            final var entry = getEntry(hash).orElse(null);
+            if (entry == null || !primaryHashes.add(entry.hashes().get(0))) {
+                continue;
+            }
+            final var entries = idToEntries.get(entry.definition().negotiationId());
+            if (entries != null) {
+                entries.add(entry);
+            }
+        }
+        for (final var entries : idToEntries.values()) {
+            result.addAll(entries);
+        }
+        return result;
+    }
+
+    private Optional<Definition> getByPrimaryHash(final Hash hash) {
+        final var definition = store.get(hash);
+        if (definition.isPresent() || archive == null) {
+            return definition;
+        }
+        return archive.get(hash);
+    }
+
+    /**
+     * Resolves {@code hash} into the hash of the same definition calculated
+     * with the primary hash algorithm of this bank. Hashes calculated with
+     * the primary algorithm are returned as they are, whether or not they
+     * identify definitions in this bank.
+     * <p>
+     * Hashes calculated with another algorithm are resolved using an index
+     * built in the background when first used. Until it is built, lookups of
+     * hashes not yet in the index wait for it to be completed.
+     *
+     * @param hash Hash of definition.
+     * @return Primary hash of definition, unless {@code hash} was calculated
+     * with another algorithm and identifies no definition in this bank.
+     */
+    @ThreadSafe
+    public Optional<Hash> primaryHashOf(final Hash hash) {
+        Objects.requireNonNull(hash, "Expected hash");
+
+        final var algorithm = hash.algorithm();
+        if (algorithm == primaryHashAlgorithm) {
+            return Optional.of(hash);
+        }
+        if (!acceptedHashAlgorithms.contains(algorithm)) {
+            return Optional.empty();
+        }
+        final var indexing = startSecondaryIndexingOf(algorithm);
+        final var primaryHash = secondaryToPrimaryHash(hash);
+        if (primaryHash.isPresent() || indexing.getCount() == 0) {
+            return primaryHash;
+        }
+        // Misses are only certain once the definitions added before the
+        // first lookup using the same algorithm have been indexed.
+        try {
+            indexing.await();
+        }
+        catch (final InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return primaryHash;
+        }
+        return secondaryToPrimaryHash(hash);
+    }
+
+    private Optional<Hash> secondaryToPrimaryHash(final Hash secondaryHash) {
+        if (secondaryHashToAddress != null) {
+            final var address = secondaryHashToAddress.get(secondaryHash);
+            if (address != OffHeapHashIndex.NO_VALUE) {
+                return Optional.of(primaryHashOf(DefinitionCodec.decodeEntry(ByteBuffer.wrap(log.read(address)))));
+            }
+        }
+        return Optional.ofNullable(secondaryHashToPrimaryHash.get(secondaryHash));
+    }
+
+    /**
+     * Gets hashes of the definition of given entry, calculated with every
+     * accepted hash algorithm. The primary hash is always first.
+     *
+     * @param entry Entry retrieved from this bank.
+     * @return Hashes of definition.
+     */
+    @ThreadSafe
+    public List<Hash> acceptedHashesOf(final DefinitionEntry entry) {
+        Objects.requireNonNull(entry, "Expected entry");
+
+        final var primaryHash = primaryHashOf(entry);
+        if (acceptedHashAlgorithms.size() == 1) {
+            return List.of(primaryHash);
+        }
+        final var hashes = new ArrayList<Hash>(acceptedHashAlgorithms.size());
+        hashes.add(primaryHash);
+        for (final var algorithm : acceptedHashAlgorithms) {
+            if (algorithm != primaryHashAlgorithm) {
+                hashes.add(entry.definition().hashUsing(algorithm));
+            }
+        }
+        return hashes;
+    }
+
+    public HashAlgorithm primaryHashAlgorithm() {
+        return primaryHashAlgorithm;
+    }
+
+    // Definitions already in the bank are hashed by a background thread,
+    // which means that only lookups missing while it runs have to wait for
+    // it. The algorithm is registered first, as definitions added while
+    // indexing would be missed otherwise.
+    private CountDownLatch startSecondaryIndexingOf(final HashAlgorithm algorithm) {
+        final var indexing0 = secondaryHashAlgorithmToIndexing.get(algorithm);
+        if (indexing0 != null) {
+            return indexing0;
+        }
+        final var indexing = new CountDownLatch(1);
+        final var indexing1 = secondaryHashAlgorithmToIndexing.putIfAbsent(algorithm, indexing);
+        if (indexing1 != null) {
+            return indexing1;
+        }
+        secondaryHashAlgorithms.add(algorithm);
+        final var thread = new Thread(() -> {
+            final var startedAt = System.nanoTime();
+            final var count = new long[1];
+            try {
+                store.scan((address, entry) -> {
+                    indexSecondary(algorithm, entry, address);
+                    count[0] += 1;
+                });
+                if (archive != null) {
+                    count[0] += archive.forEach(entry ->
+                        indexSecondary(algorithm, entry, DefinitionStore.NO_ADDRESS));
+                }
+                logger.info("Indexed {} definitions using secondary hash " +
+                        "algorithm {} in {} ms", count[0], algorithm,
+                    (System.nanoTime() - startedAt) / 1_000_000);
+            }
+            catch (final Throwable throwable) {
+                logger.error("Failed to index definitions using secondary " +
+                    "hash algorithm " + algorithm, throwable);
+            }
+            finally {
+                indexing.countDown();
+            }
+        }, "definition-bank-indexer-" + algorithm);
+        thread.setDaemon(true);
+        thread.start();
+        return indexing;
+    }
+
+    // Definitions compacted after being read by the indexing thread, but
+    // before being indexed, are indexed again as if compacted afterwards.
+    private void indexSecondary(final HashAlgorithm algorithm, final DefinitionEntry entry, final long address) {
+        final var primaryHash = primaryHashOf(entry);
+        final var secondaryHash = entry.definition().hashUsing(algorithm);
+        putSecondary(secondaryHash, primaryHash, address);
+        if (store.contains(primaryHash)) {
+            return;
+        }
+        removeSecondary(secondaryHash);
+        if (archive != null && archive.contains(primaryHash)) {
+            putSecondary(secondaryHash, primaryHash, DefinitionStore.NO_ADDRESS);
+        }
+    }
+
+    private void putSecondary(final Hash secondaryHash, final Hash primaryHash, final long address) {
+        if (secondaryHashToAddress != null && address != DefinitionStore.NO_ADDRESS) {
+            secondaryHashToAddress.putIfAbsent(secondaryHash, address);
+        }
+        else {
+            secondaryHashToPrimaryHash.putIfAbsent(secondaryHash, primaryHash);
+        }
+    }
+
+    private void removeSecondary(final Hash secondaryHash) {
+        if (secondaryHashToAddress != null) {
+            secondaryHashToAddress.remove(secondaryHash);
+        }
+        secondaryHashToPrimaryHash.remove(secondaryHash);
+    }
+
+    // Archived and logged entries may have been hashed before the primary
+    // hash algorithm was changed.
+    private Hash primaryHashOf(final DefinitionEntry entry) {
+        for (final var hash : entry.hashes()) {
+            if (hash.algorithm() == primaryHashAlgorithm) {
+                return hash;
+            }
+        }
+        return entry.definition().hashUsing(primaryHashAlgorithm);
     }
 
     @ThreadSafe
     public Collection<DefinitionEntry> get(final long negotiationId) {
-        final var definitions = negotiationIdToDefinitions.get(negotiationId);
-        if (definitions == null) {
-            return Collections.emptyList();
+        final var entries = store.get(negotiationId);
+        if (archive == null || !archive.contains(negotiationId)) {
+            return entries;
+        }
+        final var archivedEntries = archive.get(negotiationId);
+        if (entries.isEmpty()) {
+            return archivedEntries;
         }
-        return List.copyOf(definitions);
+        final var allEntries = new ArrayList<DefinitionEntry>(archivedEntries.size() + entries.size());
+        allEntries.addAll(archivedEntries);
+        allEntries.addAll(entries);
+        return Collections.unmodifiableList(allEntries);
     }
 
+    private static class Conclusion {
+        private final ContractNegotiationStatus status;
+        private final Instant instant;
+
+        private Conclusion(final ContractNegotiationStatus status, final Instant instant) {
+            this.status = status;
+            this.instant = instant;
+        }
+
+        static Conclusion of(final Definition definition) {
+            if (definition instanceof SignedContractAcceptance) {
+                return new Conclusion(ACCEPTED, ((SignedContractAcceptance) definition).signature().timestamp());
+            }
+            if (definition instanceof SignedContractOffer) {
+                return new Conclusion(OFFERING, ((SignedContractOffer) definition).validUntil());
+            }
+            if (definition instanceof SignedContractRejection) {
+                return new Conclusion(REJECTED, ((SignedContractRejection) definition).signature().timestamp());
+            }
+            throw new IllegalArgumentException("Cannot determine conclusion of " + definition);
+        }
+
+        ContractNegotiationStatus statusAt(final Instant now) {
+            return status == OFFERING && instant.isBefore(now)
+                ? EXPIRED
+                : status;
+        }
+    }
+
+    public static class Builder {
+        private Set<HashAlgorithm> acceptedHashAlgorithms;
+        private DefinitionArchive archive;
+        private DefinitionLog log;
+        private HashAlgorithm primaryHashAlgorithm;
+        private DefinitionRetentionPolicy retentionPolicy;
+        private OffHeapHashIndex secondaryIndex;
+        private Path snapshotPath;
+        private DefinitionStore store;
+
+        public Builder acceptedHashAlgorithms(final Set<HashAlgorithm> acceptedHashAlgorithms) {
+            this.acceptedHashAlgorithms = acceptedHashAlgorithms;
+            return this;
+        }
+
+        public Builder archive(final DefinitionArchive archive) {
+            this.archive = archive;
+            return this;
+        }
+
+        public Builder log(final DefinitionLog log) {
+            this.log = log;
+            return this;
+        }
+
+        /**
+         * Sets hash algorithm used to index definitions when added. Must be
+         * one of the accepted hash algorithms. Defaults to the algorithm
+         * returned by {@link HashAlgorithm#preferredOf(Collection)}.
+         *
+         * @param primaryHashAlgorithm Primary hash algorithm.
+         * @return This builder.
+         */
+        public Builder primaryHashAlgorithm(final HashAlgorithm primaryHashAlgorithm) {
+            this.primaryHashAlgorithm = primaryHashAlgorithm;
+            return this;
+        }
+
+        public Builder retentionPolicy(final DefinitionRetentionPolicy retentionPolicy) {
+            this.retentionPolicy = retentionPolicy;
+            return this;
+        }
+
+        /**
+         * Sets index used to map hashes calculated with other algorithms
+         * than the primary to log addresses. Required if using an {@link
+         * OffHeapDefinitionStore} and more than one hash algorithm is
+         * accepted, and may not be used otherwise.
+         *
+         * @param secondaryIndex Index of secondary hashes.
+         * @return This builder.
+         */
+        public Builder secondaryIndex(final OffHeapHashIndex secondaryIndex) {
+            this.secondaryIndex = secondaryIndex;
+            return this;
+        }
+
+        public Builder snapshotPath(final Path snapshotPath) {
+            this.snapshotPath = snapshotPath;
+            return this;
+        }
+
+        public Builder store(final DefinitionStore store) {
+            this.store = store;
+            return this;
+        }
+
+        public DefinitionBank build() {
+            return new DefinitionBank(this);
+        }
+    }
 }
@@ -0,0 +1,217 @@
+package se.arkalix.core.cp.bank;
+
+import se.arkalix.core.cp.contract.ContractBase64;
+import se.arkalix.core.cp.contract.SignedContractAcceptance;
+import se.arkalix.core.cp.contract.SignedContractOffer;
+import se.arkalix.core.cp.contract.SignedContractRejection;
+import se.arkalix.core.cp.security.Hash;
+import se.arkalix.core.cp.security.HashBase64;
+import se.arkalix.core.cp.security.SignatureBase64;
+import se.arkalix.core.cp.util.CborWriter;
+import se.arkalix.util.InternalException;
+
+import java.util.Collection;
+import java.util.Objects;
+
+/**
+ * Writes a CBOR array of {@link DefinitionMessage DefinitionMessages}, one
+ * definition at a time.
+ * <p>
+ * The CBOR representation of a message has the same structure and member
+ * names as its JSON representation, with the exception that hash and
+ * signature sums are written as byte strings rather than as base64 text.
+ * Everything else, including timestamps, is written as in JSON. Signatures
+ * are still calculated over the canonical JSON form of each message, which
+ * means that messages can be converted between the two encodings without
+ * invalidating their signatures.
+ *
+ * @see DefinitionMessageWriter
+ */
+public class DefinitionCborWriter {
+    private final CborWriter writer;
+    private int count = 0;
+
+    public DefinitionCborWriter() {
+        this(8192);
+    }
+
+    public DefinitionCborWriter(final int initialCapacity) {
+        writer = new CborWriter(initialCapacity);
+        writer.writeIndefiniteArrayHeader();
+    }
+
+    /**
+     * Adds definition to written array.
+     *
+     * @param definition Definition to add.
+     * @param hashes     Hashes to associate with definition in message.
+     * @return This writer.
+     */
+    public DefinitionCborWriter write(final Definition definition, final Collection<Hash> hashes) {
+        Objects.requireNonNull(definition, "Expected definition");
+        Objects.requireNonNull(hashes, "Expected hashes");
+
+        writeMessage(writer, definition, hashes);
+        count += 1;
+        return this;
+    }
+
+    /**
+     * Adds definition entry to written array.
+     *
+     * @param entry Entry to add.
+     * @return This writer.
+     */
+    public DefinitionCborWriter write(final DefinitionEntry entry) {
+        return write(entry.definition(), entry.hashes());
+    }
+
+    /**
+     * @return Number of definitions written so far.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Closes written array and returns its bytes. No more definitions may be
+     * written after this method has been called.
+     *
+     * @return CBOR array.
+     */
+    public byte[] toByteArray() {
+        return writer.writeBreak()
+            .toByteArray();
+    }
+
+    /**
+     * Writes CBOR map representing a single {@link DefinitionMessage}.
+     *
+     * @param writer     Writer to write to.
+     * @param definition Definition to write.
+     * @param hashes     Hashes to associate with definition in message.
+     */
+    public static void writeMessage(
+        final CborWriter writer,
+        final Definition definition,
+        final Collection<Hash> hashes)
+    {
+        writer.writeMapHeader(2)
+            .writeText("hashes")
+            .writeArrayHeader(hashes.size());
+        for (final var hash : hashes) {
+            writeHash(writer, hash);
+        }
+
+        if (definition instanceof SignedContractAcceptance) {
+            writeAcceptance(writer.writeText("acceptance"), (SignedContractAcceptance) definition);
+        }
+        else if (definition instanceof SignedContractOffer) {
+            writeOffer(writer.writeText("offer"), (SignedContractOffer) definition);
+        }
+        else if (definition instanceof SignedContractRejection) {
+            writeRejection(writer.writeText("rejection"), (SignedContractRejection) definition);
+        }
+        else {
+            throw new InternalException("Cannot write DefinitionMessage from " + definition);
+        }
+    }
+
+    public static void writeAcceptance(final CborWriter writer, final SignedContractAcceptance acceptance) {
+        writer.writeMapHeader(5)
+            .writeText("negotiationId")
+            .writeLong(acceptance.negotiationId());
+        writeHash(writer.writeText("acceptorFingerprint"), acceptance.acceptorFingerprint());
+        writeHash(writer.writeText("offerorFingerprint"), acceptance.offerorFingerprint());
+        writeHash(writer.writeText("offerHash"), acceptance.offerHash());
+        writeSignature(writer.writeText("signature"), acceptance.signature());
+    }
+
+    public static void writeOffer(final CborWriter writer, final SignedContractOffer offer) {
+        writer.writeMapHeader(7)
+            .writeText("negotiationId")
+            .writeLong(offer.negotiationId());
+        writeHash(writer.writeText("offerorFingerprint"), offer.offerorFingerprint());
+        writeHash(writer.writeText("receiverFingerprint"), offer.receiverFingerprint());
+        writer.writeText("validAfter")
+            .writeText(offer.validAfter().toString())
+            .writeText("validUntil")
+            .writeText(offer.validUntil().toString())
+            .writeText("contracts")
+            .writeArrayHeader(offer.contracts().size());
+        for (final var contract : offer.contracts()) {
+            writeContract(writer, contract);
+        }
+        writeSignature(writer.writeText("signature"), offer.signature());
+    }
+
+    public static void writeRejection(final CborWriter writer, final SignedContractRejection rejection) {
+        writer.writeMapHeader(5)
+            .writeText("negotiationId")
+            .writeLong(rejection.negotiationId());
+        writeHash(writer.writeText("rejectorFingerprint"), rejection.rejectorFingerprint());
+        writeHash(writer.writeText("offerorFingerprint"), rejection.offerorFingerprint());
+        writeHash(writer.writeText("offerHash"), rejection.offerHash());
+        writeSignature(writer.writeText("signature"), rejection.signature());
+    }
+
+    /**
+     * Writes CBOR map representing a {@link DefinitionQuery} for the given
+     * hashes.
+     *
+     * @param writer Writer to write to.
+     * @param hashes Hashes of requested definitions.
+     * @param cursor Cursor of requested page, or {@code null} if the first
+     *               page is requested.
+     */
+    public static void writeQuery(final CborWriter writer, final Collection<Hash> hashes, final String cursor) {
+        writer.writeMapHeader(cursor != null ? 2 : 1)
+            .writeText("hashes")
+            .writeArrayHeader(hashes.size());
+        for (final var hash : hashes) {
+            writeHash(writer, hash);
+        }
+        if (cursor != null) {
+            writer.writeText("cursor")
+                .writeText(cursor);
+        }
+    }
+
+    private static void writeContract(final CborWriter writer, final ContractBase64 contract) {
+        writer.writeMapHeader(2);
+        writeHash(writer.writeText("templateHash"), contract.templateHash());
+        final var arguments = contract.arguments();
+        writer.writeText("arguments")
+            .writeMapHeader(arguments.size());
+        for (final var argument : arguments.entrySet()) {
+            writer.writeText(argument.getKey())
+                .writeText(argument.getValue());
+        }
+    }
+
+    private static void writeHash(final CborWriter writer, final Hash hash) {
+        writer.writeMapHeader(2)
+            .writeText("algorithm")
+            .writeText(hash.algorithm().toString())
+            .writeText("sum")
+            .writeBytes(hash.sum());
+    }
+
+    private static void writeHash(final CborWriter writer, final HashBase64 hash) {
+        writer.writeMapHeader(2)
+            .writeText("algorithm")
+            .writeText(hash.algorithm().toString())
+            .writeText("sum")
+            .writeBytes(hash.sumAsBytes());
+    }
+
+    private static void writeSignature(final CborWriter writer, final SignatureBase64 signature) {
+        writer.writeMapHeader(3)
+            .writeText("timestamp")
+            .writeText(signature.timestamp().toString())
+            .writeText("scheme")
+            .writeText(signature.scheme().toString())
+            .writeText("sum")
+            .writeBytes(signature.sumToBytes());
+    }
+}
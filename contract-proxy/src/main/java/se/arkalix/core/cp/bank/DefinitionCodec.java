@@ -0,0 +1,292 @@
+package se.arkalix.core.cp.bank;
+
+import se.arkalix.core.cp.contract.*;
+import se.arkalix.core.cp.security.*;
+import se.arkalix.util.InternalException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Compact binary encoding of {@link Definition Definitions}, used when
+ * definitions are written to or read from persistent storage.
+ * <p>
+ * Hash and signature sums are stored as raw bytes rather than as base64
+ * strings, and contract arguments are stored sorted by key, which means that
+ * the encoding of any given definition is always the same.
+ */
+public final class DefinitionCodec {
+    private static final byte TYPE_ACCEPTANCE = 1;
+    private static final byte TYPE_OFFER = 2;
+    private static final byte TYPE_REJECTION = 3;
+
+    private DefinitionCodec() {}
+
+    public static byte[] encode(final Definition definition) {
+        Objects.requireNonNull(definition, "Expected definition");
+
+        final var buffer = new ByteArrayOutputStream(512);
+        try (final var output = new DataOutputStream(buffer)) {
+            write(output, definition);
+        }
+        catch (final IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Encodes given entry, including the definition and all of its hashes.
+     *
+     * @param entry Entry to encode.
+     * @return Encoded entry.
+     */
+    public static byte[] encode(final DefinitionEntry entry) {
+        Objects.requireNonNull(entry, "Expected entry");
+
+        final var buffer = new ByteArrayOutputStream(768);
+        try (final var output = new DataOutputStream(buffer)) {
+            final var hashes = entry.hashes();
+            output.writeByte(hashes.size());
+            for (final var hash : hashes) {
+                writeHash(output, hash);
+            }
+            write(output, entry.definition());
+        }
+        catch (final IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+        return buffer.toByteArray();
+    }
+
+    public static DefinitionEntry decodeEntry(final ByteBuffer buffer) {
+        Objects.requireNonNull(buffer, "Expected buffer");
+
+        try {
+            final var hashes = decodeHashes(buffer);
+            return new DefinitionEntry(hashes, decode(buffer));
+        }
+        catch (final BufferUnderflowException exception) {
+            throw new IllegalStateException("Encoded definition entry truncated", exception);
+        }
+    }
+
+    /**
+     * Decodes only the hashes of an entry encoded by {@link
+     * #encode(DefinitionEntry)}, leaving {@code buffer} positioned at the
+     * start of its definition.
+     *
+     * @param buffer Buffer positioned at the start of an encoded entry.
+     * @return Hashes of encoded entry.
+     */
+    static List<Hash> decodeHashes(final ByteBuffer buffer) {
+        final var hashCount = buffer.get() & 0xFF;
+        final var hashes = new Hash[hashCount];
+        for (var i = 0; i < hashCount; ++i) {
+            final var algorithm = HashAlgorithm.ALL.get(buffer.get());
+            final var sum = new byte[buffer.get() & 0xFF];
+            buffer.get(sum);
+            hashes[i] = new Hash(algorithm, sum);
+        }
+        return List.of(hashes);
+    }
+
+    private static void write(final DataOutputStream output, final Definition definition) throws IOException {
+        if (definition instanceof SignedContractAcceptance) {
+            final var acceptance = (SignedContractAcceptance) definition;
+            output.writeByte(TYPE_ACCEPTANCE);
+            output.writeLong(acceptance.negotiationId());
+            writeHash(output, acceptance.acceptorFingerprint());
+            writeHash(output, acceptance.offerorFingerprint());
+            writeHash(output, acceptance.offerHash());
+            writeSignature(output, acceptance.signature());
+        }
+        else if (definition instanceof SignedContractOffer) {
+            final var offer = (SignedContractOffer) definition;
+            output.writeByte(TYPE_OFFER);
+            output.writeLong(offer.negotiationId());
+            writeHash(output, offer.offerorFingerprint());
+            writeHash(output, offer.receiverFingerprint());
+            writeInstant(output, offer.validAfter());
+            writeInstant(output, offer.validUntil());
+            final var contracts = offer.contracts();
+            output.writeInt(contracts.size());
+            for (final var contract : contracts) {
+                writeHash(output, contract.templateHash());
+                final var arguments = new TreeMap<>(contract.arguments());
+                output.writeInt(arguments.size());
+                for (final var entry : arguments.entrySet()) {
+                    writeString(output, entry.getKey());
+                    writeString(output, entry.getValue());
+                }
+            }
+            writeSignature(output, offer.signature());
+        }
+        else if (definition instanceof SignedContractRejection) {
+            final var rejection = (SignedContractRejection) definition;
+            output.writeByte(TYPE_REJECTION);
+            output.writeLong(rejection.negotiationId());
+            writeHash(output, rejection.rejectorFingerprint());
+            writeHash(output, rejection.offerorFingerprint());
+            writeHash(output, rejection.offerHash());
+            writeSignature(output, rejection.signature());
+        }
+        else {
+            throw new InternalException("Cannot encode " + definition);
+        }
+    }
+
+    public static Definition decode(final byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    public static Definition decode(final ByteBuffer buffer) {
+        Objects.requireNonNull(buffer, "Expected buffer");
+
+        try {
+            final var type = buffer.get();
+            switch (type) {
+            case TYPE_ACCEPTANCE:
+                return new SignedContractAcceptanceBuilder()
+                    .negotiationId(buffer.getLong())
+                    .acceptorFingerprint(readHash(buffer))
+                    .offerorFingerprint(readHash(buffer))
+                    .offerHash(readHash(buffer))
+                    .signature(readSignature(buffer))
+                    .build();
+
+            case TYPE_OFFER:
+                return new SignedContractOfferBuilder()
+                    .negotiationId(buffer.getLong())
+                    .offerorFingerprint(readHash(buffer))
+                    .receiverFingerprint(readHash(buffer))
+                    .validAfter(readInstant(buffer))
+                    .validUntil(readInstant(buffer))
+                    .contracts(readContracts(buffer))
+                    .signature(readSignature(buffer))
+                    .build();
+
+            case TYPE_REJECTION:
+                return new SignedContractRejectionBuilder()
+                    .negotiationId(buffer.getLong())
+                    .rejectorFingerprint(readHash(buffer))
+                    .offerorFingerprint(readHash(buffer))
+                    .offerHash(readHash(buffer))
+                    .signature(readSignature(buffer))
+                    .build();
+
+            default:
+                throw new IllegalStateException("Unknown definition type " + type);
+            }
+        }
+        catch (final BufferUnderflowException exception) {
+            throw new IllegalStateException("Encoded definition truncated", exception);
+        }
+    }
+
+    private static void writeHash(final DataOutputStream output, final HashBase64 hash) throws IOException {
+        writeHash(output, hash.algorithm(), hash.sumAsBytes());
+    }
+
+    private static void writeHash(final DataOutputStream output, final Hash hash) throws IOException {
+        writeHash(output, hash.algorithm(), hash.sum());
+    }
+
+    private static void writeHash(
+        final DataOutputStream output,
+        final HashAlgorithm algorithm,
+        final byte[] sum) throws IOException
+    {
+        output.writeByte(HashAlgorithm.ALL.indexOf(algorithm));
+        output.writeByte(sum.length);
+        output.write(sum);
+    }
+
+    private static HashBase64Dto readHash(final ByteBuffer buffer) {
+        final var algorithm = HashAlgorithm.ALL.get(buffer.get());
+        final var sum = new byte[buffer.get() & 0xFF];
+        buffer.get(sum);
+        return new HashBase64Builder()
+            .algorithm(algorithm)
+            .sum(Base64.getEncoder().encodeToString(sum))
+            .build();
+    }
+
+    private static void writeInstant(final DataOutputStream output, final Instant instant) throws IOException {
+        output.writeLong(instant.getEpochSecond());
+        output.writeInt(instant.getNano());
+    }
+
+    private static Instant readInstant(final ByteBuffer buffer) {
+        final var seconds = buffer.getLong();
+        return Instant.ofEpochSecond(seconds, buffer.getInt());
+    }
+
+    private static void writeSignature(final DataOutputStream output, final SignatureBase64 signature)
+        throws IOException
+    {
+        final var sum = signature.sumToBytes();
+        writeInstant(output, signature.timestamp());
+        output.writeByte(SignatureScheme.ALL.indexOf(signature.scheme()));
+        output.writeShort(sum.length);
+        output.write(sum);
+    }
+
+    private static SignatureBase64Dto readSignature(final ByteBuffer buffer) {
+        final var timestamp = readInstant(buffer);
+        final var scheme = SignatureScheme.ALL.get(buffer.get());
+        final var sum = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(sum);
+        return new SignatureBase64Builder()
+            .timestamp(timestamp)
+            .scheme(scheme)
+            .sum(Base64.getEncoder().encodeToString(sum))
+            .build();
+    }
+
+    private static List<ContractBase64Dto> readContracts(final ByteBuffer buffer) {
+        final var contractCount = readCount(buffer);
+        final var contracts = new ArrayList<ContractBase64Dto>(contractCount);
+        for (var i = 0; i < contractCount; ++i) {
+            final var templateHash = readHash(buffer);
+            final var argumentCount = readCount(buffer);
+            final var arguments = new LinkedHashMap<String, String>(argumentCount * 2);
+            for (var j = 0; j < argumentCount; ++j) {
+                arguments.put(readString(buffer), readString(buffer));
+            }
+            contracts.add(new ContractBase64Builder()
+                .templateHash(templateHash)
+                .arguments(arguments)
+                .build());
+        }
+        return contracts;
+    }
+
+    private static int readCount(final ByteBuffer buffer) {
+        final var count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IllegalStateException("Encoded definition contains " +
+                "invalid element count " + count);
+        }
+        return count;
+    }
+
+    private static void writeString(final DataOutputStream output, final String string) throws IOException {
+        final var bytes = string.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        final var bytes = new byte[readCount(buffer)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,87 @@
+package se.arkalix.core.cp.bank;
+
+import java.util.Objects;
+
+/**
+ * Position in the results of a {@link DefinitionQuery}, identifying the
+ * first definition of a page of results.
+ * <p>
+ * A cursor consists of the index of a negotiation identifier or hash in the
+ * query, and the number of definitions of that identifier or hash already
+ * returned. Its textual form is {@code <index>.<offset>}.
+ */
+public final class DefinitionCursor {
+    /**
+     * Cursor identifying the first definition of a query.
+     */
+    public static final DefinitionCursor FIRST = new DefinitionCursor(0, 0);
+
+    private final int index;
+    private final int offset;
+
+    public DefinitionCursor(final int index, final int offset) {
+        if (index < 0) {
+            throw new IllegalArgumentException("Expected index >= 0");
+        }
+        if (offset < 0) {
+            throw new IllegalArgumentException("Expected offset >= 0");
+        }
+        this.index = index;
+        this.offset = offset;
+    }
+
+    /**
+     * Parses cursor from its textual form.
+     *
+     * @param string String to parse.
+     * @return Parsed cursor.
+     * @throws IllegalArgumentException If {@code string} is not a valid
+     *                                  cursor.
+     */
+    public static DefinitionCursor valueOf(final String string) {
+        Objects.requireNonNull(string, "Expected string");
+
+        final var dot = string.indexOf('.');
+        if (dot == -1) {
+            throw new IllegalArgumentException("Expected cursor to be <index>.<offset>");
+        }
+        try {
+            return new DefinitionCursor(
+                Integer.parseInt(string.substring(0, dot)),
+                Integer.parseInt(string.substring(dot + 1)));
+        }
+        catch (final NumberFormatException exception) {
+            throw new IllegalArgumentException("Expected cursor to be <index>.<offset>", exception);
+        }
+    }
+
+    public int index() {
+        return index;
+    }
+
+    public int offset() {
+        return offset;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (other == null || getClass() != other.getClass()) {
+            return false;
+        }
+        final var cursor = (DefinitionCursor) other;
+        return index == cursor.index && offset == cursor.offset;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * index + offset;
+    }
+
+    @Override
+    public String toString() {
+        return index + "." + offset;
+    }
+}
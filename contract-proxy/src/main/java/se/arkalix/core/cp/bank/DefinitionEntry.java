@@ -4,10 +4,14 @@ import se.arkalix.core.cp.contract.SignedContractAcceptanceDto;
 import se.arkalix.core.cp.contract.SignedContractOfferDto;
 import se.arkalix.core.cp.contract.SignedContractRejectionDto;
 import se.arkalix.core.cp.security.Hash;
+import se.arkalix.core.cp.security.HashAlgorithm;
 import se.arkalix.core.cp.security.HashBase64;
 import se.arkalix.util.InternalException;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 public class DefinitionEntry {
@@ -27,6 +31,36 @@ public class DefinitionEntry {
         return definition;
     }
 
+    /**
+     * Recalculates the hashes of this entry if they were not calculated
+     * using exactly the given algorithms, which is the case if the accepted
+     * or primary hash algorithms have changed since this entry was stored.
+     * Hashes already present in this entry are reused rather than being
+     * calculated again.
+     *
+     * @param algorithms Hash algorithms to use.
+     * @return This entry, or a copy of it with recalculated hashes.
+     */
+    DefinitionEntry rehashedUsing(final Set<HashAlgorithm> algorithms) {
+        final var algorithms0 = hashes.stream()
+            .map(Hash::algorithm)
+            .collect(Collectors.toSet());
+        if (algorithms0.equals(algorithms)) {
+            return this;
+        }
+        final var hashes0 = new ArrayList<Hash>(algorithms.size());
+        for (final var algorithm : HashAlgorithm.ALL) {
+            if (!algorithms.contains(algorithm)) {
+                continue;
+            }
+            hashes0.add(hashes.stream()
+                .filter(hash -> hash.algorithm() == algorithm)
+                .findFirst()
+                .orElseGet(() -> definition.hashUsing(algorithm)));
+        }
+        return new DefinitionEntry(Collections.unmodifiableList(hashes0), definition);
+    }
+
     public DefinitionMessageDto toMessage() {
         final var builder = new DefinitionMessageBuilder()
             .hashes(hashes.stream().map(HashBase64::from).collect(Collectors.toUnmodifiableList()));
@@ -0,0 +1,160 @@
+package se.arkalix.core.cp.bank;
+
+import se.arkalix.core.cp.security.Hash;
+import se.arkalix.util.annotation.ThreadSafe;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the JSON representations of recently requested definitions of a
+ * {@link DefinitionBank}, as written by {@link DefinitionMessageWriter}.
+ * <p>
+ * As definitions never change once stored, cached representations never
+ * have to be invalidated. They are, however, only returned while their
+ * definitions remain in the bank, which means that definitions dropped from
+ * the bank cannot be served from this cache. The least recently used
+ * representations are evicted when the cache exceeds its capacity.
+ */
+public class DefinitionJsonCache {
+    public static final int DEFAULT_CAPACITY = 16 * 1024 * 1024;
+
+    private final DefinitionBank bank;
+    private final long capacity;
+
+    private final LinkedHashMap<Hash, byte[]> primaryHashToJson = new LinkedHashMap<>(256, 0.75f, true);
+    private long size = 0;
+
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+
+    /**
+     * Creates new cache.
+     *
+     * @param bank     Bank to cache the definitions of.
+     * @param capacity Maximum number of bytes of JSON to cache. If zero or
+     *                 negative, {@link #DEFAULT_CAPACITY} is used.
+     */
+    public DefinitionJsonCache(final DefinitionBank bank, final int capacity) {
+        this.bank = Objects.requireNonNull(bank, "Expected bank");
+        this.capacity = capacity > 0 ? capacity : DEFAULT_CAPACITY;
+    }
+
+    /**
+     * Gets JSON representation of definition identified by given hash, if
+     * it is in the bank of this cache.
+     *
+     * @param hash Hash of definition, calculated with any hash algorithm
+     *             accepted by the bank.
+     * @return JSON representation of definition, if available.
+     */
+    @ThreadSafe
+    public Optional<byte[]> get(final Hash hash) {
+        Objects.requireNonNull(hash, "Expected hash");
+
+        final var primaryHash = bank.primaryHashOf(hash).orElse(null);
+        if (primaryHash == null) {
+            return Optional.empty();
+        }
+        final var json = cachedJsonOf(primaryHash);
+        if (json != null) {
+            return Optional.of(json);
+        }
+        return bank.get(primaryHash)
+            .map(definition -> cache(primaryHash, definition));
+    }
+
+    /**
+     * Gets JSON representation of the definition of given entry.
+     *
+     * @param entry Entry retrieved from the bank of this cache.
+     * @return JSON representation of definition.
+     */
+    @ThreadSafe
+    public byte[] get(final DefinitionEntry entry) {
+        Objects.requireNonNull(entry, "Expected entry");
+
+        final var primaryHashAlgorithm = bank.primaryHashAlgorithm();
+        for (final var hash : entry.hashes()) {
+            if (hash.algorithm() != primaryHashAlgorithm) {
+                continue;
+            }
+            final var json = cachedJsonOf(hash);
+            return json != null
+                ? json
+                : cache(hash, entry.definition());
+        }
+        missCount.incrementAndGet();
+        return toJson(entry.definition());
+    }
+
+    private byte[] cachedJsonOf(final Hash primaryHash) {
+        final byte[] json;
+        synchronized (primaryHashToJson) {
+            json = primaryHashToJson.get(primaryHash);
+        }
+        if (json == null || !bank.contains(primaryHash)) {
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return json;
+    }
+
+    private byte[] cache(final Hash primaryHash, final Definition definition) {
+        missCount.incrementAndGet();
+        final var json = toJson(definition);
+        if (json.length > capacity) {
+            return json;
+        }
+        synchronized (primaryHashToJson) {
+            final var previous = primaryHashToJson.put(primaryHash, json);
+            if (previous != null) {
+                size -= previous.length;
+            }
+            size += json.length;
+            final var iterator = primaryHashToJson.entrySet().iterator();
+            while (size > capacity && iterator.hasNext()) {
+                final Map.Entry<Hash, byte[]> eldest = iterator.next();
+                size -= eldest.getValue().length;
+                iterator.remove();
+            }
+        }
+        return json;
+    }
+
+    private static byte[] toJson(final Definition definition) {
+        final var builder = new StringBuilder(1024);
+        DefinitionMessageWriter.writeDefinition(builder, definition);
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Number of bytes of JSON currently cached.
+     */
+    @ThreadSafe
+    public long size() {
+        synchronized (primaryHashToJson) {
+            return size;
+        }
+    }
+
+    /**
+     * @return Number of requested definitions served from this cache.
+     */
+    @ThreadSafe
+    public long hitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return Number of requested definitions that had to be encoded.
+     */
+    @ThreadSafe
+    public long missCount() {
+        return missCount.get();
+    }
+}
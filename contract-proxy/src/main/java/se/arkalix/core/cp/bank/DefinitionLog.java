@@ -0,0 +1,492 @@
+package se.arkalix.core.cp.bank;
+
+import se.arkalix.util.annotation.ThreadSafe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Append-only log of encoded definitions, stored as a sequence of
+ * memory-mapped segment files.
+ * <p>
+ * Each segment starts with a header, which is followed by records of the form
+ * {@code [int length][int crc32][byte[length] payload]}. A record length of
+ * zero marks the end of the data written to a segment. When a record does not
+ * fit in the active segment, a new segment is created.
+ * <p>
+ * Appends are not returned from until the appended record has been forced to
+ * disk. Appends made concurrently share the same force operation, which means
+ * that the number of disk synchronizations grows with the number of bursts
+ * rather than with the number of appended records.
+ * <p>
+ * Segments whose records are no longer needed may be {@link #reclaim(int)
+ * reclaimed}, which removes their files. The records of reclaimed segments
+ * can neither be read nor replayed.
+ */
+public class DefinitionLog implements Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int SEGMENT_MAGIC = 0x4350444C; // "CPDL"
+    private static final int SEGMENT_VERSION = 1;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final Pattern SEGMENT_NAME_PATTERN = Pattern.compile("^definitions-([0-9a-f]{8})\\.log$");
+
+    private final Path directory;
+    private final int segmentSize;
+    // Indexed by segment index. Reclaimed segments are null.
+    private final List<Segment> segments;
+
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Condition commitCondition = commitLock.newCondition();
+    private boolean isCommitting = false;
+    private long committedSequence = 0;
+
+    private Segment activeSegment;
+    private long appendedSequence = 0;
+    private boolean isClosed = false;
+
+    private DefinitionLog(final Path directory, final int segmentSize, final List<Segment> segments) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.segments = segments;
+        this.activeSegment = segments.get(segments.size() - 1);
+    }
+
+    public static DefinitionLog open(final Path directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public static DefinitionLog open(final Path directory, final int segmentSize) throws IOException {
+        Objects.requireNonNull(directory, "Expected directory");
+        if (segmentSize < SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + 1 || segmentSize > (1 << 30)) {
+            throw new IllegalArgumentException("Expected 16 <= segmentSize <= 2^30");
+        }
+
+        Files.createDirectories(directory);
+
+        final List<Path> paths;
+        try (final var stream = Files.list(directory)) {
+            paths = stream
+                .filter(path -> SEGMENT_NAME_PATTERN.matcher(path.getFileName().toString()).matches())
+                .sorted()
+                .collect(Collectors.toList());
+        }
+
+        final var segments = new ArrayList<Segment>(paths.size() + 1);
+        for (var i = 0; i < paths.size(); ++i) {
+            final var path = paths.get(i);
+            final var matcher = SEGMENT_NAME_PATTERN.matcher(path.getFileName().toString());
+            if (!matcher.matches()) {
+                continue;
+            }
+            final var index = Integer.parseInt(matcher.group(1), 16);
+            while (segments.size() < index) {
+                segments.add(null);
+            }
+            segments.add(Segment.open(path, index, i == paths.size() - 1));
+        }
+        if (segments.isEmpty()) {
+            segments.add(Segment.create(directory, 0, segmentSize));
+        }
+        return new DefinitionLog(directory, segmentSize, segments);
+    }
+
+    /**
+     * Appends given payload to the log, and then waits until it has been
+     * forced to disk.
+     *
+     * @param payload Bytes to append.
+     * @return Address of appended record, which can be used to read it back
+     * via {@link #read(long)}.
+     */
+    @ThreadSafe
+    public long append(final byte[] payload) {
+        Objects.requireNonNull(payload, "Expected payload");
+        if (payload.length > segmentSize - SEGMENT_HEADER_SIZE - RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Payload of " + payload.length +
+                " bytes does not fit in definition log segment");
+        }
+
+        final long address;
+        final long sequence;
+        synchronized (this) {
+            if (isClosed) {
+                throw new IllegalStateException("Definition log closed");
+            }
+            var position = activeSegment.tryAppend(payload);
+            if (position < 0) {
+                activeSegment.force();
+                activeSegment = Segment.create(directory, segments.size(), segmentSize);
+                segments.add(activeSegment);
+                position = activeSegment.tryAppend(payload);
+            }
+            address = ((long) activeSegment.index << 32) | position;
+            sequence = ++appendedSequence;
+        }
+        awaitCommitOf(sequence);
+        return address;
+    }
+
+    private void awaitCommitOf(final long sequence) {
+        commitLock.lock();
+        try {
+            while (committedSequence < sequence) {
+                if (isCommitting) {
+                    commitCondition.awaitUninterruptibly();
+                    continue;
+                }
+                isCommitting = true;
+
+                final long targetSequence;
+                final Segment segment;
+                synchronized (this) {
+                    targetSequence = appendedSequence;
+                    segment = activeSegment;
+                }
+
+                commitLock.unlock();
+                var isForced = false;
+                try {
+                    segment.force();
+                    isForced = true;
+                }
+                finally {
+                    commitLock.lock();
+                    isCommitting = false;
+                    if (isForced) {
+                        committedSequence = Math.max(committedSequence, targetSequence);
+                    }
+                    commitCondition.signalAll();
+                }
+            }
+        }
+        finally {
+            commitLock.unlock();
+        }
+    }
+
+    @ThreadSafe
+    public byte[] read(final long address) {
+        final var segmentIndex = segmentIndexOf(address);
+        final var position = (int) address;
+
+        final Segment segment;
+        synchronized (this) {
+            if (segmentIndex < 0 || segmentIndex >= segments.size()) {
+                throw new IllegalArgumentException("No definition log record at " + address);
+            }
+            segment = segments.get(segmentIndex);
+        }
+        if (segment == null) {
+            throw new IllegalArgumentException("Definition log record at " +
+                address + " has been reclaimed");
+        }
+        return segment.read(position);
+    }
+
+    /**
+     * Removes the segment with the given index, unless it is the segment
+     * currently appended to. Must only be called once none of the records
+     * of the segment will ever be read or replayed again.
+     *
+     * @param segmentIndex Index of segment to reclaim.
+     * @return {@code true} only if the segment was reclaimed.
+     * @throws UncheckedIOException If the segment file could not be removed.
+     */
+    @ThreadSafe
+    public boolean reclaim(final int segmentIndex) {
+        final Segment segment;
+        synchronized (this) {
+            if (isClosed || segmentIndex < 0 || segmentIndex >= segments.size()) {
+                return false;
+            }
+            segment = segments.get(segmentIndex);
+            if (segment == null || segment == activeSegment) {
+                return false;
+            }
+            segments.set(segmentIndex, null);
+        }
+        try {
+            Files.deleteIfExists(segment.path);
+        }
+        catch (final IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+        return true;
+    }
+
+    /**
+     * @param address Record address.
+     * @return {@code true} only if the segment of {@code address} exists and
+     * has not been reclaimed.
+     */
+    @ThreadSafe
+    public synchronized boolean isReadable(final long address) {
+        final var segmentIndex = segmentIndexOf(address);
+        return segmentIndex >= 0 && segmentIndex < segments.size() && segments.get(segmentIndex) != null;
+    }
+
+    public static int segmentIndexOf(final long address) {
+        return (int) (address >>> 32);
+    }
+
+    /**
+     * Reads all records in the log, decodes them in parallel segment by
+     * segment, and then provides the results to {@code consumer} in the order
+     * their records were appended.
+     *
+     * @param decoder  Function used to decode each record. May be called
+     *                 concurrently by multiple threads.
+     * @param consumer Function receiving decoded records.
+     * @param <T>      Type of decoded record.
+     * @return Number of replayed records.
+     */
+    public <T> long replay(final Function<Record, T> decoder, final Consumer<T> consumer) {
+        return replay(0, decoder, consumer);
+    }
+
+    /**
+     * Like {@link #replay(Function, Consumer)}, but only replays the records
+     * at or after {@code fromAddress}.
+     *
+     * @param fromAddress Address of first record to replay, or a value
+     *                    previously returned by {@link #end()}.
+     * @param decoder     Function used to decode each record. May be called
+     *                    concurrently by multiple threads.
+     * @param consumer    Function receiving decoded records.
+     * @param <T>         Type of decoded record.
+     * @return Number of replayed records.
+     */
+    public <T> long replay(final long fromAddress, final Function<Record, T> decoder, final Consumer<T> consumer) {
+        Objects.requireNonNull(decoder, "Expected decoder");
+        Objects.requireNonNull(consumer, "Expected consumer");
+
+        final var fromSegmentIndex = (int) (fromAddress >>> 32);
+        final var fromPosition = (int) fromAddress;
+
+        final List<Segment> segments;
+        synchronized (this) {
+            segments = this.segments.stream()
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        }
+
+        final var decodedSegments = segments.parallelStream()
+            .filter(segment -> segment.index >= fromSegmentIndex)
+            .map(segment -> {
+                final var decoded = new ArrayList<T>();
+                segment.forEach(record -> {
+                    if (segment.index > fromSegmentIndex || (int) record.address() >= fromPosition) {
+                        decoded.add(decoder.apply(record));
+                    }
+                });
+                return decoded;
+            })
+            .collect(Collectors.toList());
+
+        var count = 0L;
+        for (final var decodedSegment : decodedSegments) {
+            for (final var decoded : decodedSegment) {
+                consumer.accept(decoded);
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return Address at which the next record appended to this log will be
+     * located, unless a new segment must be created to fit it.
+     */
+    public synchronized long end() {
+        return ((long) activeSegment.index << 32) | activeSegment.end;
+    }
+
+    /**
+     * @return Number of segments in this log, excluding those reclaimed.
+     */
+    public synchronized int segmentCount() {
+        return (int) segments.stream()
+            .filter(Objects::nonNull)
+            .count();
+    }
+
+    @Override
+    public void close() {
+        final List<Segment> segments;
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            segments = this.segments.stream()
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        }
+        for (final var segment : segments) {
+            segment.force();
+        }
+    }
+
+    public static class Record {
+        private final long address;
+        private final ByteBuffer payload;
+
+        private Record(final long address, final ByteBuffer payload) {
+            this.address = address;
+            this.payload = payload;
+        }
+
+        public long address() {
+            return address;
+        }
+
+        public ByteBuffer payload() {
+            return payload;
+        }
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final int index;
+        private final MappedByteBuffer buffer;
+        private volatile int end;
+
+        private Segment(final Path path, final int index, final MappedByteBuffer buffer, final int end) {
+            this.path = path;
+            this.index = index;
+            this.buffer = buffer;
+            this.end = end;
+        }
+
+        static Segment create(final Path directory, final int index, final int size) {
+            final var path = directory.resolve(String.format("definitions-%08x.log", index));
+            try (final var channel = FileChannel.open(path, CREATE_NEW, READ, WRITE)) {
+                final var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.putInt(0, SEGMENT_MAGIC);
+                buffer.putInt(4, SEGMENT_VERSION);
+                buffer.force();
+                channel.force(true);
+                return new Segment(path, index, buffer, SEGMENT_HEADER_SIZE);
+            }
+            catch (final IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+        }
+
+        static Segment open(final Path path, final int index, final boolean isLast) throws IOException {
+            try (final var channel = FileChannel.open(path, READ, WRITE)) {
+                final var size = (int) channel.size();
+                final var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                if (size < SEGMENT_HEADER_SIZE ||
+                    buffer.getInt(0) != SEGMENT_MAGIC ||
+                    buffer.getInt(4) != SEGMENT_VERSION)
+                {
+                    throw new IOException(path + " is not a definition log " +
+                        "segment of a supported version");
+                }
+
+                var end = SEGMENT_HEADER_SIZE;
+                while (end + RECORD_HEADER_SIZE <= size) {
+                    final var length = buffer.getInt(end);
+                    if (length <= 0 || length > size - end - RECORD_HEADER_SIZE) {
+                        break;
+                    }
+                    final var payload = buffer.duplicate();
+                    payload.position(end + RECORD_HEADER_SIZE).limit(end + RECORD_HEADER_SIZE + length);
+                    final var crc = new CRC32();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != buffer.getInt(end + 4)) {
+                        break;
+                    }
+                    end += RECORD_HEADER_SIZE + length;
+                }
+
+                // Anything after the last intact record of the last segment
+                // is the remains of an interrupted append, which must not be
+                // mistaken for a record once new records are appended.
+                if (isLast) {
+                    var i = end;
+                    for (; i + 8 <= size; i += 8) {
+                        if (buffer.getLong(i) != 0) {
+                            buffer.putLong(i, 0);
+                        }
+                    }
+                    for (; i < size; ++i) {
+                        buffer.put(i, (byte) 0);
+                    }
+                    buffer.force();
+                }
+                return new Segment(path, index, buffer, end);
+            }
+        }
+
+        int tryAppend(final byte[] payload) {
+            final var position = end;
+            if (position + RECORD_HEADER_SIZE + payload.length > buffer.capacity()) {
+                return -1;
+            }
+            final var crc = new CRC32();
+            crc.update(payload);
+
+            final var target = buffer.duplicate();
+            target.position(position + 4);
+            target.putInt((int) crc.getValue());
+            target.put(payload);
+
+            // The length is written last, as a non-zero length is what marks
+            // the record as present.
+            buffer.putInt(position, payload.length);
+            end = position + RECORD_HEADER_SIZE + payload.length;
+            return position;
+        }
+
+        byte[] read(final int position) {
+            final var length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > buffer.capacity()) {
+                throw new IllegalArgumentException("No definition log " +
+                    "record at position " + position + " in segment " + index);
+            }
+            final var payload = new byte[length];
+            final var source = buffer.duplicate();
+            source.position(position + RECORD_HEADER_SIZE);
+            source.get(payload);
+            return payload;
+        }
+
+        void forEach(final Consumer<Record> consumer) {
+            final var end = this.end;
+            var position = SEGMENT_HEADER_SIZE;
+            while (position < end) {
+                final var length = buffer.getInt(position);
+                final var payload = buffer.duplicate();
+                payload.position(position + RECORD_HEADER_SIZE).limit(position + RECORD_HEADER_SIZE + length);
+                consumer.accept(new Record(((long) index << 32) | position, payload.slice()));
+                position += RECORD_HEADER_SIZE + length;
+            }
+        }
+
+        void force() {
+            buffer.force();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package se.arkalix.core.cp.bank;
+
+import se.arkalix.core.cp.contract.*;
+import se.arkalix.core.cp.security.*;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads {@link DefinitionMessage DefinitionMessages}, {@link DefinitionQuery
+ * DefinitionQueries} and signed contract messages from parsed trees, such as
+ * those produced by {@link se.arkalix.core.cp.util.JsonParser JsonParser} and
+ * {@link se.arkalix.core.cp.util.CborParser CborParser}.
+ * <p>
+ * Trees must have the same structure as that of the JSON representations of
+ * the read DTOs, which is also the structure written by {@link
+ * DefinitionMessageWriter} and {@link DefinitionCborWriter}.
+ */
+public class DefinitionMessageReader {
+    private DefinitionMessageReader() {}
+
+    /**
+     * @param tree List of message trees.
+     * @return Read messages.
+     * @throws IllegalArgumentException If {@code tree} is malformed.
+     */
+    public static List<DefinitionMessageDto> readList(final Object tree) {
+        final var list = asList(tree, "messages");
+        final var messages = new ArrayList<DefinitionMessageDto>(list.size());
+        for (final var item : list) {
+            messages.add(readMessage(item));
+        }
+        return messages;
+    }
+
+    /**
+     * @param tree Message tree.
+     * @return Read message.
+     * @throws IllegalArgumentException If {@code tree} is malformed.
+     */
+    public static DefinitionMessageDto readMessage(final Object tree) {
+        final var object = asObject(tree, "message");
+        final var builder = new DefinitionMessageBuilder()
+            .hashes(readHashes(object.get("hashes"), "hashes"));
+        final var acceptance = object.get("acceptance");
+        if (acceptance != null) {
+            builder.acceptance(readAcceptance(acceptance));
+        }
+        final var offer = object.get("offer");
+        if (offer != null) {
+            builder.offer(readOffer(offer));
+        }
+        final var rejection = object.get("rejection");
+        if (rejection != null) {
+            builder.rejection(readRejection(rejection));
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param tree Query tree.
+     * @return Read query.
+     * @throws IllegalArgumentException If {@code tree} is malformed.
+     */
+    public static DefinitionQueryDto readQuery(final Object tree) {
+        final var object = asObject(tree, "query");
+        final var builder = new DefinitionQueryBuilder();
+        final var hashes = object.get("hashes");
+        if (hashes != null) {
+            builder.hashes(readHashes(hashes, "hashes"));
+        }
+        final var ids = object.get("ids");
+        if (ids != null) {
+            final var list = asList(ids, "ids");
+            final var ids0 = new ArrayList<Long>(list.size());
+            for (final var id : list) {
+                ids0.add(asLong(id, "ids"));
+            }
+            builder.ids(ids0);
+        }
+        final var cursor = object.get("cursor");
+        if (cursor != null) {
+            builder.cursor(asString(cursor, "cursor"));
+        }
+        final var limit = object.get("limit");
+        if (limit != null) {
+            final var limit0 = asLong(limit, "limit");
+            if (limit0 < 1 || limit0 > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Expected \"limit\" to be a positive integer");
+            }
+            builder.limit((int) limit0);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param tree Acceptance tree.
+     * @return Read acceptance.
+     * @throws IllegalArgumentException If {@code tree} is malformed.
+     */
+    public static SignedContractAcceptanceDto readAcceptance(final Object tree) {
+        final var object = asObject(tree, "acceptance");
+        return new SignedContractAcceptanceBuilder()
+            .negotiationId(asLong(object.get("negotiationId"), "negotiationId"))
+            .acceptorFingerprint(readHash(object.get("acceptorFingerprint"), "acceptorFingerprint"))
+            .offerorFingerprint(readHash(object.get("offerorFingerprint"), "offerorFingerprint"))
+            .offerHash(readHash(object.get("offerHash"), "offerHash"))
+            .signature(readSignature(object.get("signature")))
+            .build();
+    }
+
+    /**
+     * @param tree Offer tree.
+     * @return Read offer.
+     * @throws IllegalArgumentException If {@code tree} is malformed.
+     */
+    public static SignedContractOfferDto readOffer(final Object tree) {
+        final var object = asObject(tree, "offer");
+        final var contracts = asList(object.get("contracts"), "contracts");
+        final var contracts0 = new ArrayList<ContractBase64Dto>(contracts.size());
+        for (final var contract : contracts) {
+            contracts0.add(readContract(contract));
+        }
+        return new SignedContractOfferBuilder()
+            .negotiationId(asLong(object.get("negotiationId"), "negotiationId"))
+            .offerorFingerprint(readHash(object.get("offerorFingerprint"), "offerorFingerprint"))
+            .receiverFingerprint(readHash(object.get("receiverFingerprint"), "receiverFingerprint"))
+            .validAfter(asInstant(object.get("validAfter"), "validAfter"))
+            .validUntil(asInstant(object.get("validUntil"), "validUntil"))
+            .contracts(contracts0)
+            .signature(readSignature(object.get("signature")))
+            .build();
+    }
+
+    /**
+     * @param tree Rejection tree.
+     * @return Read rejection.
+     * @throws IllegalArgumentException If {@code tree} is malformed.
+     */
+    public static SignedContractRejectionDto readRejection(final Object tree) {
+        final var object = asObject(tree, "rejection");
+        return new SignedContractRejectionBuilder()
+            .negotiationId(asLong(object.get("negotiationId"), "negotiationId"))
+            .rejectorFingerprint(readHash(object.get("rejectorFingerprint"), "rejectorFingerprint"))
+            .offerorFingerprint(readHash(object.get("offerorFingerprint"), "offerorFingerprint"))
+            .offerHash(readHash(object.get("offerHash"), "offerHash"))
+            .signature(readSignature(object.get("signature")))
+            .build();
+    }
+
+    private static ContractBase64Dto readContract(final Object tree) {
+        final var object = asObject(tree, "contract");
+        final var arguments = asObject(object.get("arguments"), "arguments");
+        final var arguments0 = new HashMap<String, String>(arguments.size());
+        for (final var entry : arguments.entrySet()) {
+            arguments0.put(entry.getKey(), asString(entry.getValue(), "arguments"));
+        }
+        return new ContractBase64Builder()
+            .templateHash(readHash(object.get("templateHash"), "templateHash"))
+            .arguments(arguments0)
+            .build();
+    }
+
+    private static List<HashBase64Dto> readHashes(final Object tree, final String name) {
+        final var list = asList(tree, name);
+        final var hashes = new ArrayList<HashBase64Dto>(list.size());
+        for (final var item : list) {
+            hashes.add(readHash(item, name));
+        }
+        return hashes;
+    }
+
+    private static HashBase64Dto readHash(final Object tree, final String name) {
+        final var object = asObject(tree, name);
+        return new HashBase64Builder()
+            .algorithm(HashAlgorithm.valueOf(asString(object.get("algorithm"), name + ".algorithm")))
+            .sum(asBase64(object.get("sum"), name + ".sum"))
+            .build();
+    }
+
+    private static SignatureBase64Dto readSignature(final Object tree) {
+        final var object = asObject(tree, "signature");
+        return new SignatureBase64Builder()
+            .timestamp(asInstant(object.get("timestamp"), "signature.timestamp"))
+            .scheme(SignatureScheme.valueOf(asString(object.get("scheme"), "signature.scheme")))
+            .sum(asBase64(object.get("sum"), "signature.sum"))
+            .build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asObject(final Object tree, final String name) {
+        if (!(tree instanceof Map)) {
+            throw new IllegalArgumentException("Expected \"" + name + "\" to be an object");
+        }
+        return (Map<String, Object>) tree;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> asList(final Object tree, final String name) {
+        if (!(tree instanceof List)) {
+            throw new IllegalArgumentException("Expected \"" + name + "\" to be a list");
+        }
+        return (List<Object>) tree;
+    }
+
+    private static String asString(final Object tree, final String name) {
+        if (!(tree instanceof String)) {
+            throw new IllegalArgumentException("Expected \"" + name + "\" to be a string");
+        }
+        return (String) tree;
+    }
+
+    // Sums are base64 text in JSON trees, but raw bytes in CBOR trees.
+    private static String asBase64(final Object tree, final String name) {
+        if (tree instanceof byte[]) {
+            return Base64.getEncoder().encodeToString((byte[]) tree);
+        }
+        return asString(tree, name);
+    }
+
+    private static long asLong(final Object tree, final String name) {
+        if (!(tree instanceof Long)) {
+            throw new IllegalArgumentException("Expected \"" + name + "\" to be an integer");
+        }
+        return (Long) tree;
+    }
+
+    private static Instant asInstant(final Object tree, final String name) {
+        try {
+            return Instant.parse(asString(tree, name));
+        }
+        catch (final DateTimeParseException exception) {
+            throw new IllegalArgumentException("Expected \"" + name + "\" to be an ISO-8601 instant", exception);
+        }
+    }
+}
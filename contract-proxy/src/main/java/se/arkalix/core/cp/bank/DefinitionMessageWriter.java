@@ -0,0 +1,251 @@
+package se.arkalix.core.cp.bank;
+
+import se.arkalix.core.cp.contract.ContractBase64;
+import se.arkalix.core.cp.contract.SignedContractAcceptance;
+import se.arkalix.core.cp.contract.SignedContractOffer;
+import se.arkalix.core.cp.contract.SignedContractRejection;
+import se.arkalix.core.cp.security.Hash;
+import se.arkalix.core.cp.security.HashBase64;
+import se.arkalix.util.InternalException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Writes a JSON array of {@link DefinitionMessage DefinitionMessages}, one
+ * definition at a time.
+ * <p>
+ * Each added definition is encoded directly into the output buffer, which
+ * means that no intermediary list of message DTOs has to be collected before
+ * a response can be written. The produced JSON is equivalent to what would
+ * be produced by encoding the corresponding {@code DefinitionMessageDto}
+ * list.
+ */
+public class DefinitionMessageWriter {
+    private final ByteArrayOutputStream output;
+    private final StringBuilder builder = new StringBuilder(1024);
+    private int count = 0;
+
+    public DefinitionMessageWriter() {
+        this(8192);
+    }
+
+    public DefinitionMessageWriter(final int initialCapacity) {
+        output = new ByteArrayOutputStream(initialCapacity);
+        output.write('[');
+    }
+
+    /**
+     * Adds definition to written array.
+     *
+     * @param definition Definition to add.
+     * @param hashes     Hashes to associate with definition in message.
+     * @return This writer.
+     */
+    public DefinitionMessageWriter write(final Definition definition, final Collection<Hash> hashes) {
+        Objects.requireNonNull(definition, "Expected definition");
+        Objects.requireNonNull(hashes, "Expected hashes");
+
+        builder.setLength(0);
+        if (count++ != 0) {
+            builder.append(',');
+        }
+        writeMessage(builder, definition, hashes);
+        output.writeBytes(builder.toString().getBytes(StandardCharsets.UTF_8));
+        return this;
+    }
+
+    /**
+     * Adds already written definition to written array.
+     *
+     * @param definitionJson Definition, as written by {@link
+     *                       #writeDefinition(StringBuilder, Definition)}.
+     * @param hashes         Hashes to associate with definition in message.
+     * @return This writer.
+     */
+    public DefinitionMessageWriter write(final byte[] definitionJson, final Collection<Hash> hashes) {
+        Objects.requireNonNull(definitionJson, "Expected definitionJson");
+        Objects.requireNonNull(hashes, "Expected hashes");
+
+        builder.setLength(0);
+        if (count++ != 0) {
+            builder.append(',');
+        }
+        writeHashes(builder, hashes);
+        builder.append(',');
+        output.writeBytes(builder.toString().getBytes(StandardCharsets.UTF_8));
+        output.writeBytes(definitionJson);
+        output.write('}');
+        return this;
+    }
+
+    /**
+     * Adds definition entry to written array.
+     *
+     * @param entry Entry to add.
+     * @return This writer.
+     */
+    public DefinitionMessageWriter write(final DefinitionEntry entry) {
+        return write(entry.definition(), entry.hashes());
+    }
+
+    /**
+     * @return Number of definitions written so far.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Closes written array and returns its bytes. No more definitions may be
+     * written after this method has been called.
+     *
+     * @return UTF-8 encoded JSON array.
+     */
+    public byte[] toByteArray() {
+        output.write(']');
+        return output.toByteArray();
+    }
+
+    /**
+     * Writes JSON object representing a single {@link DefinitionMessage} to
+     * given {@code builder}.
+     *
+     * @param builder    Builder to write to.
+     * @param definition Definition to write.
+     * @param hashes     Hashes to associate with definition in message.
+     */
+    public static void writeMessage(
+        final StringBuilder builder,
+        final Definition definition,
+        final Collection<Hash> hashes)
+    {
+        writeHashes(builder, hashes);
+        builder.append(',');
+        writeDefinition(builder, definition);
+        builder.append('}');
+    }
+
+    /**
+     * Writes the member of a {@link DefinitionMessage} JSON object that holds
+     * given definition, such as {@code "offer":{...}}, to given {@code
+     * builder}.
+     *
+     * @param builder    Builder to write to.
+     * @param definition Definition to write.
+     */
+    public static void writeDefinition(final StringBuilder builder, final Definition definition) {
+        if (definition instanceof SignedContractAcceptance) {
+            builder.append("\"acceptance\":");
+            ((SignedContractAcceptance) definition).writeCanonicalJson(builder, true);
+        }
+        else if (definition instanceof SignedContractOffer) {
+            builder.append("\"offer\":");
+            writeOffer(builder, (SignedContractOffer) definition);
+        }
+        else if (definition instanceof SignedContractRejection) {
+            builder.append("\"rejection\":");
+            ((SignedContractRejection) definition).writeCanonicalJson(builder, true);
+        }
+        else {
+            throw new InternalException("Cannot write DefinitionMessage from " + definition);
+        }
+    }
+
+    // Writes the opening brace of a message object and its hashes.
+    private static void writeHashes(final StringBuilder builder, final Collection<Hash> hashes) {
+        builder.append("{\"hashes\":[");
+        var i = 0;
+        for (final var hash : hashes) {
+            if (i++ != 0) {
+                builder.append(',');
+            }
+            HashBase64.from(hash).writeCanonicalJson(builder);
+        }
+        builder.append(']');
+    }
+
+    /**
+     * Writes JSON representation of given offer to given {@code builder}.
+     * <p>
+     * The canonical form of offers cannot be used for this purpose, as it
+     * does not quote or escape contract arguments.
+     *
+     * @param builder Builder to write to.
+     * @param offer   Offer to write.
+     */
+    public static void writeOffer(final StringBuilder builder, final SignedContractOffer offer) {
+        builder
+            .append("{\"negotiationId\":")
+            .append(offer.negotiationId());
+
+        builder.append(",\"offerorFingerprint\":");
+        offer.offerorFingerprint().writeCanonicalJson(builder);
+
+        builder.append(",\"receiverFingerprint\":");
+        offer.receiverFingerprint().writeCanonicalJson(builder);
+
+        builder
+            .append(",\"validAfter\":\"")
+            .append(offer.validAfter())
+            .append("\",\"validUntil\":\"")
+            .append(offer.validUntil())
+            .append("\",\"contracts\":[");
+
+        var i = 0;
+        for (final var contract : offer.contracts()) {
+            if (i++ != 0) {
+                builder.append(',');
+            }
+            writeContract(builder, contract);
+        }
+
+        builder.append("],\"signature\":");
+        offer.signature().writeCanonicalJson(builder, true);
+
+        builder.append('}');
+    }
+
+    private static void writeContract(final StringBuilder builder, final ContractBase64 contract) {
+        builder.append("{\"templateHash\":");
+        contract.templateHash().writeCanonicalJson(builder);
+        builder.append(",\"arguments\":{");
+        var i = 0;
+        for (final Map.Entry<String, String> argument : contract.arguments().entrySet()) {
+            if (i++ != 0) {
+                builder.append(',');
+            }
+            writeString(builder, argument.getKey());
+            builder.append(':');
+            writeString(builder, argument.getValue());
+        }
+        builder.append("}}");
+    }
+
+    private static void writeString(final StringBuilder builder, final String string) {
+        builder.append('"');
+        for (var i = 0; i < string.length(); ++i) {
+            final var c = string.charAt(i);
+            switch (c) {
+            case '"': builder.append("\\\""); break;
+            case '\\': builder.append("\\\\"); break;
+            case '\b': builder.append("\\b"); break;
+            case '\f': builder.append("\\f"); break;
+            case '\n': builder.append("\\n"); break;
+            case '\r': builder.append("\\r"); break;
+            case '\t': builder.append("\\t"); break;
+            default:
+                if (c < 0x20) {
+                    builder.append(String.format("\\u%04x", (int) c));
+                }
+                else {
+                    builder.append(c);
+                }
+            }
+        }
+        builder.append('"');
+    }
+}
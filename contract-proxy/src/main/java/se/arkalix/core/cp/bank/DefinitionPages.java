@@ -0,0 +1,121 @@
+package se.arkalix.core.cp.bank;
+
+import se.arkalix.core.cp.security.Hash;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+/**
+ * Splits the results of definition queries into pages, which means that the
+ * responses to large queries never have to hold all matching definitions.
+ */
+public final class DefinitionPages {
+    private DefinitionPages() {}
+
+    /**
+     * Visits the page of definitions starting at {@code cursor}.
+     * <p>
+     * If negotiation identifiers are given, the definitions of the
+     * identified negotiations are visited, optionally only those having any
+     * of the given hashes, together with their hashes calculated with every
+     * accepted hash algorithm. Otherwise, the definitions with the given
+     * hashes are visited, each together with the hash it was found by.
+     *
+     * @param bank           Bank to look up definitions in.
+     * @param negotiationIds Negotiation identifiers, or an empty list.
+     * @param hashes         Hashes of definitions, or an empty list.
+     * @param cursor         Cursor identifying first definition of page.
+     * @param limit          Maximum number of definitions to visit.
+     * @param consumer       Function receiving each visited definition
+     *                       entry and the hashes to list it with.
+     * @return Cursor identifying the first definition of the next page, or
+     * {@code null} if there are no more definitions.
+     */
+    public static DefinitionCursor visit(
+        final DefinitionBank bank,
+        final List<Long> negotiationIds,
+        final List<Hash> hashes,
+        final DefinitionCursor cursor,
+        final int limit,
+        final BiConsumer<DefinitionEntry, List<Hash>> consumer)
+    {
+        Objects.requireNonNull(bank, "Expected bank");
+        Objects.requireNonNull(negotiationIds, "Expected negotiationIds");
+        Objects.requireNonNull(hashes, "Expected hashes");
+        Objects.requireNonNull(cursor, "Expected cursor");
+        Objects.requireNonNull(consumer, "Expected consumer");
+        if (limit < 1) {
+            throw new IllegalArgumentException("Expected limit > 0");
+        }
+
+        return negotiationIds.isEmpty()
+            ? visitByHashes(bank, hashes, cursor, limit, consumer)
+            : visitByIds(bank, negotiationIds, hashes, cursor, limit, consumer);
+    }
+
+    private static DefinitionCursor visitByHashes(
+        final DefinitionBank bank,
+        final List<Hash> hashes,
+        final DefinitionCursor cursor,
+        final int limit,
+        final BiConsumer<DefinitionEntry, List<Hash>> consumer)
+    {
+        var count = 0;
+        for (var i = cursor.index(); i < hashes.size(); ++i) {
+            final var hash = hashes.get(i);
+            final var entry = bank.getEntry(hash).orElse(null);
+            if (entry == null) {
+                continue;
+            }
+            if (count++ == limit) {
+                return new DefinitionCursor(i, 0);
+            }
+            consumer.accept(entry, List.of(hash));
+        }
+        return null;
+    }
+
+    // Definitions are only ever appended to negotiations, which is why the
+    // offset of a cursor keeps identifying the same definition of its
+    // negotiation between pages.
+    private static DefinitionCursor visitByIds(
+        final DefinitionBank bank,
+        final List<Long> negotiationIds,
+        final List<Hash> hashes,
+        final DefinitionCursor cursor,
+        final int limit,
+        final BiConsumer<DefinitionEntry, List<Hash>> consumer)
+    {
+        final var ids = new ArrayList<>(new LinkedHashSet<>(negotiationIds));
+        if (cursor.index() >= ids.size()) {
+            return null;
+        }
+        LinkedHashMap<Long, List<DefinitionEntry>> idToMatches = null;
+        if (!hashes.isEmpty()) {
+            idToMatches = new LinkedHashMap<>();
+            for (final var entry : bank.get(ids.subList(cursor.index(), ids.size()), hashes)) {
+                idToMatches.computeIfAbsent(entry.definition().negotiationId(), ignored -> new ArrayList<>())
+                    .add(entry);
+            }
+        }
+        var count = 0;
+        for (var i = cursor.index(); i < ids.size(); ++i) {
+            final var id = ids.get(i);
+            final List<DefinitionEntry> entries = idToMatches != null
+                ? idToMatches.getOrDefault(id, List.of())
+                : new ArrayList<>(bank.get(id));
+            for (var j = i == cursor.index() ? cursor.offset() : 0; j < entries.size(); ++j) {
+                if (count++ == limit) {
+                    return new DefinitionCursor(i, j);
+                }
+                final var entry = entries.get(j);
+                consumer.accept(entry, bank.acceptedHashesOf(entry));
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,63 @@
+package se.arkalix.core.cp.bank;
+
+import se.arkalix.core.cp.security.HashBase64;
+import se.arkalix.dto.DtoReadableAs;
+import se.arkalix.dto.DtoToString;
+import se.arkalix.dto.DtoWritableAs;
+
+import java.util.List;
+import java.util.Optional;
+
+import static se.arkalix.dto.DtoEncoding.JSON;
+
+/**
+ * Batch lookup of definitions, either by the hashes of the definitions or by
+ * the identifiers of the negotiations they belong to.
+ * <p>
+ * The definitions found are returned in pages of at most {@link
+ * #MAX_PAGE_SIZE} definitions. If more definitions remain, the response
+ * carries a {@link #NEXT_CURSOR_HEADER} header, the value of which is to be
+ * given as {@link #cursor()} of the same query to get the next page.
+ */
+@DtoReadableAs(JSON)
+@DtoWritableAs(JSON)
+@DtoToString
+public interface DefinitionQuery {
+    /**
+     * Maximum number of hashes and negotiation identifiers a single query may
+     * contain.
+     */
+    int MAX_SIZE = 16384;
+
+    /**
+     * Maximum number of definitions a single response to a query may
+     * contain.
+     */
+    int MAX_PAGE_SIZE = 256;
+
+    /**
+     * Name of response header holding the cursor of the next page of
+     * definitions, if any.
+     */
+    String NEXT_CURSOR_HEADER = "next-cursor";
+
+    Optional<List<HashBase64>> hashes();
+
+    Optional<List<Long>> ids();
+
+    /**
+     * @return Cursor of page to get, as given by the {@link
+     * #NEXT_CURSOR_HEADER} header of the response to the previous page.
+     */
+    Optional<String> cursor();
+
+    /**
+     * @return Maximum number of definitions to get, which is capped at
+     * {@link #MAX_PAGE_SIZE}.
+     */
+    Optional<Integer> limit();
+
+    default int size() {
+        return hashes().map(List::size).orElse(0) + ids().map(List::size).orElse(0);
+    }
+}
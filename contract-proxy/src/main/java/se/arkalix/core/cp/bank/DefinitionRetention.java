@@ -0,0 +1,24 @@
+package se.arkalix.core.cp.bank;
+
+/**
+ * Determines what happens to the definitions of a concluded negotiation once
+ * its {@link DefinitionRetentionPolicy#gracePeriod() grace period} has
+ * passed.
+ */
+public enum DefinitionRetention {
+    /**
+     * Definitions are kept in the {@link DefinitionBank} indefinitely.
+     */
+    HOT,
+
+    /**
+     * Definitions are moved to a compressed {@link DefinitionArchive}, from
+     * which they are read back whenever requested.
+     */
+    COLD,
+
+    /**
+     * Definitions are removed from the {@link DefinitionBank}.
+     */
+    DROP,
+}
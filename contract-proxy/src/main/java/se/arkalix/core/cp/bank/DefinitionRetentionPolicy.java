@@ -0,0 +1,79 @@
+package se.arkalix.core.cp.bank;
+
+import se.arkalix.core.plugin.cp.ContractNegotiationStatus;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+
+import static se.arkalix.core.plugin.cp.ContractNegotiationStatus.OFFERING;
+
+/**
+ * Specifies the {@link DefinitionRetention retention} of definitions
+ * belonging to negotiations with each negotiation status.
+ * <p>
+ * Definitions of negotiations with the {@link ContractNegotiationStatus#OFFERING
+ * OFFERING} status are always {@link DefinitionRetention#HOT HOT}.
+ */
+public class DefinitionRetentionPolicy {
+    private final Map<ContractNegotiationStatus, DefinitionRetention> statusToRetention;
+    private final Duration gracePeriod;
+
+    private DefinitionRetentionPolicy(final Builder builder) {
+        statusToRetention = new EnumMap<>(builder.statusToRetention);
+        gracePeriod = Objects.requireNonNullElse(builder.gracePeriod, Duration.ZERO);
+        if (gracePeriod.isNegative()) {
+            throw new IllegalArgumentException("Expected gracePeriod >= 0");
+        }
+    }
+
+    /**
+     * @return Time that must pass since a negotiation was concluded before
+     * its retention is applied.
+     */
+    public Duration gracePeriod() {
+        return gracePeriod;
+    }
+
+    public DefinitionRetention retentionOf(final ContractNegotiationStatus status) {
+        Objects.requireNonNull(status, "Expected status");
+        return statusToRetention.getOrDefault(status, DefinitionRetention.HOT);
+    }
+
+    public boolean isAllHot() {
+        return statusToRetention.values()
+            .stream()
+            .allMatch(retention -> retention == DefinitionRetention.HOT);
+    }
+
+    public boolean isAnyCold() {
+        return statusToRetention.containsValue(DefinitionRetention.COLD);
+    }
+
+    public static class Builder {
+        private final Map<ContractNegotiationStatus, DefinitionRetention> statusToRetention =
+            new EnumMap<>(ContractNegotiationStatus.class);
+        private Duration gracePeriod;
+
+        public Builder retention(final ContractNegotiationStatus status, final DefinitionRetention retention) {
+            Objects.requireNonNull(status, "Expected status");
+            Objects.requireNonNull(retention, "Expected retention");
+            if (status == OFFERING && retention != DefinitionRetention.HOT) {
+                throw new IllegalArgumentException("Definitions of negotiations " +
+                    "with the OFFERING status must be retained as HOT");
+            }
+            statusToRetention.put(status, retention);
+            return this;
+        }
+
+        public Builder gracePeriod(final Duration gracePeriod) {
+            this.gracePeriod = gracePeriod;
+            return this;
+        }
+
+        public DefinitionRetentionPolicy build() {
+            return new DefinitionRetentionPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package se.arkalix.core.cp.bank;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Binary snapshot of the definitions held by a {@link DefinitionBank}.
+ * <p>
+ * A snapshot file consists of a header {@code [int magic][int version][long
+ * logAddress]}, followed by records of the form {@code [int length][long
+ * address][byte[length - 8] entry]}, where each entry is encoded as by {@link
+ * DefinitionCodec#encode(DefinitionEntry)}. The records are terminated by a
+ * zero length, which is followed by {@code [long recordCount][int crc32]}.
+ * The checksum covers every byte in the file that precedes it.
+ * <p>
+ * Snapshots are written to a temporary file, which replaces any previous
+ * snapshot only when completely written, and are read via sequential
+ * memory-mapped reads.
+ */
+public final class DefinitionSnapshot {
+    /**
+     * Log address used if a snapshot is not associated with a {@link
+     * DefinitionLog}.
+     */
+    public static final long NO_LOG_ADDRESS = -1;
+
+    private static final int MAGIC = 0x43504453; // "CPDS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int TRAILER_SIZE = 16;
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private final long logAddress;
+    private final List<Record> records;
+
+    private DefinitionSnapshot(final long logAddress, final List<Record> records) {
+        this.logAddress = logAddress;
+        this.records = records;
+    }
+
+    /**
+     * @return Address of first {@link DefinitionLog} record not necessarily
+     * included in this snapshot, or {@link #NO_LOG_ADDRESS}.
+     */
+    public long logAddress() {
+        return logAddress;
+    }
+
+    public List<Record> records() {
+        return records;
+    }
+
+    /**
+     * Reads and verifies the snapshot at {@code path}, if any. Entries are
+     * decoded in parallel.
+     *
+     * @param path Path to snapshot file.
+     * @return Snapshot, if a file exists at {@code path}.
+     * @throws IOException If the file exists but is not a valid snapshot.
+     */
+    public static Optional<DefinitionSnapshot> read(final Path path) throws IOException {
+        Objects.requireNonNull(path, "Expected path");
+
+        if (!Files.exists(path)) {
+            return Optional.empty();
+        }
+        try (final var channel = FileChannel.open(path, READ)) {
+            final var size = channel.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE) {
+                throw new IOException(path + " is not a definition snapshot");
+            }
+
+            final var crc = new CRC32();
+            for (var position = 0L; position < size - 4; position += WINDOW_SIZE) {
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(WINDOW_SIZE, size - 4 - position)));
+            }
+            final var trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER_SIZE, TRAILER_SIZE);
+            if ((int) crc.getValue() != trailer.getInt(12)) {
+                throw new IOException("Definition snapshot " + path + " is corrupt");
+            }
+
+            final var header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException(path + " is not a definition snapshot " +
+                    "of a supported version");
+            }
+            final var logAddress = header.getLong(8);
+
+            final var slices = new ArrayList<ByteBuffer>();
+            var windowStart = (long) HEADER_SIZE;
+            var window = map(channel, windowStart, size);
+            var position = windowStart;
+            while (true) {
+                if (position + 4 > windowStart + window.capacity()) {
+                    windowStart = position;
+                    window = map(channel, windowStart, size);
+                }
+                final var length = window.getInt((int) (position - windowStart));
+                if (length == 0) {
+                    break;
+                }
+                if (length < 8 || position + 4 + length > size - TRAILER_SIZE) {
+                    throw new IOException("Definition snapshot " + path + " is corrupt");
+                }
+                if (position + 4 + length > windowStart + window.capacity()) {
+                    windowStart = position;
+                    window = map(channel, windowStart, size);
+                }
+                final var offset = (int) (position - windowStart) + 4;
+                slices.add(window.duplicate().position(offset).limit(offset + length).slice());
+                position += 4 + length;
+            }
+            if (slices.size() != trailer.getLong(4)) {
+                throw new IOException("Definition snapshot " + path + " is corrupt");
+            }
+
+            final var records = IntStream.range(0, slices.size())
+                .parallel()
+                .mapToObj(index -> {
+                    final var slice = slices.get(index);
+                    final var address = slice.getLong();
+                    return new Record(address, DefinitionCodec.decodeEntry(slice));
+                })
+                .collect(Collectors.toList());
+
+            return Optional.of(new DefinitionSnapshot(logAddress, records));
+        }
+    }
+
+    private static MappedByteBuffer map(final FileChannel channel, final long position, final long size)
+        throws IOException
+    {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, size - position));
+    }
+
+    /**
+     * Creates a writer of a new snapshot, which replaces any existing snapshot
+     * at {@code path} once {@link Writer#commit() committed}.
+     *
+     * @param path       Path to snapshot file.
+     * @param logAddress Address of first {@link DefinitionLog} record not
+     *                   necessarily included in the snapshot, or {@link
+     *                   #NO_LOG_ADDRESS}.
+     * @return New snapshot writer.
+     * @throws IOException If the writer could not be created.
+     */
+    public static Writer writer(final Path path, final long logAddress) throws IOException {
+        Objects.requireNonNull(path, "Expected path");
+        return new Writer(path, logAddress);
+    }
+
+    public static class Record {
+        private final long address;
+        private final DefinitionEntry entry;
+
+        private Record(final long address, final DefinitionEntry entry) {
+            this.address = address;
+            this.entry = entry;
+        }
+
+        /**
+         * @return Address of {@link DefinitionLog} record containing the
+         * entry of this record, or {@link #NO_LOG_ADDRESS}.
+         */
+        public long address() {
+            return address;
+        }
+
+        public DefinitionEntry entry() {
+            return entry;
+        }
+    }
+
+    public static class Writer implements Closeable {
+        private final Path path;
+        private final Path temporaryPath;
+        private final FileChannel channel;
+        private final CRC32 crc = new CRC32();
+        private final DataOutputStream output;
+
+        private long recordCount = 0;
+        private boolean isCommitted = false;
+
+        private Writer(final Path path, final long logAddress) throws IOException {
+            this.path = path;
+            temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+            final var parent = path.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            channel = FileChannel.open(temporaryPath, CREATE, TRUNCATE_EXISTING, WRITE);
+            output = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), crc));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(logAddress);
+        }
+
+        public void write(final long address, final DefinitionEntry entry) throws IOException {
+            Objects.requireNonNull(entry, "Expected entry");
+            final var encoded = DefinitionCodec.encode(entry);
+            output.writeInt(encoded.length + 8);
+            output.writeLong(address);
+            output.write(encoded);
+            recordCount += 1;
+        }
+
+        public long recordCount() {
+            return recordCount;
+        }
+
+        /**
+         * Completes this snapshot, forces it to disk and then atomically
+         * replaces any previous snapshot with it.
+         *
+         * @throws IOException If the snapshot could not be completed.
+         */
+        public void commit() throws IOException {
+            output.writeInt(0);
+            output.writeLong(recordCount);
+            final var checksum = (int) crc.getValue();
+            output.writeInt(checksum);
+            output.flush();
+            channel.force(true);
+            channel.close();
+            Files.move(temporaryPath, path, ATOMIC_MOVE, REPLACE_EXISTING);
+            isCommitted = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (isCommitted) {
+                return;
+            }
+            channel.close();
+            Files.deleteIfExists(temporaryPath);
+        }
+    }
+}
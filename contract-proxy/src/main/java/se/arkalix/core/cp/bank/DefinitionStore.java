@@ -0,0 +1,78 @@
+package se.arkalix.core.cp.bank;
+
+import se.arkalix.core.cp.security.Hash;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Storage engine holding the hot definitions of a {@link DefinitionBank}.
+ * <p>
+ * A store is only responsible for keeping and looking up {@link
+ * DefinitionEntry entries}. Hashing, Bloom filtering, logging, snapshots,
+ * archiving and retention are taken care of by the bank using it.
+ * <p>
+ * All methods of a store must be safe to call concurrently.
+ */
+public interface DefinitionStore extends Closeable {
+    /**
+     * Address given to {@link #add(DefinitionEntry, long)} when the entry
+     * has no {@link DefinitionLog} record.
+     */
+    long NO_ADDRESS = -1;
+
+    /**
+     * Adds given entry to this store.
+     *
+     * @param entry   Entry to add.
+     * @param address Address of the {@link DefinitionLog} record holding
+     *                {@code entry}, or {@link #NO_ADDRESS}.
+     * @throws IllegalStateException If any hash of {@code entry} is already
+     *                               in this store.
+     */
+    void add(DefinitionEntry entry, long address);
+
+    boolean contains(Hash hash);
+
+    Optional<Definition> get(Hash hash);
+
+    /**
+     * @param negotiationId Identifier of negotiation.
+     * @return Entries of identified negotiation, in the order they were
+     * added.
+     */
+    List<DefinitionEntry> get(long negotiationId);
+
+    /**
+     * Provides every entry in this store to {@code visitor}. The entries of
+     * each negotiation are visited in the order they were added.
+     *
+     * @param visitor Function receiving each entry and the address it was
+     *                {@link #add(DefinitionEntry, long) added} with, if
+     *                retained by this store, or {@link #NO_ADDRESS}.
+     */
+    void scan(Visitor visitor);
+
+    /**
+     * Removes the first {@code count} entries of the identified negotiation
+     * from this store.
+     *
+     * @param negotiationId Identifier of negotiation.
+     * @param count         Number of entries to remove.
+     */
+    void evict(long negotiationId, int count);
+
+    /**
+     * @return {@code true} only if the entries of this store remain
+     * available after it is closed and opened again.
+     */
+    boolean isPersistent();
+
+    @Override
+    default void close() {}
+
+    interface Visitor {
+        void accept(long address, DefinitionEntry entry);
+    }
+}
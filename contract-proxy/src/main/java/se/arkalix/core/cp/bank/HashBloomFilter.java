@@ -0,0 +1,159 @@
+package se.arkalix.core.cp.bank;
+
+import se.arkalix.core.cp.security.Hash;
+import se.arkalix.core.cp.security.HashAlgorithm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrent Bloom filter over {@link Hash hashes}, used to answer most
+ * lookups of hashes that are not in the {@link DefinitionBank} without
+ * consulting its indexes.
+ * <p>
+ * The filter is scalable, meaning that it consists of a sequence of stages.
+ * Whenever the last stage has been given as many hashes as it was sized for,
+ * a new stage twice as large and with half the false positive rate is
+ * created. The combined false positive rate of all stages, consequently,
+ * never exceeds twice that of the first stage. As hash sums are already
+ * uniformly distributed, the bit positions of each hash are derived directly
+ * from its sum.
+ * <p>
+ * Hashes cannot be removed from the filter.
+ */
+final class HashBloomFilter {
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private volatile Stage[] stages;
+
+    HashBloomFilter(final long initialCapacity, final double falsePositiveRate) {
+        if (initialCapacity <= 0) {
+            throw new IllegalArgumentException("Expected initialCapacity > 0");
+        }
+        if (!(falsePositiveRate > 0.0 && falsePositiveRate < 1.0)) {
+            throw new IllegalArgumentException("Expected 0 < falsePositiveRate < 1");
+        }
+        stages = new Stage[]{new Stage(initialCapacity, falsePositiveRate / 2.0)};
+    }
+
+    void add(final Hash hash) {
+        final var sum = hash.sum();
+        final var h1 = h1Of(hash.algorithm(), sum);
+        final var h2 = h2Of(sum);
+        var stages = this.stages;
+        var stage = stages[stages.length - 1];
+        if (stage.mightContain(h1, h2)) {
+            return;
+        }
+        if (stage.count.incrementAndGet() > stage.capacity) {
+            synchronized (this) {
+                stages = this.stages;
+                stage = stages[stages.length - 1];
+                if (stage.count.get() > stage.capacity) {
+                    final var stages0 = Arrays.copyOf(stages, stages.length + 1);
+                    stage = new Stage(stage.capacity * 2, stage.falsePositiveRate / 2.0);
+                    stages0[stages.length] = stage;
+                    this.stages = stages0;
+                }
+            }
+        }
+        stage.add(h1, h2);
+    }
+
+    /**
+     * @param hash Hash to look for.
+     * @return {@code false} only if {@code hash} has certainly not been
+     * added to this filter.
+     */
+    boolean mightContain(final Hash hash) {
+        final var sum = hash.sum();
+        final var h1 = h1Of(hash.algorithm(), sum);
+        final var h2 = h2Of(sum);
+        for (final var stage : stages) {
+            if (stage.mightContain(h1, h2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long h1Of(final HashAlgorithm algorithm, final byte[] sum) {
+        return fmix(longAt(sum, 0) ^ HashAlgorithm.ALL.indexOf(algorithm));
+    }
+
+    private static long h2Of(final byte[] sum) {
+        return fmix(longAt(sum, 8)) | 1;
+    }
+
+    private static long longAt(final byte[] bytes, final int offset) {
+        var value = 0L;
+        for (var i = offset; i < offset + 8 && i < bytes.length; ++i) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static long fmix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // Each hash only sets bits within a single block of 512 bits, which is
+    // the size of a typical cache line. A lookup, consequently, only ever
+    // reads one cache line per stage. The slightly higher false positive
+    // rate this causes is compensated for by sizing stages 25% larger.
+    private static final class Stage {
+        private static final int BLOCK_WORDS = 8;
+
+        private final long[] words;
+        private final int blockMask;
+        private final int hashCount;
+        private final long capacity;
+        private final double falsePositiveRate;
+        private final AtomicLong count = new AtomicLong();
+
+        Stage(final long capacity, final double falsePositiveRate) {
+            final var ln2 = Math.log(2.0);
+            final var bits = -capacity * Math.log(falsePositiveRate) / (ln2 * ln2) * 1.25;
+            var blockCount = 1;
+            while (blockCount < (1 << 24) && (double) blockCount * BLOCK_WORDS * 64 < bits) {
+                blockCount <<= 1;
+            }
+            this.words = new long[blockCount * BLOCK_WORDS];
+            this.blockMask = blockCount - 1;
+            this.hashCount = Math.max(1, (int) Math.round(-Math.log(falsePositiveRate) / ln2));
+            this.capacity = capacity;
+            this.falsePositiveRate = falsePositiveRate;
+        }
+
+        void add(final long h1, final long h2) {
+            final var block = (int) (h1 & blockMask) * BLOCK_WORDS;
+            var h = h2;
+            for (var i = 0; i < hashCount; ++i) {
+                final var bit = (int) (h >>> 55);
+                WORDS.getAndBitwiseOr(words, block + (bit >>> 6), 1L << bit);
+                h = h * 0x9E3779B97F4A7C15L + h1;
+            }
+        }
+
+        boolean mightContain(final long h1, final long h2) {
+            final var block = (int) (h1 & blockMask) * BLOCK_WORDS;
+            var h = h2;
+            for (var i = 0; i < hashCount; ++i) {
+                final var bit = (int) (h >>> 55);
+                final var word = (long) WORDS.getAcquire(words, block + (bit >>> 6));
+                if ((word & (1L << bit)) == 0) {
+                    return false;
+                }
+                h = h * 0x9E3779B97F4A7C15L + h1;
+            }
+            return true;
+        }
+    }
+}
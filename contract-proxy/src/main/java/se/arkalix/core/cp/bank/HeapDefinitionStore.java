@@ -0,0 +1,99 @@
+package se.arkalix.core.cp.bank;
+
+import se.arkalix.core.cp.security.Hash;
+import se.arkalix.util.annotation.ThreadSafe;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link DefinitionStore} keeping all of its definitions on the Java heap.
+ */
+public class HeapDefinitionStore implements DefinitionStore {
+    private final Map<Hash, Definition> hashToDefinition = new ConcurrentHashMap<>();
+    private final LongKeyedMap<AppendOnlyList<DefinitionEntry>> negotiationIdToEntries = new LongKeyedMap<>();
+
+    @Override
+    @ThreadSafe
+    public void add(final DefinitionEntry entry, final long address) {
+        final var hashes = entry.hashes();
+        final var definition = entry.definition();
+        for (var i = 0; i < hashes.size(); ++i) {
+            final var hash = hashes.get(i);
+            if (hashToDefinition.putIfAbsent(hash, definition) != null) {
+                while (--i >= 0) {
+                    hashToDefinition.remove(hashes.get(i));
+                }
+                throw new IllegalStateException("Hash collision detected " +
+                    "for " + hash + "; cannot save " + definition + " in " +
+                    "definition bank");
+            }
+        }
+        negotiationIdToEntries.compute(definition.negotiationId(), (id, entries) -> {
+            if (entries == null) {
+                entries = new AppendOnlyList<>();
+            }
+            entries.append(entry);
+            return entries;
+        });
+    }
+
+    @Override
+    @ThreadSafe
+    public boolean contains(final Hash hash) {
+        return hashToDefinition.containsKey(hash);
+    }
+
+    @Override
+    @ThreadSafe
+    public Optional<Definition> get(final Hash hash) {
+        return Optional.ofNullable(hashToDefinition.get(hash));
+    }
+
+    @Override
+    @ThreadSafe
+    public List<DefinitionEntry> get(final long negotiationId) {
+        final var entries = negotiationIdToEntries.get(negotiationId);
+        return entries != null
+            ? entries.snapshot()
+            : Collections.emptyList();
+    }
+
+    @Override
+    @ThreadSafe
+    public void scan(final Visitor visitor) {
+        negotiationIdToEntries.forEach((negotiationId, entries) -> {
+            for (final var entry : entries.snapshot()) {
+                visitor.accept(NO_ADDRESS, entry);
+            }
+        });
+    }
+
+    // Only a prefix is evicted, as more entries may have been added to the
+    // same negotiation since the evicted ones were read.
+    @Override
+    @ThreadSafe
+    public void evict(final long negotiationId, final int count) {
+        final var entries = negotiationIdToEntries.get(negotiationId);
+        if (entries == null) {
+            return;
+        }
+        for (final var entry : entries.snapshot().subList(0, Math.min(count, entries.size()))) {
+            for (final var hash : entry.hashes()) {
+                hashToDefinition.remove(hash, entry.definition());
+            }
+        }
+        negotiationIdToEntries.compute(negotiationId, (id, entries0) ->
+            entries0 == null || entries0.size() <= count
+                ? null
+                : entries0.copyFrom(count));
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return false;
+    }
+}
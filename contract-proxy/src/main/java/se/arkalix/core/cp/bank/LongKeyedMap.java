@@ -0,0 +1,217 @@
+package se.arkalix.core.cp.bank;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Objects;
+
+/**
+ * Concurrent hash map with primitive {@code long} keys.
+ * <p>
+ * Lookups never block. Updates lock one out of a fixed number of stripes,
+ * each of which is an open-addressing table with linear probing. Removed
+ * entries are marked as such until their stripe is next resized.
+ *
+ * @param <V> Type of values.
+ */
+final class LongKeyedMap<V> {
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final Object REMOVED = new Object();
+    private static final int STRIPE_SHIFT = 5;
+    private static final int STRIPE_COUNT = 1 << STRIPE_SHIFT;
+    private static final int MIN_STRIPE_CAPACITY = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+    LongKeyedMap() {
+        for (var i = 0; i < STRIPE_COUNT; ++i) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(final long key) {
+        final var hash = hash(key);
+        final var table = stripes[stripeOf(hash)].table;
+        final var slot = table.find(key, hash);
+        return slot >= 0 ? (V) table.valueAt(slot) : null;
+    }
+
+    boolean containsKey(final long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Replaces the value associated with {@code key} with the result of
+     * {@code remapping}, or removes it if that result is {@code null}. All
+     * calls to this method, and to other methods updating this map, with keys
+     * belonging to the same stripe are serialized.
+     *
+     * @param key       Key of value to compute.
+     * @param remapping Function receiving {@code key} and its current value,
+     *                  or {@code null}, returning its new value.
+     * @return New value associated with {@code key}, if any.
+     */
+    V compute(final long key, final Remapping<V> remapping) {
+        Objects.requireNonNull(remapping, "Expected remapping");
+
+        final var hash = hash(key);
+        final var stripe = stripes[stripeOf(hash)];
+        synchronized (stripe) {
+            final var table = stripe.table;
+            final var slot = table.find(key, hash);
+            @SuppressWarnings("unchecked")
+            final var oldValue = slot >= 0 ? (V) table.valueAt(slot) : null;
+            final var newValue = remapping.apply(key, oldValue);
+            if (newValue == null) {
+                if (oldValue != null) {
+                    VALUES.setRelease(table.values, slot, REMOVED);
+                }
+            }
+            else if (slot >= 0) {
+                VALUES.setRelease(table.values, slot, newValue);
+            }
+            else {
+                stripe.insert(key, hash, newValue);
+            }
+            return newValue;
+        }
+    }
+
+    void put(final long key, final V value) {
+        Objects.requireNonNull(value, "Expected value");
+        compute(key, (key0, value0) -> value);
+    }
+
+    boolean remove(final long key, final V value) {
+        final var isRemoved = new boolean[1];
+        compute(key, (key0, value0) -> {
+            if (value0 == value) {
+                isRemoved[0] = true;
+                return null;
+            }
+            return value0;
+        });
+        return isRemoved[0];
+    }
+
+    /**
+     * Provides each entry in this map to {@code visitor}. Entries added or
+     * removed while this method executes may or may not be visited.
+     *
+     * @param visitor Function receiving each key and value of this map.
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(final Visitor<V> visitor) {
+        for (final var stripe : stripes) {
+            final var table = stripe.table;
+            for (var slot = 0; slot < table.keys.length; ++slot) {
+                final var value = table.valueAt(slot);
+                if (value != null) {
+                    visitor.accept(table.keys[slot], (V) value);
+                }
+            }
+        }
+    }
+
+    private static long hash(final long key) {
+        var h = key;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int stripeOf(final long hash) {
+        return (int) (hash >>> (64 - STRIPE_SHIFT));
+    }
+
+    interface Remapping<V> {
+        V apply(long key, V value);
+    }
+
+    interface Visitor<V> {
+        void accept(long key, V value);
+    }
+
+    private static final class Stripe {
+        private volatile Table table = new Table(MIN_STRIPE_CAPACITY);
+        private int usedSlots = 0;
+
+        // Must only be called while synchronized on this stripe.
+        void insert(final long key, final long hash, final Object value) {
+            if ((usedSlots + 1) * 4 > table.keys.length * 3) {
+                resize();
+            }
+            table.insert(key, hash, value);
+            usedSlots += 1;
+        }
+
+        private void resize() {
+            final var source = table;
+            var liveCount = 0;
+            for (var slot = 0; slot < source.keys.length; ++slot) {
+                if (source.valueAt(slot) != null) {
+                    liveCount += 1;
+                }
+            }
+            var capacity = MIN_STRIPE_CAPACITY;
+            while (capacity < liveCount * 4) {
+                capacity <<= 1;
+            }
+            final var target = new Table(capacity);
+            for (var slot = 0; slot < source.keys.length; ++slot) {
+                final var value = source.valueAt(slot);
+                if (value != null) {
+                    final var key = source.keys[slot];
+                    target.insert(key, hash(key), value);
+                }
+            }
+            usedSlots = liveCount;
+            table = target;
+        }
+    }
+
+    private static final class Table {
+        private final long[] keys;
+        private final Object[] values;
+        private final int mask;
+
+        Table(final int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+            mask = capacity - 1;
+        }
+
+        // A key is only read after its value has been observed as non-null,
+        // as keys are written before their values are released.
+        int find(final long key, final long hash) {
+            var slot = (int) hash & mask;
+            while (true) {
+                final var value = VALUES.getAcquire(values, slot);
+                if (value == null) {
+                    return -1;
+                }
+                if (keys[slot] == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        void insert(final long key, final long hash, final Object value) {
+            var slot = (int) hash & mask;
+            while (VALUES.getAcquire(values, slot) != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            VALUES.setRelease(values, slot, value);
+        }
+
+        Object valueAt(final int slot) {
+            final var value = VALUES.getAcquire(values, slot);
+            return value == REMOVED ? null : value;
+        }
+    }
+}
@@ -0,0 +1,1275 @@
+package se.arkalix.core.cp.bank;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.arkalix.core.cp.security.Hash;
+import se.arkalix.core.cp.security.HashAlgorithm;
+import se.arkalix.util.annotation.ThreadSafe;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * {@link DefinitionStore} persisting its definitions in a directory,
+ * organized as a log-structured merge tree.
+ * <p>
+ * Added definitions are appended to a write-ahead {@link DefinitionLog} and
+ * kept in an in-memory table. When the in-memory table outgrows its
+ * configured size, it is replaced by a new in-memory table and write-ahead
+ * log, and then written to an immutable sorted table file by the background
+ * thread of the store, while still being used to look up its definitions.
+ * Only one in-memory table is written at a time. If the current one outgrows
+ * its size before the previous one has been written, it keeps growing until
+ * then, which means that additions are never blocked by writes. Each sorted
+ * table holds its entries ordered by negotiation identifier, followed by
+ * sorted indexes of their hashes and negotiations. Only every {@value
+ * #SPARSE_INDEX_INTERVAL}th hash of each table, together with a Bloom filter
+ * of all of its hashes, is kept in memory. Whenever at least {@value
+ * #MERGE_THRESHOLD} sorted tables exist, the background thread merges the
+ * most recent of them into one, as long as the merged table would not exceed
+ * 1 GiB.
+ * <p>
+ * Every entry is given an ordinal, which is its position in its negotiation.
+ * Evictions are recorded as per-negotiation ordinal thresholds, below which
+ * entries are ignored until they are dropped by a merge.
+ */
+public class LsmDefinitionStore implements DefinitionStore {
+    private static final Logger logger = LoggerFactory.getLogger(LsmDefinitionStore.class);
+
+    public static final int DEFAULT_MEMTABLE_SIZE = 8 * 1024 * 1024;
+
+    private static final long FLUSH_RETRY_DELAY_IN_MILLIS = 1000;
+    private static final int MERGE_THRESHOLD = 4;
+    private static final long MAX_TABLE_SIZE = 1L << 30;
+    private static final int SPARSE_INDEX_INTERVAL = 16;
+    private static final int TABLE_MAGIC = 0x4350544C; // "CPTL"
+    private static final int TABLE_VERSION = 1;
+    private static final int TABLE_HEADER_SIZE = 8;
+    private static final int TABLE_FOOTER_SIZE = 32;
+    private static final int ENTRY_HEADER_SIZE = 16; // [int length][long negotiationId][int ordinal]
+    private static final int NEGOTIATION_RECORD_SIZE = 20; // [long negotiationId][int offset][int count][int nextOrdinal]
+    private static final int EVICTION_RECORD_SIZE = 12; // [long negotiationId][int threshold]
+    private static final byte WAL_ENTRY = 1;
+    private static final byte WAL_EVICTION = 2;
+    private static final Pattern TABLE_NAME_PATTERN = Pattern.compile("^table-([0-9a-f]{16})-([0-9a-f]{16})\\.sst$");
+    private static final Pattern WAL_NAME_PATTERN = Pattern.compile("^wal-([0-9a-f]{16})$");
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReentrantLock mergeLock = new ReentrantLock();
+    private final Path directory;
+    private final int memtableSize;
+    private final Set<HashAlgorithm> acceptedHashAlgorithms;
+    private final int algorithmMask;
+    private final ScheduledThreadPoolExecutor executor;
+
+    private volatile State state;
+
+    private LsmDefinitionStore(
+        final Path directory,
+        final int memtableSize,
+        final Set<HashAlgorithm> acceptedHashAlgorithms)
+    {
+        this.directory = directory;
+        this.memtableSize = memtableSize;
+        this.acceptedHashAlgorithms = acceptedHashAlgorithms;
+        this.algorithmMask = maskOf(acceptedHashAlgorithms);
+
+        executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final var thread = new Thread(runnable, "lsm-definition-store");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    public static LsmDefinitionStore open(
+        final Path directory,
+        final Set<HashAlgorithm> acceptedHashAlgorithms) throws IOException
+    {
+        return open(directory, acceptedHashAlgorithms, DEFAULT_MEMTABLE_SIZE);
+    }
+
+    /**
+     * Opens the store in {@code directory}, creating it if it does not
+     * exist.
+     * <p>
+     * Any write-ahead logs left by a previous instance are replayed and
+     * written to a sorted table. If the accepted hash algorithms have changed
+     * since the store was last used, all of its sorted tables are rewritten
+     * with recalculated hashes.
+     *
+     * @param directory              Directory of store.
+     * @param acceptedHashAlgorithms Hash algorithms used by the bank using
+     *                               the store.
+     * @param memtableSize           Number of encoded bytes held in memory
+     *                               before being written to a sorted table.
+     * @return Opened store.
+     * @throws IOException If the store could not be opened.
+     */
+    public static LsmDefinitionStore open(
+        final Path directory,
+        final Set<HashAlgorithm> acceptedHashAlgorithms,
+        final int memtableSize) throws IOException
+    {
+        Objects.requireNonNull(directory, "Expected directory");
+        Objects.requireNonNull(acceptedHashAlgorithms, "Expected acceptedHashAlgorithms");
+        if (memtableSize < 1024 || memtableSize > (1 << 28)) {
+            throw new IllegalArgumentException("Expected 2^10 <= memtableSize <= 2^28");
+        }
+        Files.createDirectories(directory);
+        final var store = new LsmDefinitionStore(directory, memtableSize, acceptedHashAlgorithms);
+        store.load();
+        return store;
+    }
+
+    private void load() throws IOException {
+        final var tablePaths = new ArrayList<Path>();
+        final var walPaths = new TreeMap<Long, Path>();
+        try (final var stream = Files.list(directory)) {
+            for (final var path : stream.collect(Collectors.toList())) {
+                final var name = path.getFileName().toString();
+                if (TABLE_NAME_PATTERN.matcher(name).matches()) {
+                    tablePaths.add(path);
+                    continue;
+                }
+                final var matcher = WAL_NAME_PATTERN.matcher(name);
+                if (matcher.matches()) {
+                    walPaths.put(Long.parseLong(matcher.group(1), 16), path);
+                }
+                else if (name.endsWith(".tmp")) {
+                    Files.delete(path);
+                }
+            }
+        }
+
+        // A crash after a merged table was written but before its inputs
+        // were removed leaves tables whose generations are covered by others.
+        tablePaths.sort(Comparator.comparingLong(LsmDefinitionStore::lastGenerationOf).reversed()
+            .thenComparingLong(LsmDefinitionStore::firstGenerationOf));
+        final var tables = new ArrayList<Table>();
+        for (final var path : tablePaths) {
+            final var first = firstGenerationOf(path);
+            final var last = lastGenerationOf(path);
+            final var isCovered = tables.stream()
+                .anyMatch(table -> table.firstGeneration <= first && last <= table.lastGeneration);
+            if (isCovered) {
+                Files.delete(path);
+            }
+            else {
+                tables.add(Table.open(path, first, last));
+            }
+        }
+        Collections.reverse(tables);
+
+        var generation = 0L;
+        for (final var table : tables) {
+            generation = Math.max(generation, table.lastGeneration + 1);
+        }
+        if (!walPaths.isEmpty()) {
+            generation = Math.max(generation, walPaths.lastKey() + 1);
+        }
+
+        // Write-ahead logs of already flushed memtables are only left if a
+        // crash occurred after flushing but before removing them.
+        final var unflushedWalPaths = new ArrayList<Path>();
+        for (final var walEntry : walPaths.entrySet()) {
+            final var isFlushed = tables.stream()
+                .anyMatch(table -> table.firstGeneration <= walEntry.getKey() &&
+                    walEntry.getKey() <= table.lastGeneration);
+            if (!isFlushed) {
+                unflushedWalPaths.add(walEntry.getValue());
+            }
+        }
+
+        if (tables.stream().anyMatch(table -> table.algorithmMask != algorithmMask)) {
+            final var merged = merge(tables);
+            for (final var table : tables) {
+                if (!table.path.equals(merged.path)) {
+                    Files.delete(table.path);
+                }
+            }
+            tables.clear();
+            tables.add(merged);
+        }
+
+        final var memtable = new Memtable();
+        for (final var path : unflushedWalPaths) {
+            replay(path, memtable);
+        }
+        final var state = new State(memtable, null, generation, tables);
+        if (!memtable.isEmpty()) {
+            final var table = writeTable(state, memtable, generation);
+            generation += 1;
+            if (table != null) {
+                tables.add(table);
+            }
+        }
+        for (final var path : walPaths.values()) {
+            deleteDirectory(path);
+        }
+
+        this.state = new State(new Memtable(), openWal(generation), generation, tables);
+    }
+
+    private void replay(final Path path, final Memtable memtable) throws IOException {
+        final var wal = DefinitionLog.open(path, walSegmentSize());
+        try {
+            final var negotiationIdToSlots = new HashMap<Long, List<Slot>>();
+            wal.replay(record -> {
+                final var payload = record.payload();
+                final var type = payload.get();
+                final var negotiationId = payload.getLong();
+                final var ordinal = payload.getInt();
+                if (type == WAL_EVICTION) {
+                    return new Slot(negotiationId, ordinal, null);
+                }
+                final var entry = DefinitionCodec.decodeEntry(payload).rehashedUsing(acceptedHashAlgorithms);
+                return new Slot(negotiationId, ordinal, entry);
+            }, slot -> {
+                if (slot.entry == null) {
+                    memtable.evict(slot.negotiationId, slot.ordinal);
+                }
+                else {
+                    negotiationIdToSlots.computeIfAbsent(slot.negotiationId, id -> new ArrayList<>()).add(slot);
+                }
+            });
+
+            // Records of the same negotiation may have been logged out of
+            // order if added concurrently.
+            for (final var slots : negotiationIdToSlots.values()) {
+                slots.sort(Comparator.comparingInt(slot -> slot.ordinal));
+                for (final var slot : slots) {
+                    for (final var hash : slot.entry.hashes()) {
+                        memtable.hashToSlot.put(hash, slot);
+                    }
+                    memtable.append(slot);
+                }
+            }
+        }
+        finally {
+            wal.close();
+        }
+    }
+
+    @Override
+    @ThreadSafe
+    public void add(final DefinitionEntry entry, final long address) {
+        final var definition = entry.definition();
+        final var hashes = entry.hashes();
+        final var slot = new Slot(definition.negotiationId(), -1, entry);
+        final var encoded = DefinitionCodec.encode(entry);
+        final Memtable memtable;
+
+        lock.readLock().lock();
+        try {
+            final var state = this.state;
+            memtable = state.memtable;
+            for (var i = 0; i < hashes.size(); ++i) {
+                final var hash = hashes.get(i);
+                if (!reserve(state, hash, slot)) {
+                    while (--i >= 0) {
+                        memtable.hashToSlot.remove(hashes.get(i), slot);
+                    }
+                    throw new IllegalStateException("Hash collision detected " +
+                        "for " + hash + "; cannot save " + definition + " in " +
+                        "definition bank");
+                }
+            }
+            memtable.negotiationIdToSlots.compute(slot.negotiationId, (negotiationId, slots) -> {
+                if (slots == null) {
+                    slots = new AppendOnlyList<>();
+                    slot.ordinal = nextOrdinalIn(state, negotiationId);
+                }
+                else {
+                    slot.ordinal = slots.get(slots.size() - 1).ordinal + 1;
+                }
+                slots.append(slot);
+                return slots;
+            });
+            try {
+                state.wal.append(walRecord(WAL_ENTRY, slot.negotiationId, slot.ordinal, encoded));
+            }
+            catch (final RuntimeException exception) {
+                slot.isDiscarded = true;
+                for (final var hash : hashes) {
+                    memtable.hashToSlot.remove(hash, slot);
+                }
+                throw exception;
+            }
+            memtable.size.addAndGet(encoded.length);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+
+        if (memtable.size.get() >= memtableSize) {
+            rotate(memtable);
+        }
+    }
+
+    private boolean reserve(final State state, final Hash hash, final Slot slot) {
+        final var memtable = state.memtable;
+        while (true) {
+            final var previous = memtable.hashToSlot.putIfAbsent(hash, slot);
+            if (previous == null) {
+                break;
+            }
+            if (isLive(state, previous)) {
+                return false;
+            }
+            if (memtable.hashToSlot.replace(hash, previous, slot)) {
+                break;
+            }
+        }
+        if (liveSlotIn(state, state.flushing, hash) != null || findIn(state, hash) != null) {
+            memtable.hashToSlot.remove(hash, slot);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    @ThreadSafe
+    public boolean contains(final Hash hash) {
+        final var state = this.state;
+        if (liveSlotIn(state, state.memtable, hash) != null || liveSlotIn(state, state.flushing, hash) != null) {
+            return true;
+        }
+        return findIn(state, hash) != null;
+    }
+
+    @Override
+    @ThreadSafe
+    public Optional<Definition> get(final Hash hash) {
+        final var state = this.state;
+        var slot = liveSlotIn(state, state.memtable, hash);
+        if (slot == null) {
+            slot = liveSlotIn(state, state.flushing, hash);
+        }
+        if (slot != null) {
+            return Optional.of(slot.entry.definition());
+        }
+        final var location = findIn(state, hash);
+        return location != null
+            ? Optional.of(location.table.entryAt(location.offset).definition())
+            : Optional.empty();
+    }
+
+    @Override
+    @ThreadSafe
+    public List<DefinitionEntry> get(final long negotiationId) {
+        final var state = this.state;
+        final var threshold = thresholdOf(state, negotiationId);
+        final var entries = new ArrayList<DefinitionEntry>();
+        for (final var table : state.tables) {
+            table.forEachOf(negotiationId, (ordinal, offset) -> {
+                if (ordinal >= threshold) {
+                    entries.add(table.entryAt(offset));
+                }
+            });
+        }
+        for (final var memtable : state.memtables) {
+            final var slots = memtable.negotiationIdToSlots.get(negotiationId);
+            if (slots != null) {
+                for (final var slot : slots.snapshot()) {
+                    if (!slot.isDiscarded && slot.ordinal >= threshold) {
+                        entries.add(slot.entry);
+                    }
+                }
+            }
+        }
+        return Collections.unmodifiableList(entries);
+    }
+
+    @Override
+    @ThreadSafe
+    public void scan(final Visitor visitor) {
+        final var state = this.state;
+        for (final var table : state.tables) {
+            // Entries are sorted by negotiation, which is why the threshold
+            // only has to be looked up when the negotiation changes.
+            final var current = new long[2];
+            final var isFirst = new boolean[]{true};
+            table.forEach((negotiationId, ordinal, offset) -> {
+                if (isFirst[0] || current[0] != negotiationId) {
+                    isFirst[0] = false;
+                    current[0] = negotiationId;
+                    current[1] = thresholdOf(state, negotiationId);
+                }
+                if (ordinal >= current[1]) {
+                    visitor.accept(NO_ADDRESS, table.entryAt(offset));
+                }
+            });
+        }
+        for (final var memtable : state.memtables) {
+            memtable.negotiationIdToSlots.forEach((negotiationId, slots) -> {
+                final var threshold = thresholdOf(state, negotiationId);
+                for (final var slot : slots.snapshot()) {
+                    if (!slot.isDiscarded && slot.ordinal >= threshold) {
+                        visitor.accept(NO_ADDRESS, slot.entry);
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    @ThreadSafe
+    public void evict(final long negotiationId, final int count) {
+        if (count <= 0) {
+            return;
+        }
+        lock.readLock().lock();
+        try {
+            final var state = this.state;
+            final var threshold = thresholdOf(state, negotiationId);
+            final var ordinals = new ArrayList<Integer>();
+            for (final var table : state.tables) {
+                table.forEachOf(negotiationId, (ordinal, offset) -> {
+                    if (ordinal >= threshold) {
+                        ordinals.add(ordinal);
+                    }
+                });
+            }
+            for (final var memtable : state.memtables) {
+                final var slots = memtable.negotiationIdToSlots.get(negotiationId);
+                if (slots != null) {
+                    for (final var slot : slots.snapshot()) {
+                        if (!slot.isDiscarded && slot.ordinal >= threshold) {
+                            ordinals.add(slot.ordinal);
+                        }
+                    }
+                }
+            }
+            if (ordinals.isEmpty()) {
+                return;
+            }
+            final var newThreshold = ordinals.get(Math.min(count, ordinals.size()) - 1) + 1;
+            state.memtable.evict(negotiationId, newThreshold);
+            state.wal.append(walRecord(WAL_EVICTION, negotiationId, newThreshold, new byte[0]));
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+
+    // Any memtable still being flushed when the store is closed is recovered
+    // from its write-ahead log when the store is next opened.
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.warn("Closing definition store {} while it is still being flushed", directory);
+            }
+        }
+        catch (final InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        lock.writeLock().lock();
+        try {
+            state.wal.close();
+            if (state.flushingWal != null) {
+                state.flushingWal.close();
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean isLive(final State state, final Slot slot) {
+        if (slot.isDiscarded) {
+            return false;
+        }
+        // Slots without ordinals are still being added.
+        return slot.ordinal < 0 || slot.ordinal >= thresholdOf(state, slot.negotiationId);
+    }
+
+    private Slot liveSlotIn(final State state, final Memtable memtable, final Hash hash) {
+        if (memtable == null) {
+            return null;
+        }
+        final var slot = memtable.hashToSlot.get(hash);
+        return slot != null && isLive(state, slot)
+            ? slot
+            : null;
+    }
+
+    private Location findIn(final State state, final Hash hash) {
+        byte[] key = null;
+        for (var i = state.tables.size(); i-- > 0; ) {
+            final var table = state.tables.get(i);
+            if (!table.filter.mightContain(hash)) {
+                continue;
+            }
+            if (key == null) {
+                key = keyOf(hash);
+            }
+            final var offset = table.find(key);
+            if (offset >= 0 && table.ordinalAt(offset) >= thresholdOf(state, table.negotiationIdAt(offset))) {
+                return new Location(table, offset);
+            }
+        }
+        return null;
+    }
+
+    // Thresholds only ever increase, which is why the most recently
+    // recorded threshold is always the greatest.
+    private static int thresholdOf(final State state, final long negotiationId) {
+        for (var i = state.memtables.size(); i-- > 0; ) {
+            final var threshold = state.memtables.get(i).negotiationIdToThreshold.get(negotiationId);
+            if (threshold != null) {
+                return threshold;
+            }
+        }
+        for (var i = state.tables.size(); i-- > 0; ) {
+            final var threshold0 = state.tables.get(i).thresholdOf(negotiationId);
+            if (threshold0 >= 0) {
+                return threshold0;
+            }
+        }
+        return 0;
+    }
+
+    // An eviction threshold may be recorded in a newer memtable or table
+    // than the entries it concerns, and those entries may be newer than the
+    // threshold, which is why every memtable and table must be consulted.
+    private static int nextOrdinalIn(final State state, final long negotiationId) {
+        var nextOrdinal = 0;
+        for (final var memtable : state.memtables) {
+            final var slots = memtable.negotiationIdToSlots.get(negotiationId);
+            if (slots != null) {
+                nextOrdinal = Math.max(nextOrdinal, slots.get(slots.size() - 1).ordinal + 1);
+            }
+            final var threshold = memtable.negotiationIdToThreshold.get(negotiationId);
+            if (threshold != null) {
+                nextOrdinal = Math.max(nextOrdinal, threshold);
+            }
+        }
+        for (final var table : state.tables) {
+            nextOrdinal = Math.max(nextOrdinal, Math.max(table.nextOrdinalOf(negotiationId),
+                table.thresholdOf(negotiationId)));
+        }
+        return nextOrdinal;
+    }
+
+    // Full memtables are replaced while holding the lock, but are flushed to
+    // sorted tables by the background thread. The flushed memtable is kept
+    // in the state until its table has been added, as its entries must
+    // remain visible while it is being written.
+    private void rotate(final Memtable memtable) {
+        final var state0 = this.state;
+        if (state0.memtable != memtable || state0.flushing != null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            final var state = this.state;
+            if (state.memtable != memtable || state.flushing != null || executor.isShutdown()) {
+                return;
+            }
+            this.state = new State(new Memtable(), openWal(state.generation + 1), state.generation + 1,
+                state.tables, memtable, state.wal);
+        }
+        catch (final IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        executor.execute(this::flush);
+    }
+
+    private void flush() {
+        final var state = this.state;
+        final var generation = state.generation - 1;
+        final Table table;
+        try {
+            table = writeTable(state, state.flushing, generation);
+        }
+        catch (final IOException | UncheckedIOException exception) {
+            logger.error("Failed to flush definition store memtable to " +
+                tablePathOf(generation, generation) + "; retrying in " +
+                FLUSH_RETRY_DELAY_IN_MILLIS + " ms", exception);
+            try {
+                executor.schedule(this::flush, FLUSH_RETRY_DELAY_IN_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            catch (final RejectedExecutionException ignored) {
+                // Closed. The memtable is recovered from its write-ahead log.
+            }
+            return;
+        }
+
+        final State state0;
+        lock.writeLock().lock();
+        try {
+            final var state1 = this.state;
+            final var tables = new ArrayList<>(state1.tables);
+            if (table != null) {
+                tables.add(table);
+            }
+            state0 = new State(state1.memtable, state1.wal, state1.generation, tables);
+            this.state = state0;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+
+        try {
+            state.flushingWal.close();
+            deleteDirectory(walPathOf(generation));
+        }
+        catch (final IOException | UncheckedIOException exception) {
+            logger.warn("Failed to remove flushed write-ahead log " +
+                walPathOf(generation) + "; it is removed when the " +
+                "definition store is next opened", exception);
+        }
+
+        try {
+            if (state0.tables.size() >= MERGE_THRESHOLD) {
+                mergeTables();
+            }
+            if (state0.memtable.size.get() >= memtableSize) {
+                rotate(state0.memtable);
+            }
+        }
+        catch (final UncheckedIOException exception) {
+            logger.error("Failed to maintain definition store " + directory, exception);
+        }
+    }
+
+    // Merges are made without holding the lock, as the merged tables are
+    // immutable. Only the replacement of the merged tables blocks additions.
+    // As eviction thresholds never concern entries added after them, any
+    // sequence of most recent tables may be merged without consulting the
+    // thresholds of older tables.
+    private void mergeTables() {
+        if (!mergeLock.tryLock()) {
+            return;
+        }
+        try {
+            final var tables = state.tables;
+            if (tables.size() < MERGE_THRESHOLD) {
+                return;
+            }
+            var start = tables.size();
+            var size = 0L;
+            while (start > 0 && size + tables.get(start - 1).buffer.capacity() <= MAX_TABLE_SIZE) {
+                start -= 1;
+                size += tables.get(start).buffer.capacity();
+            }
+            if (tables.size() - start < 2) {
+                return;
+            }
+            final var inputs = tables.subList(start, tables.size());
+            final var merged = merge(inputs);
+            lock.writeLock().lock();
+            try {
+                final var state = this.state;
+                final var tables0 = new ArrayList<>(state.tables.subList(0, start));
+                tables0.add(merged);
+                tables0.addAll(state.tables.subList(tables.size(), state.tables.size()));
+                this.state = new State(state.memtable, state.wal, state.generation, tables0,
+                    state.flushing, state.flushingWal);
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+            for (final var table : inputs) {
+                Files.deleteIfExists(table.path);
+            }
+        }
+        catch (final IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+        finally {
+            mergeLock.unlock();
+        }
+    }
+
+    private Table writeTable(final State state, final Memtable memtable, final long generation) throws IOException {
+        final var negotiationIds = new ArrayList<Long>();
+        memtable.negotiationIdToSlots.forEach((negotiationId, slots) -> negotiationIds.add(negotiationId));
+        final var thresholds = new TreeMap<Long, Integer>();
+        memtable.negotiationIdToThreshold.forEach(thresholds::put);
+        if (negotiationIds.isEmpty() && thresholds.isEmpty()) {
+            return null;
+        }
+        Collections.sort(negotiationIds);
+
+        final var path = tablePathOf(generation, generation);
+        try (final var writer = new TableWriter(path)) {
+            for (final var negotiationId : negotiationIds) {
+                final var threshold = thresholdOf(state, negotiationId);
+                for (final var slot : memtable.negotiationIdToSlots.get(negotiationId).snapshot()) {
+                    if (!slot.isDiscarded && slot.ordinal >= threshold) {
+                        writer.write(negotiationId, slot.ordinal, ByteBuffer.wrap(DefinitionCodec.encode(slot.entry)));
+                    }
+                }
+            }
+            writer.commit(thresholds, algorithmMask);
+        }
+        return Table.open(path, generation, generation);
+    }
+
+    // The merged table covers the generations of all given tables, which
+    // means that the given tables are ignored and removed if found when
+    // opening the store.
+    private Table merge(final List<Table> tables) throws IOException {
+        final var first = tables.get(0).firstGeneration;
+        final var last = tables.get(tables.size() - 1).lastGeneration;
+
+        final var thresholds = new TreeMap<Long, Integer>();
+        for (final var table : tables) {
+            table.forEachThreshold((negotiationId, threshold) -> thresholds.merge(negotiationId, threshold, Math::max));
+        }
+
+        final var cursors = new PriorityQueue<Cursor>(Comparator
+            .comparingLong((Cursor cursor) -> cursor.negotiationId)
+            .thenComparingInt(cursor -> cursor.ordinal));
+        for (final var table : tables) {
+            final var cursor = new Cursor(table);
+            if (cursor.next()) {
+                cursors.add(cursor);
+            }
+        }
+
+        final var path = tablePathOf(first, last);
+        try (final var writer = new TableWriter(path)) {
+            while (!cursors.isEmpty()) {
+                final var cursor = cursors.poll();
+                final var threshold = thresholds.getOrDefault(cursor.negotiationId, 0);
+                if (cursor.ordinal >= threshold) {
+                    if (cursor.table.algorithmMask == algorithmMask) {
+                        writer.write(cursor.negotiationId, cursor.ordinal, cursor.table.encodedEntryAt(cursor.offset));
+                    }
+                    else {
+                        final var entry = cursor.table.entryAt(cursor.offset).rehashedUsing(acceptedHashAlgorithms);
+                        writer.write(cursor.negotiationId, cursor.ordinal, ByteBuffer.wrap(DefinitionCodec.encode(entry)));
+                    }
+                }
+                if (cursor.next()) {
+                    cursors.add(cursor);
+                }
+            }
+            writer.commit(thresholds, algorithmMask);
+        }
+        return Table.open(path, first, last);
+    }
+
+    private DefinitionLog openWal(final long generation) throws IOException {
+        return DefinitionLog.open(walPathOf(generation), walSegmentSize());
+    }
+
+    private int walSegmentSize() {
+        return Math.max(memtableSize * 2, 1 << 20);
+    }
+
+    private Path walPathOf(final long generation) {
+        return directory.resolve(String.format("wal-%016x", generation));
+    }
+
+    private Path tablePathOf(final long firstGeneration, final long lastGeneration) {
+        return directory.resolve(String.format("table-%016x-%016x.sst", firstGeneration, lastGeneration));
+    }
+
+    private static long firstGenerationOf(final Path path) {
+        final var matcher = TABLE_NAME_PATTERN.matcher(path.getFileName().toString());
+        return matcher.matches() ? Long.parseLong(matcher.group(1), 16) : -1;
+    }
+
+    private static long lastGenerationOf(final Path path) {
+        final var matcher = TABLE_NAME_PATTERN.matcher(path.getFileName().toString());
+        return matcher.matches() ? Long.parseLong(matcher.group(2), 16) : -1;
+    }
+
+    private static void deleteDirectory(final Path directory) throws IOException {
+        try (final var stream = Files.list(directory)) {
+            for (final var path : stream.collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private static byte[] walRecord(final byte type, final long negotiationId, final int ordinal, final byte[] encoded) {
+        return ByteBuffer.allocate(13 + encoded.length)
+            .put(type)
+            .putLong(negotiationId)
+            .putInt(ordinal)
+            .put(encoded)
+            .array();
+    }
+
+    private static int maskOf(final Set<HashAlgorithm> algorithms) {
+        var mask = 0;
+        for (final var algorithm : algorithms) {
+            mask |= 1 << HashAlgorithm.ALL.indexOf(algorithm);
+        }
+        return mask;
+    }
+
+    private static byte[] keyOf(final Hash hash) {
+        final var sum = hash.sum();
+        final var key = new byte[sum.length + 1];
+        key[0] = (byte) HashAlgorithm.ALL.indexOf(hash.algorithm());
+        System.arraycopy(sum, 0, key, 1, sum.length);
+        return key;
+    }
+
+    // The flushing memtable, if any, belongs to the generation preceding
+    // that of the current memtable.
+    private static final class State {
+        private final Memtable memtable;
+        private final DefinitionLog wal;
+        private final long generation;
+        private final List<Table> tables;
+        private final Memtable flushing;
+        private final DefinitionLog flushingWal;
+        private final List<Memtable> memtables;
+
+        private State(final Memtable memtable, final DefinitionLog wal, final long generation, final List<Table> tables) {
+            this(memtable, wal, generation, tables, null, null);
+        }
+
+        private State(
+            final Memtable memtable,
+            final DefinitionLog wal,
+            final long generation,
+            final List<Table> tables,
+            final Memtable flushing,
+            final DefinitionLog flushingWal)
+        {
+            this.memtable = memtable;
+            this.wal = wal;
+            this.generation = generation;
+            this.tables = List.copyOf(tables);
+            this.flushing = flushing;
+            this.flushingWal = flushingWal;
+            memtables = flushing != null
+                ? List.of(flushing, memtable)
+                : List.of(memtable);
+        }
+    }
+
+    private static final class Memtable {
+        private final Map<Hash, Slot> hashToSlot = new ConcurrentHashMap<>();
+        private final LongKeyedMap<AppendOnlyList<Slot>> negotiationIdToSlots = new LongKeyedMap<>();
+        private final LongKeyedMap<Integer> negotiationIdToThreshold = new LongKeyedMap<>();
+        private final AtomicLong size = new AtomicLong();
+
+        void append(final Slot slot) {
+            negotiationIdToSlots.compute(slot.negotiationId, (negotiationId, slots) -> {
+                if (slots == null) {
+                    slots = new AppendOnlyList<>();
+                }
+                slots.append(slot);
+                return slots;
+            });
+        }
+
+        void evict(final long negotiationId, final int threshold) {
+            negotiationIdToThreshold.compute(negotiationId, (negotiationId0, threshold0) ->
+                threshold0 == null || threshold0 < threshold ? threshold : threshold0);
+        }
+
+        boolean isEmpty() {
+            final var isEmpty = new boolean[]{true};
+            negotiationIdToSlots.forEach((negotiationId, slots) -> isEmpty[0] = false);
+            negotiationIdToThreshold.forEach((negotiationId, threshold) -> isEmpty[0] = false);
+            return isEmpty[0];
+        }
+    }
+
+    private static final class Slot {
+        private final long negotiationId;
+        private final DefinitionEntry entry;
+
+        private volatile int ordinal;
+        private volatile boolean isDiscarded = false;
+
+        private Slot(final long negotiationId, final int ordinal, final DefinitionEntry entry) {
+            this.negotiationId = negotiationId;
+            this.ordinal = ordinal;
+            this.entry = entry;
+        }
+    }
+
+    private static final class Location {
+        private final Table table;
+        private final int offset;
+
+        private Location(final Table table, final int offset) {
+            this.table = table;
+            this.offset = offset;
+        }
+    }
+
+    private static final class Cursor {
+        private final Table table;
+
+        private int nextOffset = TABLE_HEADER_SIZE;
+        private int offset;
+        private long negotiationId;
+        private int ordinal;
+
+        private Cursor(final Table table) {
+            this.table = table;
+        }
+
+        boolean next() {
+            if (nextOffset >= table.hashIndexOffset) {
+                return false;
+            }
+            offset = nextOffset;
+            negotiationId = table.negotiationIdAt(offset);
+            ordinal = table.ordinalAt(offset);
+            nextOffset = offset + 4 + table.buffer.getInt(offset);
+            return true;
+        }
+    }
+
+    // [int magic][int version]
+    // [int length][long negotiationId][int ordinal][byte[length - 12] entry]*
+    // [byte algorithm][byte sumLength][byte[sumLength] sum][int entryOffset]*
+    // [long negotiationId][int entryOffset][int entryCount][int nextOrdinal]*
+    // [long negotiationId][int threshold]*
+    // [int hashIndexOffset][int hashCount][int negotiationIndexOffset]
+    // [int negotiationCount][int thresholdsOffset][int thresholdCount]
+    // [int algorithmMask][int magic]
+    private static final class Table {
+        private final Path path;
+        private final long firstGeneration;
+        private final long lastGeneration;
+        private final ByteBuffer buffer;
+        private final int hashIndexOffset;
+        private final int negotiationIndexOffset;
+        private final int negotiationCount;
+        private final int thresholdsOffset;
+        private final int thresholdCount;
+        private final int algorithmMask;
+        private final HashBloomFilter filter;
+        private final byte[][] sparseKeys;
+        private final int[] sparseOffsets;
+
+        private Table(
+            final Path path,
+            final long firstGeneration,
+            final long lastGeneration,
+            final ByteBuffer buffer)
+        {
+            this.path = path;
+            this.firstGeneration = firstGeneration;
+            this.lastGeneration = lastGeneration;
+            this.buffer = buffer;
+
+            final var footer = buffer.capacity() - TABLE_FOOTER_SIZE;
+            hashIndexOffset = buffer.getInt(footer);
+            final var hashCount = buffer.getInt(footer + 4);
+            negotiationIndexOffset = buffer.getInt(footer + 8);
+            negotiationCount = buffer.getInt(footer + 12);
+            thresholdsOffset = buffer.getInt(footer + 16);
+            thresholdCount = buffer.getInt(footer + 20);
+            algorithmMask = buffer.getInt(footer + 24);
+
+            filter = new HashBloomFilter(Math.max(hashCount, 1), 0.01);
+            final var sparseCount = (hashCount + SPARSE_INDEX_INTERVAL - 1) / SPARSE_INDEX_INTERVAL;
+            sparseKeys = new byte[sparseCount][];
+            sparseOffsets = new int[sparseCount];
+            var offset = hashIndexOffset;
+            for (var i = 0; i < hashCount; ++i) {
+                final var key = keyAt(offset);
+                filter.add(new Hash(HashAlgorithm.ALL.get(key[0]), Arrays.copyOfRange(key, 1, key.length)));
+                if (i % SPARSE_INDEX_INTERVAL == 0) {
+                    sparseKeys[i / SPARSE_INDEX_INTERVAL] = key;
+                    sparseOffsets[i / SPARSE_INDEX_INTERVAL] = offset;
+                }
+                offset += key.length + 5;
+            }
+        }
+
+        static Table open(final Path path, final long firstGeneration, final long lastGeneration)
+            throws IOException
+        {
+            try (final var channel = FileChannel.open(path, READ)) {
+                final var size = channel.size();
+                if (size < TABLE_HEADER_SIZE + TABLE_FOOTER_SIZE || size > Integer.MAX_VALUE) {
+                    throw new IOException(path + " is not a definition table");
+                }
+                final var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (buffer.getInt(0) != TABLE_MAGIC || buffer.getInt(4) != TABLE_VERSION ||
+                    buffer.getInt((int) size - 4) != TABLE_MAGIC)
+                {
+                    throw new IOException(path + " is not a definition table " +
+                        "of a supported version");
+                }
+                return new Table(path, firstGeneration, lastGeneration, buffer);
+            }
+        }
+
+        // [byte algorithm][byte sumLength][byte[sumLength] sum] as
+        // [byte algorithm][byte[sumLength] sum].
+        private byte[] keyAt(final int offset) {
+            final var sumLength = buffer.get(offset + 1) & 0xFF;
+            final var key = new byte[sumLength + 1];
+            key[0] = buffer.get(offset);
+            buffer.duplicate().position(offset + 2).get(key, 1, sumLength);
+            return key;
+        }
+
+        int find(final byte[] key) {
+            var low = 0;
+            var high = sparseKeys.length - 1;
+            var start = -1;
+            while (low <= high) {
+                final var middle = (low + high) >>> 1;
+                if (Arrays.compareUnsigned(sparseKeys[middle], key) <= 0) {
+                    start = middle;
+                    low = middle + 1;
+                }
+                else {
+                    high = middle - 1;
+                }
+            }
+            if (start < 0) {
+                return -1;
+            }
+            var offset = sparseOffsets[start];
+            for (var i = 0; i < SPARSE_INDEX_INTERVAL && offset < negotiationIndexOffset; ++i) {
+                final var key0 = keyAt(offset);
+                final var comparison = Arrays.compareUnsigned(key0, key);
+                if (comparison == 0) {
+                    return buffer.getInt(offset + key0.length + 1);
+                }
+                if (comparison > 0) {
+                    break;
+                }
+                offset += key0.length + 5;
+            }
+            return -1;
+        }
+
+        long negotiationIdAt(final int offset) {
+            return buffer.getLong(offset + 4);
+        }
+
+        int ordinalAt(final int offset) {
+            return buffer.getInt(offset + 12);
+        }
+
+        ByteBuffer encodedEntryAt(final int offset) {
+            final var length = buffer.getInt(offset);
+            return buffer.duplicate()
+                .position(offset + ENTRY_HEADER_SIZE)
+                .limit(offset + 4 + length)
+                .slice();
+        }
+
+        DefinitionEntry entryAt(final int offset) {
+            return DefinitionCodec.decodeEntry(encodedEntryAt(offset));
+        }
+
+        private int negotiationRecordOf(final long negotiationId) {
+            return binarySearch(negotiationIndexOffset, negotiationCount, NEGOTIATION_RECORD_SIZE, negotiationId);
+        }
+
+        int nextOrdinalOf(final long negotiationId) {
+            final var record = negotiationRecordOf(negotiationId);
+            return record >= 0 ? buffer.getInt(record + 16) : -1;
+        }
+
+        int thresholdOf(final long negotiationId) {
+            final var record = binarySearch(thresholdsOffset, thresholdCount, EVICTION_RECORD_SIZE, negotiationId);
+            return record >= 0 ? buffer.getInt(record + 8) : -1;
+        }
+
+        private int binarySearch(final int start, final int count, final int recordSize, final long key) {
+            var low = 0;
+            var high = count - 1;
+            while (low <= high) {
+                final var middle = (low + high) >>> 1;
+                final var record = start + middle * recordSize;
+                final var key0 = buffer.getLong(record);
+                if (key0 < key) {
+                    low = middle + 1;
+                }
+                else if (key0 > key) {
+                    high = middle - 1;
+                }
+                else {
+                    return record;
+                }
+            }
+            return -1;
+        }
+
+        void forEachOf(final long negotiationId, final OrdinalVisitor visitor) {
+            final var record = negotiationRecordOf(negotiationId);
+            if (record < 0) {
+                return;
+            }
+            var offset = buffer.getInt(record + 8);
+            final var count = buffer.getInt(record + 12);
+            for (var i = 0; i < count; ++i) {
+                visitor.accept(ordinalAt(offset), offset);
+                offset += 4 + buffer.getInt(offset);
+            }
+        }
+
+        void forEach(final EntryVisitor visitor) {
+            var offset = TABLE_HEADER_SIZE;
+            while (offset < hashIndexOffset) {
+                visitor.accept(negotiationIdAt(offset), ordinalAt(offset), offset);
+                offset += 4 + buffer.getInt(offset);
+            }
+        }
+
+        void forEachThreshold(final ThresholdVisitor visitor) {
+            for (var i = 0; i < thresholdCount; ++i) {
+                final var record = thresholdsOffset + i * EVICTION_RECORD_SIZE;
+                visitor.accept(buffer.getLong(record), buffer.getInt(record + 8));
+            }
+        }
+    }
+
+    private interface OrdinalVisitor {
+        void accept(int ordinal, int offset);
+    }
+
+    private interface EntryVisitor {
+        void accept(long negotiationId, int ordinal, int offset);
+    }
+
+    private interface ThresholdVisitor {
+        void accept(long negotiationId, int threshold);
+    }
+
+    private static final class TableWriter implements AutoCloseable {
+        private final Path path;
+        private final Path temporaryPath;
+        private final FileChannel channel;
+        private final DataOutputStream output;
+        private final List<Map.Entry<byte[], Integer>> keys = new ArrayList<>();
+        private final List<long[]> negotiations = new ArrayList<>();
+
+        private long position = TABLE_HEADER_SIZE;
+        private boolean isCommitted = false;
+
+        private TableWriter(final Path path) throws IOException {
+            this.path = path;
+            temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+            channel = FileChannel.open(temporaryPath, CREATE, TRUNCATE_EXISTING, WRITE);
+            output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            output.writeInt(TABLE_MAGIC);
+            output.writeInt(TABLE_VERSION);
+        }
+
+        // Entries must be written in order of negotiation identifier and
+        // ordinal.
+        void write(final long negotiationId, final int ordinal, final ByteBuffer entry) throws IOException {
+            final var length = entry.remaining();
+            if (position + ENTRY_HEADER_SIZE + length > MAX_TABLE_SIZE) {
+                throw new IOException("Definition table " + path + " too large");
+            }
+            final var offset = (int) position;
+            for (final var hash : DefinitionCodec.decodeHashes(entry.duplicate())) {
+                keys.add(Map.entry(keyOf(hash), offset));
+            }
+            final var last = negotiations.isEmpty() ? null : negotiations.get(negotiations.size() - 1);
+            if (last != null && last[0] == negotiationId) {
+                last[2] += 1;
+                last[3] = ordinal + 1;
+            }
+            else {
+                negotiations.add(new long[]{negotiationId, offset, 1, ordinal + 1});
+            }
+
+            output.writeInt(length + 12);
+            output.writeLong(negotiationId);
+            output.writeInt(ordinal);
+            final var bytes = new byte[length];
+            entry.duplicate().get(bytes);
+            output.write(bytes);
+            position += ENTRY_HEADER_SIZE + length;
+        }
+
+        void commit(final SortedMap<Long, Integer> thresholds, final int algorithmMask) throws IOException {
+            keys.sort((a, b) -> Arrays.compareUnsigned(a.getKey(), b.getKey()));
+
+            final var hashIndexOffset = (int) position;
+            for (final var key : keys) {
+                output.writeByte(key.getKey()[0]);
+                output.writeByte(key.getKey().length - 1);
+                output.write(key.getKey(), 1, key.getKey().length - 1);
+                output.writeInt(key.getValue());
+                position += key.getKey().length + 5;
+            }
+
+            final var negotiationIndexOffset = (int) position;
+            for (final var negotiation : negotiations) {
+                output.writeLong(negotiation[0]);
+                output.writeInt((int) negotiation[1]);
+                output.writeInt((int) negotiation[2]);
+                output.writeInt((int) negotiation[3]);
+                position += NEGOTIATION_RECORD_SIZE;
+            }
+
+            final var thresholdsOffset = (int) position;
+            for (final var threshold : thresholds.entrySet()) {
+                output.writeLong(threshold.getKey());
+                output.writeInt(threshold.getValue());
+                position += EVICTION_RECORD_SIZE;
+            }
+
+            output.writeInt(hashIndexOffset);
+            output.writeInt(keys.size());
+            output.writeInt(negotiationIndexOffset);
+            output.writeInt(negotiations.size());
+            output.writeInt(thresholdsOffset);
+            output.writeInt(thresholds.size());
+            output.writeInt(algorithmMask);
+            output.writeInt(TABLE_MAGIC);
+            output.flush();
+            channel.force(true);
+            channel.close();
+            Files.move(temporaryPath, path, ATOMIC_MOVE, REPLACE_EXISTING);
+            isCommitted = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (isCommitted) {
+                return;
+            }
+            channel.close();
+            Files.deleteIfExists(temporaryPath);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package se.arkalix.core.cp.bank;
+
+import se.arkalix.core.cp.security.Hash;
+import se.arkalix.core.cp.security.HashAlgorithm;
+import se.arkalix.util.annotation.ThreadSafe;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * {@link DefinitionStore} keeping no definitions on the Java heap.
+ * <p>
+ * Definitions are read back from the {@link DefinitionLog} of the {@link
+ * DefinitionBank} using the store whenever requested, which means that every
+ * definition added to the store must be given with its log address. Hashes
+ * are mapped to log addresses by an {@link OffHeapHashIndex}.
+ * <p>
+ * The store does not move negotiations off the heap. A negotiation that has
+ * been accepted or rejected keeps only the hashes of its messages, and is
+ * forgotten once its definitions are dropped by {@link
+ * DefinitionBank#compact(java.time.Instant, java.util.function.LongConsumer)
+ * compaction}. Heap usage therefore grows with the number of negotiations
+ * whose definitions are retained, but not with the sizes of their messages.
+ */
+public class OffHeapDefinitionStore implements DefinitionStore {
+    private final LongKeyedMap<AppendOnlyLongList> negotiationIdToAddresses = new LongKeyedMap<>();
+    private final DefinitionLog log;
+    private final OffHeapHashIndex hashToAddress;
+    private final Set<HashAlgorithm> acceptedHashAlgorithms;
+
+    /**
+     * @param log                    Log of the bank using the store.
+     * @param index                  Index to map hashes to log addresses.
+     * @param acceptedHashAlgorithms Hash algorithms used by the bank using
+     *                               the store.
+     */
+    public OffHeapDefinitionStore(
+        final DefinitionLog log,
+        final OffHeapHashIndex index,
+        final Set<HashAlgorithm> acceptedHashAlgorithms)
+    {
+        this.log = Objects.requireNonNull(log, "Expected log");
+        this.hashToAddress = Objects.requireNonNull(index, "Expected index");
+        this.acceptedHashAlgorithms = Objects.requireNonNull(acceptedHashAlgorithms,
+            "Expected acceptedHashAlgorithms");
+    }
+
+    @Override
+    @ThreadSafe
+    public void add(final DefinitionEntry entry, final long address) {
+        if (address == NO_ADDRESS) {
+            throw new IllegalArgumentException("Expected address; the " +
+                "off-heap definition store requires a definition log");
+        }
+        final var hashes = entry.hashes();
+        for (var i = 0; i < hashes.size(); ++i) {
+            final var hash = hashes.get(i);
+            if (hashToAddress.putIfAbsent(hash, address) != OffHeapHashIndex.NO_VALUE) {
+                while (--i >= 0) {
+                    hashToAddress.remove(hashes.get(i));
+                }
+                throw new IllegalStateException("Hash collision detected " +
+                    "for " + hash + "; cannot save " + entry.definition() +
+                    " in definition bank");
+            }
+        }
+        negotiationIdToAddresses.compute(entry.definition().negotiationId(), (id, addresses) -> {
+            if (addresses == null) {
+                addresses = new AppendOnlyLongList();
+            }
+            addresses.append(address);
+            return addresses;
+        });
+    }
+
+    @Override
+    @ThreadSafe
+    public boolean contains(final Hash hash) {
+        return hashToAddress.contains(hash);
+    }
+
+    @Override
+    @ThreadSafe
+    public Optional<Definition> get(final Hash hash) {
+        final var address = hashToAddress.get(hash);
+        return address != OffHeapHashIndex.NO_VALUE
+            ? Optional.of(read(address).definition())
+            : Optional.empty();
+    }
+
+    @Override
+    @ThreadSafe
+    public List<DefinitionEntry> get(final long negotiationId) {
+        final var addresses = negotiationIdToAddresses.get(negotiationId);
+        if (addresses == null) {
+            return Collections.emptyList();
+        }
+        final var size = addresses.size();
+        final var entries = new ArrayList<DefinitionEntry>(size);
+        for (var i = 0; i < size; ++i) {
+            entries.add(read(addresses.get(i)));
+        }
+        return Collections.unmodifiableList(entries);
+    }
+
+    @Override
+    @ThreadSafe
+    public void scan(final Visitor visitor) {
+        negotiationIdToAddresses.forEach((negotiationId, addresses) -> {
+            final var size = addresses.size();
+            for (var i = 0; i < size; ++i) {
+                final var address = addresses.get(i);
+                visitor.accept(address, read(address));
+            }
+        });
+    }
+
+    @Override
+    @ThreadSafe
+    public void evict(final long negotiationId, final int count) {
+        final var addresses = negotiationIdToAddresses.get(negotiationId);
+        if (addresses == null) {
+            return;
+        }
+        final var size = Math.min(count, addresses.size());
+        for (var i = 0; i < size; ++i) {
+            for (final var hash : read(addresses.get(i)).hashes()) {
+                hashToAddress.remove(hash);
+            }
+        }
+        negotiationIdToAddresses.compute(negotiationId, (id, addresses0) ->
+            addresses0 == null || addresses0.size() <= count
+                ? null
+                : addresses0.copyFrom(count));
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        hashToAddress.close();
+    }
+
+    private DefinitionEntry read(final long address) {
+        return DefinitionCodec.decodeEntry(ByteBuffer.wrap(log.read(address)))
+            .rehashedUsing(acceptedHashAlgorithms);
+    }
+}
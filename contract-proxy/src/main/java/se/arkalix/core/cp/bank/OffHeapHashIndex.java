@@ -0,0 +1,383 @@
+package se.arkalix.core.cp.bank;
+
+import se.arkalix.core.cp.security.Hash;
+import se.arkalix.core.cp.security.HashAlgorithm;
+import se.arkalix.util.annotation.ThreadSafe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Open-addressing hash table mapping {@link Hash hashes} to non-negative
+ * {@code long} values, such as {@link DefinitionLog} record addresses.
+ * <p>
+ * The table is kept in memory-mapped files rather than on the Java heap, which
+ * means that its size neither affects heap usage nor garbage collection
+ * pauses. Each slot holds a value, an algorithm identifier and the first 32
+ * bytes of a hash sum. Hash sums longer than 32 bytes are, consequently,
+ * compared only by their first 256 bits, which remains collision-safe for all
+ * collision-safe {@link HashAlgorithm hash algorithms}.
+ * <p>
+ * The table is not persistent. Any files from previous instances found in
+ * the directory of the index when it is created are removed.
+ */
+public class OffHeapHashIndex implements Closeable {
+    public static final long NO_VALUE = -1;
+
+    private static final int DIGEST_SIZE = 32;
+    private static final int SLOT_SIZE = 48; // [long value + 1][byte algorithm][7 unused][byte[32] digest]
+    private static final int OFFSET_ALGORITHM = 8;
+    private static final int OFFSET_DIGEST = 16;
+    private static final int CHUNK_SHIFT = 20;
+    private static final int CHUNK_SLOTS = 1 << CHUNK_SHIFT;
+    private static final int MIN_CAPACITY = 1 << 12;
+    private static final String FILE_PREFIX = "hash-index-";
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Path directory;
+
+    private Table table;
+    private long size = 0;
+    private int generation = 0;
+
+    private OffHeapHashIndex(final Path directory, final long initialCapacity) {
+        this.directory = directory;
+        table = Table.create(directory.resolve(FILE_PREFIX + generation), capacityFor(initialCapacity));
+    }
+
+    public static OffHeapHashIndex create(final Path directory, final long expectedSize) throws IOException {
+        Objects.requireNonNull(directory, "Expected directory");
+        Files.createDirectories(directory);
+        try (final var stream = Files.list(directory)) {
+            for (final var path : (Iterable<Path>) stream::iterator) {
+                if (path.getFileName().toString().startsWith(FILE_PREFIX)) {
+                    Files.delete(path);
+                }
+            }
+        }
+        return new OffHeapHashIndex(directory, expectedSize);
+    }
+
+    private static long capacityFor(final long size) {
+        final var minimum = Math.max(MIN_CAPACITY, size + size / 2);
+        return Long.highestOneBit(minimum - 1) << 1;
+    }
+
+    @ThreadSafe
+    public long get(final Hash hash) {
+        final var key = Key.from(hash);
+        lock.readLock().lock();
+        try {
+            final var slot = table.find(key);
+            return slot < 0 ? NO_VALUE : table.value(slot);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @ThreadSafe
+    public boolean contains(final Hash hash) {
+        return get(hash) != NO_VALUE;
+    }
+
+    /**
+     * Associates {@code value} with {@code hash}, unless {@code hash} already
+     * is associated with a value.
+     *
+     * @param hash  Hash to associate with {@code value}.
+     * @param value Non-negative value.
+     * @return Previous value associated with {@code hash}, or {@link
+     * #NO_VALUE} if there was none, in which case {@code value} was inserted.
+     */
+    @ThreadSafe
+    public long putIfAbsent(final Hash hash, final long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Expected value >= 0");
+        }
+        final var key = Key.from(hash);
+        lock.writeLock().lock();
+        try {
+            final var existing = table.find(key);
+            if (existing >= 0) {
+                return table.value(existing);
+            }
+            if ((size + 1) * 10 > table.capacity * 7) {
+                grow();
+            }
+            table.insert(key, value);
+            size += 1;
+            return NO_VALUE;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the value associated with {@code hash}, if any.
+     *
+     * @param hash  Hash to associate with {@code value}.
+     * @param value Non-negative value.
+     * @return {@code true} only if {@code hash} was associated with a value
+     * before this method was called.
+     */
+    @ThreadSafe
+    public boolean replace(final Hash hash, final long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Expected value >= 0");
+        }
+        final var key = Key.from(hash);
+        lock.writeLock().lock();
+        try {
+            final var slot = table.find(key);
+            if (slot < 0) {
+                return false;
+            }
+            table.setValue(slot, value);
+            return true;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @ThreadSafe
+    public boolean remove(final Hash hash) {
+        final var key = Key.from(hash);
+        lock.writeLock().lock();
+        try {
+            final var slot = table.find(key);
+            if (slot < 0) {
+                return false;
+            }
+            table.delete(slot);
+            size -= 1;
+            return true;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @ThreadSafe
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void grow() {
+        final var source = table;
+        final var target = Table.create(directory.resolve(FILE_PREFIX + (generation + 1)), source.capacity << 1);
+        final var key = new Key();
+        for (var slot = 0L; slot < source.capacity; ++slot) {
+            if (source.isOccupied(slot)) {
+                source.readKey(slot, key);
+                target.insert(key, source.value(slot));
+            }
+        }
+        table = target;
+        generation += 1;
+        source.delete();
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            table.delete();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static final class Key {
+        private byte algorithm;
+        private final byte[] digest = new byte[DIGEST_SIZE];
+
+        static Key from(final Hash hash) {
+            Objects.requireNonNull(hash, "Expected hash");
+            final var key = new Key();
+            final var sum = hash.sum();
+            key.algorithm = (byte) (HashAlgorithm.ALL.indexOf(hash.algorithm()) + 1);
+            System.arraycopy(sum, 0, key.digest, 0, Math.min(sum.length, DIGEST_SIZE));
+            return key;
+        }
+
+        long hash() {
+            var h = algorithm * 0x9E3779B97F4A7C15L;
+            for (var i = 0; i < 8; ++i) {
+                h = (h << 8) ^ (h >>> 56) ^ (digest[i] & 0xFF);
+            }
+            h ^= h >>> 33;
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            h *= 0xC4CEB9FE1A85EC53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+
+    private static final class Table {
+        private final Path path;
+        private final long capacity;
+        private final long mask;
+        private final MappedByteBuffer[] chunks;
+
+        private Table(final Path path, final long capacity, final MappedByteBuffer[] chunks) {
+            this.path = path;
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.chunks = chunks;
+        }
+
+        static Table create(final Path path, final long capacity) {
+            final var chunkSlots = (int) Math.min(capacity, CHUNK_SLOTS);
+            final var chunks = new MappedByteBuffer[(int) (capacity / chunkSlots)];
+            try (final var channel = FileChannel.open(path, CREATE_NEW, READ, WRITE, SPARSE)) {
+                for (var i = 0; i < chunks.length; ++i) {
+                    chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        (long) i * chunkSlots * SLOT_SIZE, (long) chunkSlots * SLOT_SIZE);
+                }
+            }
+            catch (final IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+            return new Table(path, capacity, chunks);
+        }
+
+        long find(final Key key) {
+            var slot = key.hash() & mask;
+            while (isOccupied(slot)) {
+                if (matches(slot, key)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        void insert(final Key key, final long value) {
+            var slot = key.hash() & mask;
+            while (isOccupied(slot)) {
+                slot = (slot + 1) & mask;
+            }
+            final var chunk = chunkOf(slot);
+            final var offset = offsetOf(slot);
+            chunk.put(offset + OFFSET_ALGORITHM, key.algorithm);
+            for (var i = 0; i < DIGEST_SIZE; ++i) {
+                chunk.put(offset + OFFSET_DIGEST + i, key.digest[i]);
+            }
+            chunk.putLong(offset, value + 1);
+        }
+
+        // Backward-shift deletion, which keeps all probe sequences intact
+        // without the use of tombstones.
+        void delete(long slot) {
+            final var key = new Key();
+            var next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                if (!isOccupied(next)) {
+                    break;
+                }
+                readKey(next, key);
+                final var home = key.hash() & mask;
+                final var isBetween = slot <= next
+                    ? slot < home && home <= next
+                    : slot < home || home <= next;
+                if (isBetween) {
+                    continue;
+                }
+                copy(next, slot);
+                slot = next;
+            }
+            chunkOf(slot).putLong(offsetOf(slot), 0);
+        }
+
+        boolean isOccupied(final long slot) {
+            return chunkOf(slot).getLong(offsetOf(slot)) != 0;
+        }
+
+        long value(final long slot) {
+            return chunkOf(slot).getLong(offsetOf(slot)) - 1;
+        }
+
+        void setValue(final long slot, final long value) {
+            chunkOf(slot).putLong(offsetOf(slot), value + 1);
+        }
+
+        void readKey(final long slot, final Key key) {
+            final var chunk = chunkOf(slot);
+            final var offset = offsetOf(slot);
+            key.algorithm = chunk.get(offset + OFFSET_ALGORITHM);
+            for (var i = 0; i < DIGEST_SIZE; ++i) {
+                key.digest[i] = chunk.get(offset + OFFSET_DIGEST + i);
+            }
+        }
+
+        private boolean matches(final long slot, final Key key) {
+            final var chunk = chunkOf(slot);
+            final var offset = offsetOf(slot);
+            if (chunk.get(offset + OFFSET_ALGORITHM) != key.algorithm) {
+                return false;
+            }
+            for (var i = 0; i < DIGEST_SIZE; i += 8) {
+                if (chunk.getLong(offset + OFFSET_DIGEST + i) != longAt(key.digest, i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void copy(final long from, final long to) {
+            final var source = chunkOf(from);
+            final var sourceOffset = offsetOf(from);
+            final var target = chunkOf(to);
+            final var targetOffset = offsetOf(to);
+            for (var i = 0; i < SLOT_SIZE; i += 8) {
+                target.putLong(targetOffset + i, source.getLong(sourceOffset + i));
+            }
+        }
+
+        private MappedByteBuffer chunkOf(final long slot) {
+            return chunks[(int) (slot >>> CHUNK_SHIFT)];
+        }
+
+        private int offsetOf(final long slot) {
+            return (int) (slot & (CHUNK_SLOTS - 1)) * SLOT_SIZE;
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(path);
+            }
+            catch (final IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+        }
+
+        private static long longAt(final byte[] bytes, final int offset) {
+            var value = 0L;
+            for (var i = 0; i < 8; ++i) {
+                value = (value << 8) | (bytes[offset + i] & 0xFF);
+            }
+            return value;
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package se.arkalix.core.cp.contract;
 
+import se.arkalix.core.cp.bank.Definition;
+import se.arkalix.core.cp.bank.DefinitionBank;
+import se.arkalix.core.cp.security.Hash;
 import se.arkalix.core.cp.security.HashAlgorithm;
 import se.arkalix.core.cp.security.HashBase64;
 import se.arkalix.core.cp.security.HashBase64Dto;
@@ -12,6 +15,19 @@ import java.time.Instant;
 import java.util.*;
 import java.util.stream.Collectors;
 
+/**
+ * A negotiation between an owned party and a counter-party.
+ * <p>
+ * Of the messages accepted into a negotiation, only the last two offers are
+ * kept. Every other message is remembered only by its hash, while the
+ * messages themselves remain available from the {@link DefinitionBank
+ * definition bank}. The last offer is needed to validate responses to it,
+ * and the one before it becomes the last offer again if the last offer is
+ * {@link #revertOnBehalfOfOwnedParty(Definition) reverted}. If the
+ * negotiation is given a definition bank, no offers at all are kept once it
+ * has been accepted or rejected, as its last offer can then be read from the
+ * bank whenever needed.
+ */
 public class ContractNegotiation {
     public static final Duration CLOCK_SKEW_TOLERANCE = Duration.ofSeconds(30);
 
@@ -24,6 +40,8 @@ public class ContractNegotiation {
     private final HashBase64Dto preferredCounterPartyFingerprintBase64;
     private final Set<HashAlgorithm> acceptedHashAlgorithms;
     private final HashAlgorithm preferredHashAlgorithm;
+    private final HashAlgorithm hashAlgorithm;
+    private final DefinitionBank bank;
 
     private static final int STATE_INITIAL = 0;
     private static final int STATE_OFFERING = 1;
@@ -35,9 +53,11 @@ public class ContractNegotiation {
     private Party activeParty = null;
     private Party waitingParty = null;
 
-    private final List<SignedContractOfferDto> loggedOffers = new ArrayList<>();
-    private SignedContractAcceptanceDto loggedAcceptance = null;
-    private SignedContractRejectionDto loggedRejection = null;
+    private final List<Hash> offerHashes = new ArrayList<>();
+    private SignedContractOfferDto lastOffer = null;
+    private SignedContractOfferDto previousOffer = null;
+    private Hash acceptanceHash = null;
+    private Hash rejectionHash = null;
 
     public ContractNegotiation(
         final OwnedParty ownedParty,
@@ -45,6 +65,22 @@ public class ContractNegotiation {
         final long id,
         final Templates templates,
         final Set<HashAlgorithm> acceptedHashAlgorithms)
+    {
+        this(ownedParty, counterParty, id, templates, acceptedHashAlgorithms, null);
+    }
+
+    /**
+     * @param bank Definition bank holding the messages accepted into this
+     *             negotiation, or {@code null}. Messages are hashed with the
+     *             primary hash algorithm of the bank, if given.
+     */
+    public ContractNegotiation(
+        final OwnedParty ownedParty,
+        final Party counterParty,
+        final long id,
+        final Templates templates,
+        final Set<HashAlgorithm> acceptedHashAlgorithms,
+        final DefinitionBank bank)
     {
         this.ownedParty = Objects.requireNonNull(ownedParty, "Expected ownedParty");
         this.counterParty = Objects.requireNonNull(counterParty, "Expected counterParty");
@@ -54,6 +90,12 @@ public class ContractNegotiation {
 
         preferredOwnedPartyFingerprintBase64 = HashBase64.from(ownedParty.preferredFingerprint());
         preferredCounterPartyFingerprintBase64 = HashBase64.from(counterParty.preferredFingerprint());
+        this.bank = bank;
+
+        hashAlgorithm = bank != null
+            ? bank.primaryHashAlgorithm()
+            : HashAlgorithm.preferredOf(acceptedHashAlgorithms);
+
         preferredHashAlgorithm = ownedParty.preferredFingerprint().algorithm();
     }
 
@@ -69,16 +111,49 @@ public class ContractNegotiation {
         return id;
     }
 
-    public synchronized Optional<SignedContractAcceptanceDto> acceptance() {
-        return Optional.ofNullable(loggedAcceptance);
+    public HashAlgorithm hashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    public synchronized Optional<Hash> acceptanceHash() {
+        return Optional.ofNullable(acceptanceHash);
     }
 
-    public synchronized Optional<SignedContractRejectionDto> rejection() {
-        return Optional.ofNullable(loggedRejection);
+    public synchronized Optional<Hash> rejectionHash() {
+        return Optional.ofNullable(rejectionHash);
     }
 
-    public synchronized List<SignedContractOfferDto> offers() {
-        return List.copyOf(loggedOffers);
+    public synchronized List<Hash> offerHashes() {
+        return List.copyOf(offerHashes);
+    }
+
+    /**
+     * Determines whether the offer, acceptance or rejection with the given
+     * hash has been accepted into this negotiation.
+     * <p>
+     * Hashes not calculated with the {@link #hashAlgorithm() hash algorithm}
+     * of this negotiation are only compared to the offers it still keeps.
+     *
+     * @param hash Hash of message.
+     * @return {@code true} only if the identified message is part of this
+     * negotiation.
+     */
+    public synchronized boolean contains(final Hash hash) {
+        final var algorithm = hash.algorithm();
+        if (!algorithm.equals(hashAlgorithm)) {
+            return (lastOffer != null && lastOffer.hashUsing(algorithm).equals(hash)) ||
+                (previousOffer != null && previousOffer.hashUsing(algorithm).equals(hash));
+        }
+        if (hash.equals(acceptanceHash) || hash.equals(rejectionHash)) {
+            return true;
+        }
+        // Retransmitted offers are most likely to be the last ones.
+        for (var i = offerHashes.size(); i-- != 0; ) {
+            if (offerHashes.get(i).equals(hash)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public synchronized SignedContractOfferDto lastOffer() {
@@ -86,7 +161,15 @@ public class ContractNegotiation {
             throw new IllegalStateException("This negotiation session does " +
                 "not contain any offers; cannot fulfill request");
         }
-        return loggedOffers.get(loggedOffers.size() - 1);
+        if (lastOffer != null) {
+            return lastOffer;
+        }
+        final var hash = offerHashes.get(offerHashes.size() - 1);
+        return bank.get(hash)
+            .map(SignedContractOfferDto.class::cast)
+            .orElseThrow(() -> new IllegalStateException("Last offer of " +
+                this + " is no longer in the definition bank; cannot " +
+                "fulfill request"));
     }
 
     public synchronized TrustedContractOfferDto lastOfferAsTrusted() {
@@ -215,7 +298,31 @@ public class ContractNegotiation {
             .sign(ownedParty);
     }
 
-    public ContractNegotiationStatus status() {
+    /**
+     * @return {@code true} only if no offer has yet been accepted into this
+     * negotiation.
+     */
+    public synchronized boolean isInitial() {
+        return state == STATE_INITIAL;
+    }
+
+    /**
+     * Determines whether this negotiation is open at the given time, which
+     * is the case if no offer has yet been accepted into it, or if its last
+     * offer has not yet been accepted, rejected or expired.
+     *
+     * @param now Current time.
+     * @return {@code true} only if this negotiation is open.
+     */
+    public synchronized boolean isOpenAt(final Instant now) {
+        switch (state) {
+        case STATE_INITIAL: return true;
+        case STATE_OFFERING: return lastOffer().validUntil().isAfter(now);
+        default: return false;
+        }
+    }
+
+    public synchronized ContractNegotiationStatus status() {
         switch (state) {
         case STATE_OFFERING: return ContractNegotiationStatus.OFFERING;
         case STATE_ACCEPTED: return ContractNegotiationStatus.ACCEPTED;
@@ -231,8 +338,9 @@ public class ContractNegotiation {
 
         throwIfOwnedPartyCannotUpdateIgnoringExpiration();
 
-        loggedAcceptance = acceptance;
+        acceptanceHash = acceptance.hashUsing(hashAlgorithm);
         state = STATE_ACCEPTED;
+        releaseOffers();
     }
 
     public synchronized void updateOnBehalfOfOwnedParty(final SignedContractOfferDto offer) {
@@ -240,7 +348,7 @@ public class ContractNegotiation {
 
         throwIfOwnedPartyCannotUpdateIgnoringExpiration();
 
-        loggedOffers.add(offer);
+        addOffer(offer);
         activeParty = counterParty;
         waitingParty = ownedParty;
         state = STATE_OFFERING;
@@ -251,8 +359,9 @@ public class ContractNegotiation {
 
         throwIfOwnedPartyCannotUpdateIgnoringExpiration();
 
-        loggedRejection = rejection;
+        rejectionHash = rejection.hashUsing(hashAlgorithm);
         state = STATE_REJECTED;
+        releaseOffers();
     }
 
     public synchronized void updateOnBehalfOfCounterParty(final SignedContractAcceptanceDto acceptance) {
@@ -266,8 +375,9 @@ public class ContractNegotiation {
         throwIfNotMatchingLastOffer(acceptance.offerHash());
         throwIfNotSignedByPartyAt(acceptance, counterParty, now);
 
-        loggedAcceptance = acceptance;
+        acceptanceHash = acceptance.hashUsing(hashAlgorithm);
         state = STATE_ACCEPTED;
+        releaseOffers();
     }
 
     public synchronized void updateOnBehalfOfCounterParty(final SignedContractOfferDto offer) {
@@ -300,7 +410,7 @@ public class ContractNegotiation {
         }
         throwIfNotSignedByPartyAt(offer, counterParty, now);
 
-        loggedOffers.add(offer);
+        addOffer(offer);
         activeParty = ownedParty;
         waitingParty = counterParty;
         state = STATE_OFFERING;
@@ -317,8 +427,135 @@ public class ContractNegotiation {
         throwIfNotMatchingLastOffer(rejection.offerHash());
         throwIfNotSignedByPartyAt(rejection, counterParty, now);
 
-        loggedRejection = rejection;
+        rejectionHash = rejection.hashUsing(hashAlgorithm);
         state = STATE_REJECTED;
+        releaseOffers();
+    }
+
+    /**
+     * Undoes the update made to this negotiation by given acceptance, offer
+     * or rejection of the owned party, unless it is no longer the most recent
+     * update of this negotiation. Used when the message could not be
+     * delivered to the counter-party, which would otherwise be expected to
+     * respond to a message it never received.
+     *
+     * @param definition Undelivered acceptance, offer or rejection.
+     * @return {@code true} only if this negotiation was changed.
+     */
+    public synchronized boolean revertOnBehalfOfOwnedParty(final Definition definition) {
+        Objects.requireNonNull(definition, "Expected definition");
+        if (definition.negotiationId() != id) {
+            throw new IllegalArgumentException("Negotiation ID " + id + " not in " + definition);
+        }
+
+        if (definition instanceof SignedContractAcceptanceDto) {
+            if (state != STATE_ACCEPTED || activeParty != ownedParty || !isSame(acceptanceHash, definition)) {
+                return false;
+            }
+            acceptanceHash = null;
+            state = STATE_OFFERING;
+            lastOffer = lastOffer();
+            return true;
+        }
+        if (definition instanceof SignedContractRejectionDto) {
+            if (state != STATE_REJECTED || activeParty != ownedParty || !isSame(rejectionHash, definition)) {
+                return false;
+            }
+            rejectionHash = null;
+            state = STATE_OFFERING;
+            lastOffer = lastOffer();
+            return true;
+        }
+        if (definition instanceof SignedContractOfferDto) {
+            final var lastOfferHash = offerHashes.isEmpty() ? null : offerHashes.get(offerHashes.size() - 1);
+            if (state != STATE_OFFERING || waitingParty != ownedParty || !isSame(lastOfferHash, definition)) {
+                return false;
+            }
+            // The owned party is only ever allowed to make the next update
+            // after an offer of the counter-party, which means that two
+            // offers are never reverted in a row, and that the previous
+            // offer is the only one that may become the last offer again.
+            offerHashes.remove(offerHashes.size() - 1);
+            lastOffer = previousOffer;
+            previousOffer = null;
+            if (offerHashes.isEmpty()) {
+                activeParty = null;
+                waitingParty = null;
+                state = STATE_INITIAL;
+            }
+            else {
+                activeParty = ownedParty;
+                waitingParty = counterParty;
+            }
+            return true;
+        }
+        throw new IllegalArgumentException("Cannot revert " + definition);
+    }
+
+    private boolean isSame(final Hash hash, final Definition definition) {
+        return hash != null && hash.equals(definition.hashUsing(hashAlgorithm));
+    }
+
+    // Only the owned party may revert an acceptance or rejection, after
+    // which it is the turn of the owned party, which means that the offer
+    // before the last one can no longer become the last offer again.
+    private void releaseOffers() {
+        previousOffer = null;
+        if (bank != null) {
+            lastOffer = null;
+        }
+    }
+
+    private void addOffer(final SignedContractOfferDto offer) {
+        offerHashes.add(offer.hashUsing(hashAlgorithm));
+        previousOffer = lastOffer;
+        lastOffer = offer;
+    }
+
+    /**
+     * Updates this negotiation with a message that was accepted into it
+     * before the contract proxy was last restarted, without repeating any of
+     * the checks that were performed when the message was first received.
+     *
+     * @param definition Previously accepted offer, acceptance or rejection.
+     */
+    public synchronized void restore(final Definition definition) {
+        Objects.requireNonNull(definition, "Expected definition");
+        if (definition.negotiationId() != id) {
+            throw new IllegalArgumentException("Negotiation ID " + id + " not in " + definition);
+        }
+
+        if (definition instanceof SignedContractOfferDto) {
+            final var offer = (SignedContractOfferDto) definition;
+            addOffer(offer);
+            final var offeror = partyWith(offer.offerorFingerprint());
+            waitingParty = offeror;
+            activeParty = offeror == ownedParty ? counterParty : ownedParty;
+            state = STATE_OFFERING;
+        }
+        else if (definition instanceof SignedContractAcceptanceDto) {
+            final var acceptance = (SignedContractAcceptanceDto) definition;
+            acceptanceHash = acceptance.hashUsing(hashAlgorithm);
+            activeParty = partyWith(acceptance.acceptorFingerprint());
+            state = STATE_ACCEPTED;
+            releaseOffers();
+        }
+        else if (definition instanceof SignedContractRejectionDto) {
+            final var rejection = (SignedContractRejectionDto) definition;
+            rejectionHash = rejection.hashUsing(hashAlgorithm);
+            activeParty = partyWith(rejection.rejectorFingerprint());
+            state = STATE_REJECTED;
+            releaseOffers();
+        }
+        else {
+            throw new IllegalArgumentException("Cannot restore " + definition);
+        }
+    }
+
+    private Party partyWith(final HashBase64 fingerprint) {
+        return ownedParty.hasFingerprint(fingerprint.toHash())
+            ? ownedParty
+            : counterParty;
     }
 
     private void throwIfNotCloseTo(final Instant timestamp, final Instant now) {
@@ -349,7 +586,7 @@ public class ContractNegotiation {
     private void throwIfNotSignedByPartyAt(final SignedMessage message, final Party signer, final Instant now) {
         final var signature = message.signature();
         throwIfNotCloseTo(signature.timestamp(), now);
-        if (message.verify(signer.certificate())) {
+        if (message.verify(signer)) {
             return;
         }
         throw new UnsatisfiableRequestException("BAD_SIGNATURE", "The " +
@@ -1,8 +1,15 @@
 package se.arkalix.core.cp.contract;
 
+import se.arkalix.core.cp.bank.DefinitionBank;
+import se.arkalix.core.cp.jfr.NegotiationCreateEvent;
 import se.arkalix.core.cp.security.HashAlgorithm;
+import se.arkalix.core.cp.util.TooManyRequestsException;
+import se.arkalix.core.plugin.cp.ContractNegotiationStatus;
 
 import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
@@ -10,17 +17,61 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class ContractNegotiations {
+    private static final Duration MIN_RETRY_AFTER = Duration.ofSeconds(1);
+    private static final Duration MAX_RETRY_AFTER = Duration.ofMinutes(10);
+
     private final SecureRandom random = new SecureRandom();
     private final Map<PairKey, Map<Long, ContractNegotiation>> negotiations = new ConcurrentHashMap<>();
+    private final Map<String, Set<ContractNegotiation>> counterPartyToOpenNegotiations = new ConcurrentHashMap<>();
     private final Templates templates;
     private final Set<HashAlgorithm> acceptedHashAlgorithms;
+    private final DefinitionBank bank;
+    private final int maxOpenPerCounterParty;
 
     public ContractNegotiations(final Templates templates, final Set<HashAlgorithm> acceptedHashAlgorithms) {
+        this(templates, acceptedHashAlgorithms, 0);
+    }
+
+    /**
+     * @param templates              Known templates.
+     * @param acceptedHashAlgorithms Accepted hash algorithms.
+     * @param maxOpenPerCounterParty Maximum number of open negotiations
+     *                               each counter-party may have started at
+     *                               any given time, or zero if unlimited.
+     */
+    public ContractNegotiations(
+        final Templates templates,
+        final Set<HashAlgorithm> acceptedHashAlgorithms,
+        final int maxOpenPerCounterParty)
+    {
+        this(templates, acceptedHashAlgorithms, null, maxOpenPerCounterParty);
+    }
+
+    /**
+     * @param templates              Known templates.
+     * @param acceptedHashAlgorithms Accepted hash algorithms.
+     * @param bank                   Definition bank holding the messages
+     *                               accepted into negotiations, or
+     *                               {@code null}.
+     * @param maxOpenPerCounterParty Maximum number of open negotiations
+     *                               each counter-party may have started at
+     *                               any given time, or zero if unlimited.
+     */
+    public ContractNegotiations(
+        final Templates templates,
+        final Set<HashAlgorithm> acceptedHashAlgorithms,
+        final DefinitionBank bank,
+        final int maxOpenPerCounterParty)
+    {
         this.templates = templates;
         this.acceptedHashAlgorithms = acceptedHashAlgorithms;
+        this.bank = bank;
+        this.maxOpenPerCounterParty = Math.max(0, maxOpenPerCounterParty);
     }
 
     public ContractNegotiation createFor(final OwnedParty ownedParty, final Party counterParty) {
+        final var event = new NegotiationCreateEvent();
+        event.begin();
         final var key = new PairKey(ownedParty.commonName(), counterParty.commonName());
         final var pairNegotiations = negotiations.computeIfAbsent(key, key0 -> new ConcurrentHashMap<>());
 
@@ -40,10 +91,12 @@ public class ContractNegotiations {
                     counterParty.commonName() + "\"");
             }
 
-            newNegotiation = new ContractNegotiation(ownedParty, counterParty, id, templates, acceptedHashAlgorithms);
+            newNegotiation = new ContractNegotiation(ownedParty, counterParty, id, templates,
+                acceptedHashAlgorithms, bank);
             existingNegotiation = pairNegotiations.putIfAbsent(id, newNegotiation);
         } while (existingNegotiation != null);
 
+        event.commit(id, ownedParty.commonName(), counterParty.commonName(), 32 - attempts);
         return newNegotiation;
     }
 
@@ -63,7 +116,131 @@ public class ContractNegotiations {
         final var key = new PairKey(ownedParty.commonName(), counterParty.commonName());
         final var pairNegotiations = negotiations.computeIfAbsent(key, key0 -> new ConcurrentHashMap<>());
         return pairNegotiations.computeIfAbsent(id, id0 ->
-            new ContractNegotiation(ownedParty, counterParty, id, templates, acceptedHashAlgorithms));
+            new ContractNegotiation(ownedParty, counterParty, id, templates, acceptedHashAlgorithms, bank));
+    }
+
+    /**
+     * Gets existing negotiation or creates a new one on behalf of
+     * {@code counterParty}, unless that would make {@code counterParty} have
+     * more open negotiations than allowed. Negotiations created by this
+     * method that never have any offers accepted into them should be passed
+     * to {@link #discardIfInitial(ContractNegotiation)}.
+     *
+     * @param ownedParty   Owned party.
+     * @param counterParty Counter-party starting the negotiation.
+     * @param id           Negotiation identifier.
+     * @return Existing or new negotiation.
+     * @throws TooManyRequestsException If a new negotiation would exceed
+     *                                  the limit of {@code counterParty}.
+     */
+    public ContractNegotiation getOrOpenBy(final OwnedParty ownedParty, final Party counterParty, final long id) {
+        final var existing = getBy(ownedParty, counterParty, id);
+        if (existing.isPresent() || maxOpenPerCounterParty == 0) {
+            return existing.orElseGet(() -> getOrCreateBy(ownedParty, counterParty, id));
+        }
+        final var open = counterPartyToOpenNegotiations
+            .computeIfAbsent(counterParty.commonName(), ignored -> new HashSet<>());
+        synchronized (open) {
+            final var now = Instant.now();
+            open.removeIf(negotiation -> !negotiation.isOpenAt(now));
+            if (open.size() >= maxOpenPerCounterParty) {
+                throw new TooManyRequestsException("TOO_MANY_NEGOTIATIONS", "" +
+                    "\"" + counterParty.commonName() + "\" already has " +
+                    open.size() + " open negotiations, which is the maximum " +
+                    "allowed; no more may be started until any of them " +
+                    "are closed", retryAfterAnyClosed(open, now));
+            }
+            final var negotiation = getOrCreateBy(ownedParty, counterParty, id);
+            open.add(negotiation);
+            return negotiation;
+        }
+    }
+
+    // Open negotiations are closed no later than when their last offers
+    // expire, which is used to tell counter-parties when to retry.
+    private static Duration retryAfterAnyClosed(final Set<ContractNegotiation> open, final Instant now) {
+        var retryAfter = MAX_RETRY_AFTER;
+        for (final var negotiation : open) {
+            if (negotiation.isInitial()) {
+                return MIN_RETRY_AFTER;
+            }
+            final var remaining = Duration.between(now, negotiation.lastOffer().validUntil());
+            if (remaining.compareTo(retryAfter) < 0) {
+                retryAfter = remaining;
+            }
+        }
+        return retryAfter.compareTo(MIN_RETRY_AFTER) < 0 ? MIN_RETRY_AFTER : retryAfter;
+    }
+
+    /**
+     * Removes given negotiation if no offer has been accepted into it, which
+     * may be the case if the offer it was created for turned out to be
+     * invalid.
+     *
+     * @param negotiation Negotiation to remove.
+     */
+    public void discardIfInitial(final ContractNegotiation negotiation) {
+        synchronized (negotiation) {
+            if (!negotiation.isInitial()) {
+                return;
+            }
+            final var key = new PairKey(negotiation.ownedParty().commonName(), negotiation.counterParty().commonName());
+            final var pairNegotiations = negotiations.get(key);
+            if (pairNegotiations != null) {
+                pairNegotiations.remove(negotiation.id(), negotiation);
+            }
+        }
+        final var open = counterPartyToOpenNegotiations.get(negotiation.counterParty().commonName());
+        if (open != null) {
+            synchronized (open) {
+                open.remove(negotiation);
+            }
+        }
+    }
+
+    /**
+     * Removes all negotiations with the given identifier, which should only
+     * be done after their messages have been dropped from the definition
+     * bank, as they could otherwise neither be resumed nor looked up.
+     *
+     * @param id Identifier of negotiations to remove.
+     */
+    public void forget(final long id) {
+        for (final var pairNegotiations : negotiations.values()) {
+            final var negotiation = pairNegotiations.remove(id);
+            if (negotiation == null) {
+                continue;
+            }
+            final var open = counterPartyToOpenNegotiations.get(negotiation.counterParty().commonName());
+            if (open != null) {
+                synchronized (open) {
+                    open.remove(negotiation);
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the negotiations currently having the given status. Every
+     * known negotiation is visited, which is why this method should only be
+     * called occasionally, such as when metrics are collected. Negotiations
+     * into which no offer has yet been accepted have no status and are never
+     * counted.
+     *
+     * @param status Status of negotiations to count.
+     * @return Number of negotiations with {@code status}.
+     */
+    public long countBy(final ContractNegotiationStatus status) {
+        Objects.requireNonNull(status, "Expected status");
+        var count = 0L;
+        for (final var pairNegotiations : negotiations.values()) {
+            for (final var negotiation : pairNegotiations.values()) {
+                if (!negotiation.isInitial() && negotiation.status() == status) {
+                    count += 1;
+                }
+            }
+        }
+        return count;
     }
 
     private static class PairKey {
@@ -0,0 +1,624 @@
+package se.arkalix.core.cp.contract;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.arkalix.core.cp.bank.Definition;
+import se.arkalix.core.cp.bank.DefinitionCodec;
+import se.arkalix.util.InternalException;
+import se.arkalix.util.annotation.ThreadSafe;
+import se.arkalix.util.concurrent.Future;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Delivers signed acceptances, offers and rejections to counter-parties.
+ * <p>
+ * Each counter-party has its own queue of messages, which are delivered in
+ * the order they were enqueued. Only the first message of each queue is
+ * being delivered at any given time. Failed deliveries are retried after
+ * exponentially increasing delays, until either the retry limit is reached,
+ * the counter-party {@link MessageRefusedException refuses} the message, the
+ * message is an offer that has expired, or the signature timestamp of the
+ * message is about to become too old for the counter-party to accept it, as
+ * determined by {@link ContractNegotiation#CLOCK_SKEW_TOLERANCE}. The
+ * message is then considered failed, its {@link #onFailure(Consumer) failure
+ * consumers} are notified, and the next message in the queue is delivered.
+ * <p>
+ * If the outbox is given a directory, each enqueued message is written to a
+ * file of its own in that directory before {@link #enqueue(Definition,
+ * Party)} returns. Files are removed when their messages are delivered, and
+ * renamed to end with {@code .failed} rather than {@code .msg} when their
+ * messages fail. Any {@code .msg} files present when the outbox is {@link
+ * #recover(Parties) recovered} contain messages that remain to be
+ * delivered, while the messages of any {@code .failed} files are reported
+ * to the failure consumers again, until they are {@link #forget(Message)
+ * forgotten}. Each file has the form {@code [int magic][long id][int
+ * attempts][short partyNameLength][byte[] partyName][definition...]}, where
+ * the definition is encoded as by {@link DefinitionCodec#encode(Definition)}.
+ * <p>
+ * As messages to the same counter-party are delivered one at a time, a
+ * message that cannot be delivered delays every message queued after it.
+ * The delay is bounded, however, as no message is attempted, or awaited,
+ * after its signature timestamp has become too old to be accepted, which
+ * happens {@link ContractNegotiation#CLOCK_SKEW_TOLERANCE} after it was
+ * signed. Messages queued for longer than that fail without being
+ * attempted. Messages to other counter-parties are never delayed.
+ * <p>
+ * The statuses of messages are kept in memory, which means that only the
+ * statuses of pending messages and the most recently completed messages are
+ * known after a restart.
+ */
+public class ContractOutbox {
+    private static final Logger logger = LoggerFactory.getLogger(ContractOutbox.class);
+
+    public static final Duration DEFAULT_RETRY_BASE_DELAY = Duration.ofSeconds(1);
+    public static final Duration DEFAULT_RETRY_MAX_DELAY = Duration.ofMinutes(5);
+    public static final int DEFAULT_RETRY_LIMIT = 16;
+
+    private static final int MAGIC = 0x4350424F; // "CPBO"
+    private static final int COMPLETED_CAPACITY = 4096;
+    private static final Pattern MESSAGE_NAME_PATTERN = Pattern.compile("^([0-9a-f]{16})\\.(msg|failed)$");
+
+    private final ContractRelay relay;
+    private final Path directory;
+    private final long retryBaseDelayInMillis;
+    private final long retryMaxDelayInMillis;
+    private final int retryLimit;
+    private final ScheduledExecutorService executor;
+    private final List<Consumer<Message>> failureConsumers = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong nextId;
+    private final Map<String, ArrayDeque<Message>> partyNameToQueue = new HashMap<>();
+    private final Map<Long, Message> idToPendingMessage = new ConcurrentHashMap<>();
+    private final Map<Long, Message> idToCompletedMessage = new LinkedHashMap<>(16, 0.75f) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Long, Message> eldest) {
+            return size() > COMPLETED_CAPACITY;
+        }
+    };
+
+    private ContractOutbox(final Builder builder) {
+        relay = Objects.requireNonNull(builder.relay, "Expected relay");
+        directory = builder.directory;
+        retryBaseDelayInMillis = Objects.requireNonNullElse(builder.retryBaseDelay, DEFAULT_RETRY_BASE_DELAY).toMillis();
+        retryMaxDelayInMillis = Objects.requireNonNullElse(builder.retryMaxDelay, DEFAULT_RETRY_MAX_DELAY).toMillis();
+        if (retryBaseDelayInMillis <= 0 || retryMaxDelayInMillis < retryBaseDelayInMillis) {
+            throw new IllegalArgumentException("Expected 0 < retryBaseDelay <= retryMaxDelay");
+        }
+        retryLimit = builder.retryLimit > 0
+            ? builder.retryLimit
+            : DEFAULT_RETRY_LIMIT;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final var thread = new Thread(runnable, "contract-outbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Identifiers are never reused, not even after restarts, as trusted
+        // clients may still be polling the statuses of old messages.
+        nextId = new AtomicLong(System.currentTimeMillis() * 1000);
+    }
+
+    /**
+     * Registers consumer to notify of every message that fails, including
+     * messages that failed before this outbox was last {@link
+     * #recover(Parties) recovered}. Consumers are notified by the thread of
+     * this outbox and must not block.
+     *
+     * @param consumer Consumer of failed messages.
+     */
+    @ThreadSafe
+    public void onFailure(final Consumer<Message> consumer) {
+        failureConsumers.add(Objects.requireNonNull(consumer, "Expected consumer"));
+    }
+
+    /**
+     * Reads all messages remaining to be delivered from the directory of this
+     * outbox, if any, and starts delivering them. Previously failed messages
+     * not yet forgotten are reported to the failure consumers of this outbox.
+     * Must be called once before this outbox is used.
+     *
+     * @param parties Parties, used to resolve the counter-parties of recovered
+     *                messages.
+     * @return Number of recovered messages.
+     * @throws UncheckedIOException If reading the directory fails.
+     */
+    public int recover(final Parties parties) {
+        Objects.requireNonNull(parties, "Expected parties");
+
+        if (directory == null) {
+            return 0;
+        }
+        final var messages = new ArrayList<Message>();
+        final var failedMessages = new ArrayList<Message>();
+        try {
+            Files.createDirectories(directory);
+            try (final var paths = Files.list(directory)) {
+                for (final var path : (Iterable<Path>) paths::iterator) {
+                    final var name = path.getFileName().toString();
+                    if (name.endsWith(".tmp")) {
+                        Files.delete(path);
+                        continue;
+                    }
+                    final var matcher = MESSAGE_NAME_PATTERN.matcher(name);
+                    if (!matcher.matches()) {
+                        continue;
+                    }
+                    final var buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+                    if (buffer.remaining() < 18 || buffer.getInt() != MAGIC) {
+                        logger.warn("Ignoring invalid outbox message file {}", path);
+                        continue;
+                    }
+                    final var id = buffer.getLong();
+                    final var attempts = buffer.getInt();
+                    final var partyName = new byte[buffer.getShort() & 0xFFFF];
+                    buffer.get(partyName);
+                    final var definition = DefinitionCodec.decode(buffer);
+                    final var counterParty = parties
+                        .getCounterPartyByCommonName(new String(partyName, StandardCharsets.UTF_8))
+                        .orElse(null);
+                    if (counterParty == null) {
+                        logger.warn("Counter-party of outbox message {} is no " +
+                            "longer known; removing message", path);
+                        Files.delete(path);
+                        continue;
+                    }
+                    final var message = new Message(id, definition, counterParty);
+                    message.attempts = attempts;
+                    if (matcher.group(2).equals("failed")) {
+                        message.status = ContractOutboxStatus.FAILED;
+                        message.lastFault = "Failed before the contract proxy was last restarted";
+                        failedMessages.add(message);
+                    }
+                    else {
+                        messages.add(message);
+                    }
+                }
+            }
+        }
+        catch (final IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+
+        failedMessages.sort(Comparator.comparingLong(Message::id));
+        for (final var message : failedMessages) {
+            nextId.accumulateAndGet(message.id + 1, Math::max);
+            synchronized (idToCompletedMessage) {
+                idToCompletedMessage.put(message.id, message);
+            }
+            notifyFailureConsumersOf(message);
+        }
+        messages.sort(Comparator.comparingLong(Message::id));
+        for (final var message : messages) {
+            nextId.accumulateAndGet(message.id + 1, Math::max);
+            idToPendingMessage.put(message.id, message);
+            push(message);
+        }
+        return messages.size();
+    }
+
+    /**
+     * Removes any file remembering that given failed message failed, which
+     * means that it will no longer be reported to failure consumers after the
+     * next time this outbox is recovered.
+     *
+     * @param message Failed message to forget.
+     */
+    @ThreadSafe
+    public void forget(final Message message) {
+        Objects.requireNonNull(message, "Expected message");
+        if (directory == null || message.status != ContractOutboxStatus.FAILED) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(failedPathOf(message));
+        }
+        catch (final IOException exception) {
+            logger.warn("Failed to remove failed outbox message " + failedPathOf(message), exception);
+        }
+    }
+
+    /**
+     * Stores given message, which must already have been signed, and then
+     * schedules it for delivery to {@code counterParty}.
+     *
+     * @param definition   Signed acceptance, offer or rejection.
+     * @param counterParty Party to deliver message to.
+     * @return Enqueued message.
+     * @throws UncheckedIOException If storing the message fails.
+     */
+    @ThreadSafe
+    public Message enqueue(final Definition definition, final Party counterParty) {
+        Objects.requireNonNull(definition, "Expected definition");
+        Objects.requireNonNull(counterParty, "Expected counterParty");
+
+        final var message = new Message(nextId.getAndIncrement(), definition, counterParty);
+        if (directory != null) {
+            write(message);
+        }
+        idToPendingMessage.put(message.id, message);
+        push(message);
+        return message;
+    }
+
+    /**
+     * @param id Identifier of message.
+     * @return Message, if it is pending or was recently delivered or failed.
+     */
+    @ThreadSafe
+    public Optional<Message> get(final long id) {
+        final var message = idToPendingMessage.get(id);
+        if (message != null) {
+            return Optional.of(message);
+        }
+        synchronized (idToCompletedMessage) {
+            return Optional.ofNullable(idToCompletedMessage.get(id));
+        }
+    }
+
+    /**
+     * @return Number of messages currently waiting to be delivered.
+     */
+    @ThreadSafe
+    public int pendingCount() {
+        return idToPendingMessage.size();
+    }
+
+    private void push(final Message message) {
+        final boolean isFirst;
+        synchronized (partyNameToQueue) {
+            final var queue = partyNameToQueue.computeIfAbsent(message.counterParty.commonName(),
+                ignored -> new ArrayDeque<>());
+            queue.addLast(message);
+            isFirst = queue.size() == 1;
+        }
+        if (isFirst) {
+            executor.execute(() -> deliver(message));
+        }
+    }
+
+    private void deliver(final Message message) {
+        final var definition = message.definition;
+        if (definition instanceof SignedContractOffer &&
+            ((SignedContractOffer) definition).validUntil().isBefore(Instant.now()))
+        {
+            complete(message, ContractOutboxStatus.FAILED, "Offer expired before it could be delivered");
+            return;
+        }
+        if (deadlineOf(message).isBefore(Instant.now())) {
+            complete(message, ContractOutboxStatus.FAILED, "Signature timestamp " +
+                "became too old to be accepted before message could be delivered");
+            return;
+        }
+
+        message.attempts += 1;
+        final Future<?> future;
+        try {
+            future = send(definition, message.counterParty);
+        }
+        catch (final Throwable throwable) {
+            retryOrFail(message, throwable);
+            return;
+        }
+        final var isConcluded = new AtomicBoolean(false);
+        final var timeout = executor.schedule(() -> {
+            if (isConcluded.compareAndSet(false, true)) {
+                future.cancel(true);
+                retryOrFail(message, new TimeoutException("No response before " +
+                    "signature timestamp became too old to be accepted"));
+            }
+        }, Math.max(Duration.between(Instant.now(), deadlineOf(message)).toMillis(), 0), TimeUnit.MILLISECONDS);
+        future.onResult(result -> {
+            if (!isConcluded.compareAndSet(false, true)) {
+                return;
+            }
+            timeout.cancel(false);
+            if (result.isSuccess()) {
+                complete(message, ContractOutboxStatus.DELIVERED, null);
+            }
+            else {
+                retryOrFail(message, result.fault());
+            }
+        });
+    }
+
+    private void retryOrFail(final Message message, final Throwable fault) {
+        message.lastFault = fault.getMessage() != null
+            ? fault.getMessage()
+            : fault.getClass().getSimpleName();
+        if (fault instanceof MessageRefusedException) {
+            logger.warn("Counter-party \"" + message.counterParty.commonName() +
+                "\" refused " + message.definition + "; giving up", fault);
+            complete(message, ContractOutboxStatus.FAILED, message.lastFault);
+            return;
+        }
+        if (message.attempts >= retryLimit) {
+            logger.warn("Failed to deliver " + message.definition + " to \"" +
+                message.counterParty.commonName() + "\" after " +
+                message.attempts + " attempts; giving up", fault);
+            complete(message, ContractOutboxStatus.FAILED, message.lastFault);
+            return;
+        }
+        final var delay = delayBefore(message.attempts + 1);
+        final var nextAttemptAt = Instant.now().plusMillis(delay);
+        if (nextAttemptAt.isAfter(deadlineOf(message))) {
+            logger.warn("Failed to deliver " + message.definition + " to \"" +
+                message.counterParty.commonName() + "\" before its " +
+                "signature timestamp becomes too old to be accepted; giving up", fault);
+            complete(message, ContractOutboxStatus.FAILED, message.lastFault);
+            return;
+        }
+        logger.debug("Failed to deliver " + message.definition + " to \"" +
+            message.counterParty.commonName() + "\"; retrying in " +
+            delay + " ms", fault);
+        message.nextAttemptAt = nextAttemptAt;
+        if (directory != null) {
+            try {
+                write(message);
+            }
+            catch (final UncheckedIOException exception) {
+                logger.warn("Failed to update outbox message " + pathOf(message), exception);
+            }
+        }
+        executor.schedule(() -> deliver(message), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private Future<?> send(final Definition definition, final Party counterParty) {
+        if (definition instanceof SignedContractAcceptanceDto) {
+            return relay.sendToCounterParty((SignedContractAcceptanceDto) definition, counterParty);
+        }
+        if (definition instanceof SignedContractOfferDto) {
+            return relay.sendToCounterParty((SignedContractOfferDto) definition, counterParty);
+        }
+        if (definition instanceof SignedContractRejectionDto) {
+            return relay.sendToCounterParty((SignedContractRejectionDto) definition, counterParty);
+        }
+        throw new InternalException("Cannot deliver " + definition);
+    }
+
+    // Counter-parties refuse messages whose signature timestamps are not
+    // within the clock skew tolerance of their current times. Re-signing
+    // messages is not an option, as that would change their hashes, which
+    // may already be referred to by other messages.
+    private static Instant deadlineOf(final Message message) {
+        if (!(message.definition instanceof SignedMessage)) {
+            return Instant.MAX;
+        }
+        final var signedAt = ((SignedMessage) message.definition).signature().timestamp();
+        return signedAt.plus(ContractNegotiation.CLOCK_SKEW_TOLERANCE);
+    }
+
+    private long delayBefore(final int attempt) {
+        final var exponent = Math.min(attempt - 2, 30);
+        final var delay = Math.min(retryBaseDelayInMillis << exponent, retryMaxDelayInMillis);
+
+        // Jitter prevents the retries of many messages that failed at the
+        // same time from being made at the same time.
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private void complete(final Message message, final ContractOutboxStatus status, final String fault) {
+        message.status = status;
+        message.lastFault = fault;
+        message.nextAttemptAt = null;
+        if (directory != null) {
+            try {
+                if (status == ContractOutboxStatus.FAILED) {
+                    Files.move(pathOf(message), failedPathOf(message), ATOMIC_MOVE);
+                }
+                else {
+                    Files.deleteIfExists(pathOf(message));
+                }
+            }
+            catch (final IOException exception) {
+                logger.error("Failed to remove completed outbox message " +
+                    pathOf(message) + "; it will be delivered again after " +
+                    "the next restart", exception);
+            }
+        }
+        synchronized (idToCompletedMessage) {
+            idToCompletedMessage.put(message.id, message);
+        }
+        idToPendingMessage.remove(message.id);
+
+        final Message next;
+        synchronized (partyNameToQueue) {
+            final var queue = partyNameToQueue.get(message.counterParty.commonName());
+            queue.removeFirst();
+            next = queue.peekFirst();
+        }
+        if (next != null) {
+            executor.execute(() -> deliver(next));
+        }
+        if (status == ContractOutboxStatus.FAILED) {
+            notifyFailureConsumersOf(message);
+        }
+    }
+
+    private void notifyFailureConsumersOf(final Message message) {
+        for (final var consumer : failureConsumers) {
+            try {
+                consumer.accept(message);
+            }
+            catch (final Throwable throwable) {
+                logger.error("Failed to handle failure of outbox message " + message.id, throwable);
+            }
+        }
+    }
+
+    private void write(final Message message) {
+        final var path = pathOf(message);
+        final var temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            final var bytes = new ByteArrayOutputStream();
+            final var output = new DataOutputStream(bytes);
+            final var partyName = message.counterParty.commonName().getBytes(StandardCharsets.UTF_8);
+            output.writeInt(MAGIC);
+            output.writeLong(message.id);
+            output.writeInt(message.attempts);
+            output.writeShort(partyName.length);
+            output.write(partyName);
+            output.write(DefinitionCodec.encode(message.definition));
+            output.flush();
+
+            try (final var channel = FileChannel.open(temporaryPath, CREATE, TRUNCATE_EXISTING, WRITE)) {
+                final var buffer = ByteBuffer.wrap(bytes.toByteArray());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(temporaryPath, path, ATOMIC_MOVE);
+        }
+        catch (final IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    private Path pathOf(final Message message) {
+        return directory.resolve(String.format("%016x.msg", message.id));
+    }
+
+    private Path failedPathOf(final Message message) {
+        return directory.resolve(String.format("%016x.failed", message.id));
+    }
+
+    /**
+     * A signed message enqueued for delivery to a counter-party.
+     */
+    public static class Message {
+        private final long id;
+        private final Definition definition;
+        private final Party counterParty;
+
+        private volatile ContractOutboxStatus status = ContractOutboxStatus.PENDING;
+        private volatile int attempts = 0;
+        private volatile Instant nextAttemptAt = null;
+        private volatile String lastFault = null;
+
+        private Message(final long id, final Definition definition, final Party counterParty) {
+            this.id = id;
+            this.definition = definition;
+            this.counterParty = counterParty;
+        }
+
+        public long id() {
+            return id;
+        }
+
+        public long negotiationId() {
+            return definition.negotiationId();
+        }
+
+        public Definition definition() {
+            return definition;
+        }
+
+        public Party counterParty() {
+            return counterParty;
+        }
+
+        public ContractOutboxStatus status() {
+            return status;
+        }
+
+        public int attempts() {
+            return attempts;
+        }
+
+        public Optional<Instant> nextAttemptAt() {
+            return Optional.ofNullable(nextAttemptAt);
+        }
+
+        public Optional<String> lastFault() {
+            return Optional.ofNullable(lastFault);
+        }
+
+        public TrustedOutboxMessageDto toTrusted() {
+            return new TrustedOutboxMessageBuilder()
+                .id(id)
+                .negotiationId(definition.negotiationId())
+                .counterPartyName(counterParty.commonName())
+                .status(status)
+                .attempts(attempts)
+                .nextAttemptAt(nextAttemptAt)
+                .lastFault(lastFault)
+                .build();
+        }
+    }
+
+    public static class Builder {
+        private Path directory;
+        private ContractRelay relay;
+        private Duration retryBaseDelay;
+        private Duration retryMaxDelay;
+        private int retryLimit;
+
+        /**
+         * Sets directory in which to store messages until they are
+         * delivered. If not set, messages are only kept in memory.
+         *
+         * @param directory Path to outbox directory.
+         * @return This builder.
+         */
+        public Builder directory(final Path directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        public Builder relay(final ContractRelay relay) {
+            this.relay = relay;
+            return this;
+        }
+
+        public Builder retryBaseDelay(final Duration retryBaseDelay) {
+            this.retryBaseDelay = retryBaseDelay;
+            return this;
+        }
+
+        public Builder retryMaxDelay(final Duration retryMaxDelay) {
+            this.retryMaxDelay = retryMaxDelay;
+            return this;
+        }
+
+        /**
+         * Sets maximum number of delivery attempts made for each message.
+         *
+         * @param retryLimit Maximum number of attempts.
+         * @return This builder.
+         */
+        public Builder retryLimit(final int retryLimit) {
+            this.retryLimit = retryLimit;
+            return this;
+        }
+
+        public ContractOutbox build() {
+            return new ContractOutbox(this);
+        }
+    }
+}
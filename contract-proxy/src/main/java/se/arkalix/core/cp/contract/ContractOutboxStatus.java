@@ -0,0 +1,21 @@
+package se.arkalix.core.cp.contract;
+
+/**
+ * Delivery status of a {@link ContractOutbox.Message}.
+ */
+public enum ContractOutboxStatus {
+    /**
+     * The message is waiting to be delivered.
+     */
+    PENDING,
+
+    /**
+     * The message has been received by its counter-party.
+     */
+    DELIVERED,
+
+    /**
+     * The message could not be delivered and will not be retried.
+     */
+    FAILED,
+}
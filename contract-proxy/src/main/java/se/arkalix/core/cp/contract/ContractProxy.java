@@ -2,32 +2,55 @@ package se.arkalix.core.cp.contract;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.arkalix.core.cp.bank.Definition;
+import se.arkalix.core.cp.bank.DefinitionArchive;
 import se.arkalix.core.cp.bank.DefinitionBank;
+import se.arkalix.core.cp.bank.DefinitionJsonCache;
+import se.arkalix.core.cp.bank.DefinitionLog;
+import se.arkalix.core.cp.bank.DefinitionRetentionPolicy;
+import se.arkalix.core.cp.bank.DefinitionStore;
+import se.arkalix.core.cp.bank.OffHeapHashIndex;
+import se.arkalix.core.cp.metrics.Histogram;
+import se.arkalix.core.cp.metrics.Metrics;
 import se.arkalix.core.cp.security.HashAlgorithm;
 import se.arkalix.core.cp.security.HashAlgorithmUnsupportedException;
 import se.arkalix.core.cp.security.HashBase64;
+import se.arkalix.core.cp.trace.NegotiationTimelines;
+import se.arkalix.core.cp.trace.PendingSpans;
 import se.arkalix.core.cp.util.UnsatisfiableRequestException;
+import se.arkalix.core.plugin.cp.ContractNegotiationStatus;
 import se.arkalix.core.plugin.cp.TrustedContractAcceptance;
 import se.arkalix.core.plugin.cp.TrustedContractCounterOffer;
 import se.arkalix.core.plugin.cp.TrustedContractOffer;
 import se.arkalix.core.plugin.cp.TrustedContractRejectionDto;
 import se.arkalix.util.concurrent.Future;
-import se.arkalix.util.concurrent.Futures;
 
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
-import java.util.stream.Collectors;
 
 import static se.arkalix.core.plugin.cp.ContractNegotiationStatus.*;
-import static se.arkalix.util.concurrent.Future.done;
 
 public class ContractProxy {
     private static final Logger logger = LoggerFactory.getLogger(ContractProxy.class);
 
+    private static final Histogram COUNTER_PARTY_ACCEPTANCE_LATENCY = updateLatencyOf("counter-party", "acceptance");
+    private static final Histogram COUNTER_PARTY_OFFER_LATENCY = updateLatencyOf("counter-party", "offer");
+    private static final Histogram COUNTER_PARTY_REJECTION_LATENCY = updateLatencyOf("counter-party", "rejection");
+    private static final Histogram OWNED_PARTY_ACCEPTANCE_LATENCY = updateLatencyOf("owned-party", "acceptance");
+    private static final Histogram OWNED_PARTY_OFFER_LATENCY = updateLatencyOf("owned-party", "offer");
+    private static final Histogram OWNED_PARTY_REJECTION_LATENCY = updateLatencyOf("owned-party", "rejection");
+
     private final Set<HashAlgorithm> acceptedHashAlgorithms;
     private final Parties parties;
     private final ContractRelay relay;
+    private final ContractOutbox outbox;
+    private final DefinitionResolver resolver;
     private final Templates templates;
     private final DefinitionBank bank;
+    private final DefinitionJsonCache definitionJsonCache;
+    private final NegotiationTimelines timelines;
 
     private final ContractNegotiations negotiations;
 
@@ -38,7 +61,20 @@ public class ContractProxy {
             throw new IllegalArgumentException("Expected acceptedHashAlgorithms.size() > 0");
         }
 
-        bank = new DefinitionBank(acceptedHashAlgorithms);
+        bank = new DefinitionBank.Builder()
+            .acceptedHashAlgorithms(acceptedHashAlgorithms)
+            .archive(builder.definitionArchive)
+            .log(builder.definitionLog)
+            .primaryHashAlgorithm(builder.primaryHashAlgorithm)
+            .retentionPolicy(builder.definitionRetentionPolicy)
+            .secondaryIndex(builder.definitionSecondaryIndex)
+            .snapshotPath(builder.definitionSnapshotPath)
+            .store(builder.definitionStore)
+            .build();
+        definitionJsonCache = new DefinitionJsonCache(bank, builder.definitionJsonCacheCapacity);
+        timelines = builder.timelines != null
+            ? builder.timelines
+            : NegotiationTimelines.DISABLED;
 
         Objects.requireNonNull(builder.ownedParties, "Expected ownedParties");
         if (builder.ownedParties.isEmpty()) {
@@ -54,6 +90,10 @@ public class ContractProxy {
         parties = new Parties(allParties);
 
         relay = Objects.requireNonNull(builder.relay, "Expected relay");
+        outbox = builder.outbox != null
+            ? builder.outbox
+            : new ContractOutbox.Builder().relay(relay).build();
+        resolver = new DefinitionResolver(bank, relay, builder.referenceDepthLimit, builder.referenceCountLimit);
 
         Objects.requireNonNull(builder.templates, "Expected templates");
         if (builder.templates.isEmpty()) {
@@ -61,7 +101,25 @@ public class ContractProxy {
         }
         templates = new Templates(builder.templates);
 
-        negotiations = new ContractNegotiations(templates, acceptedHashAlgorithms);
+        negotiations = new ContractNegotiations(templates, acceptedHashAlgorithms, bank,
+            builder.maxOpenNegotiationsPerCounterParty);
+
+        final var start = System.nanoTime();
+        final var count = bank.recover(this::restore);
+        if (count > 0) {
+            final var elapsed = Duration.ofNanos(System.nanoTime() - start);
+            logger.info("Recovered {} definitions in {} ms ({} definitions/s)",
+                count, elapsed.toMillis(),
+                elapsed.isZero() ? count : count * 1_000_000_000L / elapsed.toNanos());
+        }
+
+        // Recovered after the bank, as the negotiations of recovered
+        // messages are restored from the definitions in the bank.
+        outbox.onFailure(this::revert);
+        final var messageCount = outbox.recover(parties);
+        if (messageCount > 0) {
+            logger.info("Recovered {} undelivered outbox messages", messageCount);
+        }
     }
 
     public Optional<ContractNegotiation> getNegotiationByNamesAndId(
@@ -72,10 +130,43 @@ public class ContractProxy {
         return negotiations.getBy(name1, name2, id);
     }
 
+    /**
+     * @param status Status of negotiations to count.
+     * @return Number of known negotiations currently having {@code status}.
+     */
+    public long countNegotiationsBy(final ContractNegotiationStatus status) {
+        return negotiations.countBy(status);
+    }
+
     public DefinitionBank bank() {
         return bank;
     }
 
+    /**
+     * Compacts the definition bank of this proxy, and forgets the
+     * negotiations whose definitions are dropped as a result.
+     *
+     * @param now Current time.
+     * @return Number of negotiations whose definitions were archived or
+     * dropped.
+     * @see DefinitionBank#compact(Instant)
+     */
+    public int compactDefinitions(final Instant now) {
+        return bank.compact(now, negotiations::forget);
+    }
+
+    public DefinitionJsonCache definitionJsonCache() {
+        return definitionJsonCache;
+    }
+
+    public NegotiationTimelines timelines() {
+        return timelines;
+    }
+
+    public ContractOutbox outbox() {
+        return outbox;
+    }
+
     public Parties parties() {
         return parties;
     }
@@ -84,121 +175,424 @@ public class ContractProxy {
         return templates;
     }
 
+    /**
+     * Determines whether given offer from a counter-party is a counter-offer,
+     * meaning that it belongs to an existing negotiation. The offer is not
+     * validated in any way.
+     *
+     * @param offer Offer to check.
+     * @return {@code true} only if a negotiation for {@code offer} exists.
+     */
+    public boolean isCounterOffer(final SignedContractOfferDto offer) {
+        final var offeror = parties.getCounterPartyByFingerprint(offer.offerorFingerprint().toHash()).orElse(null);
+        final var receiver = parties.getOwnedPartyByFingerprint(offer.receiverFingerprint().toHash()).orElse(null);
+        return offeror != null && receiver != null &&
+            negotiations.getBy(receiver, offeror, offer.negotiationId()).isPresent();
+    }
+
     public void update(final SignedContractAcceptanceDto acceptance) {
-        Objects.requireNonNull(acceptance, "Expected acceptance");
+        update(acceptance, PendingSpans.DISABLED);
+    }
 
-        final var acceptor = getCounterPartyByFingerprintOrThrow(acceptance.acceptorFingerprint());
-        final var offeror = getOwnedPartyByFingerprintOrThrow(acceptance.offerorFingerprint());
-        final var negotiation = getNegotiationOrThrow(offeror, acceptor, acceptance.negotiationId());
-        negotiation.updateOnBehalfOfCounterParty(acceptance);
-        bank.add(acceptance);
-        relay.sendToEventHandler(acceptance.negotiationId(), negotiation.lastOfferAsTrusted(), ACCEPTED)
-            .onFailure(fault -> logger.warn("Failed to send " + acceptance + " to event handler", fault));
+    /**
+     * Verifies acceptance received from a counter-party and applies it to its
+     * negotiation.
+     *
+     * @param acceptance Acceptance to apply.
+     * @param spans      Spans recorded while receiving acceptance, which are
+     *                   added to the timeline of its negotiation only
+     *                   if its signature is successfully verified.
+     */
+    public void update(final SignedContractAcceptanceDto acceptance, final PendingSpans spans) {
+        Objects.requireNonNull(acceptance, "Expected acceptance");
+        Objects.requireNonNull(spans, "Expected spans");
+
+        final var start = System.nanoTime();
+        try {
+            if (isRetransmitted(acceptance, acceptance.acceptorFingerprint(), acceptance.offerorFingerprint())) {
+                return;
+            }
+
+            final var acceptor = getCounterPartyByFingerprintOrThrow(acceptance.acceptorFingerprint());
+            final var offeror = getOwnedPartyByFingerprintOrThrow(acceptance.offerorFingerprint());
+            final var negotiation = getNegotiationOrThrow(offeror, acceptor, acceptance.negotiationId());
+            var stageStart = System.nanoTime();
+            negotiation.updateOnBehalfOfCounterParty(acceptance);
+            spans.commit(negotiation.id());
+            timelines.record(negotiation.id(), "verify", stageStart);
+
+            stageStart = System.nanoTime();
+            bank.add(acceptance);
+            timelines.record(negotiation.id(), "bank", stageStart);
+
+            sendToEventHandler(negotiation, ACCEPTED)
+                .onFailure(fault -> logger.warn("Failed to send " + acceptance + " to event handler", fault));
+        }
+        finally {
+            COUNTER_PARTY_ACCEPTANCE_LATENCY.recordSince(start);
+        }
     }
 
     public void update(final SignedContractOfferDto offer) {
+        update(offer, PendingSpans.DISABLED);
+    }
+
+    /**
+     * Verifies offer received from a counter-party and applies it to its
+     * negotiation.
+     *
+     * @param offer Offer to apply.
+     * @param spans Spans recorded while receiving offer, which are
+     *              added to the timeline of its negotiation only
+     *              if its signature is successfully verified.
+     */
+    public void update(final SignedContractOfferDto offer, final PendingSpans spans) {
         Objects.requireNonNull(offer, "Expected offer");
+        Objects.requireNonNull(spans, "Expected spans");
+
+        final var start = System.nanoTime();
+        try {
+            if (isRetransmitted(offer, offer.offerorFingerprint(), offer.receiverFingerprint())) {
+                return;
+            }
+
+            final var offeror = getCounterPartyByFingerprintOrThrow(offer.offerorFingerprint());
+            final var receiver = getOwnedPartyByFingerprintOrThrow(offer.receiverFingerprint());
+            final var negotiation = negotiations.getOrOpenBy(receiver, offeror, offer.negotiationId());
+            var stageStart = System.nanoTime();
+            try {
+                negotiation.updateOnBehalfOfCounterParty(offer);
+            }
+            catch (final RuntimeException exception) {
+                negotiations.discardIfInitial(negotiation);
+                throw exception;
+            }
+            spans.commit(negotiation.id());
+            timelines.record(negotiation.id(), "verify", stageStart);
+
+            stageStart = System.nanoTime();
+            bank.add(offer);
+            timelines.record(negotiation.id(), "bank", stageStart);
+
+            final var resolveStart = System.nanoTime();
+            resolver.resolveReferencesIn(offer)
+                .always(ignored -> timelines.record(negotiation.id(), "resolve", resolveStart))
+                .ifSuccess(ignored -> sendToEventHandler(negotiation, OFFERING)
+                    .onFailure(fault -> logger.warn("Failed to send " + offer + " to event handler", fault)))
+                .onFailure(fault -> logger.error("Failed to resolve definition referenced in " + offer, fault));
+        }
+        finally {
+            COUNTER_PARTY_OFFER_LATENCY.recordSince(start);
+        }
+    }
 
-        final var offeror = getCounterPartyByFingerprintOrThrow(offer.offerorFingerprint());
-        final var receiver = getOwnedPartyByFingerprintOrThrow(offer.receiverFingerprint());
-        final var negotiation = negotiations.getOrCreateBy(receiver, offeror, offer.negotiationId());
-        negotiation.updateOnBehalfOfCounterParty(offer);
-        bank.add(offer);
+    public void update(final SignedContractRejectionDto rejection) {
+        update(rejection, PendingSpans.DISABLED);
+    }
 
-        resolveUnknownDefinitionsReferencedIn(offer)
-            .ifSuccess(ignored ->
-                relay.sendToEventHandler(offer.negotiationId(), negotiation.lastOfferAsTrusted(), OFFERING)
-                    .onFailure(fault -> logger.warn("Failed to send " + offer + " to event handler", fault)))
-            .onFailure(fault -> logger.error("Failed to resolve definition referenced in " + offer, fault));
+    /**
+     * Verifies rejection received from a counter-party and applies it to its
+     * negotiation.
+     *
+     * @param rejection Rejection to apply.
+     * @param spans     Spans recorded while receiving rejection, which are
+     *                  added to the timeline of its negotiation only
+     *                  if its signature is successfully verified.
+     */
+    public void update(final SignedContractRejectionDto rejection, final PendingSpans spans) {
+        Objects.requireNonNull(rejection, "Expected rejection");
+        Objects.requireNonNull(spans, "Expected spans");
+
+        final var start = System.nanoTime();
+        try {
+            if (isRetransmitted(rejection, rejection.rejectorFingerprint(), rejection.offerorFingerprint())) {
+                return;
+            }
+
+            final var rejector = getCounterPartyByFingerprintOrThrow(rejection.rejectorFingerprint());
+            final var offeror = getOwnedPartyByFingerprintOrThrow(rejection.offerorFingerprint());
+            final var negotiation = getNegotiationOrThrow(offeror, rejector, rejection.negotiationId());
+            var stageStart = System.nanoTime();
+            negotiation.updateOnBehalfOfCounterParty(rejection);
+            spans.commit(negotiation.id());
+            timelines.record(negotiation.id(), "verify", stageStart);
+
+            stageStart = System.nanoTime();
+            bank.add(rejection);
+            timelines.record(negotiation.id(), "bank", stageStart);
+
+            sendToEventHandler(negotiation, REJECTED)
+                .onFailure(fault -> logger.warn("Failed to send " + rejection + " to event handler", fault));
+        }
+        finally {
+            COUNTER_PARTY_REJECTION_LATENCY.recordSince(start);
+        }
     }
 
-    private Future<?> resolveUnknownDefinitionsReferencedIn(final SignedContractOfferDto offer) {
-        final var hashes = offer.hashReferencesInArguments()
-            .filter(hash -> !bank.contains(hash))
-            .collect(Collectors.toUnmodifiableList());
+    /**
+     * Signs acceptance on behalf of an owned party, applies it to its
+     * negotiation and enqueues it for delivery to its counter-party. The
+     * negotiation is reverted if the acceptance fails to be delivered.
+     *
+     * @param acceptance Acceptance to sign.
+     * @return Outbox message, via which the delivery of the signed acceptance
+     * can be followed.
+     */
+    public ContractOutbox.Message update(final TrustedContractAcceptance acceptance) {
+        Objects.requireNonNull(acceptance, "Expected acceptance");
+
+        final var start = System.nanoTime();
+        try {
+            final var acceptor = getOwnedPartyByCommonNameOrThrow(acceptance.acceptorName());
+            final var offeror = getCounterPartyByCommonNameOrThrow(acceptance.offerorName());
+            final var negotiation = getNegotiationOrThrow(acceptor, offeror, acceptance.negotiationId());
+            var stageStart = System.nanoTime();
+            final var signedAcceptance = negotiation.prepareOnBehalfOfOwnedParty(acceptance);
+            timelines.record(negotiation.id(), "sign", stageStart);
+
+            stageStart = System.nanoTime();
+            bank.add(signedAcceptance);
+            timelines.record(negotiation.id(), "bank", stageStart);
+
+            negotiation.updateOnBehalfOfOwnedParty(signedAcceptance);
 
-        if (hashes.isEmpty()) {
-            return done();
+            stageStart = System.nanoTime();
+            final var message = outbox.enqueue(signedAcceptance, offeror);
+            timelines.record(negotiation.id(), "outbox", stageStart);
+
+            sendToEventHandler(negotiation, ACCEPTED)
+                .onFailure(fault -> logger.warn("Failed to send " + acceptance + " to event handler", fault));
+            return message;
+        }
+        finally {
+            OWNED_PARTY_ACCEPTANCE_LATENCY.recordSince(start);
         }
+    }
 
-        return relay.getFromCounterParty(hashes)
-            .flatMap(definitions -> Futures.serialize(definitions.stream()
-                .map(definition -> {
-                    bank.add(definition);
-                    return (definition instanceof SignedContractOfferDto)
-                        ? resolveUnknownDefinitionsReferencedIn((SignedContractOfferDto) definition)
-                        : done();
-                })));
+    /**
+     * Signs offer on behalf of an owned party, applies it to its negotiation,
+     * which is created if the offer is not a counter-offer, and enqueues it
+     * for delivery to its counter-party. The negotiation is reverted, or
+     * discarded if created, if the offer fails to be delivered.
+     *
+     * @param offer Offer to sign.
+     * @return Outbox message, via which the delivery of the signed offer can
+     * be followed.
+     */
+    public ContractOutbox.Message update(final TrustedContractOffer offer) {
+        Objects.requireNonNull(offer, "Expected offer");
+
+        final var start = System.nanoTime();
+        try {
+            final var offeror = getOwnedPartyByCommonNameOrThrow(offer.offerorName());
+            final var receiver = getCounterPartyByCommonNameOrThrow(offer.receiverName());
+
+            final ContractNegotiation negotiation;
+            if (offer instanceof TrustedContractCounterOffer) {
+                final var counterOffer = (TrustedContractCounterOffer) offer;
+                negotiation = getNegotiationOrThrow(offeror, receiver, counterOffer.negotiationId());
+            }
+            else {
+                negotiation = negotiations.createFor(offeror, receiver);
+            }
+
+            var stageStart = System.nanoTime();
+            final SignedContractOfferDto signedOffer;
+            try {
+                signedOffer = negotiation.prepareOnBehalfOfOwnedParty(offer);
+            }
+            catch (final RuntimeException exception) {
+                negotiations.discardIfInitial(negotiation);
+                throw exception;
+            }
+            timelines.record(negotiation.id(), "sign", stageStart);
+
+            stageStart = System.nanoTime();
+            bank.add(signedOffer);
+            timelines.record(negotiation.id(), "bank", stageStart);
+
+            negotiation.updateOnBehalfOfOwnedParty(signedOffer);
+
+            stageStart = System.nanoTime();
+            final var message = outbox.enqueue(signedOffer, receiver);
+            timelines.record(negotiation.id(), "outbox", stageStart);
+
+            sendToEventHandler(negotiation, OFFERING)
+                .onFailure(fault -> logger.warn("Failed to send " + offer + " to event handler", fault));
+            return message;
+        }
+        finally {
+            OWNED_PARTY_OFFER_LATENCY.recordSince(start);
+        }
     }
 
-    public void update(final SignedContractRejectionDto rejection) {
+    /**
+     * Signs rejection on behalf of an owned party, applies it to its
+     * negotiation and enqueues it for delivery to its counter-party. The
+     * negotiation is reverted if the rejection fails to be delivered.
+     *
+     * @param rejection Rejection to sign.
+     * @return Outbox message, via which the delivery of the signed rejection
+     * can be followed.
+     */
+    public ContractOutbox.Message update(final TrustedContractRejectionDto rejection) {
         Objects.requireNonNull(rejection, "Expected rejection");
 
-        final var rejector = getCounterPartyByFingerprintOrThrow(rejection.rejectorFingerprint());
-        final var offeror = getOwnedPartyByFingerprintOrThrow(rejection.offerorFingerprint());
-        final var negotiation = getNegotiationOrThrow(offeror, rejector, rejection.negotiationId());
-        negotiation.updateOnBehalfOfCounterParty(rejection);
-        bank.add(rejection);
-        relay.sendToEventHandler(rejection.negotiationId(), negotiation.lastOfferAsTrusted(), REJECTED)
-            .onFailure(fault -> logger.warn("Failed to send " + rejection + " to event handler", fault));
-    }
+        final var start = System.nanoTime();
+        try {
+            final var rejector = getOwnedPartyByCommonNameOrThrow(rejection.rejectorName());
+            final var offeror = getCounterPartyByCommonNameOrThrow(rejection.offerorName());
+            final var negotiation = getNegotiationOrThrow(rejector, offeror, rejection.negotiationId());
+            var stageStart = System.nanoTime();
+            final var signedRejection = negotiation.prepareOnBehalfOfOwnedParty(rejection);
+            timelines.record(negotiation.id(), "sign", stageStart);
 
-    public Future<?> update(final TrustedContractAcceptance acceptance) {
-        Objects.requireNonNull(acceptance, "Expected acceptance");
+            stageStart = System.nanoTime();
+            bank.add(signedRejection);
+            timelines.record(negotiation.id(), "bank", stageStart);
+
+            negotiation.updateOnBehalfOfOwnedParty(signedRejection);
 
-        final var acceptor = getOwnedPartyByCommonNameOrThrow(acceptance.acceptorName());
-        final var offeror = getCounterPartyByCommonNameOrThrow(acceptance.offerorName());
-        final var negotiation = getNegotiationOrThrow(acceptor, offeror, acceptance.negotiationId());
-        final var signedAcceptance = negotiation.prepareOnBehalfOfOwnedParty(acceptance);
-        bank.add(signedAcceptance);
-        return relay.sendToCounterParty(signedAcceptance, offeror)
-            .ifSuccess(ignored -> {
-                negotiation.updateOnBehalfOfOwnedParty(signedAcceptance);
-                relay.sendToEventHandler(negotiation.id(), negotiation.lastOfferAsTrusted(), ACCEPTED)
-                    .onFailure(fault -> logger.warn("Failed to send " + acceptance + " to event handler", fault));
-            });
+            stageStart = System.nanoTime();
+            final var message = outbox.enqueue(signedRejection, offeror);
+            timelines.record(negotiation.id(), "outbox", stageStart);
+
+            sendToEventHandler(negotiation, REJECTED)
+                .onFailure(fault -> logger.warn("Failed to send " + rejection + " to event handler", fault));
+            return message;
+        }
+        finally {
+            OWNED_PARTY_REJECTION_LATENCY.recordSince(start);
+        }
     }
 
-    public Future<Long> update(final TrustedContractOffer offer) {
-        Objects.requireNonNull(offer, "Expected offer");
+    // Counter-parties retransmit messages if they never receive our
+    // responses to them. A retransmitted message is recognized by its hash
+    // being both in the bank and in its negotiation, in which case it has
+    // already been validated, verified, stored and relayed. Hashes are only
+    // trusted to identify messages if calculated with a collision-safe
+    // algorithm.
+    private boolean isRetransmitted(
+        final Definition definition,
+        final HashBase64 counterPartyFingerprint,
+        final HashBase64 ownedPartyFingerprint)
+    {
+        final var algorithm = bank.primaryHashAlgorithm();
+        if (!algorithm.isCollisionSafe()) {
+            return false;
+        }
+        final var hash = definition.hashUsing(algorithm);
+        if (!bank.contains(hash)) {
+            return false;
+        }
+        final var counterParty = parties.getCounterPartyByFingerprint(counterPartyFingerprint.toHash()).orElse(null);
+        final var ownedParty = parties.getOwnedPartyByFingerprint(ownedPartyFingerprint.toHash()).orElse(null);
+        if (counterParty == null || ownedParty == null) {
+            return false;
+        }
+        return negotiations.getBy(ownedParty, counterParty, definition.negotiationId())
+            .map(negotiation -> negotiation.contains(hash))
+            .orElse(false);
+    }
 
-        final var offeror = getOwnedPartyByCommonNameOrThrow(offer.offerorName());
-        final var receiver = getCounterPartyByCommonNameOrThrow(offer.receiverName());
+    private Future<?> sendToEventHandler(final ContractNegotiation negotiation, final ContractNegotiationStatus status) {
+        final var start = System.nanoTime();
+        return relay.sendToEventHandler(negotiation.id(), negotiation.lastOfferAsTrusted(), status)
+            .always(ignored -> timelines.record(negotiation.id(), "event", start));
+    }
 
-        final ContractNegotiation negotiation;
-        if (offer instanceof TrustedContractCounterOffer) {
-            final var counterOffer = (TrustedContractCounterOffer) offer;
-            negotiation = getNegotiationOrThrow(offeror, receiver, counterOffer.negotiationId());
+    // Messages that could not be delivered are undone, as counter-parties
+    // would otherwise be expected to respond to messages they never
+    // received. The outbox remembers failed messages until their definitions
+    // are no longer in the bank, as they would otherwise be restored into
+    // their negotiations again on the next restart.
+    private void revert(final ContractOutbox.Message message) {
+        final var definition = message.definition();
+        if (!bank.contains(definition.hashUsing(bank.primaryHashAlgorithm()))) {
+            outbox.forget(message);
+            return;
+        }
+        final HashBase64 ownedPartyFingerprint;
+        if (definition instanceof SignedContractAcceptanceDto) {
+            ownedPartyFingerprint = ((SignedContractAcceptanceDto) definition).acceptorFingerprint();
+        }
+        else if (definition instanceof SignedContractOfferDto) {
+            ownedPartyFingerprint = ((SignedContractOfferDto) definition).offerorFingerprint();
+        }
+        else if (definition instanceof SignedContractRejectionDto) {
+            ownedPartyFingerprint = ((SignedContractRejectionDto) definition).rejectorFingerprint();
         }
         else {
-            negotiation = negotiations.createFor(offeror, receiver);
+            return;
+        }
+        final var negotiation = parties.getOwnedPartyByFingerprint(ownedPartyFingerprint.toHash())
+            .flatMap(ownedParty -> negotiations.getBy(ownedParty, message.counterParty(), definition.negotiationId()))
+            .orElse(null);
+        if (negotiation == null || !negotiation.revertOnBehalfOfOwnedParty(definition)) {
+            return;
+        }
+        logger.warn("Reverted {} to the state it had before {} failed to be delivered", negotiation, definition);
+        if (negotiation.isInitial()) {
+            negotiations.discardIfInitial(negotiation);
+            return;
         }
+        sendToEventHandler(negotiation, OFFERING)
+            .onFailure(fault -> logger.warn("Failed to send reverted " + negotiation + " to event handler", fault));
+    }
 
-        final var signedOffer = negotiation.prepareOnBehalfOfOwnedParty(offer);
-        bank.add(signedOffer);
-        return relay.sendToCounterParty(signedOffer, receiver)
-            .ifSuccess(ignored -> {
-                negotiation.updateOnBehalfOfOwnedParty(signedOffer);
-                relay.sendToEventHandler(negotiation.id(), negotiation.lastOfferAsTrusted(), OFFERING)
-                    .onFailure(fault -> logger.warn("Failed to send " + offer + " to event handler", fault));
-            })
-            .pass(negotiation.id());
+    private static Histogram updateLatencyOf(final String origin, final String type) {
+        return Metrics.REGISTRY.histogram("kalix_cp_proxy_update_seconds",
+            "Time spent applying definitions to negotiations", "origin", origin, "type", type);
     }
 
-    public Future<?> update(final TrustedContractRejectionDto rejection) {
-        Objects.requireNonNull(rejection, "Expected rejection");
+    private void restore(final Definition definition) {
+        final HashBase64 fingerprint1;
+        final HashBase64 fingerprint2;
+        if (definition instanceof SignedContractOfferDto) {
+            final var offer = (SignedContractOfferDto) definition;
+            fingerprint1 = offer.offerorFingerprint();
+            fingerprint2 = offer.receiverFingerprint();
+        }
+        else if (definition instanceof SignedContractAcceptanceDto) {
+            final var acceptance = (SignedContractAcceptanceDto) definition;
+            fingerprint1 = acceptance.acceptorFingerprint();
+            fingerprint2 = acceptance.offerorFingerprint();
+        }
+        else if (definition instanceof SignedContractRejectionDto) {
+            final var rejection = (SignedContractRejectionDto) definition;
+            fingerprint1 = rejection.rejectorFingerprint();
+            fingerprint2 = rejection.offerorFingerprint();
+        }
+        else {
+            return;
+        }
 
-        final var rejector = getOwnedPartyByCommonNameOrThrow(rejection.rejectorName());
-        final var offeror = getCounterPartyByCommonNameOrThrow(rejection.offerorName());
-        final var negotiation = getNegotiationOrThrow(rejector, offeror, rejection.negotiationId());
-        final var signedRejection = negotiation.prepareOnBehalfOfOwnedParty(rejection);
-        bank.add(signedRejection);
-        return relay.sendToCounterParty(signedRejection, offeror)
-            .ifSuccess(ignored -> {
-                negotiation.updateOnBehalfOfOwnedParty(signedRejection);
-                relay.sendToEventHandler(negotiation.id(), negotiation.lastOfferAsTrusted(), REJECTED)
-                    .onFailure(fault -> logger.warn("Failed to send " + rejection + " to event handler", fault));
-            });
+        final var party1 = parties.getAnyByFingerprint(fingerprint1.toHash()).orElse(null);
+        final var party2 = parties.getAnyByFingerprint(fingerprint2.toHash()).orElse(null);
+        final OwnedParty ownedParty;
+        final Party counterParty;
+        if (party1 instanceof OwnedParty && party2 != null && !(party2 instanceof OwnedParty)) {
+            ownedParty = (OwnedParty) party1;
+            counterParty = party2;
+        }
+        else if (party2 instanceof OwnedParty && party1 != null && !(party1 instanceof OwnedParty)) {
+            ownedParty = (OwnedParty) party2;
+            counterParty = party1;
+        }
+        else {
+            // Not part of a negotiation between an owned party and a
+            // counter-party, which means it was only fetched as a reference.
+            return;
+        }
+
+        if (definition instanceof SignedContractOfferDto) {
+            negotiations.getOrCreateBy(ownedParty, counterParty, definition.negotiationId())
+                .restore(definition);
+        }
+        else {
+            negotiations.getBy(ownedParty, counterParty, definition.negotiationId())
+                .ifPresent(negotiation -> negotiation.restore(definition));
+        }
     }
 
     private Party getCounterPartyByCommonNameOrThrow(final String commonName) {
@@ -248,9 +642,22 @@ public class ContractProxy {
     public static class Builder {
         private Collection<HashAlgorithm> acceptedHashAlgorithms;
         private Collection<Party> counterParties;
+        private DefinitionArchive definitionArchive;
+        private int definitionJsonCacheCapacity;
+        private DefinitionLog definitionLog;
+        private DefinitionRetentionPolicy definitionRetentionPolicy;
+        private OffHeapHashIndex definitionSecondaryIndex;
+        private Path definitionSnapshotPath;
+        private DefinitionStore definitionStore;
+        private int maxOpenNegotiationsPerCounterParty;
+        private ContractOutbox outbox;
         private Collection<OwnedParty> ownedParties;
+        private HashAlgorithm primaryHashAlgorithm;
+        private int referenceCountLimit;
+        private int referenceDepthLimit;
         private ContractRelay relay;
         private Collection<Template> templates;
+        private NegotiationTimelines timelines;
 
         public Builder acceptedHashAlgorithms(final Collection<HashAlgorithm> acceptedHashAlgorithms) {
             this.acceptedHashAlgorithms = acceptedHashAlgorithms;
@@ -270,6 +677,87 @@ public class ContractProxy {
             return counterParties(Arrays.asList(counterParties));
         }
 
+        public Builder definitionArchive(final DefinitionArchive definitionArchive) {
+            this.definitionArchive = definitionArchive;
+            return this;
+        }
+
+        /**
+         * Sets maximum number of bytes of definition JSON kept in memory for
+         * serving definitions to counter-parties. Defaults to 16 MiB.
+         *
+         * @param definitionJsonCacheCapacity Cache capacity, in bytes.
+         * @return This builder.
+         */
+        public Builder definitionJsonCacheCapacity(final int definitionJsonCacheCapacity) {
+            this.definitionJsonCacheCapacity = definitionJsonCacheCapacity;
+            return this;
+        }
+
+        public Builder definitionLog(final DefinitionLog definitionLog) {
+            this.definitionLog = definitionLog;
+            return this;
+        }
+
+        public Builder definitionRetentionPolicy(final DefinitionRetentionPolicy definitionRetentionPolicy) {
+            this.definitionRetentionPolicy = definitionRetentionPolicy;
+            return this;
+        }
+
+        /**
+         * Sets index mapping hashes calculated with other algorithms than
+         * the primary to definition log addresses. Required if using an
+         * {@link se.arkalix.core.cp.bank.OffHeapDefinitionStore
+         * OffHeapDefinitionStore} and more than one hash algorithm is
+         * accepted.
+         *
+         * @param definitionSecondaryIndex Index of secondary hashes.
+         * @return This builder.
+         */
+        public Builder definitionSecondaryIndex(final OffHeapHashIndex definitionSecondaryIndex) {
+            this.definitionSecondaryIndex = definitionSecondaryIndex;
+            return this;
+        }
+
+        public Builder definitionSnapshotPath(final Path definitionSnapshotPath) {
+            this.definitionSnapshotPath = definitionSnapshotPath;
+            return this;
+        }
+
+        public Builder definitionStore(final DefinitionStore definitionStore) {
+            this.definitionStore = definitionStore;
+            return this;
+        }
+
+        /**
+         * Sets maximum number of open negotiations each counter-party may
+         * have started at any given time. Offers that would start more
+         * negotiations are refused before their signatures are verified.
+         * Unlimited by default.
+         *
+         * @param maxOpenNegotiationsPerCounterParty Maximum number of open
+         *                                           negotiations, or zero if
+         *                                           unlimited.
+         * @return This builder.
+         */
+        public Builder maxOpenNegotiationsPerCounterParty(final int maxOpenNegotiationsPerCounterParty) {
+            this.maxOpenNegotiationsPerCounterParty = maxOpenNegotiationsPerCounterParty;
+            return this;
+        }
+
+        /**
+         * Sets outbox via which signed messages are delivered to
+         * counter-parties. If not set, an outbox that only keeps messages in
+         * memory is created using the relay of this builder.
+         *
+         * @param outbox Contract outbox.
+         * @return This builder.
+         */
+        public Builder outbox(final ContractOutbox outbox) {
+            this.outbox = outbox;
+            return this;
+        }
+
         public Builder ownedParties(final Collection<OwnedParty> ownedParties) {
             this.ownedParties = ownedParties;
             return this;
@@ -279,6 +767,44 @@ public class ContractProxy {
             return ownedParties(Arrays.asList(ownedParties));
         }
 
+        /**
+         * Sets hash algorithm used to index stored definitions. Hashes
+         * calculated with other accepted algorithms are only indexed when
+         * first looked up.
+         *
+         * @param primaryHashAlgorithm Primary hash algorithm.
+         * @return This builder.
+         */
+        public Builder primaryHashAlgorithm(final HashAlgorithm primaryHashAlgorithm) {
+            this.primaryHashAlgorithm = primaryHashAlgorithm;
+            return this;
+        }
+
+        /**
+         * Sets maximum number of unknown definitions fetched from
+         * counter-parties while resolving the references of a received
+         * offer. Defaults to 1024.
+         *
+         * @param referenceCountLimit Maximum number of fetched definitions.
+         * @return This builder.
+         */
+        public Builder referenceCountLimit(final int referenceCountLimit) {
+            this.referenceCountLimit = referenceCountLimit;
+            return this;
+        }
+
+        /**
+         * Sets maximum depth of the references followed while resolving the
+         * references of a received offer. Defaults to 8.
+         *
+         * @param referenceDepthLimit Maximum reference depth.
+         * @return This builder.
+         */
+        public Builder referenceDepthLimit(final int referenceDepthLimit) {
+            this.referenceDepthLimit = referenceDepthLimit;
+            return this;
+        }
+
         public Builder relay(final ContractRelay relay) {
             this.relay = relay;
             return this;
@@ -293,6 +819,19 @@ public class ContractProxy {
             return templates(Arrays.asList(templates));
         }
 
+        /**
+         * Sets timelines in which the time spent in each stage of handling
+         * negotiation messages is recorded. Defaults to {@link
+         * NegotiationTimelines#DISABLED}.
+         *
+         * @param timelines Negotiation timelines.
+         * @return This builder.
+         */
+        public Builder timelines(final NegotiationTimelines timelines) {
+            this.timelines = timelines;
+            return this;
+        }
+
         public ContractProxy build() {
             return new ContractProxy(this);
         }
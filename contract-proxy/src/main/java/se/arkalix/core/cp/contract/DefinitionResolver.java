@@ -0,0 +1,235 @@
+package se.arkalix.core.cp.contract;
+
+import se.arkalix.core.cp.bank.Definition;
+import se.arkalix.core.cp.bank.DefinitionBank;
+import se.arkalix.core.cp.security.Hash;
+import se.arkalix.core.cp.security.HashAlgorithm;
+import se.arkalix.util.Result;
+import se.arkalix.util.annotation.ThreadSafe;
+import se.arkalix.util.concurrent.Future;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static se.arkalix.util.concurrent.Future.done;
+
+/**
+ * Fetches the definitions referenced by offers from counter-parties, if not
+ * already in a {@link DefinitionBank}.
+ * <p>
+ * References are resolved breadth-first. All unknown definitions referenced
+ * at the same depth are requested at once, after which the unknown
+ * definitions referenced by those definitions are requested, and so on.
+ * Resolution fails if the references of an offer are nested too deeply or
+ * if too many definitions would have to be fetched.
+ * <p>
+ * Every hash is only requested once at a time. If a hash is referenced while
+ * already being requested on behalf of another offer, the outcome of the
+ * ongoing request is awaited instead of a new request being made.
+ */
+class DefinitionResolver {
+    static final int DEFAULT_DEPTH_LIMIT = 8;
+    static final int DEFAULT_COUNT_LIMIT = 1024;
+
+    private final DefinitionBank bank;
+    private final ContractRelay relay;
+    private final int depthLimit;
+    private final int countLimit;
+    private final Map<Hash, Flight> hashToFlight = new ConcurrentHashMap<>();
+
+    DefinitionResolver(
+        final DefinitionBank bank,
+        final ContractRelay relay,
+        final int depthLimit,
+        final int countLimit)
+    {
+        this.bank = Objects.requireNonNull(bank, "Expected bank");
+        this.relay = Objects.requireNonNull(relay, "Expected relay");
+        this.depthLimit = depthLimit > 0 ? depthLimit : DEFAULT_DEPTH_LIMIT;
+        this.countLimit = countLimit > 0 ? countLimit : DEFAULT_COUNT_LIMIT;
+    }
+
+    @ThreadSafe
+    Future<?> resolveReferencesIn(final SignedContractOffer offer) {
+        final var visited = new HashSet<Hash>();
+        return resolve(unknownReferencesIn(List.of(offer), visited), visited, 1, 0);
+    }
+
+    private Future<?> resolve(
+        final Set<Hash> hashes,
+        final Set<Hash> visited,
+        final int depth,
+        final int count)
+    {
+        if (hashes.isEmpty()) {
+            return done();
+        }
+        if (depth > depthLimit) {
+            return Future.failure(new IllegalStateException("Definition " +
+                "references nested deeper than " + depthLimit + " levels"));
+        }
+        final var count0 = count + hashes.size();
+        if (count0 > countLimit) {
+            return Future.failure(new IllegalStateException("Definition " +
+                "references more than " + countLimit + " unknown definitions"));
+        }
+        return fetch(hashes)
+            .flatMap(definitions -> resolve(unknownReferencesIn(definitions, visited), visited, depth + 1, count0));
+    }
+
+    private Set<Hash> unknownReferencesIn(final Collection<Definition> definitions, final Set<Hash> visited) {
+        return definitions.stream()
+            .filter(definition -> definition instanceof SignedContractOffer)
+            .flatMap(definition -> ((SignedContractOffer) definition).hashReferencesInArguments())
+            .filter(visited::add)
+            .filter(hash -> !bank.contains(hash))
+            .collect(Collectors.toSet());
+    }
+
+    private Future<List<Definition>> fetch(final Set<Hash> hashes) {
+        final var flights = new ArrayList<Flight>(hashes.size());
+        final var newHashToFlight = new HashMap<Hash, Flight>();
+        for (final var hash : hashes) {
+            final var flight = new Flight();
+            final var existingFlight = hashToFlight.putIfAbsent(hash, flight);
+            if (existingFlight != null) {
+                flights.add(existingFlight);
+            }
+            else {
+                flights.add(flight);
+                newHashToFlight.put(hash, flight);
+            }
+        }
+
+        if (!newHashToFlight.isEmpty()) {
+            Future<List<Definition>> future;
+            try {
+                future = relay.getFromCounterParty(newHashToFlight.keySet());
+            }
+            catch (final Throwable throwable) {
+                future = Future.failure(throwable);
+            }
+            future.onResult(result -> {
+                if (result.isSuccess()) {
+                    final var definitions = matchAndStore(newHashToFlight.keySet(), result.value());
+                    newHashToFlight.forEach((hash, flight) -> {
+                        hashToFlight.remove(hash, flight);
+                        flight.complete(Result.success(definitions.get(hash)));
+                    });
+                }
+                else {
+                    newHashToFlight.forEach((hash, flight) -> {
+                        hashToFlight.remove(hash, flight);
+                        flight.complete(Result.failure(result.fault()));
+                    });
+                }
+            });
+        }
+
+        return new AllFlights(flights);
+    }
+
+    // Only definitions matching requested hashes are stored, which prevents
+    // counter-parties from adding arbitrary definitions to the bank.
+    private Map<Hash, Definition> matchAndStore(final Set<Hash> hashes, final List<Definition> definitions) {
+        final var algorithms = hashes.stream()
+            .map(Hash::algorithm)
+            .collect(Collectors.toSet());
+        final var hashToDefinition = new HashMap<Hash, Definition>();
+        for (final var definition : definitions) {
+            for (final HashAlgorithm algorithm : algorithms) {
+                final var hash = definition.hashUsing(algorithm);
+                if (!hashes.contains(hash) || hashToDefinition.putIfAbsent(hash, definition) != null) {
+                    continue;
+                }
+                if (!bank.contains(hash)) {
+                    try {
+                        bank.add(definition);
+                    }
+                    catch (final IllegalStateException ignored) {
+                        // Added concurrently via some other route.
+                    }
+                }
+            }
+        }
+        return hashToDefinition;
+    }
+
+    private static class Flight {
+        private final List<Consumer<Result<Definition>>> consumers = new ArrayList<>(1);
+        private Result<Definition> result = null;
+
+        void complete(final Result<Definition> result) {
+            final List<Consumer<Result<Definition>>> consumers;
+            synchronized (this) {
+                this.result = result;
+                consumers = new ArrayList<>(this.consumers);
+                this.consumers.clear();
+            }
+            for (final var consumer : consumers) {
+                consumer.accept(result);
+            }
+        }
+
+        void onResult(final Consumer<Result<Definition>> consumer) {
+            final Result<Definition> result;
+            synchronized (this) {
+                if (this.result == null) {
+                    consumers.add(consumer);
+                    return;
+                }
+                result = this.result;
+            }
+            consumer.accept(result);
+        }
+    }
+
+    private static class AllFlights implements Future<List<Definition>> {
+        private final List<Flight> flights;
+
+        private AllFlights(final List<Flight> flights) {
+            this.flights = flights;
+        }
+
+        @Override
+        public void onResult(final Consumer<Result<List<Definition>>> consumer) {
+            final var definitions = new Definition[flights.size()];
+            final var state = new Object() {
+                int remaining = flights.size();
+                Throwable fault = null;
+            };
+            for (var i = 0; i < flights.size(); ++i) {
+                final var index = i;
+                flights.get(i).onResult(result -> {
+                    final boolean isLast;
+                    synchronized (state) {
+                        if (result.isSuccess()) {
+                            definitions[index] = result.value();
+                        }
+                        else if (state.fault == null) {
+                            state.fault = result.fault();
+                        }
+                        isLast = --state.remaining == 0;
+                    }
+                    if (!isLast) {
+                        return;
+                    }
+                    if (state.fault != null) {
+                        consumer.accept(Result.failure(state.fault));
+                        return;
+                    }
+                    consumer.accept(Result.success(Arrays.stream(definitions)
+                        .filter(Objects::nonNull)
+                        .collect(Collectors.toUnmodifiableList())));
+                });
+            }
+        }
+
+        @Override
+        public void cancel(final boolean mayInterruptIfRunning) {
+            // Ongoing requests may be awaited by other resolutions.
+        }
+    }
+}
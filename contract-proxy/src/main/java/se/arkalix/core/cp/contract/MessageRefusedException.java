@@ -0,0 +1,11 @@
+package se.arkalix.core.cp.contract;
+
+/**
+ * Signifies that a counter-party refused to accept a message sent to it, and
+ * that it can be expected to refuse the same message if it is sent again.
+ */
+public class MessageRefusedException extends RuntimeException {
+    public MessageRefusedException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+}
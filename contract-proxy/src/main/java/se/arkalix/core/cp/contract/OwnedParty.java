@@ -19,7 +19,16 @@ public class OwnedParty extends Party {
         final PrivateKey privateKey,
         final Set<HashAlgorithm> supportedHashAlgorithms)
     {
-        super(certificate, supportedHashAlgorithms);
+        this(certificate, privateKey, HashAlgorithm.preferredOf(supportedHashAlgorithms), supportedHashAlgorithms);
+    }
+
+    public OwnedParty(
+        final Certificate certificate,
+        final PrivateKey privateKey,
+        final HashAlgorithm preferredHashAlgorithm,
+        final Set<HashAlgorithm> supportedHashAlgorithms)
+    {
+        super(certificate, preferredHashAlgorithm, supportedHashAlgorithms);
         this.privateKey = Objects.requireNonNull(privateKey, "Expected privateKey");
 
         signatureScheme = SignatureScheme.ALL
@@ -34,7 +43,7 @@ public class OwnedParty extends Party {
     }
 
     public Signature sign(final Instant timestamp, final byte[] bytes) {
-        return signatureScheme.sign(privateKey, timestamp, bytes);
+        return signatureScheme.sign(commonName(), privateKey, timestamp, bytes);
     }
 
     public SignatureScheme signatureScheme() {
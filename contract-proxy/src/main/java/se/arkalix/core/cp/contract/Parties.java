@@ -1,12 +1,15 @@
 package se.arkalix.core.cp.contract;
 
 import se.arkalix.core.cp.security.Hash;
+import se.arkalix.core.cp.security.HashAlgorithm;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Parties {
     private final Map<String, Party> commonNameToParty;
     private final Map<Hash, Party> fingerprintToParty;
+    private final Map<HashAlgorithm, Map<Hash, Party>> algorithmToFingerprintToParty = new ConcurrentHashMap<>();
     private final List<OwnedParty> ownedParties;
 
     public Parties(final Collection<Party> parties) {
@@ -23,15 +26,14 @@ public class Parties {
                     "common names and counter-parties");
             }
 
-            for (final var fingerprint : party.acceptedFingerprints()) {
-                conflictingParty = fingerprintToParty.put(fingerprint, party);
-                if (conflictingParty != null) {
-                    throw new IllegalArgumentException("There are at least " +
-                        "two provided certificates that share the same " +
-                        "fingerprint " + fingerprint + "; this prevents the " +
-                        "construction of a non-ambiguous mapping between " +
-                        "fingerprints and counter-parties");
-                }
+            final var fingerprint = party.preferredFingerprint();
+            conflictingParty = fingerprintToParty.put(fingerprint, party);
+            if (conflictingParty != null) {
+                throw new IllegalArgumentException("There are at least " +
+                    "two provided certificates that share the same " +
+                    "fingerprint " + fingerprint + "; this prevents the " +
+                    "construction of a non-ambiguous mapping between " +
+                    "fingerprints and counter-parties");
             }
 
             if (party instanceof OwnedParty) {
@@ -56,7 +58,22 @@ public class Parties {
     }
 
     public Optional<Party> getAnyByFingerprint(final Hash fingerprint) {
-        return Optional.ofNullable(fingerprintToParty.get(fingerprint));
+        final var party = fingerprintToParty.get(fingerprint);
+        if (party != null) {
+            return Optional.of(party);
+        }
+        // Fingerprints not calculated with the preferred hash algorithms of
+        // the parties are only indexed when first looked up.
+        return Optional.ofNullable(algorithmToFingerprintToParty
+            .computeIfAbsent(fingerprint.algorithm(), algorithm -> {
+                final var fingerprintToParty0 = new HashMap<Hash, Party>();
+                for (final var party0 : commonNameToParty.values()) {
+                    party0.fingerprintUsing(algorithm)
+                        .ifPresent(fingerprint0 -> fingerprintToParty0.putIfAbsent(fingerprint0, party0));
+                }
+                return Collections.unmodifiableMap(fingerprintToParty0);
+            })
+            .get(fingerprint));
     }
 
     public Optional<OwnedParty> getOwnedPartyByCommonName(final String commonName) {
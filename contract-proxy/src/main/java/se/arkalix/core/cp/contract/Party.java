@@ -11,8 +11,11 @@ import java.security.cert.X509Certificate;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class Party {
@@ -20,18 +23,38 @@ public class Party {
 
     private final X509Certificate certificate;
     private final String commonName;
-    private final List<Hash> acceptedFingerprints;
+    private final Set<HashAlgorithm> supportedHashAlgorithms;
+    private final Map<HashAlgorithm, Hash> algorithmToFingerprint = new ConcurrentHashMap<>();
     private final Hash preferredFingerprint;
 
     public Party(final Certificate certificate, final Set<HashAlgorithm> supportedHashAlgorithms) {
+        this(certificate, HashAlgorithm.preferredOf(supportedHashAlgorithms), supportedHashAlgorithms);
+    }
+
+    /**
+     * Creates new party. Only the fingerprint of the preferred hash algorithm
+     * is calculated up front. Fingerprints of other supported algorithms are
+     * calculated when first requested.
+     *
+     * @param certificate             Certificate of party.
+     * @param preferredHashAlgorithm  Hash algorithm of preferred fingerprint.
+     * @param supportedHashAlgorithms All supported hash algorithms.
+     */
+    public Party(
+        final Certificate certificate,
+        final HashAlgorithm preferredHashAlgorithm,
+        final Set<HashAlgorithm> supportedHashAlgorithms)
+    {
         Objects.requireNonNull(certificate, "Expected certificate");
+        Objects.requireNonNull(preferredHashAlgorithm, "Expected preferredHashAlgorithm");
         Objects.requireNonNull(supportedHashAlgorithms, "Expected supportedHashAlgorithms");
 
         if (!(certificate instanceof X509Certificate)) {
             throw new IllegalArgumentException("Given certificate not of type x.509");
         }
-        if (supportedHashAlgorithms.isEmpty()) {
-            throw new IllegalArgumentException("At least one hash algorithm must be provided");
+        if (!supportedHashAlgorithms.contains(preferredHashAlgorithm)) {
+            throw new IllegalArgumentException("The preferred hash algorithm " +
+                "must be one of the supported hash algorithms");
         }
 
         this.certificate = (X509Certificate) certificate;
@@ -65,20 +88,8 @@ public class Party {
                 "; cannot use certificate");
         }
 
-        try {
-            final var certificateAsBytes = certificate.getEncoded();
-            acceptedFingerprints = supportedHashAlgorithms.stream()
-                .map(hashAlgorithm -> hashAlgorithm.hash(certificateAsBytes))
-                .collect(Collectors.toUnmodifiableList());
-            preferredFingerprint = acceptedFingerprints.stream()
-                .filter(fingerprint -> fingerprint.algorithm().isCollisionSafe())
-                .findFirst()
-                .orElseGet(() -> acceptedFingerprints.get(0));
-        }
-        catch (final CertificateEncodingException exception) {
-            throw new RuntimeException("Could not get canonical encoded " +
-                "form of given certificate [commonName=" + commonName + "]");
-        }
+        this.supportedHashAlgorithms = Set.copyOf(supportedHashAlgorithms);
+        preferredFingerprint = fingerprintUsing(preferredHashAlgorithm).orElseThrow();
     }
 
     public X509Certificate certificate() {
@@ -90,7 +101,36 @@ public class Party {
     }
 
     public List<Hash> acceptedFingerprints() {
-        return acceptedFingerprints;
+        return HashAlgorithm.ALL.stream()
+            .map(this::fingerprintUsing)
+            .flatMap(Optional::stream)
+            .collect(Collectors.toUnmodifiableList());
+    }
+
+    /**
+     * @param hashAlgorithm Hash algorithm to use.
+     * @return Fingerprint of this party calculated with {@code
+     * hashAlgorithm}, unless it is not supported.
+     */
+    public Optional<Hash> fingerprintUsing(final HashAlgorithm hashAlgorithm) {
+        if (!supportedHashAlgorithms.contains(hashAlgorithm)) {
+            return Optional.empty();
+        }
+        return Optional.of(algorithmToFingerprint.computeIfAbsent(hashAlgorithm, hashAlgorithm0 -> {
+            try {
+                return hashAlgorithm0.hash(certificate.getEncoded());
+            }
+            catch (final CertificateEncodingException exception) {
+                throw new RuntimeException("Could not get canonical encoded " +
+                    "form of given certificate [commonName=" + commonName + "]");
+            }
+        }));
+    }
+
+    public boolean hasFingerprint(final Hash fingerprint) {
+        return fingerprintUsing(fingerprint.algorithm())
+            .map(fingerprint::equals)
+            .orElse(false);
     }
 
     public Hash preferredFingerprint() {
@@ -1,6 +1,8 @@
 package se.arkalix.core.cp.contract;
 
 import se.arkalix.core.cp.bank.Definition;
+import se.arkalix.core.cp.jfr.CanonicalizeEvent;
+import se.arkalix.core.cp.metrics.Metrics;
 import se.arkalix.core.cp.security.HashBase64;
 import se.arkalix.core.cp.security.SignatureBase64;
 import se.arkalix.dto.DtoReadableAs;
@@ -42,16 +44,28 @@ public interface SignedContractAcceptance extends SignedMessage, Definition {
 
     @Override
     default byte[] canonicalize() {
-        return writeCanonicalJson(new StringBuilder(), true)
+        final var event = new CanonicalizeEvent();
+        event.begin();
+        final var start = System.nanoTime();
+        final var canonical = writeCanonicalJson(new StringBuilder(), true)
             .toString()
             .getBytes(StandardCharsets.UTF_8);
+        Metrics.CANONICALIZE_ACCEPTANCE.recordSince(start);
+        event.commit("acceptance", canonical.length, true);
+        return canonical;
     }
 
     @Override
     default byte[] canonicalizeWithoutSignatureSum() {
-        return writeCanonicalJson(new StringBuilder(), false)
+        final var event = new CanonicalizeEvent();
+        event.begin();
+        final var start = System.nanoTime();
+        final var canonical = writeCanonicalJson(new StringBuilder(), false)
             .toString()
             .getBytes(StandardCharsets.UTF_8);
+        Metrics.CANONICALIZE_ACCEPTANCE.recordSince(start);
+        event.commit("acceptance", canonical.length, false);
+        return canonical;
     }
 
     default StringBuilder writeCanonicalJson(final StringBuilder builder, final boolean includeSignatureSum) {
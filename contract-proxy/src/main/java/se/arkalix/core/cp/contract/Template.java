@@ -5,6 +5,7 @@ import se.arkalix.core.cp.security.HashAlgorithm;
 
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -14,14 +15,42 @@ public class Template {
     private final String name;
     private final String text;
     private final Map<String, Span> parameters;
-    private final List<Hash> acceptedHashes;
+    private final Set<HashAlgorithm> supportedHashAlgorithms;
+    private final Map<HashAlgorithm, Hash> algorithmToHash = new ConcurrentHashMap<>();
     private final Hash preferredHash;
 
     public Template(final String name, final String text, final Set<HashAlgorithm> supportedHashAlgorithms) {
+        this(name, text, HashAlgorithm.preferredOf(supportedHashAlgorithms), supportedHashAlgorithms);
+    }
+
+    /**
+     * Creates new template. Only the hash of the preferred hash algorithm is
+     * calculated up front. Hashes of other supported algorithms are
+     * calculated when first requested.
+     *
+     * @param name                    Name of template.
+     * @param text                    Template text.
+     * @param preferredHashAlgorithm  Hash algorithm of preferred hash.
+     * @param supportedHashAlgorithms All supported hash algorithms.
+     */
+    public Template(
+        final String name,
+        final String text,
+        final HashAlgorithm preferredHashAlgorithm,
+        final Set<HashAlgorithm> supportedHashAlgorithms)
+    {
         this.name = Objects.requireNonNull(name, "Expected name");
         this.text = Objects.requireNonNull(text, "Expected text");
+        Objects.requireNonNull(preferredHashAlgorithm, "Expected preferredHashAlgorithm");
+        Objects.requireNonNull(supportedHashAlgorithms, "Expected supportedHashAlgorithms");
+        if (!supportedHashAlgorithms.contains(preferredHashAlgorithm)) {
+            throw new IllegalArgumentException("The preferred hash algorithm " +
+                "must be one of the supported hash algorithms");
+        }
 
-        final var parameters = new HashMap<String, Span>();
+        // Parameters are kept in the order they appear in the text, which is
+        // the order in which they must be visited when rendering.
+        final var parameters = new LinkedHashMap<String, Span>();
         final var matcher = PATTERN.matcher(text);
         while (matcher.find()) {
             final var key = matcher.group(1);
@@ -29,14 +58,8 @@ public class Template {
         }
         this.parameters = parameters;
 
-        final var textAsBytes = text.getBytes(StandardCharsets.UTF_8);
-        acceptedHashes = supportedHashAlgorithms.stream()
-            .map(hashAlgorithm -> hashAlgorithm.hash(textAsBytes))
-            .collect(Collectors.toUnmodifiableList());
-        preferredHash = acceptedHashes.stream()
-            .filter(fingerprint -> fingerprint.algorithm().isCollisionSafe())
-            .findFirst()
-            .orElseGet(() -> acceptedHashes.get(0));
+        this.supportedHashAlgorithms = Set.copyOf(supportedHashAlgorithms);
+        preferredHash = hashUsing(preferredHashAlgorithm).orElseThrow();
     }
 
     public String name() {
@@ -48,7 +71,23 @@ public class Template {
     }
 
     public Collection<Hash> acceptedHashes() {
-        return acceptedHashes;
+        return HashAlgorithm.ALL.stream()
+            .map(this::hashUsing)
+            .flatMap(Optional::stream)
+            .collect(Collectors.toUnmodifiableList());
+    }
+
+    /**
+     * @param hashAlgorithm Hash algorithm to use.
+     * @return Hash of this template calculated with {@code hashAlgorithm},
+     * unless it is not supported.
+     */
+    public Optional<Hash> hashUsing(final HashAlgorithm hashAlgorithm) {
+        if (!supportedHashAlgorithms.contains(hashAlgorithm)) {
+            return Optional.empty();
+        }
+        return Optional.of(algorithmToHash.computeIfAbsent(hashAlgorithm, hashAlgorithm0 ->
+            hashAlgorithm0.hash(text.getBytes(StandardCharsets.UTF_8))));
     }
 
     public Hash preferredHash() {
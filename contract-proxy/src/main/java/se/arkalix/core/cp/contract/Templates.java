@@ -1,13 +1,16 @@
 package se.arkalix.core.cp.contract;
 
 import se.arkalix.core.cp.security.Hash;
+import se.arkalix.core.cp.security.HashAlgorithm;
 import se.arkalix.core.cp.util.UnsatisfiableRequestException;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Templates {
     private final Map<String, Template> nameToTemplate;
     private final Map<Hash, Template> hashToTemplate;
+    private final Map<HashAlgorithm, Map<Hash, Template>> algorithmToHashToTemplate = new ConcurrentHashMap<>();
     private final List<Template> templates;
 
     public Templates(final Collection<Template> templates) {
@@ -26,15 +29,14 @@ public class Templates {
                     "names and templates");
             }
 
-            for (final var hash : template.acceptedHashes()) {
-                conflictingTemplate = hashToTemplate.put(hash, template);
-                if (conflictingTemplate != null) {
-                    throw new IllegalArgumentException("There are at least " +
-                        "two provided certificates that share the same " +
-                        "fingerprint " + hash + "; this prevents the " +
-                        "construction of a non-ambiguous mapping between " +
-                        "fingerprints and counter-parties");
-                }
+            final var hash = template.preferredHash();
+            conflictingTemplate = hashToTemplate.put(hash, template);
+            if (conflictingTemplate != null) {
+                throw new IllegalArgumentException("There are at least " +
+                    "two provided certificates that share the same " +
+                    "fingerprint " + hash + "; this prevents the " +
+                    "construction of a non-ambiguous mapping between " +
+                    "fingerprints and counter-parties");
             }
         }
 
@@ -52,6 +54,21 @@ public class Templates {
     }
 
     public Optional<Template> getByHash(final Hash hash) throws UnsatisfiableRequestException {
-        return Optional.ofNullable(hashToTemplate.get(hash));
+        final var template = hashToTemplate.get(hash);
+        if (template != null) {
+            return Optional.of(template);
+        }
+        // Hashes not calculated with the preferred hash algorithms of the
+        // templates are only indexed when first looked up.
+        return Optional.ofNullable(algorithmToHashToTemplate
+            .computeIfAbsent(hash.algorithm(), algorithm -> {
+                final var hashToTemplate0 = new HashMap<Hash, Template>();
+                for (final var template0 : templates) {
+                    template0.hashUsing(algorithm)
+                        .ifPresent(hash0 -> hashToTemplate0.putIfAbsent(hash0, template0));
+                }
+                return Collections.unmodifiableMap(hashToTemplate0);
+            })
+            .get(hash));
     }
 }
@@ -0,0 +1,27 @@
+package se.arkalix.core.cp.contract;
+
+import se.arkalix.dto.DtoToString;
+import se.arkalix.dto.DtoWritableAs;
+
+import java.time.Instant;
+import java.util.Optional;
+
+import static se.arkalix.dto.DtoEncoding.JSON;
+
+@DtoWritableAs(JSON)
+@DtoToString
+public interface TrustedOutboxMessage {
+    long id();
+
+    long negotiationId();
+
+    String counterPartyName();
+
+    ContractOutboxStatus status();
+
+    int attempts();
+
+    Optional<Instant> nextAttemptAt();
+
+    Optional<String> lastFault();
+}
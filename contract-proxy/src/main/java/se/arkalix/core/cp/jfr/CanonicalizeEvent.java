@@ -0,0 +1,42 @@
+package se.arkalix.core.cp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("se.arkalix.core.cp.Canonicalize")
+@Label("Canonicalize")
+@Description("Writing of a definition as canonical JSON")
+@Category({"Contract Proxy", "Definitions"})
+@StackTrace(false)
+public final class CanonicalizeEvent extends Event {
+    @Label("Type")
+    @Description("Type of definition")
+    private String type;
+
+    @Label("Size")
+    @Description("Number of written bytes")
+    @DataAmount
+    private int size;
+
+    @Label("Including Signature Sum")
+    @Description("Whether the signature sum was written")
+    private boolean isIncludingSignatureSum;
+
+    /**
+     * Commits this event, if enabled, after setting its fields.
+     */
+    public void commit(final String type, final int size, final boolean isIncludingSignatureSum) {
+        if (!shouldCommit()) {
+            return;
+        }
+        this.type = type;
+        this.size = size;
+        this.isIncludingSignatureSum = isIncludingSignatureSum;
+        commit();
+    }
+}
@@ -0,0 +1,42 @@
+package se.arkalix.core.cp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("se.arkalix.core.cp.DefinitionAdd")
+@Label("Definition Add")
+@Description("Addition of a definition to the definition bank")
+@Category({"Contract Proxy", "Definitions"})
+@StackTrace(false)
+public final class DefinitionAddEvent extends Event {
+    @Label("Negotiation ID")
+    @Description("Identifier of negotiation definition belongs to")
+    private long negotiationId;
+
+    @Label("Type")
+    @Description("Type of definition")
+    private String type;
+
+    @Label("Size")
+    @Description("Size of definition as canonical JSON")
+    @DataAmount
+    private int size;
+
+    /**
+     * Commits this event, if enabled, after setting its fields.
+     */
+    public void commit(final long negotiationId, final String type, final int size) {
+        if (!shouldCommit()) {
+            return;
+        }
+        this.negotiationId = negotiationId;
+        this.type = type;
+        this.size = size;
+        commit();
+    }
+}
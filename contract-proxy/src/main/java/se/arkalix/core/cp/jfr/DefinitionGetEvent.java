@@ -0,0 +1,35 @@
+package se.arkalix.core.cp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("se.arkalix.core.cp.DefinitionGet")
+@Label("Definition Get")
+@Description("Lookup of a definition in the definition bank by hash")
+@Category({"Contract Proxy", "Definitions"})
+@StackTrace(false)
+public final class DefinitionGetEvent extends Event {
+    @Label("Algorithm")
+    @Description("IANA name of algorithm used to calculate looked up hash")
+    private String algorithm;
+
+    @Label("Found")
+    @Description("Whether the definition was found")
+    private boolean isFound;
+
+    /**
+     * Commits this event, if enabled, after setting its fields.
+     */
+    public void commit(final String algorithm, final boolean isFound) {
+        if (!shouldCommit()) {
+            return;
+        }
+        this.algorithm = algorithm;
+        this.isFound = isFound;
+        commit();
+    }
+}
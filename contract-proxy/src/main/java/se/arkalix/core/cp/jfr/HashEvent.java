@@ -0,0 +1,37 @@
+package se.arkalix.core.cp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("se.arkalix.core.cp.Hash")
+@Label("Hash")
+@Description("Hashing of data")
+@Category({"Contract Proxy", "Security"})
+@StackTrace(false)
+public final class HashEvent extends Event {
+    @Label("Algorithm")
+    @Description("IANA name of hash algorithm")
+    private String algorithm;
+
+    @Label("Size")
+    @Description("Number of hashed bytes")
+    @DataAmount
+    private int size;
+
+    /**
+     * Commits this event, if enabled, after setting its fields.
+     */
+    public void commit(final String algorithm, final int size) {
+        if (!shouldCommit()) {
+            return;
+        }
+        this.algorithm = algorithm;
+        this.size = size;
+        commit();
+    }
+}
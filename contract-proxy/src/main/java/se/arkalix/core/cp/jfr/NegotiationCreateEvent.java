@@ -0,0 +1,50 @@
+package se.arkalix.core.cp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("se.arkalix.core.cp.NegotiationCreate")
+@Label("Negotiation Create")
+@Description("Creation of a negotiation on behalf of an owned party")
+@Category({"Contract Proxy", "Negotiations"})
+@StackTrace(false)
+public final class NegotiationCreateEvent extends Event {
+    @Label("Negotiation ID")
+    @Description("Identifier of created negotiation")
+    private long negotiationId;
+
+    @Label("Owned Party")
+    @Description("Common name of owned party")
+    private String ownedParty;
+
+    @Label("Counter-Party")
+    @Description("Common name of counter-party")
+    private String counterParty;
+
+    @Label("Attempts")
+    @Description("Number of identifiers generated before a unique one was found")
+    private int attempts;
+
+    /**
+     * Commits this event, if enabled, after setting its fields.
+     */
+    public void commit(
+        final long negotiationId,
+        final String ownedParty,
+        final String counterParty,
+        final int attempts)
+    {
+        if (!shouldCommit()) {
+            return;
+        }
+        this.negotiationId = negotiationId;
+        this.ownedParty = ownedParty;
+        this.counterParty = counterParty;
+        this.attempts = attempts;
+        commit();
+    }
+}
@@ -0,0 +1,42 @@
+package se.arkalix.core.cp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("se.arkalix.core.cp.Sign")
+@Label("Sign")
+@Description("Signing of data on behalf of an owned party")
+@Category({"Contract Proxy", "Security"})
+@StackTrace(false)
+public final class SignEvent extends Event {
+    @Label("Party")
+    @Description("Common name of signing party")
+    private String party;
+
+    @Label("Scheme")
+    @Description("IANA name of signature scheme")
+    private String scheme;
+
+    @Label("Size")
+    @Description("Number of signed bytes")
+    @DataAmount
+    private int size;
+
+    /**
+     * Commits this event, if enabled, after setting its fields.
+     */
+    public void commit(final String party, final String scheme, final int size) {
+        if (!shouldCommit()) {
+            return;
+        }
+        this.party = party;
+        this.scheme = scheme;
+        this.size = size;
+        commit();
+    }
+}
@@ -0,0 +1,47 @@
+package se.arkalix.core.cp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("se.arkalix.core.cp.Verify")
+@Label("Verify")
+@Description("Verification of a signature created by a counter-party")
+@Category({"Contract Proxy", "Security"})
+@StackTrace(false)
+public final class VerifyEvent extends Event {
+    @Label("Party")
+    @Description("Common name of party that created signature")
+    private String party;
+
+    @Label("Scheme")
+    @Description("IANA name of signature scheme")
+    private String scheme;
+
+    @Label("Size")
+    @Description("Number of verified bytes")
+    @DataAmount
+    private int size;
+
+    @Label("Valid")
+    @Description("Whether the signature matched the data")
+    private boolean isValid;
+
+    /**
+     * Commits this event, if enabled, after setting its fields.
+     */
+    public void commit(final String party, final String scheme, final int size, final boolean isValid) {
+        if (!shouldCommit()) {
+            return;
+        }
+        this.party = party;
+        this.scheme = scheme;
+        this.size = size;
+        this.isValid = isValid;
+        commit();
+    }
+}
@@ -0,0 +1,160 @@
+package se.arkalix.core.cp.metrics;
+
+import se.arkalix.util.annotation.ThreadSafe;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations, measured in nanoseconds.
+ * <p>
+ * Recorded values are counted in buckets whose widths grow with their
+ * values, such that every power of two is divided into 16 buckets of equal
+ * width. Values below 16 are counted exactly, while larger values are
+ * counted with a relative error of at most 1/16, or 6.25%. This is the same
+ * kind of layout as that of HDR histograms, and means that recording a
+ * value amounts to a few shifts and one atomic increment, regardless of how
+ * many values have been recorded before.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_MASK = SUB_BUCKET_COUNT - 1;
+
+    // Enough buckets for any positive long.
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder sumInNanos = new LongAdder();
+
+    /**
+     * Records one duration.
+     *
+     * @param nanos Duration, in nanoseconds. Negative durations are recorded
+     *              as zero.
+     */
+    @ThreadSafe
+    public void record(final long nanos) {
+        final var nanos0 = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(nanos0));
+        sumInNanos.add(nanos0);
+    }
+
+    /**
+     * Records the time elapsed since {@code startInNanos}.
+     *
+     * @param startInNanos Start time, as returned by {@link System#nanoTime()}.
+     */
+    @ThreadSafe
+    public void recordSince(final long startInNanos) {
+        record(System.nanoTime() - startInNanos);
+    }
+
+    /**
+     * @return Number of recorded durations.
+     */
+    @ThreadSafe
+    public long count() {
+        var count = 0L;
+        for (var i = 0; i < BUCKET_COUNT; ++i) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return Sum of all recorded durations, in nanoseconds.
+     */
+    @ThreadSafe
+    public long sumInNanos() {
+        return sumInNanos.sum();
+    }
+
+    /**
+     * Estimates the duration below which the given fraction of all recorded
+     * durations fall.
+     *
+     * @param quantile Fraction, between 0.0 and 1.0.
+     * @return Upper bound of the bucket containing the quantile, in
+     * nanoseconds, or zero if no durations have been recorded.
+     */
+    @ThreadSafe
+    public long valueAtQuantile(final double quantile) {
+        if (!(quantile >= 0.0 && quantile <= 1.0)) {
+            throw new IllegalArgumentException("Expected 0.0 <= quantile <= 1.0");
+        }
+        final var snapshot = snapshot();
+        var total = 0L;
+        for (final var count : snapshot) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final var target = Math.max(1, (long) Math.ceil(quantile * total));
+        var count = 0L;
+        for (var i = 0; i < BUCKET_COUNT; ++i) {
+            count += snapshot[i];
+            if (count >= target) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Counts recorded durations less than or equal to each of the given
+     * bounds. Durations are attributed to bounds by the upper bounds of
+     * the buckets they were counted in.
+     *
+     * @param boundsInNanos Ascending bounds, in nanoseconds.
+     * @return Cumulative counts, one per bound, followed by the total count.
+     */
+    @ThreadSafe
+    public long[] cumulativeCounts(final long[] boundsInNanos) {
+        final var snapshot = snapshot();
+        final var result = new long[boundsInNanos.length + 1];
+        var b = 0;
+        var count = 0L;
+        for (var i = 0; i < BUCKET_COUNT; ++i) {
+            final var upperBound = upperBoundOf(i);
+            while (b < boundsInNanos.length && upperBound > boundsInNanos[b]) {
+                result[b++] = count;
+            }
+            count += snapshot[i];
+        }
+        while (b < boundsInNanos.length) {
+            result[b++] = count;
+        }
+        result[boundsInNanos.length] = count;
+        return result;
+    }
+
+    private long[] snapshot() {
+        final var snapshot = new long[BUCKET_COUNT];
+        for (var i = 0; i < BUCKET_COUNT; ++i) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    static int indexOf(final long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        final var exponent = 63 - Long.numberOfLeadingZeros(value);
+        final var subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & SUB_BUCKET_MASK;
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long upperBoundOf(final int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final var exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        final var subBucket = index & SUB_BUCKET_MASK;
+        final var shift = exponent - SUB_BUCKET_BITS;
+        final var upperBound = ((long) (SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1;
+        return upperBound < 0 ? Long.MAX_VALUE : upperBound;
+    }
+}
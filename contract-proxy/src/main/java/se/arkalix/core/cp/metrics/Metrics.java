@@ -0,0 +1,54 @@
+package se.arkalix.core.cp.metrics;
+
+/**
+ * The metrics registry of the contract proxy, as well as the histograms
+ * updated on its hottest paths.
+ * <p>
+ * The registry is global, as signing, verifying, hashing and canonicalizing
+ * are performed by objects that are not created by the contract proxy
+ * itself. Hot paths record into histograms held in static fields, which
+ * means that they never have to look them up.
+ */
+public final class Metrics {
+    private Metrics() {}
+
+    public static final MetricsRegistry REGISTRY = new MetricsRegistry();
+
+    public static final Histogram CANONICALIZE_ACCEPTANCE = canonicalizeLatencyOf("acceptance");
+    public static final Histogram CANONICALIZE_OFFER = canonicalizeLatencyOf("offer");
+    public static final Histogram CANONICALIZE_REJECTION = canonicalizeLatencyOf("rejection");
+
+    private static Histogram canonicalizeLatencyOf(final String type) {
+        return REGISTRY.histogram("kalix_cp_canonicalize_seconds",
+            "Time spent writing definitions as canonical JSON", "type", type);
+    }
+
+    /**
+     * @param scheme IANA name of signature scheme.
+     * @return Histogram of the time spent signing data using {@code scheme}.
+     */
+    public static Histogram signLatencyOf(final String scheme) {
+        return REGISTRY.histogram("kalix_cp_sign_seconds",
+            "Time spent signing data", "scheme", scheme);
+    }
+
+    /**
+     * @param scheme IANA name of signature scheme.
+     * @return Histogram of the time spent verifying signatures created with
+     * {@code scheme}.
+     */
+    public static Histogram verifyLatencyOf(final String scheme) {
+        return REGISTRY.histogram("kalix_cp_verify_seconds",
+            "Time spent verifying signatures", "scheme", scheme);
+    }
+
+    /**
+     * @param algorithm IANA name of hash algorithm.
+     * @return Histogram of the time spent hashing data using {@code
+     * algorithm}.
+     */
+    public static Histogram hashLatencyOf(final String algorithm) {
+        return REGISTRY.histogram("kalix_cp_hash_seconds",
+            "Time spent hashing data", "algorithm", algorithm);
+    }
+}
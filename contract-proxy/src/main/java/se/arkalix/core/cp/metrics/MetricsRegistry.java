@@ -0,0 +1,243 @@
+package se.arkalix.core.cp.metrics;
+
+import se.arkalix.util.annotation.ThreadSafe;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * A set of named metrics, which can be written in the Prometheus text
+ * exposition format.
+ * <p>
+ * Histograms are created when first requested, and are then returned every
+ * time they are requested again with the same name and labels. Gauges and
+ * counters are represented by functions, which are only called when the
+ * registry is written. Counters that are already maintained by the objects
+ * they concern, such as the hit count of a cache, can consequently be
+ * exposed without any additional cost.
+ */
+public class MetricsRegistry {
+    // Upper bounds of the buckets written for every histogram, in
+    // nanoseconds.
+    private static final long[] BUCKET_BOUNDS_IN_NANOS = {
+        1_000L, 2_500L, 5_000L,
+        10_000L, 25_000L, 50_000L,
+        100_000L, 250_000L, 500_000L,
+        1_000_000L, 2_500_000L, 5_000_000L,
+        10_000_000L, 25_000_000L, 50_000_000L,
+        100_000_000L, 250_000_000L, 500_000_000L,
+        1_000_000_000L, 2_500_000_000L, 5_000_000_000L,
+        10_000_000_000L};
+
+    private final Map<String, Family> nameToFamily = new ConcurrentSkipListMap<>();
+
+    /**
+     * Gets histogram with given name and labels, creating it if necessary.
+     *
+     * @param name   Metric name, which should end with {@code _seconds}.
+     * @param help   Metric description.
+     * @param labels Alternating label names and values.
+     * @return Histogram.
+     */
+    @ThreadSafe
+    public Histogram histogram(final String name, final String help, final String... labels) {
+        return (Histogram) familyOf(name, help, Type.HISTOGRAM).series
+            .computeIfAbsent(labelsOf(labels), ignored -> new Histogram());
+    }
+
+    /**
+     * Registers function providing the current value of a gauge, replacing
+     * any function already registered with the same name and labels.
+     *
+     * @param name     Metric name.
+     * @param help     Metric description.
+     * @param supplier Function providing current value.
+     * @param labels   Alternating label names and values.
+     */
+    @ThreadSafe
+    public void gauge(final String name, final String help, final LongSupplier supplier, final String... labels) {
+        Objects.requireNonNull(supplier, "Expected supplier");
+        familyOf(name, help, Type.GAUGE).series.put(labelsOf(labels), supplier);
+    }
+
+    /**
+     * Registers function providing the current value of a counter, which
+     * must never decrease, replacing any function already registered with
+     * the same name and labels.
+     *
+     * @param name     Metric name, which should end with {@code _total}.
+     * @param help     Metric description.
+     * @param supplier Function providing current value.
+     * @param labels   Alternating label names and values.
+     */
+    @ThreadSafe
+    public void counter(final String name, final String help, final LongSupplier supplier, final String... labels) {
+        Objects.requireNonNull(supplier, "Expected supplier");
+        familyOf(name, help, Type.COUNTER).series.put(labelsOf(labels), supplier);
+    }
+
+    /**
+     * Writes all metrics in this registry to {@code builder} in the
+     * Prometheus text exposition format, version 0.0.4.
+     *
+     * @param builder Builder to write to.
+     * @return {@code builder}.
+     */
+    @ThreadSafe
+    public StringBuilder writePrometheus(final StringBuilder builder) {
+        for (final var entry : nameToFamily.entrySet()) {
+            final var name = entry.getKey();
+            final var family = entry.getValue();
+            if (family.series.isEmpty()) {
+                continue;
+            }
+            builder.append("# HELP ").append(name).append(' ');
+            writeEscaped(builder, family.help, false);
+            builder.append("\n# TYPE ").append(name).append(' ').append(family.type.text).append('\n');
+
+            for (final var series : family.series.entrySet()) {
+                final var labels = series.getKey();
+                final var metric = series.getValue();
+                if (family.type == Type.HISTOGRAM) {
+                    writeHistogram(builder, name, labels, (Histogram) metric);
+                }
+                else {
+                    long value;
+                    try {
+                        value = ((LongSupplier) metric).getAsLong();
+                    }
+                    catch (final RuntimeException exception) {
+                        continue;
+                    }
+                    builder.append(name);
+                    if (!labels.isEmpty()) {
+                        builder.append('{').append(labels).append('}');
+                    }
+                    builder.append(' ').append(value).append('\n');
+                }
+            }
+        }
+        return builder;
+    }
+
+    private static void writeHistogram(
+        final StringBuilder builder,
+        final String name,
+        final String labels,
+        final Histogram histogram)
+    {
+        final var separator = labels.isEmpty() ? "" : labels + ",";
+        final var counts = histogram.cumulativeCounts(BUCKET_BOUNDS_IN_NANOS);
+        for (var i = 0; i < BUCKET_BOUNDS_IN_NANOS.length; ++i) {
+            builder.append(name).append("_bucket{").append(separator).append("le=\"");
+            writeSeconds(builder, BUCKET_BOUNDS_IN_NANOS[i]);
+            builder.append("\"} ").append(counts[i]).append('\n');
+        }
+        final var count = counts[BUCKET_BOUNDS_IN_NANOS.length];
+        builder.append(name).append("_bucket{").append(separator).append("le=\"+Inf\"} ")
+            .append(count).append('\n');
+
+        builder.append(name).append("_sum");
+        if (!labels.isEmpty()) {
+            builder.append('{').append(labels).append('}');
+        }
+        builder.append(' ');
+        writeSeconds(builder, histogram.sumInNanos());
+        builder.append('\n');
+
+        builder.append(name).append("_count");
+        if (!labels.isEmpty()) {
+            builder.append('{').append(labels).append('}');
+        }
+        builder.append(' ').append(count).append('\n');
+    }
+
+    private static void writeSeconds(final StringBuilder builder, final long nanos) {
+        builder.append(nanos / 1_000_000_000L);
+        final var fraction = nanos % 1_000_000_000L;
+        if (fraction != 0) {
+            final var digits = Long.toString(1_000_000_000L + fraction);
+            var end = digits.length();
+            while (digits.charAt(end - 1) == '0') {
+                end -= 1;
+            }
+            builder.append('.').append(digits, 1, end);
+        }
+    }
+
+    private Family familyOf(final String name, final String help, final Type type) {
+        Objects.requireNonNull(name, "Expected name");
+        Objects.requireNonNull(help, "Expected help");
+        final var family = nameToFamily.computeIfAbsent(name, ignored -> new Family(help, type));
+        if (family.type != type) {
+            throw new IllegalArgumentException("Metric \"" + name + "\" " +
+                "is a " + family.type.text + ", not a " + type.text);
+        }
+        return family;
+    }
+
+    private static String labelsOf(final String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Expected labels to be " +
+                "alternating names and values");
+        }
+        if (labels.length == 0) {
+            return "";
+        }
+        final var builder = new StringBuilder();
+        for (var i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(labels[i]).append("=\"");
+            writeEscaped(builder, labels[i + 1], true);
+            builder.append('"');
+        }
+        return builder.toString();
+    }
+
+    private static void writeEscaped(final StringBuilder builder, final String string, final boolean isLabelValue) {
+        for (var i = 0; i < string.length(); ++i) {
+            final var c = string.charAt(i);
+            switch (c) {
+            case '\\':
+                builder.append("\\\\");
+                break;
+            case '\n':
+                builder.append("\\n");
+                break;
+            case '"':
+                builder.append(isLabelValue ? "\\\"" : "\"");
+                break;
+            default:
+                builder.append(c);
+            }
+        }
+    }
+
+    private enum Type {
+        COUNTER("counter"),
+        GAUGE("gauge"),
+        HISTOGRAM("histogram");
+
+        private final String text;
+
+        Type(final String text) {
+            this.text = text;
+        }
+    }
+
+    private static class Family {
+        private final String help;
+        private final Type type;
+        private final Map<String, Object> series = new ConcurrentHashMap<>();
+
+        private Family(final String help, final Type type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
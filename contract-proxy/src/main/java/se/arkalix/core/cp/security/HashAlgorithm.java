@@ -1,7 +1,12 @@
 package se.arkalix.core.cp.security;
 
+import se.arkalix.core.cp.jfr.HashEvent;
+import se.arkalix.core.cp.metrics.Histogram;
+import se.arkalix.core.cp.metrics.Metrics;
+
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
 
@@ -13,18 +18,18 @@ public final class HashAlgorithm {
     private final String ianaId;
     private final String javaId;
     private final boolean isCollisionSafe;
-    private MessageDigest digest;
-
-    private HashAlgorithm(
-        final String ianaId,
-        final String javaId,
-        final boolean isCollisionSafe,
-        final MessageDigest digest)
-    {
+
+    // MessageDigest instances are not thread-safe, which is why each thread
+    // is given its own.
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<>();
+
+    private final Histogram hashLatency;
+
+    private HashAlgorithm(final String ianaId, final String javaId, final boolean isCollisionSafe) {
         this.ianaId = ianaId;
         this.javaId = javaId;
         this.isCollisionSafe = isCollisionSafe;
-        this.digest = digest;
+        hashLatency = Metrics.hashLatencyOf(ianaId);
     }
 
     /**
@@ -37,7 +42,7 @@ public final class HashAlgorithm {
      * @see <a href="https://tools.ietf.org/html/rfc1319">RFC 1319</a>
      * @see <a href="https://tools.ietf.org/html/rfc6149">RFC 6149</a>
      */
-    public static final HashAlgorithm MD2 = new HashAlgorithm("md2", "MD2", false, null);
+    public static final HashAlgorithm MD2 = new HashAlgorithm("md2", "MD2", false);
 
     /**
      * The MD5 message-digest algorithm. <i>Not recommended.</i>
@@ -50,7 +55,7 @@ public final class HashAlgorithm {
      * @see <a href="https://tools.ietf.org/html/rfc1321">RFC 1321</a>
      * @see <a href="https://tools.ietf.org/html/rfc6151">RFC 6151</a>
      */
-    public static final HashAlgorithm MD5 = new HashAlgorithm("md5", "MD5", false, null);
+    public static final HashAlgorithm MD5 = new HashAlgorithm("md5", "MD5", false);
 
     /**
      * The US Secure Hash Algorithm 1 (SHA-1). <i>Not recommended.</i>
@@ -63,35 +68,35 @@ public final class HashAlgorithm {
      * @see <a href="https://tools.ietf.org/html/rfc6234">RFC 6234</a>
      * @see <a href="https://shattered.io/static/shattered.pdf"> Marc Stevens et al. "The first collision for full SHA-1". Google Research, 2017</a>
      */
-    public static final HashAlgorithm SHA_1 = new HashAlgorithm("sha-1", "SHA-1", false, null);
+    public static final HashAlgorithm SHA_1 = new HashAlgorithm("sha-1", "SHA-1", false);
 
     /**
      * 224-bit SHA-2.
      *
      * @see <a href="https://tools.ietf.org/html/rfc6234">RFC 6234</a>
      */
-    public static final HashAlgorithm SHA_224 = new HashAlgorithm("sha-224", "SHA-224", true, null);
+    public static final HashAlgorithm SHA_224 = new HashAlgorithm("sha-224", "SHA-224", true);
 
     /**
      * 256-bit SHA-2.
      *
      * @see <a href="https://tools.ietf.org/html/rfc6234">RFC 6234</a>
      */
-    public static final HashAlgorithm SHA_256 = new HashAlgorithm("sha-256", "SHA-256", true, null);
+    public static final HashAlgorithm SHA_256 = new HashAlgorithm("sha-256", "SHA-256", true);
 
     /**
      * 384-bit SHA-2.
      *
      * @see <a href="https://tools.ietf.org/html/rfc6234">RFC 6234</a>
      */
-    public static final HashAlgorithm SHA_384 = new HashAlgorithm("sha-384", "SHA-384", true, null);
+    public static final HashAlgorithm SHA_384 = new HashAlgorithm("sha-384", "SHA-384", true);
 
     /**
      * 512-bit SHA-2.
      *
      * @see <a href="https://tools.ietf.org/html/rfc6234">RFC 6234</a>
      */
-    public static final HashAlgorithm SHA_512 = new HashAlgorithm("sha-512", "SHA-512", true, null);
+    public static final HashAlgorithm SHA_512 = new HashAlgorithm("sha-512", "SHA-512", true);
 
     /**
      * All supported hash algorithms, irrespective of whether or not they are
@@ -114,17 +119,44 @@ public final class HashAlgorithm {
      * @return New hash object.
      */
     public Hash hash(final byte[] data) {
-        synchronized (this) {
-            if (digest == null) {
-                try {
-                    digest = MessageDigest.getInstance(javaId);
-                }
-                catch (final NoSuchAlgorithmException exception) {
-                    throw new HashAlgorithmUnsupportedException(ianaId, exception);
-                }
+        final var event = new HashEvent();
+        event.begin();
+        final var start = System.nanoTime();
+        var digest = digests.get();
+        if (digest == null) {
+            try {
+                digest = MessageDigest.getInstance(javaId);
+            }
+            catch (final NoSuchAlgorithmException exception) {
+                throw new HashAlgorithmUnsupportedException(ianaId, exception);
             }
+            digests.set(digest);
         }
-        return new Hash(this, digest.digest(data));
+        final var hash = new Hash(this, digest.digest(data));
+        hashLatency.recordSince(start);
+        event.commit(ianaId, data.length);
+        return hash;
+    }
+
+    /**
+     * Determines which out of the given algorithms to prefer when only one
+     * of them is to be used, which is the first collision-safe algorithm in
+     * {@link #ALL}, if any, or the first algorithm in {@link #ALL} otherwise.
+     *
+     * @param hashAlgorithms Algorithms to choose from.
+     * @return Preferred algorithm.
+     * @throws IllegalArgumentException If {@code hashAlgorithms} is empty.
+     */
+    public static HashAlgorithm preferredOf(final Collection<HashAlgorithm> hashAlgorithms) {
+        Objects.requireNonNull(hashAlgorithms, "Expected hashAlgorithms");
+        return ALL.stream()
+            .filter(hashAlgorithms::contains)
+            .filter(HashAlgorithm::isCollisionSafe)
+            .findFirst()
+            .or(() -> ALL.stream()
+                .filter(hashAlgorithms::contains)
+                .findFirst())
+            .orElseThrow(() -> new IllegalArgumentException("Expected hashAlgorithms.size() > 0"));
     }
 
     /**
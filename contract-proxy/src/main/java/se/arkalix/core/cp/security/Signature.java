@@ -28,11 +28,11 @@ public class Signature {
         return sum;
     }
 
-    public boolean verify(final PublicKey publicKey, final byte[] data) {
-        return scheme.verify(publicKey, sum, data);
+    public boolean verify(final String party, final PublicKey publicKey, final byte[] data) {
+        return scheme.verify(party, publicKey, sum, data);
     }
 
-    public boolean verify(final Certificate certificate, final byte[] data) {
-        return verify(certificate.getPublicKey(), data);
+    public boolean verify(final String party, final Certificate certificate, final byte[] data) {
+        return verify(party, certificate.getPublicKey(), data);
     }
 }
@@ -45,12 +45,12 @@ public interface SignatureBase64 {
         return new Signature(timestamp(), scheme(), sumToBytes());
     }
 
-    default boolean verify(final Certificate certificate, final byte[] data) {
-        return verify(certificate.getPublicKey(), data);
+    default boolean verify(final String party, final Certificate certificate, final byte[] data) {
+        return verify(party, certificate.getPublicKey(), data);
     }
 
-    default boolean verify(final PublicKey publicKey, final byte[] data) {
-        return toSignature().verify(publicKey, data);
+    default boolean verify(final String party, final PublicKey publicKey, final byte[] data) {
+        return toSignature().verify(party, publicKey, data);
     }
 
     default void writeCanonicalJson(final StringBuilder builder, final boolean includeSum) {
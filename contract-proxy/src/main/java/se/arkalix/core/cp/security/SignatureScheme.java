@@ -1,5 +1,10 @@
 package se.arkalix.core.cp.security;
 
+import se.arkalix.core.cp.jfr.SignEvent;
+import se.arkalix.core.cp.jfr.VerifyEvent;
+import se.arkalix.core.cp.metrics.Histogram;
+import se.arkalix.core.cp.metrics.Metrics;
+
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
@@ -12,6 +17,8 @@ public final class SignatureScheme {
     private final String javaId;
     private final String keyAlgorithmName;
     private final HashAlgorithm hashAlgorithm;
+    private final Histogram signLatency;
+    private final Histogram verifyLatency;
 
     private SignatureScheme(
         final String ianaId,
@@ -23,6 +30,8 @@ public final class SignatureScheme {
         this.javaId = javaId;
         this.keyAlgorithmName = keyAlgorithmName;
         this.hashAlgorithm = hashAlgorithm;
+        signLatency = Metrics.signLatencyOf(ianaId);
+        verifyLatency = Metrics.verifyLatencyOf(ianaId);
     }
 
     public static final SignatureScheme ECDSA_SHA1 = new SignatureScheme(
@@ -52,7 +61,15 @@ public final class SignatureScheme {
         RSA_PKCS1_SHA384,
         RSA_PKCS1_SHA512);
 
-    public Signature sign(final PrivateKey privateKey, final Instant timestamp, final byte[] data) {
+    public Signature sign(
+        final String party,
+        final PrivateKey privateKey,
+        final Instant timestamp,
+        final byte[] data)
+    {
+        final var event = new SignEvent();
+        event.begin();
+        final var start = System.nanoTime();
         final java.security.Signature signer;
         try {
             signer = java.security.Signature.getInstance(javaId);
@@ -68,9 +85,22 @@ public final class SignatureScheme {
         catch (final Exception exception) {
             throw new RuntimeException(exception);
         }
+        finally {
+            signLatency.recordSince(start);
+            event.commit(party, ianaId, data.length);
+        }
     }
 
-    boolean verify(final PublicKey publicKey, final byte[] signature, final byte[] data) {
+    boolean verify(
+        final String party,
+        final PublicKey publicKey,
+        final byte[] signature,
+        final byte[] data)
+    {
+        final var event = new VerifyEvent();
+        event.begin();
+        final var start = System.nanoTime();
+        var isValid = false;
         final java.security.Signature verifier;
         try {
             verifier = java.security.Signature.getInstance(javaId);
@@ -81,11 +111,16 @@ public final class SignatureScheme {
         try {
             verifier.initVerify(publicKey);
             verifier.update(data);
-            return verifier.verify(signature);
+            isValid = verifier.verify(signature);
+            return isValid;
         }
         catch (final Exception exception) {
             throw new RuntimeException(exception);
         }
+        finally {
+            verifyLatency.recordSince(start);
+            event.commit(party, ianaId, data.length, isValid);
+        }
     }
 
     public String keyAlgorithmName() {
@@ -0,0 +1,129 @@
+package se.arkalix.core.cp.trace;
+
+import se.arkalix.util.annotation.ThreadSafe;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The stages a negotiation has spent time in, in the order they ended.
+ * <p>
+ * If more spans are recorded than the timeline can hold, the oldest spans
+ * are kept, as they describe how the negotiation got started.
+ */
+public class NegotiationTimeline {
+    private final long negotiationId;
+    private final String traceId;
+    private final int capacity;
+    private final List<Span> spans = new ArrayList<>();
+    private long droppedCount = 0;
+
+    NegotiationTimeline(final long negotiationId, final String traceId, final int capacity) {
+        this.negotiationId = negotiationId;
+        this.traceId = Objects.requireNonNull(traceId, "Expected traceId");
+        this.capacity = capacity;
+    }
+
+    public long negotiationId() {
+        return negotiationId;
+    }
+
+    public String traceId() {
+        return traceId;
+    }
+
+    /**
+     * @return Copy of the spans of this timeline.
+     */
+    @ThreadSafe
+    public synchronized List<Span> spans() {
+        return List.copyOf(spans);
+    }
+
+    /**
+     * @return Number of spans not kept due to this timeline being full.
+     */
+    @ThreadSafe
+    public synchronized long droppedCount() {
+        return droppedCount;
+    }
+
+    synchronized void add(final String stage, final long durationInNanos) {
+        final var duration = Duration.ofNanos(Math.max(0, durationInNanos));
+        add(new Span(stage, Instant.now().minus(duration), duration));
+    }
+
+    synchronized void add(final Span span) {
+        if (spans.size() >= capacity) {
+            droppedCount += 1;
+            return;
+        }
+        spans.add(span);
+    }
+
+    /**
+     * Writes this timeline as JSON to {@code builder}.
+     *
+     * @param builder Builder to write to.
+     * @return {@code builder}.
+     */
+    @ThreadSafe
+    public synchronized StringBuilder writeJson(final StringBuilder builder) {
+        builder
+            .append("{\"negotiationId\":").append(negotiationId)
+            .append(",\"traceId\":\"").append(traceId)
+            .append("\",\"droppedSpans\":").append(droppedCount)
+            .append(",\"spans\":[");
+        for (var i = 0; i < spans.size(); ++i) {
+            if (i != 0) {
+                builder.append(',');
+            }
+            final var span = spans.get(i);
+            builder
+                .append("{\"stage\":\"").append(span.stage())
+                .append("\",\"startedAt\":\"").append(span.startedAt())
+                .append("\",\"durationNanos\":").append(span.duration().toNanos())
+                .append('}');
+        }
+        return builder.append("]}");
+    }
+
+    /**
+     * Time spent in one stage of handling a negotiation message.
+     */
+    public static class Span {
+        private final String stage;
+        private final Instant startedAt;
+        private final Duration duration;
+
+        Span(final String stage, final Instant startedAt, final Duration duration) {
+            this.stage = Objects.requireNonNull(stage, "Expected stage");
+            this.startedAt = Objects.requireNonNull(startedAt, "Expected startedAt");
+            this.duration = Objects.requireNonNull(duration, "Expected duration");
+        }
+
+        public String stage() {
+            return stage;
+        }
+
+        public Instant startedAt() {
+            return startedAt;
+        }
+
+        public Duration duration() {
+            return duration;
+        }
+
+        @Override
+        public String toString() {
+            return "Span{" +
+                "stage='" + stage + '\'' +
+                ", startedAt=" + startedAt +
+                ", duration=" + duration +
+                '}';
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package se.arkalix.core.cp.trace;
+
+import se.arkalix.util.annotation.ThreadSafe;
+
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Keeps track of the time spent in each stage of handling the messages of
+ * recently updated negotiations, such as decoding, verifying, storing,
+ * resolving references and relaying them.
+ * <p>
+ * Each negotiation is given a trace identifier when first seen, unless it
+ * adopts the identifier of a counter-party proxy that sent one along with
+ * its first message. As anyone could send such a message, the identifier
+ * and the spans recorded before the message is verified are kept in {@link
+ * PendingSpans} until its signature has been verified. Trace identifiers
+ * are sent along with every message relayed to counter-parties, which means
+ * that the timelines of both proxies taking part in a negotiation can be
+ * correlated.
+ * <p>
+ * Only the timelines of the most recently traced negotiations are kept, and
+ * each timeline only keeps a limited number of spans. Recording a span
+ * requires a lock to be taken, but no other work than adding the span to a
+ * list.
+ */
+public class NegotiationTimelines {
+    /**
+     * Name of HTTP header used to propagate trace identifiers.
+     */
+    public static final String TRACE_ID_HEADER = "trace-id";
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int DEFAULT_SPANS_PER_TIMELINE = 256;
+
+    /**
+     * Negotiation timelines that never records anything.
+     */
+    public static final NegotiationTimelines DISABLED = new NegotiationTimelines(0, 0);
+
+    private static final int MAX_TRACE_ID_LENGTH = 32;
+
+    private final SecureRandom random = new SecureRandom();
+    private final Map<Long, NegotiationTimeline> negotiationIdToTimeline;
+    private final int spansPerTimeline;
+
+    /**
+     * @param capacity         Number of negotiations to keep timelines of, or
+     *                         zero if tracing is disabled.
+     * @param spansPerTimeline Number of spans kept per negotiation.
+     */
+    public NegotiationTimelines(final int capacity, final int spansPerTimeline) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Expected capacity >= 0");
+        }
+        if (capacity > 0 && spansPerTimeline <= 0) {
+            throw new IllegalArgumentException("Expected spansPerTimeline > 0");
+        }
+        this.spansPerTimeline = spansPerTimeline;
+        negotiationIdToTimeline = capacity > 0
+            ? new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<Long, NegotiationTimeline> eldest) {
+                    return size() > capacity;
+                }
+            }
+            : null;
+    }
+
+    /**
+     * @return {@code true} only if these timelines record anything.
+     */
+    public boolean isEnabled() {
+        return negotiationIdToTimeline != null;
+    }
+
+    /**
+     * Makes the identified negotiation use {@code traceId}, unless it is
+     * already being traced or {@code traceId} is not a hexadecimal string of
+     * at most 32 digits.
+     *
+     * @param negotiationId Negotiation identifier.
+     * @param traceId       Trace identifier received from counter-party, if
+     *                      any.
+     */
+    @ThreadSafe
+    public void adopt(final long negotiationId, final String traceId) {
+        if (negotiationIdToTimeline == null || !isValid(traceId)) {
+            return;
+        }
+        synchronized (negotiationIdToTimeline) {
+            negotiationIdToTimeline.computeIfAbsent(negotiationId, ignored ->
+                new NegotiationTimeline(negotiationId, traceId, spansPerTimeline));
+        }
+    }
+
+    /**
+     * Creates spans to be recorded while handling a message received from a
+     * counter-party, which are only added to the timeline of its negotiation
+     * when and if the message turns out to be authentic.
+     *
+     * @param traceId Trace identifier received along with message, if any.
+     * @return New pending spans.
+     */
+    public PendingSpans pending(final String traceId) {
+        return new PendingSpans(negotiationIdToTimeline != null ? this : null, traceId);
+    }
+
+    /**
+     * Gets trace identifier of identified negotiation, which is generated if
+     * the negotiation is not already being traced.
+     *
+     * @param negotiationId Negotiation identifier.
+     * @return Trace identifier, or {@code null} if tracing is disabled.
+     */
+    @ThreadSafe
+    public String traceIdOf(final long negotiationId) {
+        final var timeline = timelineOf(negotiationId);
+        return timeline != null ? timeline.traceId() : null;
+    }
+
+    /**
+     * Records that the identified negotiation spent the time from {@code
+     * startInNanos} until now in the given stage.
+     *
+     * @param negotiationId Negotiation identifier.
+     * @param stage         Name of stage.
+     * @param startInNanos  Start time, as returned by {@link System#nanoTime()}.
+     */
+    @ThreadSafe
+    public void record(final long negotiationId, final String stage, final long startInNanos) {
+        if (negotiationIdToTimeline == null) {
+            return;
+        }
+        final var durationInNanos = System.nanoTime() - startInNanos;
+        timelineOf(negotiationId).add(stage, durationInNanos);
+    }
+
+    /**
+     * @param negotiationId Negotiation identifier.
+     * @return Timeline of identified negotiation, if it is being traced.
+     */
+    @ThreadSafe
+    public Optional<NegotiationTimeline> get(final long negotiationId) {
+        if (negotiationIdToTimeline == null) {
+            return Optional.empty();
+        }
+        synchronized (negotiationIdToTimeline) {
+            return Optional.ofNullable(negotiationIdToTimeline.get(negotiationId));
+        }
+    }
+
+    void record(final long negotiationId, final List<NegotiationTimeline.Span> spans) {
+        final var timeline = timelineOf(negotiationId);
+        for (final var span : spans) {
+            timeline.add(span);
+        }
+    }
+
+    private NegotiationTimeline timelineOf(final long negotiationId) {
+        if (negotiationIdToTimeline == null) {
+            return null;
+        }
+        synchronized (negotiationIdToTimeline) {
+            return negotiationIdToTimeline.computeIfAbsent(negotiationId, ignored ->
+                new NegotiationTimeline(negotiationId, newTraceId(), spansPerTimeline));
+        }
+    }
+
+    private String newTraceId() {
+        final var high = random.nextLong();
+        final var low = random.nextLong();
+        return String.format("%016x%016x", high, low);
+    }
+
+    private static boolean isValid(final String traceId) {
+        if (traceId == null || traceId.isEmpty() || traceId.length() > MAX_TRACE_ID_LENGTH) {
+            return false;
+        }
+        for (var i = 0; i < traceId.length(); ++i) {
+            final var c = traceId.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,66 @@
+package se.arkalix.core.cp.trace;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Spans recorded while handling a message received from a counter-party,
+ * before it is known whether the message is authentic.
+ * <p>
+ * The spans, as well as any trace identifier received along with the
+ * message, are only added to the timeline of the negotiation of the message
+ * when {@link #commit(long)} is called, which must not happen before the
+ * signature of the message has been verified. Otherwise, any sender could
+ * pollute the timeline of any negotiation, or make it adopt an arbitrary
+ * trace identifier.
+ */
+public class PendingSpans {
+    /**
+     * Pending spans that are never recorded anywhere.
+     */
+    public static final PendingSpans DISABLED = new PendingSpans(null, null);
+
+    private final NegotiationTimelines timelines;
+    private final String traceId;
+    private final List<NegotiationTimeline.Span> spans;
+
+    PendingSpans(final NegotiationTimelines timelines, final String traceId) {
+        this.timelines = timelines;
+        this.traceId = traceId;
+        spans = timelines != null ? new ArrayList<>(2) : null;
+    }
+
+    /**
+     * Records that the message spent the time from {@code startInNanos}
+     * until now in the given stage.
+     *
+     * @param stage        Name of stage.
+     * @param startInNanos Start time, as returned by {@link System#nanoTime()}.
+     */
+    public synchronized void record(final String stage, final long startInNanos) {
+        if (spans == null) {
+            return;
+        }
+        final var duration = Duration.ofNanos(Math.max(0, System.nanoTime() - startInNanos));
+        spans.add(new NegotiationTimeline.Span(stage, Instant.now().minus(duration), duration));
+    }
+
+    /**
+     * Makes the identified negotiation adopt the received trace identifier,
+     * unless it is already being traced, and adds all spans recorded so far
+     * to its timeline. Must only be called after the message has been
+     * verified.
+     *
+     * @param negotiationId Identifier of negotiation of verified message.
+     */
+    public synchronized void commit(final long negotiationId) {
+        if (spans == null) {
+            return;
+        }
+        timelines.adopt(negotiationId, traceId);
+        timelines.record(negotiationId, spans);
+        spans.clear();
+    }
+}
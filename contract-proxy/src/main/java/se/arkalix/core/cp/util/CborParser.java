@@ -0,0 +1,242 @@
+package se.arkalix.core.cp.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Parses CBOR, as described in RFC 8949, into the same kind of trees as
+ * those produced by {@link JsonParser}, with the addition that CBOR byte
+ * strings are represented by byte arrays.
+ * <p>
+ * Map keys must be text strings. Tags are skipped, meaning that the tagged
+ * data items are returned as if they were not tagged. Unsigned integers
+ * larger than {@link Long#MAX_VALUE} are rejected.
+ */
+public class CborParser {
+    private static final int MAX_DEPTH = 64;
+
+    private final byte[] source;
+    private int offset = 0;
+    private int depth = 0;
+
+    private CborParser(final byte[] source) {
+        this.source = source;
+    }
+
+    /**
+     * Parses given CBOR data item.
+     *
+     * @param cbor CBOR to parse.
+     * @return Parsed tree.
+     * @throws IllegalArgumentException If {@code cbor} is not a single
+     *                                  valid CBOR data item.
+     */
+    public static Object parse(final byte[] cbor) {
+        final var parser = new CborParser(cbor);
+        final var value = parser.readItem();
+        if (parser.offset != cbor.length) {
+            throw parser.error("Unexpected trailing data");
+        }
+        return value;
+    }
+
+    private Object readItem() {
+        var initial = readByte();
+        while (initial >>> 5 == 6) {
+            readArgument(initial & 0x1F);
+            initial = readByte();
+        }
+        final var majorType = initial >>> 5;
+        final var info = initial & 0x1F;
+
+        if (majorType == 7) {
+            return readSimpleOrFloat(info);
+        }
+        if (info == 31) {
+            return readIndefinite(majorType);
+        }
+
+        final var argument = readArgument(info);
+        switch (majorType) {
+        case 0:
+            return argument;
+        case 1:
+            return -1 - argument;
+        case 2:
+            return readBytes(argument);
+        case 3:
+            return new String(readBytes(argument), StandardCharsets.UTF_8);
+        case 4:
+            enter();
+            final var array = new ArrayList<>((int) Math.min(argument, remaining()));
+            for (var i = 0L; i < argument; ++i) {
+                array.add(readItem());
+            }
+            depth -= 1;
+            return array;
+        case 5:
+            enter();
+            final var map = new LinkedHashMap<String, Object>();
+            for (var i = 0L; i < argument; ++i) {
+                map.put(readKey(), readItem());
+            }
+            depth -= 1;
+            return map;
+        default:
+            throw error("Unexpected major type " + majorType);
+        }
+    }
+
+    private Object readIndefinite(final int majorType) {
+        switch (majorType) {
+        case 2:
+        case 3: {
+            final var buffer = new ByteArrayOutputStream();
+            while (peekByte() != 0xFF) {
+                buffer.writeBytes(readChunk(majorType));
+            }
+            offset += 1;
+            return majorType == 2
+                ? buffer.toByteArray()
+                : new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+        }
+        case 4: {
+            enter();
+            final var array = new ArrayList<>();
+            while (peekByte() != 0xFF) {
+                array.add(readItem());
+            }
+            offset += 1;
+            depth -= 1;
+            return array;
+        }
+        case 5: {
+            enter();
+            final var map = new LinkedHashMap<String, Object>();
+            while (peekByte() != 0xFF) {
+                map.put(readKey(), readItem());
+            }
+            offset += 1;
+            depth -= 1;
+            return map;
+        }
+        default:
+            throw error("Indefinite length not allowed for major type " + majorType);
+        }
+    }
+
+    // Chunks of indefinite length strings must be definite length strings of
+    // the same major type, as required by RFC 8949, Section 3.2.3. They are
+    // read without recursing, as nested indefinite strings are not allowed.
+    private byte[] readChunk(final int majorType) {
+        final var initial = readByte();
+        final var info = initial & 0x1F;
+        if (initial >>> 5 != majorType || info == 31) {
+            throw error("Invalid chunk in indefinite length string");
+        }
+        return readBytes(readArgument(info));
+    }
+
+    private String readKey() {
+        final var key = readItem();
+        if (!(key instanceof String)) {
+            throw error("Expected map key to be a text string");
+        }
+        return (String) key;
+    }
+
+    private Object readSimpleOrFloat(final int info) {
+        switch (info) {
+        case 20: return Boolean.FALSE;
+        case 21: return Boolean.TRUE;
+        case 22:
+        case 23: return null;
+        case 25: {
+            final var half = (int) readRaw(2);
+            final var exponent = (half >>> 10) & 0x1F;
+            final var mantissa = half & 0x3FF;
+            final double value = exponent == 0
+                ? mantissa * Math.pow(2, -24)
+                : exponent == 31
+                ? (mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN)
+                : (mantissa + 1024) * Math.pow(2, exponent - 25);
+            return (half & 0x8000) != 0 ? -value : value;
+        }
+        case 26: return (double) Float.intBitsToFloat((int) readRaw(4));
+        case 27: return Double.longBitsToDouble(readRaw(8));
+        default:
+            throw error("Unsupported simple value " + info);
+        }
+    }
+
+    private long readArgument(final int info) {
+        if (info < 24) {
+            return info;
+        }
+        final int length;
+        switch (info) {
+        case 24: length = 1; break;
+        case 25: length = 2; break;
+        case 26: length = 4; break;
+        case 27: length = 8; break;
+        default:
+            throw error("Invalid additional information " + info);
+        }
+        final var value = readRaw(length);
+        if (value < 0) {
+            throw error("Integer too large");
+        }
+        return value;
+    }
+
+    private long readRaw(final int length) {
+        if (remaining() < length) {
+            throw error("Unexpected end of CBOR");
+        }
+        var value = 0L;
+        for (var i = 0; i < length; ++i) {
+            value = (value << 8) | (source[offset++] & 0xFF);
+        }
+        return value;
+    }
+
+    private byte[] readBytes(final long length) {
+        if (length > remaining()) {
+            throw error("Unexpected end of CBOR");
+        }
+        final var bytes = new byte[(int) length];
+        System.arraycopy(source, offset, bytes, 0, bytes.length);
+        offset += bytes.length;
+        return bytes;
+    }
+
+    private int readByte() {
+        if (offset >= source.length) {
+            throw error("Unexpected end of CBOR");
+        }
+        return source[offset++] & 0xFF;
+    }
+
+    private int peekByte() {
+        if (offset >= source.length) {
+            throw error("Unexpected end of CBOR");
+        }
+        return source[offset] & 0xFF;
+    }
+
+    private int remaining() {
+        return source.length - offset;
+    }
+
+    private void enter() {
+        if (++depth > MAX_DEPTH) {
+            throw error("CBOR nested deeper than " + MAX_DEPTH + " levels");
+        }
+    }
+
+    private IllegalArgumentException error(final String message) {
+        return new IllegalArgumentException(message + " at offset " + offset);
+    }
+}
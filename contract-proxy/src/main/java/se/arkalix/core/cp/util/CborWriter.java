@@ -0,0 +1,146 @@
+package se.arkalix.core.cp.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes CBOR, as described in RFC 8949, to a growing byte array.
+ * <p>
+ * Only the subset of CBOR required to represent contract negotiation
+ * messages is supported, which means integers, byte strings, text strings,
+ * arrays, maps, booleans and {@code null}.
+ */
+public class CborWriter {
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+
+    private static final int INDEFINITE_ARRAY = 0x9F;
+    private static final int BREAK = 0xFF;
+    private static final int FALSE = 0xF4;
+    private static final int TRUE = 0xF5;
+    private static final int NULL = 0xF6;
+
+    private final ByteArrayOutputStream output;
+
+    public CborWriter() {
+        this(256);
+    }
+
+    public CborWriter(final int initialCapacity) {
+        output = new ByteArrayOutputStream(initialCapacity);
+    }
+
+    public CborWriter writeArrayHeader(final int size) {
+        writeHead(MAJOR_ARRAY, size);
+        return this;
+    }
+
+    /**
+     * Begins array of unknown length, which must be ended by calling {@link
+     * #writeBreak()}.
+     *
+     * @return This writer.
+     */
+    public CborWriter writeIndefiniteArrayHeader() {
+        output.write(INDEFINITE_ARRAY);
+        return this;
+    }
+
+    public CborWriter writeBreak() {
+        output.write(BREAK);
+        return this;
+    }
+
+    public CborWriter writeMapHeader(final int size) {
+        writeHead(MAJOR_MAP, size);
+        return this;
+    }
+
+    public CborWriter writeBoolean(final boolean value) {
+        output.write(value ? TRUE : FALSE);
+        return this;
+    }
+
+    public CborWriter writeBytes(final byte[] bytes) {
+        writeHead(MAJOR_BYTES, bytes.length);
+        output.writeBytes(bytes);
+        return this;
+    }
+
+    public CborWriter writeLong(final long value) {
+        if (value >= 0) {
+            writeHead(MAJOR_UNSIGNED, value);
+        }
+        else {
+            writeHead(MAJOR_NEGATIVE, -1 - value);
+        }
+        return this;
+    }
+
+    public CborWriter writeNull() {
+        output.write(NULL);
+        return this;
+    }
+
+    public CborWriter writeText(final String text) {
+        final var bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeHead(MAJOR_TEXT, bytes.length);
+        output.writeBytes(bytes);
+        return this;
+    }
+
+    /**
+     * Writes already encoded CBOR data item.
+     *
+     * @param cbor Encoded data item.
+     * @return This writer.
+     */
+    public CborWriter writeRaw(final byte[] cbor) {
+        output.writeBytes(cbor);
+        return this;
+    }
+
+    public int size() {
+        return output.size();
+    }
+
+    public byte[] toByteArray() {
+        return output.toByteArray();
+    }
+
+    // Integers are always written using their shortest possible form, as
+    // required by the core deterministic encoding requirements of RFC 8949.
+    private void writeHead(final int majorType, final long value) {
+        final var type = majorType << 5;
+        if (value >= 0 && value < 24) {
+            output.write(type | (int) value);
+        }
+        else if (value >= 0 && value <= 0xFF) {
+            output.write(type | 24);
+            output.write((int) value);
+        }
+        else if (value >= 0 && value <= 0xFFFF) {
+            output.write(type | 25);
+            output.write((int) (value >>> 8));
+            output.write((int) value);
+        }
+        else if (value >= 0 && value <= 0xFFFFFFFFL) {
+            output.write(type | 26);
+            for (var shift = 24; shift >= 0; shift -= 8) {
+                output.write((int) (value >>> shift));
+            }
+        }
+        else {
+            // Negative values are unsigned 64-bit integers above
+            // Long.MAX_VALUE, which are written as is.
+            output.write(type | 27);
+            for (var shift = 56; shift >= 0; shift -= 8) {
+                output.write((int) (value >>> shift));
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package se.arkalix.core.cp.util;
+
+import se.arkalix.core.cp.security.Hash;
+import se.arkalix.net.http.service.HttpServiceRequest;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * HTTP entity tags of responses containing content-addressed, and therefore
+ * immutable, definitions.
+ */
+public class EntityTags {
+    /**
+     * {@code cache-control} header value of responses containing only
+     * immutable content.
+     */
+    public static final String CACHE_CONTROL_IMMUTABLE = "private, max-age=31536000, immutable";
+
+    /**
+     * {@code cache-control} header value of responses that must not be
+     * reused without being revalidated.
+     */
+    public static final String CACHE_CONTROL_NO_CACHE = "no-cache";
+
+    private EntityTags() {}
+
+    /**
+     * Creates strong entity tag identifying a response containing the
+     * definitions with the given hashes, in the given order.
+     *
+     * @param hashes Hashes of requested definitions.
+     * @return Quoted entity tag.
+     */
+    public static String of(final List<Hash> hashes) {
+        return of(hashes, HttpMediaTypes.APPLICATION_JSON);
+    }
+
+    /**
+     * Creates strong entity tag identifying a response containing the
+     * definitions with the given hashes, in the given order, encoded using
+     * the given media type. Strong tags must differ between representations,
+     * which is why the media type is part of the tag.
+     *
+     * @param hashes      Hashes of requested definitions.
+     * @param contentType Media type of response body.
+     * @return Quoted entity tag.
+     */
+    public static String of(final List<Hash> hashes, final String contentType) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (final NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+        // JSON tags are left unprefixed to remain equal to those issued
+        // before other media types were supported.
+        if (!contentType.equals(HttpMediaTypes.APPLICATION_JSON)) {
+            digest.update(contentType.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) ';');
+        }
+        for (final var hash : hashes) {
+            digest.update(hash.toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) ',');
+        }
+        return '"' + Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest()) + '"';
+    }
+
+    /**
+     * Determines whether the {@code if-none-match} header of given request
+     * contains given entity tag.
+     *
+     * @param request Incoming request.
+     * @param tag     Quoted entity tag.
+     * @return {@code true} only if {@code tag} is matched by the request.
+     */
+    public static boolean isMatchedBy(final HttpServiceRequest request, final String tag) {
+        final var header = request.header("if-none-match").orElse(null);
+        if (header == null) {
+            return false;
+        }
+        for (var candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
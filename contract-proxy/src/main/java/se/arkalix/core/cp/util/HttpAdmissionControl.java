@@ -0,0 +1,201 @@
+package se.arkalix.core.cp.util;
+
+import se.arkalix.net.http.service.HttpServiceRequest;
+import se.arkalix.util.annotation.ThreadSafe;
+import se.arkalix.util.concurrent.Future;
+
+import java.time.Duration;
+import java.util.function.Supplier;
+
+/**
+ * Decides whether incoming HTTP requests are admitted for processing, which
+ * is only the case if their senders have not exceeded their request rates,
+ * and then schedules the CPU-intensive work of admitted requests by
+ * priority.
+ * <p>
+ * Requests are admitted or refused before their bodies are read, which
+ * means that no parsing or signature verification is performed on behalf of
+ * senders that exceed their rates. Senders are told when to retry via the
+ * {@code retry-after} header of the {@code 429 Too Many Requests} responses
+ * produced when {@link TooManyRequestsException TooManyRequestsExceptions}
+ * are caught by services created via {@link HttpServices}.
+ * <p>
+ * Senders are identified by the system names in their certificates if
+ * running in secure mode, or by their IP addresses otherwise.
+ * <p>
+ * Signing and verifying messages is performed via a {@link
+ * PriorityWorkQueue}, which refuses low priority work with {@code 503
+ * Service Unavailable} responses when it is too slow to keep up.
+ */
+public class HttpAdmissionControl {
+    public static final double DEFAULT_RATE = 50.0;
+    public static final int DEFAULT_BURST = 100;
+    public static final int DEFAULT_MAX_SENDERS = 4096;
+
+    /**
+     * Admission control that admits every request.
+     */
+    public static final HttpAdmissionControl DISABLED = new HttpAdmissionControl();
+
+    private final TokenBuckets buckets;
+    private final PriorityWorkQueue workQueue;
+    private final boolean isSecure;
+
+    private HttpAdmissionControl() {
+        buckets = null;
+        workQueue = null;
+        isSecure = false;
+    }
+
+    private HttpAdmissionControl(final Builder builder) {
+        buckets = new TokenBuckets(
+            builder.rate > 0.0 ? builder.rate : DEFAULT_RATE,
+            builder.burst > 0 ? builder.burst : DEFAULT_BURST,
+            builder.maxSenders > 0 ? builder.maxSenders : DEFAULT_MAX_SENDERS);
+        workQueue = new PriorityWorkQueue.Builder()
+            .capacity(builder.queueCapacity)
+            .latencyBudget(builder.latencyBudget)
+            .workerCount(builder.workerCount)
+            .build();
+        isSecure = builder.isSecure;
+    }
+
+    /**
+     * Admits {@code request} or throws an exception.
+     *
+     * @param request Incoming request.
+     * @throws TooManyRequestsException If the sender of {@code request} has
+     *                                  exceeded its request rate.
+     */
+    @ThreadSafe
+    public void admitOrThrow(final HttpServiceRequest request) {
+        if (buckets == null) {
+            return;
+        }
+        final var sender = senderOf(request);
+        final var retryAfter = buckets.tryTake(sender);
+        if (!retryAfter.isZero()) {
+            throw new TooManyRequestsException("RATE_LIMITED", "" +
+                "The request rate of \"" + sender + "\" has been exceeded",
+                retryAfter);
+        }
+    }
+
+    /**
+     * Executes CPU-intensive task, such as signing or verifying a message,
+     * with given priority.
+     *
+     * @param priority Task priority.
+     * @param task     Task to execute.
+     * @param <T>      Type of task result.
+     * @return Future completed with the result of the task, either on a
+     * worker thread or, if admission control is disabled, before this
+     * method returns.
+     * @throws ServiceUnavailableException If the task is refused due to the
+     *                                     proxy being overloaded.
+     */
+    @ThreadSafe
+    public <T> Future<T> execute(final PriorityWorkQueue.Priority priority, final Supplier<T> task) {
+        if (workQueue == null) {
+            return Future.success(task.get());
+        }
+        return workQueue.submit(priority, task);
+    }
+
+    /**
+     * @return Work queue used to execute tasks, unless admission control is
+     * disabled.
+     */
+    public PriorityWorkQueue workQueue() {
+        return workQueue;
+    }
+
+    private String senderOf(final HttpServiceRequest request) {
+        final var consumer = request.consumer();
+        return isSecure
+            ? consumer.name()
+            : consumer.socketAddress().getAddress().getHostAddress();
+    }
+
+    public static class Builder {
+        private double rate;
+        private int burst;
+        private int maxSenders;
+        private int queueCapacity;
+        private Duration latencyBudget;
+        private int workerCount;
+        private boolean isSecure;
+
+        /**
+         * @param rate Requests admitted per second and sender, on average.
+         * @return This builder.
+         */
+        public Builder rate(final double rate) {
+            this.rate = rate;
+            return this;
+        }
+
+        /**
+         * @param burst Requests admitted in rapid succession from a sender
+         *              that has been idle for a while.
+         * @return This builder.
+         */
+        public Builder burst(final int burst) {
+            this.burst = burst;
+            return this;
+        }
+
+        /**
+         * @param maxSenders Number of senders tracked before the state of
+         *                   idle senders is discarded.
+         * @return This builder.
+         */
+        public Builder maxSenders(final int maxSenders) {
+            this.maxSenders = maxSenders;
+            return this;
+        }
+
+        /**
+         * @param queueCapacity Maximum number of queued tasks.
+         * @return This builder.
+         */
+        public Builder queueCapacity(final int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * @param latencyBudget Work queue latency beyond which new offers
+         *                      are refused. Counter-offers are refused
+         *                      beyond twice this latency.
+         * @return This builder.
+         */
+        public Builder latencyBudget(final Duration latencyBudget) {
+            this.latencyBudget = latencyBudget;
+            return this;
+        }
+
+        /**
+         * @param workerCount Number of threads executing tasks.
+         * @return This builder.
+         */
+        public Builder workerCount(final int workerCount) {
+            this.workerCount = workerCount;
+            return this;
+        }
+
+        /**
+         * @param isSecure Whether senders can be identified by their
+         *                 certificates.
+         * @return This builder.
+         */
+        public Builder isSecure(final boolean isSecure) {
+            this.isSecure = isSecure;
+            return this;
+        }
+
+        public HttpAdmissionControl build() {
+            return new HttpAdmissionControl(this);
+        }
+    }
+}
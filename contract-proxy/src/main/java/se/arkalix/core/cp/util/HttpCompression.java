@@ -0,0 +1,363 @@
+package se.arkalix.core.cp.util;
+
+import se.arkalix.dto.DtoReadable;
+import se.arkalix.net.http.consumer.HttpConsumerRequest;
+import se.arkalix.net.http.consumer.HttpConsumerResponse;
+import se.arkalix.net.http.service.HttpServiceRequest;
+import se.arkalix.net.http.service.HttpServiceResponse;
+import se.arkalix.util.concurrent.Future;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static se.arkalix.net.http.HttpStatus.OK;
+
+/**
+ * Negotiates and applies gzip or deflate content encoding to HTTP/JSON and
+ * HTTP/CBOR message bodies.
+ * <p>
+ * Response bodies are compressed if the requester accepts any of the two
+ * encodings via its {@code accept-encoding} header, and only if they are at
+ * least as large as a given threshold, as compressing small bodies tends to
+ * cost more time than it saves. Request bodies are compressed the same way,
+ * but only if the receiving service is known to accept compressed bodies.
+ * <p>
+ * Neither compressed nor CBOR bodies can be decoded into DTOs by Kalix.
+ * They are instead decompressed, if required, and parsed using {@link
+ * JsonParser} or {@link CborParser}, after which the parsed tree is converted
+ * into a DTO by a given reader function.
+ */
+public class HttpCompression {
+    /**
+     * Default minimum size, in bytes, of compressed message bodies.
+     */
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    /**
+     * Name of service metadata entry used to advertise what content
+     * encodings are accepted in request bodies.
+     */
+    public static final String METADATA_CONTENT_ENCODINGS = "content-encodings";
+
+    /**
+     * Value of {@link #METADATA_CONTENT_ENCODINGS} service metadata entry.
+     */
+    public static final String SUPPORTED_ENCODINGS = "gzip,deflate";
+
+    /**
+     * Compression that never compresses anything. Compressed bodies are
+     * still decompressed.
+     */
+    public static final HttpCompression DISABLED = new HttpCompression(Integer.MAX_VALUE);
+
+    // Compressed bodies inflating beyond this size are rejected.
+    static final int MAX_DECOMPRESSED_SIZE = 64 * 1024 * 1024;
+
+    private final int threshold;
+
+    /**
+     * Creates new compression.
+     *
+     * @param threshold Minimum size, in bytes, of compressed bodies. If zero
+     *                  or negative, {@link #DEFAULT_THRESHOLD} is used.
+     */
+    public HttpCompression(final int threshold) {
+        this.threshold = threshold > 0 ? threshold : DEFAULT_THRESHOLD;
+    }
+
+    /**
+     * @return Minimum size, in bytes, of compressed bodies.
+     */
+    public int threshold() {
+        return threshold;
+    }
+
+    /**
+     * Sets status of {@code response} to 200 OK and its body to {@code json},
+     * which is compressed if accepted by the requester and large enough.
+     *
+     * @param request  Incoming request.
+     * @param response Outgoing response.
+     * @param json     UTF-8 encoded JSON response body.
+     */
+    public void respond(final HttpServiceRequest request, final HttpServiceResponse response, final byte[] json) {
+        respond(request, response, json, HttpMediaTypes.APPLICATION_JSON);
+    }
+
+    /**
+     * Sets status of {@code response} to 200 OK and its body to {@code body},
+     * which is compressed if accepted by the requester and large enough.
+     *
+     * @param request     Incoming request.
+     * @param response    Outgoing response.
+     * @param body        Encoded response body.
+     * @param contentType Media type of {@code body}.
+     */
+    public void respond(
+        final HttpServiceRequest request,
+        final HttpServiceResponse response,
+        final byte[] body,
+        final String contentType)
+    {
+        response.status(OK)
+            .header("content-type", contentType)
+            .header("vary", "accept, accept-encoding");
+
+        final var encoding = body.length >= threshold
+            ? negotiate(request.header("accept-encoding").orElse(null))
+            : null;
+
+        if (encoding == null) {
+            response.body(body);
+            return;
+        }
+        response.header("content-encoding", encoding)
+            .body(compress(body, encoding));
+    }
+
+    /**
+     * Sets body of {@code request} to {@code json}, which is compressed if
+     * large enough and {@code isAcceptedByReceiver} is {@code true}.
+     *
+     * @param request              Outgoing request.
+     * @param json                 UTF-8 encoded JSON request body.
+     * @param isAcceptedByReceiver Whether the receiver is known to accept
+     *                             gzip encoded request bodies.
+     * @return {@code request}.
+     */
+    public HttpConsumerRequest body(
+        final HttpConsumerRequest request,
+        final byte[] json,
+        final boolean isAcceptedByReceiver)
+    {
+        return body(request, json, HttpMediaTypes.APPLICATION_JSON, isAcceptedByReceiver);
+    }
+
+    /**
+     * Sets body of {@code request} to {@code body}, which is compressed if
+     * large enough and {@code isAcceptedByReceiver} is {@code true}.
+     *
+     * @param request              Outgoing request.
+     * @param body                 Encoded request body.
+     * @param contentType          Media type of {@code body}.
+     * @param isAcceptedByReceiver Whether the receiver is known to accept
+     *                             gzip encoded request bodies.
+     * @return {@code request}.
+     */
+    public HttpConsumerRequest body(
+        final HttpConsumerRequest request,
+        final byte[] body,
+        final String contentType,
+        final boolean isAcceptedByReceiver)
+    {
+        request.header("content-type", contentType)
+            .header("accept-encoding", "gzip, deflate");
+        if (!isAcceptedByReceiver || body.length < threshold) {
+            return request.body(body);
+        }
+        return request.header("content-encoding", "gzip")
+            .body(compress(body, "gzip"));
+    }
+
+    /**
+     * Reads body of {@code request} as a DTO, decompressing it first if
+     * required.
+     *
+     * @param request Incoming request.
+     * @param class_  Class of DTO, used if the body is uncompressed JSON.
+     * @param reader  Function converting parsed tree into DTO, used if the
+     *                body is compressed or CBOR.
+     * @param <T>     DTO type.
+     * @return Future completed with read DTO.
+     */
+    public static <T extends DtoReadable> Future<T> bodyAs(
+        final HttpServiceRequest request,
+        final Class<T> class_,
+        final Function<Object, T> reader)
+    {
+        final var encoding = request.header("content-encoding").orElse(null);
+        final var isCbor = HttpMediaTypes.isCbor(request.header("content-type"));
+        if (!isCbor && isIdentity(encoding)) {
+            return request.bodyAs(class_);
+        }
+        return request.bodyAsByteArray()
+            .map(body -> {
+                try {
+                    return reader.apply(parse(body, encoding, isCbor));
+                }
+                catch (final IllegalArgumentException exception) {
+                    throw new UnsatisfiableRequestException("BAD_BODY", "" +
+                        "Failed to read " + (isCbor ? "CBOR" : "JSON") +
+                        " request body; " + exception.getMessage(), exception);
+                }
+            });
+    }
+
+    /**
+     * Reads body of successful {@code response} as a list of DTOs,
+     * decompressing it first if required.
+     *
+     * @param response Incoming response.
+     * @param class_   Class of DTO, used if the body is uncompressed JSON.
+     * @param reader   Function converting parsed tree into DTOs, used if the
+     *                 body is compressed or CBOR.
+     * @param <T>      DTO type.
+     * @return Future completed with read DTOs.
+     */
+    public static <T extends DtoReadable> Future<List<T>> bodyAsListIfSuccess(
+        final HttpConsumerResponse response,
+        final Class<T> class_,
+        final Function<Object, List<T>> reader)
+    {
+        final var encoding = response.header("content-encoding").orElse(null);
+        final var isCbor = HttpMediaTypes.isCbor(response.header("content-type"));
+        if ((!isCbor && isIdentity(encoding)) || !response.status().isSuccess()) {
+            return response.bodyAsListIfSuccess(class_);
+        }
+        return response.bodyAsByteArray()
+            .map(body -> reader.apply(parse(body, encoding, isCbor)));
+    }
+
+    private static boolean isIdentity(final String encoding) {
+        return encoding == null || encoding.equalsIgnoreCase("identity");
+    }
+
+    private static Object parse(final byte[] body, final String encoding, final boolean isCbor) {
+        final var body0 = isIdentity(encoding) ? body : decompress(body, encoding);
+        return isCbor ? CborParser.parse(body0) : JsonParser.parse(body0);
+    }
+
+    /**
+     * Selects the preferred content encoding among those listed in an
+     * {@code accept-encoding} header.
+     * <p>
+     * A wildcard only makes an encoding accepted if that encoding is not
+     * listed explicitly, which means that {@code "gzip;q=0, *"} accepts
+     * deflate but not gzip.
+     *
+     * @param acceptEncoding Header value, or {@code null}.
+     * @return {@code "gzip"}, {@code "deflate"} or {@code null}, if neither
+     * is accepted.
+     */
+    public static String negotiate(final String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        final var codingToIsAccepted = new HashMap<String, Boolean>();
+        for (final var part : acceptEncoding.split(",")) {
+            final var fields = part.trim().split(";");
+            var coding = fields[0].trim().toLowerCase();
+            if (coding.equals("x-gzip")) {
+                coding = "gzip";
+            }
+            var isAccepted = true;
+            for (var i = 1; i < fields.length; ++i) {
+                if (isQualityZero(fields[i])) {
+                    isAccepted = false;
+                }
+            }
+            codingToIsAccepted.put(coding, isAccepted);
+        }
+        final var isAnyAccepted = codingToIsAccepted.getOrDefault("*", false);
+        if (codingToIsAccepted.getOrDefault("gzip", isAnyAccepted)) {
+            return "gzip";
+        }
+        if (codingToIsAccepted.getOrDefault("deflate", isAnyAccepted)) {
+            return "deflate";
+        }
+        return null;
+    }
+
+    private static boolean isQualityZero(final String parameter) {
+        final var parts = parameter.trim().split("=", 2);
+        if (parts.length != 2 || !parts[0].trim().equalsIgnoreCase("q")) {
+            return false;
+        }
+        try {
+            return Double.parseDouble(parts[1].trim()) == 0.0;
+        }
+        catch (final NumberFormatException ignored) {
+            return false;
+        }
+    }
+
+    /**
+     * Determines whether a service with given metadata accepts compressed
+     * request bodies.
+     *
+     * @param metadata Service metadata.
+     * @return {@code true} only if gzip encoded request bodies are accepted.
+     */
+    public static boolean isAcceptedBy(final Map<String, String> metadata) {
+        return Optional.ofNullable(metadata.get(METADATA_CONTENT_ENCODINGS))
+            .map(encodings -> encodings.contains("gzip"))
+            .orElse(false);
+    }
+
+    /**
+     * @param data     Data to compress.
+     * @param encoding {@code "gzip"} or {@code "deflate"}.
+     * @return Compressed data.
+     */
+    public static byte[] compress(final byte[] data, final String encoding) {
+        final var output = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+        try (final var compressor = encoding.equalsIgnoreCase("deflate")
+            ? new DeflaterOutputStream(output)
+            : new GZIPOutputStream(output))
+        {
+            compressor.write(data);
+        }
+        catch (final IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * @param data     Data to decompress.
+     * @param encoding {@code "gzip"}, {@code "x-gzip"} or {@code "deflate"}.
+     * @return Decompressed data.
+     * @throws IllegalArgumentException If {@code encoding} is not supported,
+     *                                  or if {@code data} is malformed or
+     *                                  decompresses into too many bytes.
+     */
+    public static byte[] decompress(final byte[] data, final String encoding) {
+        final var encoding0 = encoding.trim().toLowerCase();
+        try (final InputStream input = encoding0.equals("gzip") || encoding0.equals("x-gzip")
+            ? new GZIPInputStream(new ByteArrayInputStream(data))
+            : encoding0.equals("deflate")
+            ? new InflaterInputStream(new ByteArrayInputStream(data))
+            : null)
+        {
+            if (input == null) {
+                throw new IllegalArgumentException("Unsupported content encoding: " + encoding);
+            }
+            final var output = new ByteArrayOutputStream((int) Math.min(data.length * 4L, MAX_DECOMPRESSED_SIZE));
+            final var buffer = new byte[8192];
+            int n;
+            while ((n = input.read(buffer)) > 0) {
+                if (output.size() + n > MAX_DECOMPRESSED_SIZE) {
+                    throw new IllegalArgumentException("Decompressed body " +
+                        "larger than " + MAX_DECOMPRESSED_SIZE + " bytes");
+                }
+                output.write(buffer, 0, n);
+            }
+            return output.toByteArray();
+        }
+        catch (final IOException exception) {
+            throw new IllegalArgumentException("Malformed " + encoding + " data", exception);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package se.arkalix.core.cp.util;
+
+import se.arkalix.net.http.service.HttpServiceRequest;
+
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Negotiates whether HTTP message bodies are to be encoded as JSON or CBOR.
+ * <p>
+ * Kalix services can only declare support for the encodings Kalix itself
+ * is able to read and write DTOs from, which excludes CBOR. Services that
+ * accept CBOR bodies advertise it via the {@link #METADATA_MEDIA_TYPES}
+ * service metadata entry, while requesters ask for CBOR response bodies via
+ * their {@code accept} headers. JSON remains the default in both directions.
+ */
+public class HttpMediaTypes {
+    private HttpMediaTypes() {}
+
+    public static final String APPLICATION_JSON = "application/json";
+    public static final String APPLICATION_CBOR = "application/cbor";
+
+    /**
+     * Name of service metadata entry used to advertise what media types are
+     * accepted in request bodies.
+     */
+    public static final String METADATA_MEDIA_TYPES = "media-types";
+
+    /**
+     * Value of {@link #METADATA_MEDIA_TYPES} service metadata entry.
+     */
+    public static final String SUPPORTED_MEDIA_TYPES = APPLICATION_JSON + "," + APPLICATION_CBOR;
+
+    /**
+     * Value of {@code accept} header sent by requesters preferring CBOR.
+     */
+    public static final String ACCEPT_CBOR = APPLICATION_CBOR + ", " + APPLICATION_JSON + ";q=0.9";
+
+    /**
+     * Determines whether the sender of {@code request} prefers CBOR over
+     * JSON response bodies, which is only the case if its {@code accept}
+     * header assigns CBOR a higher quality value than JSON.
+     *
+     * @param request Incoming request.
+     * @return {@code true} only if CBOR is preferred.
+     */
+    public static boolean isCborPreferredBy(final HttpServiceRequest request) {
+        final var accept = request.header("accept").orElse(null);
+        if (accept == null) {
+            return false;
+        }
+        var cborQuality = 0.0;
+        var jsonQuality = 0.0;
+        var wildcardQuality = -1.0;
+        for (final var part : accept.split(",")) {
+            final var fields = part.trim().split(";");
+            final var type = fields[0].trim().toLowerCase();
+            final var quality = fields.length > 1 ? qualityOf(fields[1]) : 1.0;
+            switch (type) {
+            case APPLICATION_CBOR:
+                cborQuality = quality;
+                break;
+            case APPLICATION_JSON:
+                jsonQuality = quality;
+                break;
+            case "*/*":
+            case "application/*":
+                wildcardQuality = Math.max(wildcardQuality, quality);
+                break;
+            }
+        }
+        if (jsonQuality == 0.0 && wildcardQuality > 0.0) {
+            jsonQuality = wildcardQuality;
+        }
+        return cborQuality > jsonQuality;
+    }
+
+    private static double qualityOf(final String parameter) {
+        final var parts = parameter.trim().split("=", 2);
+        if (parts.length != 2 || !parts[0].trim().equalsIgnoreCase("q")) {
+            return 1.0;
+        }
+        try {
+            return Double.parseDouble(parts[1].trim());
+        }
+        catch (final NumberFormatException ignored) {
+            return 0.0;
+        }
+    }
+
+    /**
+     * @param contentType Value of {@code content-type} header.
+     * @return {@code true} only if {@code contentType} denotes CBOR.
+     */
+    public static boolean isCbor(final Optional<String> contentType) {
+        return contentType
+            .map(type -> type.split(";", 2)[0].trim().equalsIgnoreCase(APPLICATION_CBOR))
+            .orElse(false);
+    }
+
+    /**
+     * Determines whether a service with given metadata accepts CBOR request
+     * bodies.
+     *
+     * @param metadata Service metadata.
+     * @return {@code true} only if CBOR request bodies are accepted.
+     */
+    public static boolean isCborAcceptedBy(final Map<String, String> metadata) {
+        return Optional.ofNullable(metadata.get(METADATA_MEDIA_TYPES))
+            .map(types -> types.contains(APPLICATION_CBOR))
+            .orElse(false);
+    }
+}
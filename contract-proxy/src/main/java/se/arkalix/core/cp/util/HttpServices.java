@@ -1,10 +1,14 @@
 package se.arkalix.core.cp.util;
 
+import se.arkalix.core.cp.metrics.Metrics;
 import se.arkalix.core.cp.util.UnsatisfiableRequestException;
 import se.arkalix.core.plugin.ErrorResponseBuilder;
+import se.arkalix.net.http.service.HttpRouteHandler;
 import se.arkalix.net.http.service.HttpService;
 
 import static se.arkalix.net.http.HttpStatus.BAD_REQUEST;
+import static se.arkalix.net.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static se.arkalix.net.http.HttpStatus.TOO_MANY_REQUESTS;
 import static se.arkalix.util.concurrent.Future.done;
 
 public class HttpServices {
@@ -21,6 +25,54 @@ public class HttpServices {
                         .type(exception.type())
                         .build());
                 return done();
+            })
+            .catcher(TooManyRequestsException.class, (exception, request, response) -> {
+                response
+                    .status(TOO_MANY_REQUESTS)
+                    .header("retry-after", exception.retryAfterInSeconds())
+                    .body(new ErrorResponseBuilder()
+                        .code(TOO_MANY_REQUESTS.code())
+                        .message(exception.getMessage())
+                        .type(exception.type())
+                        .build());
+                return done();
+            })
+            .catcher(ServiceUnavailableException.class, (exception, request, response) -> {
+                response
+                    .status(SERVICE_UNAVAILABLE)
+                    .header("retry-after", exception.retryAfterInSeconds())
+                    .body(new ErrorResponseBuilder()
+                        .code(SERVICE_UNAVAILABLE.code())
+                        .message(exception.getMessage())
+                        .type(exception.type())
+                        .build());
+                return done();
             });
     }
+
+    /**
+     * Wraps route handler such that the time from it being called until the
+     * future it returns completes is recorded in a histogram labelled with
+     * {@code service} and {@code route}.
+     *
+     * @param service Name of service providing route.
+     * @param route   Method and path of route.
+     * @param handler Route handler to wrap.
+     * @return Wrapped route handler.
+     */
+    public static HttpRouteHandler metered(final String service, final String route, final HttpRouteHandler handler) {
+        final var latency = Metrics.REGISTRY.histogram("kalix_cp_http_request_seconds",
+            "Time spent handling HTTP requests", "service", service, "route", route);
+        return (request, response) -> {
+            final var start = System.nanoTime();
+            try {
+                return handler.handle(request, response)
+                    .always(ignored -> latency.recordSince(start));
+            }
+            catch (final Exception exception) {
+                latency.recordSince(start);
+                throw exception;
+            }
+        };
+    }
 }
@@ -0,0 +1,232 @@
+package se.arkalix.core.cp.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses JSON into trees of {@link Map Maps}, {@link List Lists}, {@link
+ * String Strings}, {@link Long Longs}, {@link Double Doubles}, {@link Boolean
+ * Booleans} and {@code null}s.
+ * <p>
+ * Used where DTOs must be read from bytes not received directly from a Kalix
+ * HTTP service or consumer, such as when those bytes first have to be
+ * decompressed.
+ */
+public class JsonParser {
+    private static final int MAX_DEPTH = 64;
+
+    private final String source;
+    private int offset = 0;
+    private int depth = 0;
+
+    private JsonParser(final String source) {
+        this.source = source;
+    }
+
+    /**
+     * Parses given UTF-8 encoded JSON.
+     *
+     * @param json JSON to parse.
+     * @return Parsed JSON tree.
+     * @throws IllegalArgumentException If {@code json} is not valid JSON.
+     */
+    public static Object parse(final byte[] json) {
+        final var parser = new JsonParser(new String(json, StandardCharsets.UTF_8));
+        final var value = parser.readValue();
+        parser.skipWhitespace();
+        if (parser.offset != parser.source.length()) {
+            throw parser.error("Unexpected trailing data");
+        }
+        return value;
+    }
+
+    private Object readValue() {
+        skipWhitespace();
+        if (offset >= source.length()) {
+            throw error("Unexpected end of JSON");
+        }
+        final var c = source.charAt(offset);
+        switch (c) {
+        case '{': return readObject();
+        case '[': return readArray();
+        case '"': return readString();
+        case 't': return readLiteral("true", Boolean.TRUE);
+        case 'f': return readLiteral("false", Boolean.FALSE);
+        case 'n': return readLiteral("null", null);
+        default:
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                return readNumber();
+            }
+            throw error("Unexpected character '" + c + "'");
+        }
+    }
+
+    private Map<String, Object> readObject() {
+        enter();
+        offset += 1;
+        final var object = new LinkedHashMap<String, Object>();
+        skipWhitespace();
+        if (peek() == '}') {
+            offset += 1;
+            depth -= 1;
+            return object;
+        }
+        while (true) {
+            skipWhitespace();
+            if (peek() != '"') {
+                throw error("Expected object key");
+            }
+            final var key = readString();
+            skipWhitespace();
+            expect(':');
+            object.put(key, readValue());
+            skipWhitespace();
+            if (peek() == ',') {
+                offset += 1;
+                continue;
+            }
+            expect('}');
+            depth -= 1;
+            return object;
+        }
+    }
+
+    private List<Object> readArray() {
+        enter();
+        offset += 1;
+        final var array = new ArrayList<>();
+        skipWhitespace();
+        if (peek() == ']') {
+            offset += 1;
+            depth -= 1;
+            return array;
+        }
+        while (true) {
+            array.add(readValue());
+            skipWhitespace();
+            if (peek() == ',') {
+                offset += 1;
+                continue;
+            }
+            expect(']');
+            depth -= 1;
+            return array;
+        }
+    }
+
+    private String readString() {
+        offset += 1;
+        final var builder = new StringBuilder();
+        while (offset < source.length()) {
+            final var c = source.charAt(offset++);
+            if (c == '"') {
+                return builder.toString();
+            }
+            if (c != '\\') {
+                if (c < 0x20) {
+                    throw error("Unescaped control character in string");
+                }
+                builder.append(c);
+                continue;
+            }
+            if (offset >= source.length()) {
+                break;
+            }
+            final var e = source.charAt(offset++);
+            switch (e) {
+            case '"': builder.append('"'); break;
+            case '\\': builder.append('\\'); break;
+            case '/': builder.append('/'); break;
+            case 'b': builder.append('\b'); break;
+            case 'f': builder.append('\f'); break;
+            case 'n': builder.append('\n'); break;
+            case 'r': builder.append('\r'); break;
+            case 't': builder.append('\t'); break;
+            case 'u':
+                if (offset + 4 > source.length()) {
+                    throw error("Truncated unicode escape");
+                }
+                try {
+                    builder.append((char) Integer.parseInt(source.substring(offset, offset + 4), 16));
+                }
+                catch (final NumberFormatException exception) {
+                    throw error("Invalid unicode escape");
+                }
+                offset += 4;
+                break;
+            default:
+                throw error("Invalid escape character '" + e + "'");
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private Object readNumber() {
+        final var start = offset;
+        var isInteger = true;
+        while (offset < source.length()) {
+            final var c = source.charAt(offset);
+            if (c == '.' || c == 'e' || c == 'E') {
+                isInteger = false;
+            }
+            else if (c != '-' && c != '+' && (c < '0' || c > '9')) {
+                break;
+            }
+            offset += 1;
+        }
+        final var number = source.substring(start, offset);
+        try {
+            return isInteger
+                ? (Object) Long.parseLong(number)
+                : (Object) Double.parseDouble(number);
+        }
+        catch (final NumberFormatException exception) {
+            throw error("Invalid number \"" + number + "\"");
+        }
+    }
+
+    private Object readLiteral(final String literal, final Object value) {
+        if (!source.startsWith(literal, offset)) {
+            throw error("Unexpected character '" + source.charAt(offset) + "'");
+        }
+        offset += literal.length();
+        return value;
+    }
+
+    private void enter() {
+        if (++depth > MAX_DEPTH) {
+            throw error("JSON nested deeper than " + MAX_DEPTH + " levels");
+        }
+    }
+
+    private void expect(final char c) {
+        if (peek() != c) {
+            throw error("Expected '" + c + "'");
+        }
+        offset += 1;
+    }
+
+    private char peek() {
+        if (offset >= source.length()) {
+            throw error("Unexpected end of JSON");
+        }
+        return source.charAt(offset);
+    }
+
+    private void skipWhitespace() {
+        while (offset < source.length()) {
+            final var c = source.charAt(offset);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return;
+            }
+            offset += 1;
+        }
+    }
+
+    private IllegalArgumentException error(final String message) {
+        return new IllegalArgumentException(message + " at offset " + offset);
+    }
+}
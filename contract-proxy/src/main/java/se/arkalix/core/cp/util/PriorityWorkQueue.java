@@ -0,0 +1,284 @@
+package se.arkalix.core.cp.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.arkalix.util.Result;
+import se.arkalix.util.annotation.ThreadSafe;
+import se.arkalix.util.concurrent.Future;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A queue of CPU-intensive tasks, such as signing and verifying messages,
+ * executed by a fixed set of worker threads in order of priority.
+ * <p>
+ * The latency of the queue is estimated as the greater of (1) a moving
+ * average of the time recently executed tasks spent waiting, and (2) the
+ * time the oldest queued task has been waiting so far. The moving average
+ * is halved for every latency budget that passes without any task being
+ * taken from the queue, and is disregarded while the queue is empty, as it
+ * could otherwise remain high forever if every submitted task is refused.
+ * If the estimated latency exceeds a given budget, tasks of {@link
+ * Priority#LOW low} priority are refused. If it exceeds twice the budget,
+ * tasks of {@link Priority#NORMAL normal} priority are refused as well.
+ * Tasks of {@link Priority#HIGH high} priority are only refused if the queue
+ * is full.
+ * <p>
+ * The futures returned by {@link #submit(Priority, Supplier)} are completed
+ * on the worker threads of the queue, not on the thread that submitted the
+ * task, which means that anything chained to them must be thread-safe.
+ * Callers must also avoid blocking in such chained functions, as that would
+ * keep the worker from executing other tasks.
+ */
+public class PriorityWorkQueue {
+    private static final Logger logger = LoggerFactory.getLogger(PriorityWorkQueue.class);
+
+    public static final Duration DEFAULT_LATENCY_BUDGET = Duration.ofMillis(250);
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    public enum Priority {
+        HIGH, NORMAL, LOW
+    }
+
+    private final long latencyBudgetInNanos;
+    private final int capacity;
+
+    // One queue per priority, indexed by Priority#ordinal().
+    private final List<ArrayDeque<Task<?>>> queues;
+    private int size = 0;
+
+    private long averageLatencyInNanos = 0;
+    private long averageLatencySampledAt = System.nanoTime();
+    private final AtomicLong shedCount = new AtomicLong(0);
+
+    private PriorityWorkQueue(final Builder builder) {
+        final var latencyBudget = builder.latencyBudget != null
+            ? builder.latencyBudget
+            : DEFAULT_LATENCY_BUDGET;
+        if (latencyBudget.isNegative() || latencyBudget.isZero()) {
+            throw new IllegalArgumentException("Expected latencyBudget > 0");
+        }
+        latencyBudgetInNanos = latencyBudget.toNanos();
+        capacity = builder.capacity > 0 ? builder.capacity : DEFAULT_CAPACITY;
+
+        queues = new ArrayList<>(Priority.values().length);
+        for (var i = 0; i < Priority.values().length; ++i) {
+            queues.add(new ArrayDeque<>());
+        }
+
+        final var workerCount = builder.workerCount > 0
+            ? builder.workerCount
+            : Runtime.getRuntime().availableProcessors();
+        for (var i = 0; i < workerCount; ++i) {
+            final var thread = new Thread(this::work, "priority-work-queue-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Queues task for execution, unless the queue is too full or too slow
+     * for tasks of the given priority to be accepted.
+     *
+     * @param priority Task priority.
+     * @param task     Task to execute.
+     * @param <T>      Type of task result.
+     * @return Future completed with the result of the task, on the worker
+     * thread that executed it.
+     * @throws ServiceUnavailableException If the task is refused.
+     */
+    @ThreadSafe
+    public <T> Future<T> submit(final Priority priority, final Supplier<T> task) {
+        Objects.requireNonNull(priority, "Expected priority");
+        Objects.requireNonNull(task, "Expected task");
+
+        final var task0 = new Task<>(task, System.nanoTime());
+        synchronized (this) {
+            final var latency = latencyInNanos(task0.queuedAt);
+            final var isRefused = size >= capacity ||
+                (priority == Priority.LOW && latency > latencyBudgetInNanos) ||
+                (priority == Priority.NORMAL && latency > 2 * latencyBudgetInNanos);
+            if (isRefused) {
+                shedCount.incrementAndGet();
+                throw new ServiceUnavailableException("OVERLOADED", "" +
+                    "The contract proxy is currently too busy to handle " +
+                    "requests of this kind", Duration.ofNanos(Math.max(latency, latencyBudgetInNanos)));
+            }
+            queues.get(priority.ordinal()).addLast(task0);
+            size += 1;
+            notify();
+        }
+        return task0;
+    }
+
+    private long latencyInNanos(final long now) {
+        if (size == 0) {
+            return 0;
+        }
+        var latency = averageLatencyInNanosAt(now);
+        for (final var queue : queues) {
+            final var oldest = queue.peekFirst();
+            if (oldest != null) {
+                latency = Math.max(latency, now - oldest.queuedAt);
+            }
+        }
+        return latency;
+    }
+
+    private long averageLatencyInNanosAt(final long now) {
+        final var halvings = (now - averageLatencySampledAt) / latencyBudgetInNanos;
+        return halvings < Long.SIZE
+            ? averageLatencyInNanos >> halvings
+            : 0;
+    }
+
+    /**
+     * @return Current estimated queue latency.
+     */
+    @ThreadSafe
+    public synchronized Duration latency() {
+        return Duration.ofNanos(latencyInNanos(System.nanoTime()));
+    }
+
+    /**
+     * @return Number of tasks currently queued.
+     */
+    @ThreadSafe
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return Number of tasks refused since this queue was created.
+     */
+    @ThreadSafe
+    public long shedCount() {
+        return shedCount.get();
+    }
+
+    private void work() {
+        while (true) {
+            final Task<?> task;
+            try {
+                task = take();
+            }
+            catch (final InterruptedException exception) {
+                return;
+            }
+
+            try {
+                task.run();
+            }
+            catch (final Throwable throwable) {
+                logger.error("Unexpected work queue task failure", throwable);
+            }
+        }
+    }
+
+    private synchronized Task<?> take() throws InterruptedException {
+        while (true) {
+            for (final var queue : queues) {
+                final var task = queue.pollFirst();
+                if (task != null) {
+                    size -= 1;
+
+                    // Exponentially weighted moving average with a weight of
+                    // 1/8.
+                    final var now = System.nanoTime();
+                    final var average = averageLatencyInNanosAt(now);
+                    averageLatencyInNanos = average + (now - task.queuedAt - average) / 8;
+                    averageLatencySampledAt = now;
+                    return task;
+                }
+            }
+            wait();
+        }
+    }
+
+    private static class Task<T> implements Future<T> {
+        private final Supplier<T> supplier;
+        private final long queuedAt;
+        private final List<Consumer<Result<T>>> consumers = new ArrayList<>(1);
+        private Result<T> result = null;
+
+        private Task(final Supplier<T> supplier, final long queuedAt) {
+            this.supplier = supplier;
+            this.queuedAt = queuedAt;
+        }
+
+        void run() {
+            Result<T> result;
+            try {
+                result = Result.success(supplier.get());
+            }
+            catch (final Throwable throwable) {
+                result = Result.failure(throwable);
+            }
+            final List<Consumer<Result<T>>> consumers;
+            synchronized (this) {
+                this.result = result;
+                consumers = new ArrayList<>(this.consumers);
+                this.consumers.clear();
+            }
+            for (final var consumer : consumers) {
+                consumer.accept(result);
+            }
+        }
+
+        @Override
+        public void onResult(final Consumer<Result<T>> consumer) {
+            final Result<T> result;
+            synchronized (this) {
+                if (this.result == null) {
+                    consumers.add(consumer);
+                    return;
+                }
+                result = this.result;
+            }
+            consumer.accept(result);
+        }
+
+        @Override
+        public void cancel(final boolean mayInterruptIfRunning) {
+            // Queued tasks are always executed, as their effects may be
+            // observed by other requests than the one that queued them.
+        }
+    }
+
+    public static class Builder {
+        private int capacity;
+        private Duration latencyBudget;
+        private int workerCount;
+
+        public Builder capacity(final int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        public Builder latencyBudget(final Duration latencyBudget) {
+            this.latencyBudget = latencyBudget;
+            return this;
+        }
+
+        /**
+         * @param workerCount Number of worker threads. Defaults to the
+         *                    number of available processors.
+         * @return This builder.
+         */
+        public Builder workerCount(final int workerCount) {
+            this.workerCount = workerCount;
+            return this;
+        }
+
+        public PriorityWorkQueue build() {
+            return new PriorityWorkQueue(this);
+        }
+    }
+}
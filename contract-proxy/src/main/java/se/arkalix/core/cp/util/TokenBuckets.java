@@ -0,0 +1,88 @@
+package se.arkalix.core.cp.util;
+
+import se.arkalix.util.annotation.ThreadSafe;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A set of token buckets, one per key, all sharing the same rate and burst
+ * size.
+ * <p>
+ * Each bucket is represented only by the time at which it will be full
+ * again, which is updated via compare-and-set when tokens are taken. This is
+ * equivalent to the generic cell rate algorithm, and makes taking a token a
+ * lock-free operation. Buckets that are full are indistinguishable from
+ * missing buckets, which is why they are discarded whenever the number of
+ * buckets grows beyond a given limit.
+ */
+public class TokenBuckets {
+    private final ConcurrentHashMap<String, AtomicLong> keyToFullAt = new ConcurrentHashMap<>();
+    private final long nanosPerToken;
+    private final long burstNanos;
+    private final int maxKeys;
+
+    /**
+     * Creates new set of token buckets.
+     *
+     * @param rate    Tokens added to each bucket per second.
+     * @param burst   Maximum number of tokens in each bucket.
+     * @param maxKeys Number of buckets beyond which full buckets are
+     *                discarded.
+     */
+    public TokenBuckets(final double rate, final int burst, final int maxKeys) {
+        if (!(rate > 0.0)) {
+            throw new IllegalArgumentException("Expected rate > 0");
+        }
+        if (burst <= 0) {
+            throw new IllegalArgumentException("Expected burst > 0");
+        }
+        if (maxKeys <= 0) {
+            throw new IllegalArgumentException("Expected maxKeys > 0");
+        }
+        nanosPerToken = Math.max(1, (long) (1_000_000_000L / rate));
+        burstNanos = nanosPerToken * burst;
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Takes one token from the bucket of {@code key}, if any is available.
+     *
+     * @param key Bucket key.
+     * @return {@link Duration#ZERO} if a token was taken, or the time until
+     * a token becomes available otherwise.
+     */
+    @ThreadSafe
+    public Duration tryTake(final String key) {
+        Objects.requireNonNull(key, "Expected key");
+
+        final var now = System.nanoTime();
+        var fullAt = keyToFullAt.get(key);
+        if (fullAt == null) {
+            if (keyToFullAt.size() >= maxKeys) {
+                keyToFullAt.values().removeIf(fullAt0 -> fullAt0.get() - now <= 0);
+            }
+            fullAt = keyToFullAt.computeIfAbsent(key, ignored -> new AtomicLong(now));
+        }
+        while (true) {
+            final var current = fullAt.get();
+            final var base = current - now < 0 ? now : current;
+            final var next = base + nanosPerToken;
+            if (next - now > burstNanos) {
+                return Duration.ofNanos(next - now - burstNanos);
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return Duration.ZERO;
+            }
+        }
+    }
+
+    /**
+     * @return Number of buckets currently tracked.
+     */
+    public int size() {
+        return keyToFullAt.size();
+    }
+}
@@ -0,0 +1,36 @@
+package se.arkalix.core.cp.util;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Signifies that a request was refused because its sender has exceeded some
+ * limit, and that it may be retried after a given delay.
+ */
+public class TooManyRequestsException extends RuntimeException {
+    private final String type;
+    private final Duration retryAfter;
+
+    public TooManyRequestsException(final String type, final String message, final Duration retryAfter) {
+        super(message, null, true, false);
+        this.type = Objects.requireNonNull(type, "Expected type");
+        this.retryAfter = Objects.requireNonNull(retryAfter, "Expected retryAfter");
+    }
+
+    public String type() {
+        return type;
+    }
+
+    public Duration retryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * @return Value of {@code retry-after} header, which is {@link
+     * #retryAfter()} rounded up to whole seconds.
+     */
+    public String retryAfterInSeconds() {
+        final var millis = retryAfter.toMillis();
+        return Long.toString(Math.max(1, (millis + 999) / 1000));
+    }
+}
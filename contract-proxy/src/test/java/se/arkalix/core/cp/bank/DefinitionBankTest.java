@@ -0,0 +1,218 @@
+package se.arkalix.core.cp.bank;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.arkalix.core.cp.security.HashAlgorithm;
+import se.arkalix.core.plugin.cp.ContractNegotiationStatus;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DefinitionBankTest {
+    private static final HashAlgorithm PRIMARY = HashAlgorithm.SHA_256;
+    private static final HashAlgorithm SECONDARY = HashAlgorithm.SHA_512;
+    private static final Set<HashAlgorithm> HASH_ALGORITHMS = Set.of(PRIMARY, SECONDARY);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void secondaryHashesResolveWithHeapStore() {
+        assertSecondaryHashesResolve(new DefinitionBank.Builder()
+            .acceptedHashAlgorithms(HASH_ALGORITHMS)
+            .primaryHashAlgorithm(PRIMARY)
+            .build());
+    }
+
+    @Test
+    void secondaryHashesResolveWithOffHeapStore() throws IOException {
+        final var log = DefinitionLog.open(directory.resolve("log"));
+        final var index = OffHeapHashIndex.create(directory.resolve("index"), 0);
+        final var secondaryIndex = OffHeapHashIndex.create(directory.resolve("secondary-index"), 0);
+        try {
+            assertSecondaryHashesResolve(new DefinitionBank.Builder()
+                .acceptedHashAlgorithms(HASH_ALGORITHMS)
+                .primaryHashAlgorithm(PRIMARY)
+                .log(log)
+                .secondaryIndex(secondaryIndex)
+                .store(new OffHeapDefinitionStore(log, index, Set.of(PRIMARY)))
+                .build());
+            assertTrue(secondaryIndex.size() > 0);
+        }
+        finally {
+            secondaryIndex.close();
+            index.close();
+            log.close();
+        }
+    }
+
+    @Test
+    void offHeapStoreRequiresSecondaryIndex() throws IOException {
+        final var log = DefinitionLog.open(directory.resolve("log"));
+        final var index = OffHeapHashIndex.create(directory.resolve("index"), 0);
+        try {
+            final var builder = new DefinitionBank.Builder()
+                .acceptedHashAlgorithms(HASH_ALGORITHMS)
+                .log(log)
+                .store(new OffHeapDefinitionStore(log, index, Set.of(PRIMARY)));
+            assertThrows(IllegalArgumentException.class, builder::build);
+        }
+        finally {
+            index.close();
+            log.close();
+        }
+    }
+
+    @Test
+    void compactReclaimsEmptiedLogSegments() throws IOException {
+        final var log = DefinitionLog.open(directory.resolve("log"), 1024);
+        final var index = OffHeapHashIndex.create(directory.resolve("index"), 0);
+        try {
+            final var bank = new DefinitionBank.Builder()
+                .acceptedHashAlgorithms(Set.of(PRIMARY))
+                .log(log)
+                .retentionPolicy(new DefinitionRetentionPolicy.Builder()
+                    .retention(ContractNegotiationStatus.REJECTED, DefinitionRetention.DROP)
+                    .build())
+                .store(new OffHeapDefinitionStore(log, index, Set.of(PRIMARY)))
+                .build();
+            bank.recover(definition -> {});
+
+            for (var i = 0; i < 100; ++i) {
+                bank.add(DefinitionStoreTest.entryOf(i, 0).definition());
+            }
+            final var segmentCount = log.segmentCount();
+            assertTrue(segmentCount > 2);
+
+            final var dropped = new HashSet<Long>();
+            assertEquals(100, bank.compact(Instant.now(), dropped::add));
+            assertEquals(100, dropped.size());
+            assertEquals(1, log.segmentCount());
+            assertEquals(0, bank.size());
+
+            final var definition = DefinitionStoreTest.entryOf(100, 0).definition();
+            bank.add(definition);
+            assertTrue(bank.get(definition.hashUsing(PRIMARY)).isPresent());
+        }
+        finally {
+            index.close();
+            log.close();
+        }
+    }
+
+    @Test
+    void concurrentAddsOfSameDefinitionAreLoggedOnce() throws IOException, InterruptedException {
+        final var log = DefinitionLog.open(directory.resolve("log"));
+        try {
+            final var bank = new DefinitionBank.Builder()
+                .acceptedHashAlgorithms(Set.of(PRIMARY))
+                .log(log)
+                .build();
+            bank.recover(definition -> {});
+
+            final var definitions = new ArrayList<Definition>();
+            for (var i = 0; i < 100; ++i) {
+                definitions.add(DefinitionStoreTest.entryOf(i, 0).definition());
+            }
+            final var addedCount = new AtomicInteger();
+            final var rejectedCount = new AtomicInteger();
+            final var start = new CountDownLatch(1);
+            final var threads = new ArrayList<Thread>();
+            for (var t = 0; t < 8; ++t) {
+                final var thread = new Thread(() -> {
+                    try {
+                        start.await();
+                    }
+                    catch (final InterruptedException exception) {
+                        return;
+                    }
+                    for (final var definition : definitions) {
+                        try {
+                            bank.add(definition);
+                            addedCount.incrementAndGet();
+                        }
+                        catch (final IllegalStateException exception) {
+                            rejectedCount.incrementAndGet();
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            start.countDown();
+            for (final var thread : threads) {
+                thread.join();
+            }
+
+            assertEquals(100, addedCount.get());
+            assertEquals(700, rejectedCount.get());
+            assertEquals(100, bank.size());
+            final var recordCount = new AtomicInteger();
+            log.replay(record -> record, record -> recordCount.incrementAndGet());
+            assertEquals(100, recordCount.get());
+        }
+        finally {
+            log.close();
+        }
+    }
+
+    @Test
+    void getByIdsAndHashesGroupsMatchingEntriesByNegotiation() {
+        final var bank = new DefinitionBank.Builder()
+            .acceptedHashAlgorithms(HASH_ALGORITHMS)
+            .primaryHashAlgorithm(PRIMARY)
+            .build();
+        final var a0 = DefinitionStoreTest.entryOf(1, 0).definition();
+        final var a1 = DefinitionStoreTest.entryOf(1, 1).definition();
+        final var b0 = DefinitionStoreTest.entryOf(2, 0).definition();
+        final var c0 = DefinitionStoreTest.entryOf(3, 0).definition();
+        for (final var definition : List.of(a0, a1, b0, c0)) {
+            bank.add(definition);
+        }
+
+        final var entries = bank.get(List.of(2L, 1L), List.of(
+            a1.hashUsing(PRIMARY),
+            b0.hashUsing(PRIMARY),
+            c0.hashUsing(PRIMARY),
+            b0.hashUsing(PRIMARY),
+            DefinitionStoreTest.entryOf(1, 2).definition().hashUsing(PRIMARY)));
+        assertEquals(List.of(b0, a1), entries.stream()
+            .map(DefinitionEntry::definition)
+            .collect(Collectors.toList()));
+
+        assertEquals(List.of(b0, a0, a1), bank.get(List.of(2L, 1L, 2L), List.of())
+            .stream()
+            .map(DefinitionEntry::definition)
+            .collect(Collectors.toList()));
+    }
+
+    // Definitions added before the first secondary lookup are indexed in the
+    // background, while definitions added after it are indexed when added.
+    // Lookups missing while the background indexing runs wait for it.
+    private static void assertSecondaryHashesResolve(final DefinitionBank bank) {
+        final var before = DefinitionStoreTest.entryOf(1, 0).definition();
+        bank.add(before);
+
+        assertEquals(Optional.of(before.hashUsing(PRIMARY)), bank.primaryHashOf(before.hashUsing(SECONDARY)));
+        assertTrue(bank.get(before.hashUsing(SECONDARY)).isPresent());
+        assertTrue(bank.get(DefinitionStoreTest.entryOf(2, 0).definition().hashUsing(SECONDARY)).isEmpty());
+
+        final var after = DefinitionStoreTest.entryOf(1, 1).definition();
+        bank.add(after);
+        assertEquals(Optional.of(after.hashUsing(PRIMARY)), bank.primaryHashOf(after.hashUsing(SECONDARY)));
+
+        final var entry = bank.getEntry(after.hashUsing(SECONDARY)).orElseThrow();
+        assertEquals(List.of(after.hashUsing(PRIMARY), after.hashUsing(SECONDARY)), bank.acceptedHashesOf(entry));
+    }
+}
@@ -0,0 +1,139 @@
+package se.arkalix.core.cp.bank;
+
+import org.junit.jupiter.api.Test;
+import se.arkalix.core.cp.security.Hash;
+import se.arkalix.core.cp.security.HashAlgorithm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DefinitionPagesTest {
+    private static final HashAlgorithm PRIMARY = HashAlgorithm.SHA_256;
+    private static final HashAlgorithm SECONDARY = HashAlgorithm.SHA_512;
+
+    @Test
+    void pagesByHashesVisitEachFoundDefinitionOnce() {
+        final var bank = bankOf(3, 4);
+        final var hashes = new ArrayList<Hash>();
+        for (var i = 0; i < 3; ++i) {
+            for (var j = 0; j < 4; ++j) {
+                hashes.add(DefinitionStoreTest.entryOf(i, j).definition().hashUsing(PRIMARY));
+                hashes.add(DefinitionStoreTest.entryOf(i, j + 4).definition().hashUsing(PRIMARY));
+            }
+        }
+
+        final var pages = visitAll(bank, List.of(), hashes, 5);
+        assertEquals(List.of(5, 5, 2), sizesOf(pages));
+        final var visited = concat(pages);
+        assertEquals(12, visited.size());
+        for (var i = 0; i < visited.size(); ++i) {
+            assertEquals(List.of(hashes.get(i * 2)), visited.get(i).hashes);
+        }
+    }
+
+    @Test
+    void pagesByIdsVisitDefinitionsInOrderWithAllAcceptedHashes() {
+        final var bank = bankOf(3, 4);
+
+        final var pages = visitAll(bank, List.of(2L, 0L, 2L, 5L), List.of(), 3);
+        assertEquals(List.of(3, 3, 2), sizesOf(pages));
+        final var visited = concat(pages);
+        final var expected = new ArrayList<Definition>();
+        for (final var id : List.of(2, 0)) {
+            for (var j = 0; j < 4; ++j) {
+                expected.add(DefinitionStoreTest.entryOf(id, j).definition());
+            }
+        }
+        for (var i = 0; i < visited.size(); ++i) {
+            final var definition = expected.get(i);
+            assertEquals(List.of(definition.hashUsing(PRIMARY), definition.hashUsing(SECONDARY)),
+                visited.get(i).hashes);
+        }
+    }
+
+    @Test
+    void pagesByIdsAndHashesVisitOnlyMatchingDefinitions() {
+        final var bank = bankOf(3, 4);
+        final var hashes = List.of(
+            DefinitionStoreTest.entryOf(0, 3).definition().hashUsing(PRIMARY),
+            DefinitionStoreTest.entryOf(1, 0).definition().hashUsing(PRIMARY),
+            DefinitionStoreTest.entryOf(0, 1).definition().hashUsing(PRIMARY));
+
+        final var pages = visitAll(bank, List.of(0L, 2L), hashes, 1);
+        assertEquals(List.of(1, 1), sizesOf(pages));
+        final var visited = concat(pages);
+        assertEquals(hashes.get(0), visited.get(0).entry.definition().hashUsing(PRIMARY));
+        assertEquals(hashes.get(2), visited.get(1).entry.definition().hashUsing(PRIMARY));
+    }
+
+    @Test
+    void cursorsRoundTripThroughText() {
+        final var cursor = new DefinitionCursor(12, 3);
+        assertEquals("12.3", cursor.toString());
+        assertEquals(cursor, DefinitionCursor.valueOf(cursor.toString()));
+        assertThrows(IllegalArgumentException.class, () -> DefinitionCursor.valueOf("12"));
+        assertThrows(IllegalArgumentException.class, () -> DefinitionCursor.valueOf("a.b"));
+        assertThrows(IllegalArgumentException.class, () -> DefinitionCursor.valueOf("-1.0"));
+    }
+
+    private static DefinitionBank bankOf(final int negotiationCount, final int definitionsPerNegotiation) {
+        final var bank = new DefinitionBank.Builder()
+            .acceptedHashAlgorithms(Set.of(PRIMARY, SECONDARY))
+            .primaryHashAlgorithm(PRIMARY)
+            .build();
+        for (var i = 0; i < negotiationCount; ++i) {
+            for (var j = 0; j < definitionsPerNegotiation; ++j) {
+                bank.add(DefinitionStoreTest.entryOf(i, j).definition());
+            }
+        }
+        return bank;
+    }
+
+    private static List<List<Visit>> visitAll(
+        final DefinitionBank bank,
+        final List<Long> ids,
+        final List<Hash> hashes,
+        final int limit)
+    {
+        final var pages = new ArrayList<List<Visit>>();
+        var cursor = DefinitionCursor.FIRST;
+        do {
+            final var page = new ArrayList<Visit>();
+            cursor = DefinitionPages.visit(bank, ids, hashes, cursor, limit,
+                (entry, hashes0) -> page.add(new Visit(entry, hashes0)));
+            assertTrue(page.size() <= limit);
+            pages.add(page);
+        }
+        while (cursor != null);
+        return pages;
+    }
+
+    private static List<Integer> sizesOf(final List<List<Visit>> pages) {
+        final var sizes = new ArrayList<Integer>();
+        for (final var page : pages) {
+            sizes.add(page.size());
+        }
+        return sizes;
+    }
+
+    private static List<Visit> concat(final List<List<Visit>> pages) {
+        final var visits = new ArrayList<Visit>();
+        for (final var page : pages) {
+            visits.addAll(page);
+        }
+        return visits;
+    }
+
+    private static class Visit {
+        final DefinitionEntry entry;
+        final List<Hash> hashes;
+
+        Visit(final DefinitionEntry entry, final List<Hash> hashes) {
+            this.entry = entry;
+            this.hashes = hashes;
+        }
+    }
+}
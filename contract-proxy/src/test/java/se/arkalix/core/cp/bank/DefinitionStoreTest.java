@@ -0,0 +1,244 @@
+package se.arkalix.core.cp.bank;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.arkalix.core.cp.contract.SignedContractRejectionBuilder;
+import se.arkalix.core.cp.security.Hash;
+import se.arkalix.core.cp.security.HashAlgorithm;
+import se.arkalix.core.cp.security.HashBase64;
+import se.arkalix.core.cp.security.HashBase64Dto;
+import se.arkalix.core.cp.security.SignatureBase64;
+import se.arkalix.core.cp.security.SignatureScheme;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Conformance tests every {@link DefinitionStore} must pass. Each store is
+ * tested by a subclass opening it.
+ */
+abstract class DefinitionStoreTest {
+    static final HashAlgorithm HASH_ALGORITHM = HashAlgorithm.SHA_256;
+    static final Set<HashAlgorithm> HASH_ALGORITHMS = Set.of(HASH_ALGORITHM);
+
+    private static final HashBase64Dto FINGERPRINT = HashBase64.from(HASH_ALGORITHM.hash(new byte[]{1}));
+
+    @TempDir
+    Path directory;
+
+    DefinitionStore store;
+
+    /**
+     * @param directory Empty directory the store may keep its files in.
+     * @return New store.
+     */
+    abstract DefinitionStore open(Path directory) throws IOException;
+
+    /**
+     * Stores requiring log addresses append entries to their logs.
+     *
+     * @param entry Entry about to be added.
+     * @return Address to add {@code entry} with.
+     */
+    long addressOf(final DefinitionEntry entry) {
+        return DefinitionStore.NO_ADDRESS;
+    }
+
+    @BeforeEach
+    void openStore() throws IOException {
+        store = open(directory);
+    }
+
+    @AfterEach
+    void closeStore() {
+        store.close();
+    }
+
+    @Test
+    void getByHashReturnsAddedDefinition() {
+        final var entry = entryOf(1, 0);
+        add(entry);
+
+        final var definition = store.get(hashOf(entry));
+        assertTrue(definition.isPresent());
+        assertEquals(hashOf(entry), definition.get().hashUsing(HASH_ALGORITHM));
+    }
+
+    @Test
+    void containsOnlyAddedHashes() {
+        final var entry = entryOf(1, 0);
+        add(entry);
+
+        assertTrue(store.contains(hashOf(entry)));
+        assertFalse(store.contains(hashOf(entryOf(1, 1))));
+        assertFalse(store.get(hashOf(entryOf(2, 0))).isPresent());
+    }
+
+    @Test
+    void getByNegotiationIdReturnsEntriesInOrderOfAddition() {
+        final var entries = new ArrayList<DefinitionEntry>();
+        for (var i = 0; i < 10; ++i) {
+            final var entry = entryOf(1, i);
+            add(entry);
+            add(entryOf(2, i));
+            entries.add(entry);
+        }
+
+        assertEquals(hashesOf(entries), hashesOf(store.get(1)));
+        assertTrue(store.get(3).isEmpty());
+    }
+
+    @Test
+    void addRejectsDuplicateHash() {
+        final var entry = entryOf(1, 0);
+        add(entry);
+
+        assertThrows(IllegalStateException.class, () -> add(entry));
+        assertEquals(1, store.get(1).size());
+    }
+
+    @Test
+    void evictRemovesOldestEntriesOfNegotiation() {
+        for (var i = 0; i < 5; ++i) {
+            add(entryOf(1, i));
+            add(entryOf(2, i));
+        }
+
+        store.evict(1, 2);
+
+        assertEquals(hashesOf(List.of(entryOf(1, 2), entryOf(1, 3), entryOf(1, 4))), hashesOf(store.get(1)));
+        assertFalse(store.contains(hashOf(entryOf(1, 0))));
+        assertFalse(store.contains(hashOf(entryOf(1, 1))));
+        assertTrue(store.contains(hashOf(entryOf(1, 2))));
+        assertEquals(5, store.get(2).size());
+    }
+
+    @Test
+    void evictOfMoreEntriesThanExistRemovesAll() {
+        add(entryOf(1, 0));
+        add(entryOf(1, 1));
+
+        store.evict(1, 3);
+
+        assertTrue(store.get(1).isEmpty());
+        assertFalse(store.contains(hashOf(entryOf(1, 1))));
+    }
+
+    @Test
+    void evictedEntriesMayBeFollowedByNewEntries() {
+        add(entryOf(1, 0));
+        store.evict(1, 1);
+        add(entryOf(1, 1));
+
+        assertEquals(hashesOf(List.of(entryOf(1, 1))), hashesOf(store.get(1)));
+    }
+
+    @Test
+    void scanVisitsEveryEntryOnceInOrderOfAdditionPerNegotiation() {
+        final var expected = new HashSet<Hash>();
+        for (var i = 0; i < 20; ++i) {
+            final var entry = entryOf(i % 4, i / 4);
+            add(entry);
+            expected.add(hashOf(entry));
+        }
+        store.evict(0, 1);
+        expected.remove(hashOf(entryOf(0, 0)));
+
+        final var visited = new ArrayList<DefinitionEntry>();
+        store.scan((address, entry) -> visited.add(entry));
+
+        assertEquals(expected.size(), visited.size());
+        assertEquals(expected, new HashSet<>(hashesOf(visited)));
+        for (var negotiationId = 0; negotiationId < 4; ++negotiationId) {
+            final var id = negotiationId;
+            assertEquals(hashesOf(store.get(id)), hashesOf(visited.stream()
+                .filter(entry -> entry.definition().negotiationId() == id)
+                .collect(Collectors.toList())));
+        }
+    }
+
+    @Test
+    void concurrentAddsAreAllRetained() throws InterruptedException {
+        final var faults = new ConcurrentLinkedQueue<Throwable>();
+        final var threads = new ArrayList<Thread>();
+        for (var t = 0; t < 4; ++t) {
+            final var entries = new ArrayList<DefinitionEntry>();
+            for (var i = 0; i < 250; ++i) {
+                entries.add(entryOf(t, i));
+            }
+            final var thread = new Thread(() -> {
+                try {
+                    for (final var entry : entries) {
+                        add(entry);
+                    }
+                }
+                catch (final Throwable throwable) {
+                    faults.add(throwable);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (final var thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(faults.isEmpty(), () -> "Adding failed: " + faults);
+        for (var t = 0; t < 4; ++t) {
+            final var entries = store.get(t);
+            assertEquals(250, entries.size());
+            for (var i = 0; i < 250; ++i) {
+                assertEquals(hashOf(entryOf(t, i)), hashOf(entries.get(i)));
+            }
+        }
+    }
+
+    void add(final DefinitionEntry entry) {
+        store.add(entry, addressOf(entry));
+    }
+
+    /**
+     * Creates an entry that is distinct from every entry created with other
+     * arguments, and equal to every entry created with the same arguments.
+     *
+     * @param negotiationId Negotiation identifier.
+     * @param sequence      Sequence number within negotiation.
+     * @return New entry.
+     */
+    static DefinitionEntry entryOf(final long negotiationId, final int sequence) {
+        final var offerHash = HASH_ALGORITHM.hash(ByteBuffer.allocate(12)
+            .putLong(negotiationId)
+            .putInt(sequence)
+            .array());
+        final var rejection = new SignedContractRejectionBuilder()
+            .negotiationId(negotiationId)
+            .rejectorFingerprint(FINGERPRINT)
+            .offerorFingerprint(FINGERPRINT)
+            .offerHash(HashBase64.from(offerHash))
+            .signature(SignatureBase64.emptyFrom(Instant.EPOCH, SignatureScheme.ECDSA_SECP256R1_SHA256))
+            .build();
+        return new DefinitionEntry(List.of(rejection.hashUsing(HASH_ALGORITHM)), rejection);
+    }
+
+    static Hash hashOf(final DefinitionEntry entry) {
+        return entry.hashes().get(0);
+    }
+
+    static List<Hash> hashesOf(final List<DefinitionEntry> entries) {
+        return entries.stream()
+            .map(entry -> entry.definition().hashUsing(HASH_ALGORITHM))
+            .collect(Collectors.toList());
+    }
+}
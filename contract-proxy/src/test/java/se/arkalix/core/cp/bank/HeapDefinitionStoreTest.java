@@ -0,0 +1,10 @@
+package se.arkalix.core.cp.bank;
+
+import java.nio.file.Path;
+
+class HeapDefinitionStoreTest extends DefinitionStoreTest {
+    @Override
+    DefinitionStore open(final Path directory) {
+        return new HeapDefinitionStore();
+    }
+}
@@ -0,0 +1,88 @@
+package se.arkalix.core.cp.bank;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LsmDefinitionStoreTest extends DefinitionStoreTest {
+    private static final int MEMTABLE_SIZE = 1024;
+
+    @Override
+    DefinitionStore open(final Path directory) throws IOException {
+        return LsmDefinitionStore.open(directory, HASH_ALGORITHMS, MEMTABLE_SIZE);
+    }
+
+    @Test
+    void reopenedStoreContainsEntriesAddedBeforeClose() throws IOException {
+        final var expected = new HeapDefinitionStore();
+        for (var i = 0; i < 100; ++i) {
+            final var entry = entryOf(i % 3, i / 3);
+            expected.add(entry, DefinitionStore.NO_ADDRESS);
+            add(entry);
+        }
+        expected.evict(0, 10);
+        store.evict(0, 10);
+        store.close();
+
+        store = open(directory);
+
+        assertTrue(hasTables(directory), "Expected memtables to have been flushed to sorted tables");
+        for (var negotiationId = 0; negotiationId < 3; ++negotiationId) {
+            assertEquals(hashesOf(expected.get(negotiationId)), hashesOf(store.get(negotiationId)));
+        }
+        assertFalse(store.contains(hashOf(entryOf(0, 9))));
+        assertTrue(store.contains(hashOf(entryOf(0, 10))));
+    }
+
+    @Test
+    void matchesHeapStoreUnderRandomOperations() {
+        final var random = new Random(1);
+        final var expected = new HeapDefinitionStore();
+        final var sequences = new HashMap<Long, Integer>();
+
+        for (var i = 0; i < 5000; ++i) {
+            final long negotiationId = random.nextInt(16);
+            final var operation = random.nextInt(10);
+            if (operation < 6) {
+                final int sequence = sequences.merge(negotiationId, 1, Integer::sum);
+                final var entry = entryOf(negotiationId, sequence);
+                expected.add(entry, DefinitionStore.NO_ADDRESS);
+                add(entry);
+            }
+            else if (operation < 7) {
+                final var count = random.nextInt(4);
+                expected.evict(negotiationId, count);
+                store.evict(negotiationId, count);
+            }
+            else if (operation < 9) {
+                assertEquals(hashesOf(expected.get(negotiationId)), hashesOf(store.get(negotiationId)));
+            }
+            else {
+                final var entry = entryOf(negotiationId, random.nextInt(sequences.getOrDefault(negotiationId, 0) + 1));
+                assertEquals(expected.contains(hashOf(entry)), store.contains(hashOf(entry)));
+                assertEquals(expected.get(hashOf(entry)).isPresent(), store.get(hashOf(entry)).isPresent());
+            }
+        }
+
+        for (var negotiationId = 0L; negotiationId < 16; ++negotiationId) {
+            assertEquals(hashesOf(expected.get(negotiationId)), hashesOf(store.get(negotiationId)));
+        }
+        assertTrue(hasTables(directory), "Expected memtables to have been flushed to sorted tables");
+    }
+
+    private static boolean hasTables(final Path directory) {
+        try (final var files = Files.list(directory)) {
+            return files.anyMatch(path -> path.getFileName().toString().endsWith(".sst"));
+        }
+        catch (final IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package se.arkalix.core.cp.bank;
+
+import org.junit.jupiter.api.AfterEach;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+class OffHeapDefinitionStoreTest extends DefinitionStoreTest {
+    private DefinitionLog log;
+
+    @Override
+    DefinitionStore open(final Path directory) throws IOException {
+        log = DefinitionLog.open(directory.resolve("log"));
+        return new OffHeapDefinitionStore(log, OffHeapHashIndex.create(directory.resolve("index"), 1024),
+            HASH_ALGORITHMS);
+    }
+
+    @Override
+    long addressOf(final DefinitionEntry entry) {
+        return log.append(DefinitionCodec.encode(entry));
+    }
+
+    @AfterEach
+    void closeLog() {
+        log.close();
+    }
+}
@@ -0,0 +1,303 @@
+package se.arkalix.core.cp.contract;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.arkalix.core.cp.bank.Definition;
+import se.arkalix.core.cp.security.Hash;
+import se.arkalix.core.cp.security.HashAlgorithm;
+import se.arkalix.core.cp.security.HashBase64;
+import se.arkalix.core.cp.security.SignatureBase64;
+import se.arkalix.core.cp.security.SignatureScheme;
+import se.arkalix.core.plugin.cp.ContractNegotiationStatus;
+import se.arkalix.core.plugin.cp.TrustedContractOffer;
+import se.arkalix.util.Result;
+import se.arkalix.util.concurrent.Future;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContractOutboxTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private static final Party COUNTER_PARTY = new Party(ContractProxyTest.COUNTER_PARTY.certificate(),
+        ContractProxyTest.HASH_ALGORITHMS);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void deliversAfterRetrying() throws InterruptedException {
+        final var attempts = new AtomicInteger();
+        final var relay = new FakeRelay(definition -> attempts.incrementAndGet() < 3
+            ? Future.failure(new IOException("Connection refused"))
+            : Future.done());
+        final var outbox = outboxOf(relay, null);
+        final var failed = new CopyOnWriteArrayList<ContractOutbox.Message>();
+        outbox.onFailure(failed::add);
+        outbox.recover(new Parties(List.of(COUNTER_PARTY)));
+
+        final var message = outbox.enqueue(rejectionOf(1, Instant.now()), COUNTER_PARTY);
+        awaitCompletionOf(message);
+
+        assertEquals(ContractOutboxStatus.DELIVERED, message.status());
+        assertEquals(3, message.attempts());
+        assertEquals(3, relay.sent.size());
+        assertTrue(failed.isEmpty());
+        assertEquals(0, outbox.pendingCount());
+    }
+
+    @Test
+    void failsAfterRetryLimit() throws InterruptedException {
+        final var relay = new FakeRelay(definition -> Future.failure(new IOException("Connection refused")));
+        final var outbox = outboxOf(relay, null);
+        outbox.recover(new Parties(List.of(COUNTER_PARTY)));
+
+        final var message = outbox.enqueue(rejectionOf(1, Instant.now()), COUNTER_PARTY);
+        awaitCompletionOf(message);
+
+        assertEquals(ContractOutboxStatus.FAILED, message.status());
+        assertEquals(4, message.attempts());
+        assertEquals(Optional.of("Connection refused"), message.lastFault());
+    }
+
+    @Test
+    void refusedMessagesFailAndAreReportedForRevertingWithoutRetrying() throws InterruptedException {
+        final var relay = new FakeRelay(definition ->
+            Future.failure(new MessageRefusedException("Counter-party refused message", null)));
+        final var outbox = outboxOf(relay, null);
+        final var failed = new CopyOnWriteArrayList<ContractOutbox.Message>();
+        outbox.onFailure(failed::add);
+        outbox.recover(new Parties(List.of(COUNTER_PARTY)));
+
+        final var message = outbox.enqueue(rejectionOf(1, Instant.now()), COUNTER_PARTY);
+        awaitCompletionOf(message);
+
+        assertEquals(ContractOutboxStatus.FAILED, message.status());
+        assertEquals(1, message.attempts());
+        assertEquals(List.of(message), failed);
+    }
+
+    @Test
+    void expiredOffersFailWithoutBeingSent() throws InterruptedException {
+        final var relay = new FakeRelay(definition -> Future.done());
+        final var outbox = outboxOf(relay, null);
+        final var failed = new CopyOnWriteArrayList<ContractOutbox.Message>();
+        outbox.onFailure(failed::add);
+        outbox.recover(new Parties(List.of(COUNTER_PARTY)));
+
+        final var now = Instant.now();
+        final var message = outbox.enqueue(offerOf(1, now, now.minusMillis(1)), COUNTER_PARTY);
+        awaitCompletionOf(message);
+
+        assertEquals(ContractOutboxStatus.FAILED, message.status());
+        assertEquals(0, message.attempts());
+        assertTrue(relay.sent.isEmpty());
+        assertEquals(List.of(message), failed);
+    }
+
+    @Test
+    void messagesSignedTooLongAgoFailWithoutBeingSent() throws InterruptedException {
+        final var relay = new FakeRelay(definition -> Future.done());
+        final var outbox = outboxOf(relay, null);
+        outbox.recover(new Parties(List.of(COUNTER_PARTY)));
+
+        final var signedAt = Instant.now().minus(ContractNegotiation.CLOCK_SKEW_TOLERANCE).minusSeconds(1);
+        final var message = outbox.enqueue(rejectionOf(1, signedAt), COUNTER_PARTY);
+        awaitCompletionOf(message);
+
+        assertEquals(ContractOutboxStatus.FAILED, message.status());
+        assertTrue(relay.sent.isEmpty());
+    }
+
+    // A counter-party that never responds holds up the messages queued
+    // after the first of its messages only until that message is too old to
+    // be accepted.
+    @Test
+    void unansweredMessagesOnlyHoldUpQueueUntilTooOld() throws InterruptedException {
+        final var relay = new FakeRelay(definition -> definition.negotiationId() == 1
+            ? new PendingFuture()
+            : Future.done());
+        final var outbox = outboxOf(relay, null);
+        outbox.recover(new Parties(List.of(COUNTER_PARTY)));
+
+        final var signedAt = Instant.now().minus(ContractNegotiation.CLOCK_SKEW_TOLERANCE).plusMillis(500);
+        final var first = outbox.enqueue(rejectionOf(1, signedAt), COUNTER_PARTY);
+        final var second = outbox.enqueue(rejectionOf(2, Instant.now()), COUNTER_PARTY);
+        awaitCompletionOf(first);
+        awaitCompletionOf(second);
+
+        assertEquals(ContractOutboxStatus.FAILED, first.status());
+        assertEquals(ContractOutboxStatus.DELIVERED, second.status());
+    }
+
+    @Test
+    void pendingMessagesAreDeliveredInOrderAfterRestart() throws InterruptedException, IOException {
+        final var parties = new Parties(List.of(COUNTER_PARTY));
+        final var relay0 = new FakeRelay(definition -> new PendingFuture());
+        final var outbox0 = outboxOf(relay0, directory);
+        outbox0.recover(parties);
+        final var message0 = outbox0.enqueue(rejectionOf(1, Instant.now()), COUNTER_PARTY);
+        final var message1 = outbox0.enqueue(rejectionOf(2, Instant.now()), COUNTER_PARTY);
+        assertEquals(2, countFilesEndingWith(".msg"));
+
+        final var relay1 = new FakeRelay(definition -> Future.done());
+        final var outbox1 = outboxOf(relay1, directory);
+        assertEquals(2, outbox1.recover(parties));
+        awaitCompletionOf(outbox1.get(message0.id()).orElseThrow());
+        awaitCompletionOf(outbox1.get(message1.id()).orElseThrow());
+
+        assertEquals(List.of(1L, 2L), relay1.sent.stream()
+            .map(Definition::negotiationId)
+            .collect(Collectors.toList()));
+        assertEquals(0, countFilesEndingWith(".msg"));
+
+        final var message2 = outbox1.enqueue(rejectionOf(3, Instant.now()), COUNTER_PARTY);
+        assertTrue(message2.id() > message1.id());
+    }
+
+    @Test
+    void failedMessagesAreReportedAgainAfterRestartUntilForgotten() throws InterruptedException, IOException {
+        final var parties = new Parties(List.of(COUNTER_PARTY));
+        final var relay = new FakeRelay(definition ->
+            Future.failure(new MessageRefusedException("Counter-party refused message", null)));
+        final var outbox0 = outboxOf(relay, directory);
+        outbox0.recover(parties);
+        final var message = outbox0.enqueue(rejectionOf(1, Instant.now()), COUNTER_PARTY);
+        awaitCompletionOf(message);
+        assertEquals(1, countFilesEndingWith(".failed"));
+
+        final var outbox1 = outboxOf(relay, directory);
+        final var failed1 = new CopyOnWriteArrayList<ContractOutbox.Message>();
+        outbox1.onFailure(failed1::add);
+        assertEquals(0, outbox1.recover(parties));
+        assertEquals(List.of(message.id()), failed1.stream()
+            .map(ContractOutbox.Message::id)
+            .collect(Collectors.toList()));
+
+        outbox1.forget(failed1.get(0));
+        assertEquals(0, countFilesEndingWith(".failed"));
+
+        final var outbox2 = outboxOf(relay, directory);
+        final var failed2 = new CopyOnWriteArrayList<ContractOutbox.Message>();
+        outbox2.onFailure(failed2::add);
+        outbox2.recover(parties);
+        assertTrue(failed2.isEmpty());
+    }
+
+    private static ContractOutbox outboxOf(final ContractRelay relay, final Path directory) {
+        return new ContractOutbox.Builder()
+            .directory(directory)
+            .relay(relay)
+            .retryBaseDelay(Duration.ofMillis(10))
+            .retryMaxDelay(Duration.ofMillis(20))
+            .retryLimit(4)
+            .build();
+    }
+
+    private static void awaitCompletionOf(final ContractOutbox.Message message) throws InterruptedException {
+        final var deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (message.status() == ContractOutboxStatus.PENDING) {
+            assertTrue(System.nanoTime() < deadline, "Expected message to be completed");
+            Thread.sleep(10);
+        }
+    }
+
+    private long countFilesEndingWith(final String suffix) throws IOException {
+        try (final var paths = Files.list(directory)) {
+            return paths.filter(path -> path.getFileName().toString().endsWith(suffix)).count();
+        }
+    }
+
+    private static SignedContractRejectionDto rejectionOf(final long negotiationId, final Instant signedAt) {
+        final var fingerprint = HashBase64.from(COUNTER_PARTY.preferredFingerprint());
+        return new SignedContractRejectionBuilder()
+            .negotiationId(negotiationId)
+            .rejectorFingerprint(fingerprint)
+            .offerorFingerprint(fingerprint)
+            .offerHash(HashBase64.from(new Hash(HashAlgorithm.SHA_256, new byte[32])))
+            .signature(SignatureBase64.emptyFrom(signedAt, SignatureScheme.ECDSA_SECP256R1_SHA256))
+            .build();
+    }
+
+    private static SignedContractOfferDto offerOf(
+        final long negotiationId,
+        final Instant signedAt,
+        final Instant validUntil)
+    {
+        final var fingerprint = HashBase64.from(COUNTER_PARTY.preferredFingerprint());
+        return new SignedContractOfferBuilder()
+            .negotiationId(negotiationId)
+            .offerorFingerprint(fingerprint)
+            .receiverFingerprint(fingerprint)
+            .validAfter(signedAt)
+            .validUntil(validUntil)
+            .contracts(List.of())
+            .signature(SignatureBase64.emptyFrom(signedAt, SignatureScheme.ECDSA_SECP256R1_SHA256))
+            .build();
+    }
+
+    static class FakeRelay implements ContractRelay {
+        private final Function<Definition, Future<?>> responder;
+        final List<Definition> sent = new CopyOnWriteArrayList<>();
+
+        FakeRelay(final Function<Definition, Future<?>> responder) {
+            this.responder = responder;
+        }
+
+        @Override
+        public Future<List<Definition>> getFromCounterParty(final Collection<Hash> hashes) {
+            return Future.success(List.of());
+        }
+
+        @Override
+        public Future<?> sendToEventHandler(
+            final long negotiationId,
+            final TrustedContractOffer offer,
+            final ContractNegotiationStatus status)
+        {
+            return Future.done();
+        }
+
+        @Override
+        public Future<?> sendToCounterParty(final SignedContractAcceptanceDto acceptance, final Party counterParty) {
+            return send(acceptance);
+        }
+
+        @Override
+        public Future<?> sendToCounterParty(final SignedContractOfferDto offer, final Party counterParty) {
+            return send(offer);
+        }
+
+        @Override
+        public Future<?> sendToCounterParty(final SignedContractRejectionDto rejection, final Party counterParty) {
+            return send(rejection);
+        }
+
+        private Future<?> send(final Definition definition) {
+            sent.add(definition);
+            return responder.apply(definition);
+        }
+    }
+
+    // Never completes, like a request to a counter-party that never responds.
+    private static class PendingFuture implements Future<Object> {
+        @Override
+        public void onResult(final Consumer<Result<Object>> consumer) {}
+
+        @Override
+        public void cancel(final boolean mayInterruptIfRunning) {}
+    }
+}
@@ -0,0 +1,136 @@
+package se.arkalix.core.cp.contract;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.arkalix.core.cp.bank.DefinitionLog;
+import se.arkalix.core.cp.metrics.Metrics;
+import se.arkalix.core.cp.security.HashAlgorithm;
+import se.arkalix.core.cp.security.HashBase64;
+import se.arkalix.core.cp.security.SignatureBase64;
+import se.arkalix.util.concurrent.Future;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.cert.CertificateFactory;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContractProxyTest {
+    static final Set<HashAlgorithm> HASH_ALGORITHMS = Set.of(HashAlgorithm.SHA_256);
+
+    // Self-signed certificates and keys of the "ec-00" and "ec-01" parties
+    // of the benchmark key store.
+    static final OwnedParty OWNED_PARTY = ownedPartyOf("" +
+        "MIIBYzCCAQmgAwIBAgIIcf07XJt7muowCgYIKoZIzj0EAwIwJTEjMCEGA1UEAxMa" +
+        "ZWMtMDAuYmVuY2htYXJrLmFya2FsaXguc2UwIBcNMjYxMDE5MDkzNzUwWhgPMjEy" +
+        "NjA5MjUwOTM3NTBaMCUxIzAhBgNVBAMTGmVjLTAwLmJlbmNobWFyay5hcmthbGl4" +
+        "LnNlMFkwEwYHKoZIzj0CAQYIKoZIzj0DAQcDQgAEwwR7iRdUbLNze9lCQHZ3Hay6" +
+        "vAAh8BE45lUHDgEnPJEMHKOjlVBOEqlNoP0dAQIayfjb+GJYILL4MK5cEQHq0KMh" +
+        "MB8wHQYDVR0OBBYEFI0XvDCceEA/0j8w9sSOoyyfu4PeMAoGCCqGSM49BAMCA0gA" +
+        "MEUCIQCGvrA0vuxGxMrRQQd2IPQ0Ef95BQtJ+YqaJNCsKE9LxQIgfGkHu5ZF9yRP" +
+        "Vqc7kzid5qV93n/epu98CUSvp5PQwqs=", "" +
+        "MEECAQAwEwYHKoZIzj0CAQYIKoZIzj0DAQcEJzAlAgEBBCB+/I87KAeBNA/roUy5" +
+        "X2kvSmfpz/NY/j+bliR4GHiQAg==");
+
+    static final OwnedParty COUNTER_PARTY = ownedPartyOf("" +
+        "MIIBZDCCAQqgAwIBAgIJAIq1LVZXJHwPMAoGCCqGSM49BAMCMCUxIzAhBgNVBAMT" +
+        "GmVjLTAxLmJlbmNobWFyay5hcmthbGl4LnNlMCAXDTI2MTAxOTA5Mzc1MloYDzIx" +
+        "MjYwOTI1MDkzNzUyWjAlMSMwIQYDVQQDExplYy0wMS5iZW5jaG1hcmsuYXJrYWxp" +
+        "eC5zZTBZMBMGByqGSM49AgEGCCqGSM49AwEHA0IABGPh05gxezOSXDF3vEYldJxp" +
+        "KE8dmUg/s2aAp0AZT/FV0OS9HNaP8JTOon8y47TCxM8w3JlAp+USo2HxNmMlsgOj" +
+        "ITAfMB0GA1UdDgQWBBQCg4woZd+2LMxj1kXicithW3BBpDAKBggqhkjOPQQDAgNI" +
+        "ADBFAiEA132R1Uh5WikmOTZrNXzEEGAV9BRkpYcirYBIn7I273ACIHeJRvkbggi3" +
+        "mvvacVD0x8nsE2L6EsLKyWj4q3ebPni1", "" +
+        "MEECAQAwEwYHKoZIzj0CAQYIKoZIzj0DAQcEJzAlAgEBBCB7zxcvsnmCaC5zE1px" +
+        "a/cqd8kWXPaTU5gq3PGVfVyzIw==");
+
+    private static final Template PURCHASE = new Template("purchase.txt", "" +
+        "Hereby {Buyer} accepts to take {Quantity} units of {ArticleNumber}.", HASH_ALGORITHMS);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void retransmittedOffersAreAcceptedWithoutBeingVerifiedOrLoggedAgain() throws IOException {
+        final var log = DefinitionLog.open(directory.resolve("log"));
+        try {
+            final var proxy = new ContractProxy.Builder()
+                .acceptedHashAlgorithms(HASH_ALGORITHMS)
+                .counterParties(new Party(COUNTER_PARTY.certificate(), HASH_ALGORITHMS))
+                .definitionLog(log)
+                .ownedParties(OWNED_PARTY)
+                .relay(new ContractOutboxTest.FakeRelay(definition -> Future.done()))
+                .templates(PURCHASE)
+                .build();
+            final var verifyLatency = Metrics.verifyLatencyOf("ecdsa_secp256r1_sha256");
+            final var offer = offerOf(1);
+
+            final var verifyCount0 = verifyLatency.count();
+            proxy.update(offer);
+            final var verifyCount1 = verifyLatency.count();
+            final var recordCount1 = recordCountOf(log);
+            assertEquals(verifyCount0 + 1, verifyCount1);
+
+            proxy.update(offer);
+            assertEquals(verifyCount1, verifyLatency.count());
+            assertEquals(recordCount1, recordCountOf(log));
+
+            final var negotiation = proxy.getNegotiationByNamesAndId(
+                OWNED_PARTY.commonName(), COUNTER_PARTY.commonName(), 1)
+                .orElseThrow();
+            assertEquals(List.of(offer.hashUsing(HashAlgorithm.SHA_256)), negotiation.offerHashes());
+        }
+        finally {
+            log.close();
+        }
+    }
+
+    private static SignedContractOfferDto offerOf(final long negotiationId) {
+        final var now = Instant.now();
+        return new SignedContractOfferBuilder()
+            .negotiationId(negotiationId)
+            .offerorFingerprint(HashBase64.from(COUNTER_PARTY.preferredFingerprint()))
+            .receiverFingerprint(HashBase64.from(OWNED_PARTY.preferredFingerprint()))
+            .validAfter(now)
+            .validUntil(now.plus(Duration.ofHours(1)))
+            .contracts(List.of(new ContractBase64Builder()
+                .templateHash(HashBase64.from(PURCHASE.preferredHash()))
+                .arguments(Map.of("Buyer", "Buyer System", "Quantity", "200", "ArticleNumber", "XYZ-123"))
+                .build()))
+            .signature(SignatureBase64.emptyFrom(now, COUNTER_PARTY.signatureScheme()))
+            .build()
+            .sign(COUNTER_PARTY);
+    }
+
+    private static int recordCountOf(final DefinitionLog log) {
+        final var recordCount = new AtomicInteger();
+        log.replay(record -> record, record -> recordCount.incrementAndGet());
+        return recordCount.get();
+    }
+
+    private static OwnedParty ownedPartyOf(final String certificate, final String privateKey) {
+        try {
+            return new OwnedParty(
+                CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream(Base64.getDecoder().decode(certificate))),
+                KeyFactory.getInstance("EC")
+                    .generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(privateKey))),
+                HASH_ALGORITHMS);
+        }
+        catch (final GeneralSecurityException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+}
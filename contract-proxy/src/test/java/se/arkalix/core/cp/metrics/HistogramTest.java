@@ -0,0 +1,75 @@
+package se.arkalix.core.cp.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistogramTest {
+    @Test
+    void countsSmallValuesExactly() {
+        for (var value = 0; value < 16; ++value) {
+            assertEquals(value, Histogram.indexOf(value));
+            assertEquals(value, Histogram.upperBoundOf(value));
+        }
+    }
+
+    @Test
+    void bucketBoundsAreContiguous() {
+        final var lastIndex = Histogram.indexOf(Long.MAX_VALUE);
+        for (var index = 0; index < lastIndex; ++index) {
+            final var upperBound = Histogram.upperBoundOf(index);
+            assertEquals(index, Histogram.indexOf(upperBound));
+            assertEquals(index + 1, Histogram.indexOf(upperBound + 1));
+        }
+        assertEquals(Long.MAX_VALUE, Histogram.upperBoundOf(lastIndex));
+    }
+
+    @Test
+    void bucketsHaveBoundedRelativeError() {
+        for (var exponent = 4; exponent < 63; ++exponent) {
+            for (final var value : new long[]{1L << exponent, (1L << exponent) + 1, (2L << exponent) - 1}) {
+                final var upperBound = Histogram.upperBoundOf(Histogram.indexOf(value));
+                assertTrue(upperBound >= value);
+                assertTrue(upperBound - value <= value / 16, () -> "value " + value + ", bound " + upperBound);
+            }
+        }
+    }
+
+    @Test
+    void recordsCountAndSum() {
+        final var histogram = new Histogram();
+        histogram.record(10);
+        histogram.record(1_000_000);
+        histogram.record(-5);
+        assertEquals(3, histogram.count());
+        assertEquals(1_000_010, histogram.sumInNanos());
+        assertEquals(0, histogram.valueAtQuantile(0.0));
+    }
+
+    @Test
+    void estimatesQuantilesByBucketUpperBounds() {
+        final var histogram = new Histogram();
+        assertEquals(0, histogram.valueAtQuantile(0.5));
+        for (var value = 1; value <= 100; ++value) {
+            histogram.record(value);
+        }
+        assertEquals(1, histogram.valueAtQuantile(0.0));
+        assertEquals(10, histogram.valueAtQuantile(0.1));
+        assertEquals(51, histogram.valueAtQuantile(0.5));
+        assertEquals(103, histogram.valueAtQuantile(1.0));
+        assertThrows(IllegalArgumentException.class, () -> histogram.valueAtQuantile(-0.1));
+        assertThrows(IllegalArgumentException.class, () -> histogram.valueAtQuantile(1.1));
+        assertThrows(IllegalArgumentException.class, () -> histogram.valueAtQuantile(Double.NaN));
+    }
+
+    @Test
+    void countsCumulativelyByBucketUpperBounds() {
+        final var histogram = new Histogram();
+        for (final var value : new long[]{5, 16, 17, 100}) {
+            histogram.record(value);
+        }
+        assertArrayEquals(new long[]{0, 1, 2, 3, 3, 4, 4, 4},
+            histogram.cumulativeCounts(new long[]{4, 5, 16, 17, 100, 103, 104}));
+        assertArrayEquals(new long[]{4}, histogram.cumulativeCounts(new long[0]));
+    }
+}
@@ -0,0 +1,109 @@
+package se.arkalix.core.cp.trace;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NegotiationTimelinesTest {
+    private static final String TRACE_ID = "0123456789abcdef0123456789abcdef";
+
+    @Test
+    void pendingSpansAreOnlyRecordedWhenCommitted() {
+        final var timelines = new NegotiationTimelines(16, 16);
+        final var spans = timelines.pending(TRACE_ID);
+        spans.record("receive", System.nanoTime());
+        spans.record("queue", System.nanoTime());
+        assertEquals(Optional.empty(), timelines.get(1));
+
+        spans.commit(1);
+        timelines.record(1, "verify", System.nanoTime());
+
+        final var timeline = timelines.get(1).orElseThrow();
+        assertEquals(TRACE_ID, timeline.traceId());
+        assertEquals(List.of("receive", "queue", "verify"), stagesOf(timeline));
+    }
+
+    @Test
+    void timelineSpansMessagesOfNegotiation() {
+        final var timelines = new NegotiationTimelines(16, 16);
+        final var spans0 = timelines.pending(TRACE_ID);
+        spans0.record("receive", System.nanoTime());
+        spans0.commit(1);
+        timelines.record(1, "bank", System.nanoTime());
+
+        // Trace identifiers of later messages are ignored.
+        final var spans1 = timelines.pending("ffffffffffffffffffffffffffffffff");
+        spans1.record("receive", System.nanoTime());
+        spans1.commit(1);
+        timelines.record(1, "bank", System.nanoTime());
+
+        final var timeline = timelines.get(1).orElseThrow();
+        assertEquals(TRACE_ID, timeline.traceId());
+        assertEquals(TRACE_ID, timelines.traceIdOf(1));
+        assertEquals(List.of("receive", "bank", "receive", "bank"), stagesOf(timeline));
+    }
+
+    @Test
+    void uncommittedPendingSpansLeaveNoTrace() {
+        final var timelines = new NegotiationTimelines(16, 16);
+        final var spans = timelines.pending(TRACE_ID);
+        spans.record("receive", System.nanoTime());
+
+        timelines.record(1, "verify", System.nanoTime());
+        final var timeline = timelines.get(1).orElseThrow();
+        assertNotEquals(TRACE_ID, timeline.traceId());
+        assertEquals(List.of("verify"), stagesOf(timeline));
+    }
+
+    @Test
+    void invalidTraceIdsAreReplaced() {
+        final var timelines = new NegotiationTimelines(16, 16);
+        final var invalidTraceIds = List.of("", "0123456789ABCDEF", TRACE_ID + "0", "g");
+        for (var i = 0; i < invalidTraceIds.size(); ++i) {
+            timelines.pending(invalidTraceIds.get(i)).commit(i);
+            final var traceId = timelines.traceIdOf(i);
+            assertNotEquals(invalidTraceIds.get(i), traceId);
+            assertTrue(traceId.matches("[0-9a-f]{32}"), traceId);
+        }
+    }
+
+    @Test
+    void onlyMostRecentTimelinesAndSpansAreKept() {
+        final var timelines = new NegotiationTimelines(2, 2);
+        for (var i = 0; i < 3; ++i) {
+            timelines.record(1, "stage" + i, System.nanoTime());
+        }
+        final var timeline = timelines.get(1).orElseThrow();
+        assertEquals(List.of("stage0", "stage1"), stagesOf(timeline));
+        assertEquals(1, timeline.droppedCount());
+
+        timelines.record(2, "stage", System.nanoTime());
+        timelines.record(3, "stage", System.nanoTime());
+        assertEquals(Optional.empty(), timelines.get(1));
+        assertTrue(timelines.get(2).isPresent());
+        assertTrue(timelines.get(3).isPresent());
+    }
+
+    @Test
+    void disabledTimelinesRecordNothing() {
+        final var timelines = NegotiationTimelines.DISABLED;
+        assertFalse(timelines.isEnabled());
+        final var spans = timelines.pending(TRACE_ID);
+        spans.record("receive", System.nanoTime());
+        spans.commit(1);
+        timelines.record(1, "verify", System.nanoTime());
+        assertEquals(Optional.empty(), timelines.get(1));
+        assertNull(timelines.traceIdOf(1));
+    }
+
+    private static List<String> stagesOf(final NegotiationTimeline timeline) {
+        return timeline.spans()
+            .stream()
+            .map(NegotiationTimeline.Span::stage)
+            .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,85 @@
+package se.arkalix.core.cp.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CborParserTest {
+    @Test
+    void parsesDefiniteItems() {
+        final var cbor = new byte[]{
+            (byte) 0xA2, // map(2)
+            0x61, 'a', 0x01, // "a": 1
+            0x61, 'b', (byte) 0x82, 0x20, (byte) 0xF5, // "b": [-1, true]
+        };
+        assertEquals(Map.of("a", 1L, "b", List.of(-1L, true)), CborParser.parse(cbor));
+    }
+
+    @Test
+    void skipsTags() {
+        final var cbor = new byte[]{(byte) 0xC1, (byte) 0xD8, 0x20, 0x63, 'a', 'b', 'c'};
+        assertEquals("abc", CborParser.parse(cbor));
+    }
+
+    @Test
+    void skipsThousandsOfTagsWithoutOverflowingStack() {
+        final var cbor = new byte[100_001];
+        Arrays.fill(cbor, (byte) 0xC0);
+        cbor[cbor.length - 1] = 0x07;
+        assertEquals(7L, CborParser.parse(cbor));
+    }
+
+    @Test
+    void rejectsThousandsOfTagsWithoutItem() {
+        final var cbor = new byte[100_000];
+        Arrays.fill(cbor, (byte) 0xC0);
+        assertThrows(IllegalArgumentException.class, () -> CborParser.parse(cbor));
+    }
+
+    @Test
+    void joinsChunksOfIndefiniteStrings() {
+        final var text = new byte[]{0x7F, 0x62, 'a', 'b', 0x61, 'c', (byte) 0xFF};
+        assertEquals("abc", CborParser.parse(text));
+
+        final var bytes = new byte[]{0x5F, 0x41, 0x01, 0x42, 0x02, 0x03, (byte) 0xFF};
+        assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) CborParser.parse(bytes));
+    }
+
+    @Test
+    void rejectsNestedIndefiniteStringsWithoutOverflowingStack() {
+        final var cbor = new byte[100_000];
+        Arrays.fill(cbor, (byte) 0x5F);
+        assertThrows(IllegalArgumentException.class, () -> CborParser.parse(cbor));
+    }
+
+    @Test
+    void rejectsChunksOfOtherMajorTypes() {
+        final var textInBytes = new byte[]{0x5F, 0x61, 'a', (byte) 0xFF};
+        assertThrows(IllegalArgumentException.class, () -> CborParser.parse(textInBytes));
+
+        final var taggedChunk = new byte[]{0x7F, (byte) 0xC0, 0x61, 'a', (byte) 0xFF};
+        assertThrows(IllegalArgumentException.class, () -> CborParser.parse(taggedChunk));
+    }
+
+    @Test
+    void rejectsDeeplyNestedArrays() {
+        final var cbor = new byte[100_000];
+        Arrays.fill(cbor, (byte) 0x9F);
+        assertThrows(IllegalArgumentException.class, () -> CborParser.parse(cbor));
+
+        final var tagged = new byte[100_000];
+        for (var i = 0; i < tagged.length; ++i) {
+            tagged[i] = (byte) (i % 2 == 0 ? 0xC0 : 0x81);
+        }
+        assertThrows(IllegalArgumentException.class, () -> CborParser.parse(tagged));
+    }
+
+    @Test
+    void rejectsTrailingData() {
+        assertThrows(IllegalArgumentException.class, () -> CborParser.parse(new byte[]{0x01, 0x02}));
+    }
+}
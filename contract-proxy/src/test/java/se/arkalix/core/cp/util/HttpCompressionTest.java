@@ -0,0 +1,71 @@
+package se.arkalix.core.cp.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HttpCompressionTest {
+    @Test
+    void negotiatesPreferredEncoding() {
+        assertNull(HttpCompression.negotiate(null));
+        assertNull(HttpCompression.negotiate(""));
+        assertNull(HttpCompression.negotiate("identity, br"));
+        assertEquals("gzip", HttpCompression.negotiate("gzip"));
+        assertEquals("gzip", HttpCompression.negotiate("X-GZIP"));
+        assertEquals("gzip", HttpCompression.negotiate("deflate, gzip;q=0.5"));
+        assertEquals("deflate", HttpCompression.negotiate("br, deflate"));
+        assertEquals("gzip", HttpCompression.negotiate("*"));
+    }
+
+    @Test
+    void negotiatesNoEncodingWithQualityZero() {
+        assertNull(HttpCompression.negotiate("gzip;q=0"));
+        assertNull(HttpCompression.negotiate("gzip; q=0.0, deflate;q=0"));
+        assertNull(HttpCompression.negotiate("*;q=0"));
+        assertEquals("deflate", HttpCompression.negotiate("gzip;q=0, deflate"));
+        assertEquals("deflate", HttpCompression.negotiate("x-gzip;level=1;q=0, deflate"));
+    }
+
+    @Test
+    void negotiatesWildcardOnlyForEncodingsNotListed() {
+        assertEquals("deflate", HttpCompression.negotiate("gzip;q=0, *"));
+        assertEquals("deflate", HttpCompression.negotiate("*, gzip;q=0"));
+        assertNull(HttpCompression.negotiate("gzip;q=0, deflate;q=0, *"));
+        assertEquals("gzip", HttpCompression.negotiate("deflate;q=0, *"));
+        assertEquals("gzip", HttpCompression.negotiate("*;q=0, gzip"));
+    }
+
+    @Test
+    void decompressesWhatItCompresses() {
+        final var data = "{\"a\":[1,2,3]}".repeat(100).getBytes(StandardCharsets.UTF_8);
+        for (final var encoding : new String[]{"gzip", "deflate"}) {
+            final var compressed = HttpCompression.compress(data, encoding);
+            assertTrue(compressed.length < data.length);
+            assertArrayEquals(data, HttpCompression.decompress(compressed, encoding));
+        }
+        assertArrayEquals(data, HttpCompression.decompress(HttpCompression.compress(data, "gzip"), " X-GZIP "));
+    }
+
+    @Test
+    void decompressesUpToMaxSize() {
+        final var data = new byte[HttpCompression.MAX_DECOMPRESSED_SIZE];
+        assertEquals(data.length, HttpCompression.decompress(HttpCompression.compress(data, "gzip"), "gzip").length);
+    }
+
+    @Test
+    void rejectsDecompressingBeyondMaxSize() {
+        final var data = new byte[HttpCompression.MAX_DECOMPRESSED_SIZE + 1];
+        final var compressed = HttpCompression.compress(data, "deflate");
+        assertThrows(IllegalArgumentException.class, () -> HttpCompression.decompress(compressed, "deflate"));
+    }
+
+    @Test
+    void rejectsMalformedOrUnsupportedData() {
+        final var data = new byte[]{1, 2, 3, 4};
+        assertThrows(IllegalArgumentException.class, () -> HttpCompression.decompress(data, "gzip"));
+        assertThrows(IllegalArgumentException.class, () -> HttpCompression.decompress(data, "deflate"));
+        assertThrows(IllegalArgumentException.class, () -> HttpCompression.decompress(data, "br"));
+    }
+}
@@ -0,0 +1,62 @@
+package se.arkalix.core.cp.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonParserTest {
+    @Test
+    void parsesValues() {
+        final var expected = new HashMap<String, Object>();
+        expected.put("a", List.of(1L, -2L, 0.5, -1.5e3));
+        expected.put("b", Map.of("c", true, "d", false));
+        expected.put("e", null);
+        expected.put("f", "g");
+        assertEquals(expected, parse(" {\"a\": [1, -2, 0.5, -1.5E3], \"b\": {\"c\": true, \"d\": false},\n" +
+            "\t\"e\": null, \"f\": \"g\"} "));
+        assertEquals(List.of(), parse("[]"));
+        assertEquals(Map.of(), parse("{ }"));
+    }
+
+    @Test
+    void keepsOrderOfObjectKeys() {
+        final var object = (Map<?, ?>) parse("{\"z\":1,\"a\":2,\"m\":3}");
+        assertEquals(List.of("z", "a", "m"), List.copyOf(object.keySet()));
+    }
+
+    @Test
+    void parsesEscapes() {
+        assertEquals("\"\\/\b\f\n\r\t\u00e5\u20ac", parse("\"\\\"\\\\\\/\\b\\f\\n\\r\\t\\u00E5\\u20ac\""));
+        assertEquals("\u00e5", parse("\"\u00e5\""));
+    }
+
+    @Test
+    void rejectsMalformedJson() {
+        for (final var json : List.of("", "{", "[1,]", "{\"a\"}", "{a:1}", "tru", "nul", "\"abc",
+            "\"\\x\"", "\"\\u12\"", "\"\\u12zz\"", "\"a\nb\"", "1-2", "[1] 2", "+1"))
+        {
+            assertThrows(IllegalArgumentException.class, () -> parse(json), json);
+        }
+    }
+
+    @Test
+    void rejectsDeeplyNestedJson() {
+        final var json = new char[100_000];
+        Arrays.fill(json, '[');
+        assertThrows(IllegalArgumentException.class, () -> parse(new String(json)));
+
+        assertEquals(List.of(List.of()), parse("[".repeat(2) + "]".repeat(2)));
+        assertDoesNotThrow(() -> parse("[".repeat(64) + "]".repeat(64)));
+        assertThrows(IllegalArgumentException.class, () -> parse("[".repeat(65) + "]".repeat(65)));
+    }
+
+    private static Object parse(final String json) {
+        return JsonParser.parse(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
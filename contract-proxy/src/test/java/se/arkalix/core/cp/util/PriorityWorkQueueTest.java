@@ -0,0 +1,119 @@
+package se.arkalix.core.cp.util;
+
+import org.junit.jupiter.api.Test;
+import se.arkalix.util.concurrent.Future;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static se.arkalix.core.cp.util.PriorityWorkQueue.Priority.*;
+
+class PriorityWorkQueueTest {
+    private static final Duration BUDGET = Duration.ofMillis(200);
+
+    @Test
+    void executesTasksInOrderOfPriority() throws InterruptedException {
+        final var queue = queueOf(1);
+        final var isBlocking = new CountDownLatch(1);
+        final var blocked = blockWorkerOf(queue, isBlocking);
+
+        final var order = new StringBuffer();
+        final var low = queue.submit(LOW, () -> order.append('L'));
+        final var normal = queue.submit(NORMAL, () -> order.append('N'));
+        final var high = queue.submit(HIGH, () -> order.append('H'));
+        isBlocking.countDown();
+
+        awaitCompletionOf(blocked);
+        awaitCompletionOf(low);
+        awaitCompletionOf(normal);
+        awaitCompletionOf(high);
+        assertEquals("HNL", order.toString());
+    }
+
+    @Test
+    void shedsLowBeforeNormalBeforeHighPriorityTasks() throws InterruptedException {
+        final var queue = queueOf(1);
+        final var isBlocking = new CountDownLatch(1);
+        final var blocked = blockWorkerOf(queue, isBlocking);
+        final var queued = queue.submit(HIGH, () -> 0);
+
+        // Oldest queued task waited longer than budget.
+        Thread.sleep(BUDGET.toMillis() * 3 / 2);
+        assertThrows(ServiceUnavailableException.class, () -> queue.submit(LOW, () -> 0));
+        final var normal = queue.submit(NORMAL, () -> 0);
+
+        // Oldest queued task waited longer than twice the budget.
+        Thread.sleep(BUDGET.toMillis());
+        assertThrows(ServiceUnavailableException.class, () -> queue.submit(LOW, () -> 0));
+        assertThrows(ServiceUnavailableException.class, () -> queue.submit(NORMAL, () -> 0));
+        final var high = queue.submit(HIGH, () -> 0);
+        assertEquals(3, queue.shedCount());
+
+        isBlocking.countDown();
+        awaitCompletionOf(blocked);
+        awaitCompletionOf(queued);
+        awaitCompletionOf(normal);
+        awaitCompletionOf(high);
+
+        // Drained queue accepts tasks of every priority again.
+        assertEquals(0, queue.size());
+        assertEquals(Duration.ZERO, queue.latency());
+        awaitCompletionOf(queue.submit(LOW, () -> 0));
+        assertEquals(3, queue.shedCount());
+    }
+
+    @Test
+    void refusesEveryPriorityWhenFull() throws InterruptedException {
+        final var queue = new PriorityWorkQueue.Builder()
+            .capacity(1)
+            .latencyBudget(Duration.ofDays(1))
+            .workerCount(1)
+            .build();
+        final var isBlocking = new CountDownLatch(1);
+        final var blocked = blockWorkerOf(queue, isBlocking);
+        final var queued = queue.submit(LOW, () -> 0);
+
+        assertThrows(ServiceUnavailableException.class, () -> queue.submit(HIGH, () -> 0));
+
+        isBlocking.countDown();
+        awaitCompletionOf(blocked);
+        awaitCompletionOf(queued);
+    }
+
+    private static PriorityWorkQueue queueOf(final int workerCount) {
+        return new PriorityWorkQueue.Builder()
+            .latencyBudget(BUDGET)
+            .workerCount(workerCount)
+            .build();
+    }
+
+    // Occupies the only worker of queue until isBlocking is counted down.
+    private static Future<?> blockWorkerOf(
+        final PriorityWorkQueue queue,
+        final CountDownLatch isBlocking) throws InterruptedException
+    {
+        final var isStarted = new CountDownLatch(1);
+        final var blocked = queue.submit(HIGH, () -> {
+            isStarted.countDown();
+            try {
+                return isBlocking.await(10, TimeUnit.SECONDS);
+            }
+            catch (final InterruptedException exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+        assertTrue(isStarted.await(10, TimeUnit.SECONDS));
+        return blocked;
+    }
+
+    private static void awaitCompletionOf(final Future<?> future) throws InterruptedException {
+        final var isCompleted = new CountDownLatch(1);
+        future.onResult(result -> {
+            assertTrue(result.isSuccess());
+            isCompleted.countDown();
+        });
+        assertTrue(isCompleted.await(10, TimeUnit.SECONDS));
+    }
+}
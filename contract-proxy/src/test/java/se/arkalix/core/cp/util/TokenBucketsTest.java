@@ -0,0 +1,56 @@
+package se.arkalix.core.cp.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketsTest {
+    @Test
+    void admitsBurstThenRefuses() {
+        final var buckets = new TokenBuckets(1.0, 5, 16);
+        for (var i = 0; i < 5; ++i) {
+            assertEquals(Duration.ZERO, buckets.tryTake("a"));
+        }
+        final var retryAfter = buckets.tryTake("a");
+        assertTrue(retryAfter.compareTo(Duration.ZERO) > 0);
+        assertTrue(retryAfter.compareTo(Duration.ofSeconds(1)) <= 0);
+
+        assertEquals(Duration.ZERO, buckets.tryTake("b"));
+    }
+
+    @Test
+    void refillsAtRate() throws InterruptedException {
+        final var buckets = new TokenBuckets(100.0, 1, 16);
+        assertEquals(Duration.ZERO, buckets.tryTake("a"));
+        final var retryAfter = buckets.tryTake("a");
+        assertTrue(retryAfter.compareTo(Duration.ZERO) > 0);
+        assertTrue(retryAfter.compareTo(Duration.ofMillis(10)) <= 0);
+
+        Thread.sleep(retryAfter.toMillis() + 1);
+        assertEquals(Duration.ZERO, buckets.tryTake("a"));
+    }
+
+    @Test
+    void discardsFullBucketsBeyondMaxKeys() throws InterruptedException {
+        final var buckets = new TokenBuckets(1_000_000.0, 1, 2);
+        buckets.tryTake("a");
+        buckets.tryTake("b");
+        assertEquals(2, buckets.size());
+
+        Thread.sleep(1);
+        buckets.tryTake("c");
+        assertEquals(1, buckets.size());
+    }
+
+    @Test
+    void keepsBucketsThatAreNotFullBeyondMaxKeys() {
+        final var buckets = new TokenBuckets(1.0, 1, 2);
+        buckets.tryTake("a");
+        buckets.tryTake("b");
+        buckets.tryTake("c");
+        assertEquals(3, buckets.size());
+        assertNotEquals(Duration.ZERO, buckets.tryTake("a"));
+    }
+}